@@ -84,6 +84,15 @@ public class DateIteratorFactory {
     return new RecurrenceIteratorWrapper(rit);
   }
 
+  /**
+   * creates a date iterable given a recurrence iterable from
+   * {@link com.google.ical.iter.RecurrenceIteratorFactory}, or a
+   * {@link com.google.ical.iter.RecurrenceSlice}.
+   */
+  public static DateIterable createDateIterable(RecurrenceIterable rit) {
+    return new RecurrenceIterableWrapper(rit);
+  }
+
   private static final class RecurrenceIterableWrapper
       implements DateIterable {
     private final RecurrenceIterable it;
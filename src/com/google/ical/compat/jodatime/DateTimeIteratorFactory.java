@@ -83,6 +83,16 @@ public class DateTimeIteratorFactory {
     return new RecurrenceIteratorWrapper(rit);
   }
 
+  /**
+   * creates a date-time iterable given a recurrence iterable from
+   * {@link com.google.ical.iter.RecurrenceIteratorFactory}, or a
+   * {@link com.google.ical.iter.RecurrenceSlice}.
+   */
+  public static DateTimeIterable createDateTimeIterable(
+      RecurrenceIterable rit) {
+    return new RecurrenceIterableWrapper(rit);
+  }
+
   private static final class RecurrenceIterableWrapper
       implements DateTimeIterable {
     private final RecurrenceIterable it;
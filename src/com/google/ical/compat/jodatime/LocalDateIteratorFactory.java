@@ -109,6 +109,16 @@ public class LocalDateIteratorFactory {
     return new RecurrenceIteratorWrapper(rit);
   }
 
+  /**
+   * creates a local date iterable given a recurrence iterable from
+   * {@link com.google.ical.iter.RecurrenceIteratorFactory}, or a
+   * {@link com.google.ical.iter.RecurrenceSlice}.
+   */
+  public static LocalDateIterable createLocalDateIterable(
+      RecurrenceIterable rit) {
+    return new RecurrenceIterableWrapper(rit);
+  }
+
   private static final class RecurrenceIterableWrapper
       implements LocalDateIterable {
     private final RecurrenceIterable it;
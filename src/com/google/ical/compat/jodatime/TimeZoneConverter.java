@@ -17,6 +17,8 @@ package com.google.ical.compat.jodatime;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.SimpleTimeZone;
 import java.util.TimeZone;
 import java.util.regex.Matcher;
@@ -24,6 +26,7 @@ import java.util.regex.Pattern;
 
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
+import org.joda.time.chrono.ISOChronology;
 
 /**
  * Replacement for Joda-time's broken {@link DateTimeZone#toTimeZone} which
@@ -56,118 +59,269 @@ final class TimeZoneConverter {
     MILLIS_SINCE_1_JAN_2000_UTC = c.getTimeInMillis();
   }
 
+  /**
+   * the bounds of the range of instants over which each zone's transitions are
+   * tabulated.  Outside it, offsets come straight from the DateTimeZone.
+   */
+  private static final long TABLE_START, TABLE_END;
+  static {
+    GregorianCalendar c = new GregorianCalendar(UTC);
+    c.clear();
+    c.set(1900, 0, 1);
+    TABLE_START = c.getTimeInMillis();
+    c.set(2100, 0, 1);
+    TABLE_END = c.getTimeInMillis();
+  }
+
+  private static final long MILLISECONDS_PER_DAY = 24L * MILLISECONDS_PER_HOUR;
+
+  /** adapters by the ID of the zone they wrap. */
+  private static final Map<String, DateTimeZoneAdapter> ADAPTERS =
+      new HashMap<String, DateTimeZoneAdapter>();
+
   /**
    * return a <code>java.util.Timezone</code> object that delegates to
    * the given Joda <code>DateTimeZone</code>.
+   * Adapters are cached by zone ID, so the same zone is returned each time,
+   * which lets conversions that memoize by zone reuse their work.  The zone
+   * returned is immutable.
    */
-  public static TimeZone toTimeZone(final DateTimeZone dtz) {
+  public static TimeZone toTimeZone(DateTimeZone dtz) {
+    String id = dtz.getID();
+    DateTimeZoneAdapter adapter;
+    synchronized (ADAPTERS) {
+      adapter = ADAPTERS.get(id);
+    }
+    if (null == adapter
+        || (adapter.dtz != dtz && !adapter.dtz.equals(dtz))) {
+      adapter = new DateTimeZoneAdapter(dtz);
+      synchronized (ADAPTERS) {
+        ADAPTERS.put(id, adapter);
+      }
+    }
+    return adapter;
+  }
 
-    TimeZone tz = new TimeZone() {
-        @Override
-        public void setRawOffset(int n) {
-          throw new UnsupportedOperationException();
-        }
-        @Override
-        public boolean useDaylightTime() {
-          long firstTransition = MILLIS_SINCE_1_JAN_2000_UTC;
-          return firstTransition != dtz.nextTransition(firstTransition);
-        }
-        @Override
-        public boolean inDaylightTime(Date d) {
-          long t = d.getTime();
-          return dtz.getStandardOffset(t) != dtz.getOffset(t);
-        }
-        @Override
-        public int getRawOffset() {
-          return dtz.getStandardOffset(0);
-        }
-        @Override
-        public int getOffset(long instant) {
-          // This method is not abstract, but it normally calls through to the
-          // method below.
-          // It's optimized here since there's a direct equivalent in
-          // DateTimeZone.
-          // DateTimeZone and java.util.TimeZone use the same
-          // epoch so there's no translation of instant required.
-          return dtz.getOffset(instant);
-        }
-        @Override
-        public int getOffset(
-            int era, int year, int month, int day, int dayOfWeek,
-            int milliseconds) {
-          int millis = milliseconds;  // milliseconds is day in standard time
-          int hour = millis / MILLISECONDS_PER_HOUR;
-          millis %= MILLISECONDS_PER_HOUR;
-          int minute = millis / MILLISECONDS_PER_MINUTE;
-          millis %= MILLISECONDS_PER_MINUTE;
-          int second = millis / MILLISECONDS_PER_SECOND;
-          millis %= MILLISECONDS_PER_SECOND;
-          if (era == GregorianCalendar.BC) { year = -(year - 1); }
-
-          // get the time in UTC in case a timezone has changed it's standard
-          // offset, e.g. rid of a half hour from UTC.
-          DateTime dt = null;
-          try {
-            dt = new DateTime(year, month + 1, day, hour, minute,
-                              second, millis, dtz);
-          } catch (IllegalArgumentException ex) {
-            // Java does not complain if you try to convert a Date that does not
-            // exist due to the offset shifting forward, but Joda time does.
-            // Since we're trying to preserve the semantics of TimeZone, shift
-            // forward over the gap so that we're on a time that exists.
-            // This assumes that the DST correction is one hour long or less.
-            if (hour < 23) {
-              dt = new DateTime(year, month + 1, day, hour + 1, minute,
-                                second, millis, dtz);
-            } else {  // Some timezones shift at midnight.
-              Calendar c = new GregorianCalendar();
-              c.clear();
-              c.setTimeZone(TimeZone.getTimeZone("UTC"));
-              c.set(year, month, day, hour, minute, second);
-              c.add(Calendar.HOUR_OF_DAY, 1);
-              int year2 = c.get(Calendar.YEAR),
-                 month2 = c.get(Calendar.MONTH),
-                   day2 = c.get(Calendar.DAY_OF_MONTH),
-                  hour2 = c.get(Calendar.HOUR_OF_DAY);
-              dt = new DateTime(year2, month2 + 1, day2, hour2, minute,
-                                second, millis, dtz);
-            }
-          }
-          // since millis is in standard time, we construct the equivalent
-          // GMT+xyz timezone and use that to convert.
-          int offset = dtz.getStandardOffset(dt.getMillis());
-          DateTime stdDt = new DateTime(
-              year, month + 1, day, hour, minute,
-              second, millis, DateTimeZone.forOffsetMillis(offset));
-          return getOffset(stdDt.getMillis());
-        }
+  /**
+   * a <code>java.util.TimeZone</code> that answers offset queries from a table
+   * of the transitions of a <code>DateTimeZone</code> between TABLE_START and
+   * TABLE_END, and delegates to the <code>DateTimeZone</code> outside that
+   * range and around transitions when given local times.
+   */
+  private static final class DateTimeZoneAdapter extends TimeZone {
+    private final DateTimeZone dtz;
+    /** the instants at which the offset changes, in increasing order. */
+    private final long[] transitions;
+    /**
+     * offsets[0] is the offset in milliseconds at TABLE_START, and
+     * offsets[i + 1] the offset from transitions[i].
+     */
+    private final int[] offsets;
+    /** the standard offsets, indexed like offsets. */
+    private final int[] standardOffsets;
+    private final boolean useDaylightTime;
+    private final int rawOffset;
 
-        @Override
-        public String toString() {
-          return dtz.toString();
+    DateTimeZoneAdapter(DateTimeZone dtz) {
+      this.dtz = dtz;
+      long[] transitions = new long[16];
+      int[] offsets = new int[17];
+      int[] standardOffsets = new int[17];
+      offsets[0] = dtz.getOffset(TABLE_START);
+      standardOffsets[0] = dtz.getStandardOffset(TABLE_START);
+      int n = 0;
+      for (long t = TABLE_START;;) {
+        long next = dtz.nextTransition(t);
+        if (next <= t || next >= TABLE_END) { break; }
+        if (n == transitions.length) {
+          long[] newTransitions = new long[n * 2];
+          System.arraycopy(transitions, 0, newTransitions, 0, n);
+          transitions = newTransitions;
+          int[] newOffsets = new int[n * 2 + 1];
+          System.arraycopy(offsets, 0, newOffsets, 0, n + 1);
+          offsets = newOffsets;
+          int[] newStandardOffsets = new int[n * 2 + 1];
+          System.arraycopy(standardOffsets, 0, newStandardOffsets, 0, n + 1);
+          standardOffsets = newStandardOffsets;
         }
+        transitions[n] = next;
+        offsets[++n] = dtz.getOffset(next);
+        standardOffsets[n] = dtz.getStandardOffset(next);
+        t = next;
+      }
+      this.transitions = new long[n];
+      System.arraycopy(transitions, 0, this.transitions, 0, n);
+      this.offsets = new int[n + 1];
+      System.arraycopy(offsets, 0, this.offsets, 0, n + 1);
+      this.standardOffsets = new int[n + 1];
+      System.arraycopy(standardOffsets, 0, this.standardOffsets, 0, n + 1);
 
-        @Override
-        public boolean equals(Object that) {
-          if (!(that instanceof TimeZone)) {
-            return false;
-          }
-          TimeZone thatTz = (TimeZone) that;
-          return getID().equals(thatTz.getID()) && hasSameRules(thatTz);
+      long firstTransition = MILLIS_SINCE_1_JAN_2000_UTC;
+      this.useDaylightTime =
+          firstTransition != dtz.nextTransition(firstTransition);
+      this.rawOffset = dtz.getStandardOffset(0);
+      // Now fix the tzids.  DateTimeZone has a bad habit of returning
+      // "+06:00" when it should be "GMT+06:00"
+      super.setID(cleanUpTzid(dtz.getID()));
+    }
+
+    /**
+     * the index into offsets of the offset at the given instant, which must be
+     * in [TABLE_START, TABLE_END).
+     */
+    private int indexOf(long instant) {
+      // Binary search for the number of transitions at or before instant.
+      int lo = 0, hi = transitions.length;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (transitions[mid] <= instant) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
         }
+      }
+      return lo;
+    }
 
-        @Override
-        public int hashCode() {
-          return getID().hashCode();
+    @Override
+    public void setRawOffset(int n) {
+      throw new UnsupportedOperationException();
+    }
+    /** adapters are shared, so must not be modified. */
+    @Override
+    public void setID(String id) {
+      throw new UnsupportedOperationException();
+    }
+    @Override
+    public boolean useDaylightTime() {
+      return useDaylightTime;
+    }
+    @Override
+    public boolean inDaylightTime(Date d) {
+      long t = d.getTime();
+      if (t < TABLE_START || t >= TABLE_END) {
+        return dtz.getStandardOffset(t) != dtz.getOffset(t);
+      }
+      int i = indexOf(t);
+      return standardOffsets[i] != offsets[i];
+    }
+    @Override
+    public int getRawOffset() {
+      return rawOffset;
+    }
+    @Override
+    public int getOffset(long instant) {
+      // This method is not abstract, but it normally calls through to the
+      // method below.
+      // It's optimized here since there's a direct equivalent in
+      // DateTimeZone.
+      // DateTimeZone and java.util.TimeZone use the same
+      // epoch so there's no translation of instant required.
+      if (instant < TABLE_START || instant >= TABLE_END) {
+        return dtz.getOffset(instant);
+      }
+      return offsets[indexOf(instant)];
+    }
+    @Override
+    public int getOffset(
+        int era, int year, int month, int day, int dayOfWeek,
+        int milliseconds) {
+      // milliseconds is day in standard time.  Away from any transition, the
+      // standard and actual offsets are the same for all instants within a
+      // day of the local time, so the result is the offset at any of them.
+      int y = era == GregorianCalendar.BC ? -(year - 1) : year;
+      long local;
+      try {
+        local = ISOChronology.getInstanceUTC().getDateTimeMillis(
+            y, month + 1, day, milliseconds);
+      } catch (IllegalArgumentException ex) {
+        return offsetFromFields(dtz, era, year, month, day, milliseconds);
+      }
+      long earliest = local - MILLISECONDS_PER_DAY,
+             latest = local + MILLISECONDS_PER_DAY;
+      if (earliest >= TABLE_START && latest < TABLE_END) {
+        int i = indexOf(earliest);
+        if (i == transitions.length || transitions[i] > latest) {
+          return offsets[i];
         }
+      }
+      return offsetFromFields(dtz, era, year, month, day, milliseconds);
+    }
+
+    @Override
+    public String toString() {
+      return dtz.toString();
+    }
+
+    @Override
+    public boolean equals(Object that) {
+      if (!(that instanceof TimeZone)) {
+        return false;
+      }
+      TimeZone thatTz = (TimeZone) that;
+      return getID().equals(thatTz.getID()) && hasSameRules(thatTz);
+    }
+
+    @Override
+    public int hashCode() {
+      return getID().hashCode();
+    }
+
+    private static final long serialVersionUID = 58752546800455L;
+  }
+
+  /**
+   * the offset in the given zone of a time given as fields in standard time,
+   * as {@link TimeZone#getOffset(int, int, int, int, int, int)} computes it.
+   */
+  static int offsetFromFields(
+      DateTimeZone dtz, int era, int year, int month, int day,
+      int milliseconds) {
+    int millis = milliseconds;  // milliseconds is day in standard time
+    int hour = millis / MILLISECONDS_PER_HOUR;
+    millis %= MILLISECONDS_PER_HOUR;
+    int minute = millis / MILLISECONDS_PER_MINUTE;
+    millis %= MILLISECONDS_PER_MINUTE;
+    int second = millis / MILLISECONDS_PER_SECOND;
+    millis %= MILLISECONDS_PER_SECOND;
+    if (era == GregorianCalendar.BC) { year = -(year - 1); }
 
-        private static final long serialVersionUID = 58752546800455L;
-      };
-    // Now fix the tzids.  DateTimeZone has a bad habit of returning
-    // "+06:00" when it should be "GMT+06:00"
-    String newTzid = cleanUpTzid(dtz.getID());
-    tz.setID(newTzid);
-    return tz;
+    // get the time in UTC in case a timezone has changed it's standard
+    // offset, e.g. rid of a half hour from UTC.
+    DateTime dt = null;
+    try {
+      dt = new DateTime(year, month + 1, day, hour, minute,
+                        second, millis, dtz);
+    } catch (IllegalArgumentException ex) {
+      // Java does not complain if you try to convert a Date that does not
+      // exist due to the offset shifting forward, but Joda time does.
+      // Since we're trying to preserve the semantics of TimeZone, shift
+      // forward over the gap so that we're on a time that exists.
+      // This assumes that the DST correction is one hour long or less.
+      if (hour < 23) {
+        dt = new DateTime(year, month + 1, day, hour + 1, minute,
+                          second, millis, dtz);
+      } else {  // Some timezones shift at midnight.
+        Calendar c = new GregorianCalendar();
+        c.clear();
+        c.setTimeZone(TimeZone.getTimeZone("UTC"));
+        c.set(year, month, day, hour, minute, second);
+        c.add(Calendar.HOUR_OF_DAY, 1);
+        int year2 = c.get(Calendar.YEAR),
+           month2 = c.get(Calendar.MONTH),
+             day2 = c.get(Calendar.DAY_OF_MONTH),
+            hour2 = c.get(Calendar.HOUR_OF_DAY);
+        dt = new DateTime(year2, month2 + 1, day2, hour2, minute,
+                          second, millis, dtz);
+      }
+    }
+    // since millis is in standard time, we construct the equivalent
+    // GMT+xyz timezone and use that to convert.
+    int offset = dtz.getStandardOffset(dt.getMillis());
+    DateTime stdDt = new DateTime(
+        year, month + 1, day, hour, minute,
+        second, millis, DateTimeZone.forOffsetMillis(offset));
+    return dtz.getOffset(stdDt.getMillis());
   }
 
   /**
@@ -0,0 +1,479 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.iter;
+
+import com.google.ical.util.TimeUtils;
+import com.google.ical.values.DateValue;
+import com.google.ical.values.Frequency;
+import com.google.ical.values.Weekday;
+import com.google.ical.values.WeekdayNum;
+
+/**
+ * evaluates a rule that occurs at most once a day, a year at a time, by
+ * representing the days produced by each of its month and day generators and
+ * accepted by each of its filters as a mask over the days of the year, and
+ * intersecting the masks.
+ *
+ * <p>Bit i of a mask is set iff the i-th (zero indexed) day of the year is in
+ * the set, as in {@link DayOfYearMasks.YearMask}.  Each {@link DaySet}
+ * reproduces exactly the days that the corresponding generator or filter would
+ * produce or accept, so the result is the same as running the generators, but
+ * a rule like <code>FREQ=YEARLY;BYDAY=MO;BYWEEKNO=20</code> costs a few word
+ * operations per year instead of generating and filtering each candidate.
+ * BYSETPOS is applied by selecting set bits by rank within each month or
+ * year.</p>
+ *
+ * <p>Instances are immutable and may be shared across threads.</p>
+ *
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+final class ByPartMasks {
+
+  /**
+   * a set of days, such as the days produced by a month or day generator, or
+   * the days accepted by a filter.
+   */
+  abstract static class DaySet {
+    /**
+     * sets the bits in days for the days of the given year that are in this
+     * set.
+     * @param days a mask of {@link DayOfYearMasks#N_WORDS} words, all zero.
+     */
+    abstract void fill(int year, long[] days);
+  }
+
+  private final DaySet[] sets;
+  private final int firstYear;
+  /** the day of the year of dtStart.  Earlier days in firstYear are unset. */
+  private final int firstDay;
+  private final int yearInterval;
+  /** the frequency, which determines the periods that BYSETPOS applies to. */
+  private final Frequency freq;
+  /** uniquified BYSETPOS values, or empty if none. */
+  private final int[] bySetPos;
+
+  /**
+   * @param sets the days produced by the month and day generators and accepted
+   *   by the filters.  A day is an instance iff it is in all of them.
+   * @param dtStart the date of the first instance.
+   * @param yearInterval the number of years between years generated by the
+   *   year generator.
+   * @param bySetPos the BYSETPOS rule part, or empty.  Must be empty unless
+   *   the rule is monthly or yearly.
+   */
+  ByPartMasks(DaySet[] sets, DateValue dtStart, int yearInterval,
+              Frequency freq, int[] bySetPos) {
+    assert sets.length != 0;
+    assert bySetPos.length == 0 || Frequency.WEEKLY.compareTo(freq) < 0;
+    this.sets = sets.clone();
+    this.firstYear = dtStart.year();
+    this.firstDay = TimeUtils.dayOfYear(
+        dtStart.year(), dtStart.month(), dtStart.day());
+    this.yearInterval = yearInterval;
+    this.freq = freq;
+    this.bySetPos = Util.uniquify(bySetPos);
+  }
+
+  /** the first year on or after the given year that the rule may occur in. */
+  int firstYearOnOrAfter(int year) {
+    if (year <= firstYear) { return firstYear; }
+    int off = (year - firstYear) % yearInterval;
+    return 0 == off ? year : year + yearInterval - off;
+  }
+
+  int yearInterval() { return yearInterval; }
+
+  /**
+   * a mask of the days in the given year on which the rule occurs, or null if
+   * it does not occur in that year.
+   */
+  long[] days(int year) {
+    long[] days = candidates(year);
+    if (null == days) { return null; }
+    if (0 != bySetPos.length) {
+      days = selectBySetPos(year, days);
+    }
+    if (year == firstYear) {
+      clearBefore(days, firstDay);
+    }
+    for (long word : days) {
+      if (0 != word) { return days; }
+    }
+    return null;
+  }
+
+  /**
+   * the days in the given year in all the sets, before applying BYSETPOS, or
+   * null if the year generator doesn't generate the year.
+   */
+  private long[] candidates(int year) {
+    if (year < firstYear || 0 != (year - firstYear) % yearInterval) {
+      return null;
+    }
+    long[] days = new long[DayOfYearMasks.N_WORDS];
+    long[] scratch = new long[DayOfYearMasks.N_WORDS];
+    sets[0].fill(year, days);
+    for (int i = 1; i < sets.length; ++i) {
+      for (int w = 0; w < scratch.length; ++w) { scratch[w] = 0; }
+      sets[i].fill(year, scratch);
+      for (int w = 0; w < days.length; ++w) { days[w] &= scratch[w]; }
+    }
+    return days;
+  }
+
+  /** the candidates at the positions in bySetPos within each period. */
+  private long[] selectBySetPos(int year, long[] candidates) {
+    long[] selected = new long[DayOfYearMasks.N_WORDS];
+    switch (freq) {
+      case YEARLY:
+        select(candidates, 0, TimeUtils.yearLength(year), selected);
+        break;
+      case MONTHLY:
+        for (int month = 1; month <= 12; ++month) {
+          int start = TimeUtils.dayOfYear(year, month, 1);
+          select(candidates, start,
+                 start + TimeUtils.monthLength(year, month), selected);
+        }
+        break;
+      default:
+        throw new AssertionError(freq);
+    }
+    return selected;
+  }
+
+  /**
+   * sets the bits in selected for the candidates in [start, end) at the
+   * positions in bySetPos.
+   */
+  private void select(long[] candidates, int start, int end, long[] selected) {
+    int n = countBits(candidates, start, end);
+    if (0 == n) { return; }
+    for (int pos : bySetPos) {
+      if (pos < 0) { pos += n + 1; }
+      if (pos < 1 || pos > n) { continue; }
+      int day = selectBit(candidates, start, pos);
+      selected[day >>> 6] |= 1L << day;
+    }
+  }
+
+  /** the days produced by a serial month generator. */
+  static DaySet serialMonths(final int interval, DateValue dtStart) {
+    final int firstMonth = dtStart.year() * 12 + dtStart.month() - 1;
+    return new DaySet() {
+      @Override
+      void fill(int year, long[] days) {
+        for (int month = 1; month <= 12; ++month) {
+          int monthIndex = year * 12 + month - 1;
+          if (monthIndex >= firstMonth
+              && 0 == (monthIndex - firstMonth) % interval) {
+            setMonth(year, month, days);
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * the days produced by a BYMONTH generator, or null if any month is out of
+   * range.
+   */
+  static DaySet months(int[] months) {
+    final int[] umonths = Util.uniquify(months);
+    for (int month : umonths) {
+      if (month < 1 || month > 12) { return null; }
+    }
+    return new DaySet() {
+      @Override
+      void fill(int year, long[] days) {
+        for (int month : umonths) { setMonth(year, month, days); }
+      }
+    };
+  }
+
+  /**
+   * the days produced by a serial day generator: every interval-th day on or
+   * after dtStart.
+   */
+  static DaySet serialDays(final int interval, DateValue dtStart) {
+    final int first = TimeUtils.fixedFromGregorian(
+        dtStart.year(), dtStart.month(), dtStart.day());
+    return new DaySet() {
+      @Override
+      void fill(int year, long[] days) {
+        int offset = first - TimeUtils.fixedFromGregorian(year, 1, 1);
+        int day = offset >= 0 ? offset : (interval + offset % interval)
+            % interval;
+        int nDays = TimeUtils.yearLength(year);
+        if (1 == interval) {
+          setRange(days, day, nDays);
+        } else {
+          for (; day < nDays; day += interval) {
+            days[day >>> 6] |= 1L << day;
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * the days produced by a BYMONTHDAY generator, and accepted by a BYMONTHDAY
+   * filter.
+   */
+  static DaySet monthDays(int[] monthDays) {
+    final int[] umonthDays = Util.uniquify(monthDays);
+    return new DaySet() {
+      @Override
+      void fill(int year, long[] days) {
+        for (int month = 1; month <= 12; ++month) {
+          int nDays = TimeUtils.monthLength(year, month);
+          int start = TimeUtils.dayOfYear(year, month, 1);
+          for (int date : umonthDays) {
+            if (date < 0) { date += nDays + 1; }
+            if (date >= 1 && date <= nDays) {
+              int day = start + date - 1;
+              days[day >>> 6] |= 1L << day;
+            }
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * the days produced by a BYDAY generator.
+   * @param weeksInYear true if the numbers are of weeks in the year, false if
+   *   of weeks in the month.
+   */
+  static DaySet weekdays(WeekdayNum[] weekdays, final boolean weeksInYear) {
+    final WeekdayNum[] uweekdays = weekdays.clone();
+    return new DaySet() {
+      @Override
+      void fill(int year, long[] days) {
+        if (weeksInYear) {
+          fillPeriod(year, 1, TimeUtils.yearLength(year), days);
+        } else {
+          for (int month = 1; month <= 12; ++month) {
+            fillPeriod(year, month, TimeUtils.monthLength(year, month), days);
+          }
+        }
+      }
+
+      /** the days in the period starting on the first of the given month. */
+      private void fillPeriod(int year, int month, int nDays, long[] days) {
+        Weekday dow0 = Weekday.firstDayOfWeekInMonth(year, month);
+        int start = TimeUtils.dayOfYear(year, month, 1);
+        for (WeekdayNum weekday : uweekdays) {
+          if (0 == weekday.num) {
+            setWeekday(dow0, weekday.wday, start, nDays, days);
+          } else {
+            int date = Util.dayNumToDate(
+                dow0, nDays, weekday.num, weekday.wday, 0, nDays);
+            if (0 != date) {
+              int day = start + date - 1;
+              days[day >>> 6] |= 1L << day;
+            }
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * the days accepted by a BYDAY filter.
+   * This differs from {@link #weekdays} for numbered weekdays, since the
+   * filter numbers weeks starting on wkst.
+   * @param weeksInYear true if the numbers are of weeks in the year, false if
+   *   of weeks in the month.
+   */
+  static DaySet weekdayFilter(
+      WeekdayNum[] weekdays, final boolean weeksInYear, final Weekday wkst) {
+    final WeekdayNum[] uweekdays = weekdays.clone();
+    return new DaySet() {
+      @Override
+      void fill(int year, long[] days) {
+        if (weeksInYear) {
+          fillPeriod(year, 1, TimeUtils.yearLength(year), days);
+        } else {
+          for (int month = 1; month <= 12; ++month) {
+            fillPeriod(year, month, TimeUtils.monthLength(year, month), days);
+          }
+        }
+      }
+
+      /** the days in the period starting on the first of the given month. */
+      private void fillPeriod(int year, int month, int nDays, long[] days) {
+        Weekday dow0 = Weekday.firstDayOfWeekInMonth(year, month);
+        int start = TimeUtils.dayOfYear(year, month, 1);
+        for (WeekdayNum weekday : uweekdays) {
+          if (0 == weekday.num) {
+            setWeekday(dow0, weekday.wday, start, nDays, days);
+            continue;
+          }
+          int weekNo = weekday.num > 0
+              ? weekday.num : Util.invertWeekdayNum(weekday, dow0, nDays);
+          // The filter puts the index i of a day in the period in week
+          // 1 + i / 7 if its day of the week is on or after wkst, and in week
+          // i / 7 otherwise, so only one day matches.
+          int week = wkst.javaDayNum <= weekday.wday.javaDayNum
+              ? weekNo - 1 : weekNo;
+          int index = 7 * week + (7 + weekday.wday.javaDayNum - dow0.javaDayNum)
+              % 7;
+          if (index >= 0 && index < nDays) {
+            int day = start + index;
+            days[day >>> 6] |= 1L << day;
+          }
+        }
+      }
+    };
+  }
+
+  /** the days produced by a BYWEEKNO generator. */
+  static DaySet weekNos(int[] weekNos, final Weekday wkst) {
+    final int[] uweekNos = Util.uniquify(weekNos);
+    return new DaySet() {
+      @Override
+      void fill(int year, long[] days) {
+        // Week 1 is the first week with at least 4 days in the year, as
+        // computed by the generator.
+        Weekday dowJan1 = Weekday.firstDayOfWeekInMonth(year, 1);
+        int nDaysInFirstWeek =
+            7 - ((7 + dowJan1.javaDayNum - wkst.javaDayNum) % 7);
+        int nOrphanedDays = 0;
+        if (nDaysInFirstWeek < 4) {
+          nOrphanedDays = nDaysInFirstWeek;
+          nDaysInFirstWeek = 7;
+        }
+        int startOfWeek1 = nDaysInFirstWeek - 7 + nOrphanedDays;
+        int nDays = TimeUtils.yearLength(year);
+        int weeksInYear = (nDays - nOrphanedDays + 6) / 7;
+        for (int weekNo : uweekNos) {
+          if (weekNo < 0) { weekNo += weeksInYear + 1; }
+          int start = (weekNo - 1) * 7 + startOfWeek1;
+          setRange(days, Math.max(0, start), Math.min(nDays, start + 7));
+        }
+      }
+    };
+  }
+
+  /** the days produced by a BYYEARDAY generator. */
+  static DaySet yearDays(int[] yearDays) {
+    final int[] uyearDays = Util.uniquify(yearDays);
+    return new DaySet() {
+      @Override
+      void fill(int year, long[] days) {
+        int nDays = TimeUtils.yearLength(year);
+        for (int yearDay : uyearDays) {
+          if (yearDay < 0) { yearDay += nDays + 1; }
+          if (yearDay >= 1 && yearDay <= nDays) {
+            int day = yearDay - 1;
+            days[day >>> 6] |= 1L << day;
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * the days accepted by a week interval filter: those in every interval-th
+   * week from the week containing dtStart.  Days before that week are never
+   * included since they are before dtStart.
+   */
+  static DaySet weekInterval(
+      final int interval, Weekday wkst, DateValue dtStart) {
+    final int weekStart = TimeUtils.fixedFromGregorian(
+        dtStart.year(), dtStart.month(), dtStart.day())
+        - (7 + Weekday.valueOf(dtStart).javaDayNum - wkst.javaDayNum) % 7;
+    return new DaySet() {
+      @Override
+      void fill(int year, long[] days) {
+        int jan1 = TimeUtils.fixedFromGregorian(year, 1, 1);
+        int nDays = TimeUtils.yearLength(year);
+        // the index of the first week from weekStart that overlaps the year
+        int week = Math.max(0, (jan1 - weekStart) / 7);
+        int start = weekStart + 7 * week - jan1;
+        // skip to the first included week
+        int off = week % interval;
+        if (0 != off) {
+          start += 7 * (interval - off);
+        }
+        for (; start < nDays; start += 7 * interval) {
+          setRange(days, Math.max(0, start), Math.min(nDays, start + 7));
+        }
+      }
+    };
+  }
+
+  private static void setMonth(int year, int month, long[] days) {
+    int start = TimeUtils.dayOfYear(year, month, 1);
+    setRange(days, start, start + TimeUtils.monthLength(year, month));
+  }
+
+  /** sets the bits for the days with day of week dow in a period. */
+  private static void setWeekday(
+      Weekday dow0, Weekday dow, int start, int nDays, long[] days) {
+    int end = start + nDays;
+    for (int day = start + (7 + dow.javaDayNum - dow0.javaDayNum) % 7;
+         day < end; day += 7) {
+      days[day >>> 6] |= 1L << day;
+    }
+  }
+
+  /** sets the bits in [start, end). */
+  private static void setRange(long[] days, int start, int end) {
+    for (int i = start; i < end;) {
+      int w = i >>> 6;
+      int wordEnd = Math.min(end, (w + 1) << 6);
+      long bits = -1L << i;
+      if (wordEnd < (w + 1) << 6) { bits &= ~(-1L << wordEnd); }
+      days[w] |= bits;
+      i = wordEnd;
+    }
+  }
+
+  /** clears the bits before end. */
+  private static void clearBefore(long[] days, int end) {
+    for (int w = 0; w < (end >>> 6); ++w) { days[w] = 0; }
+    if (0 != (end & 63)) { days[end >>> 6] &= -1L << end; }
+  }
+
+  /** the number of set bits in [start, end). */
+  private static int countBits(long[] days, int start, int end) {
+    int n = 0;
+    for (int i = start; i < end;) {
+      int w = i >>> 6;
+      int wordEnd = Math.min(end, (w + 1) << 6);
+      long bits = days[w] & (-1L << i);
+      if (wordEnd < (w + 1) << 6) { bits &= ~(-1L << wordEnd); }
+      n += Long.bitCount(bits);
+      i = wordEnd;
+    }
+    return n;
+  }
+
+  /** the index of the rank-th (one indexed) set bit at or after start. */
+  private static int selectBit(long[] days, int start, int rank) {
+    int w = start >>> 6;
+    long bits = days[w] & (-1L << start);
+    while (true) {
+      int n = Long.bitCount(bits);
+      if (rank <= n) { break; }
+      rank -= n;
+      bits = days[++w];
+    }
+    while (--rank > 0) { bits &= bits - 1; }
+    return (w << 6) + Long.numberOfTrailingZeros(bits);
+  }
+
+}
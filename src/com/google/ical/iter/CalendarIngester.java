@@ -0,0 +1,662 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.iter;
+
+import com.google.ical.util.TimeUtils;
+import com.google.ical.values.DateValue;
+import com.google.ical.values.IcalObject;
+import com.google.ical.values.IcalParseUtil;
+import com.google.ical.values.RDateList;
+import com.google.ical.values.RRule;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * reads the VEVENTs in an .ics file and compiles the recurrence of each,
+ * spreading the work across the threads of an executor.
+ *
+ * <p>The file is memory mapped a window at a time, and the calling thread
+ * finds the BEGIN:VEVENT and END:VEVENT lines with a scan of the bytes, so it
+ * never decodes or copies the bulk of the file.  Batches of events are handed
+ * to workers, which unfold only the DTSTART, UID, RRULE, EXRULE, RDATE and
+ * EXDATE lines of each, and parse and compile them.  If the workers fall
+ * behind, the calling thread processes batches itself rather than queueing
+ * more, which bounds the memory used.  Workers that have not started by the
+ * time the file is read are cancelled, so ingest may be called from a thread
+ * of the executor itself.</p>
+ *
+ * <p>Only top-level VEVENTs are read, so the RRULEs of VTIMEZONEs and the
+ * properties of VALARMs nested in events are ignored.  Events with no
+ * DTSTART are reported with an error.</p>
+ *
+ * <p>Instances are thread-safe if their executor and cache are.</p>
+ *
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+public final class CalendarIngester {
+
+  private static final Logger LOGGER = Logger.getLogger(
+      CalendarIngester.class.getName());
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** the default size of the windows in which the file is mapped. */
+  private static final int DEFAULT_WINDOW = 1 << 28;
+  /** the most events per batch. */
+  private static final int BATCH_EVENTS = 256;
+  /** the most bytes per batch, so that batches of long events are short. */
+  private static final int BATCH_BYTES = 1 << 20;
+
+  /** the properties of an event that are read. */
+  private static final int PROP_BEGIN = 0, PROP_END = 1, PROP_DTSTART = 2,
+      PROP_UID = 3, PROP_RULE = 4, PROP_DATE = 5;
+
+  private static final byte[] BEGIN_VEVENT = ascii("BEGIN:VEVENT");
+  private static final byte[] END_VEVENT = ascii("END:VEVENT");
+
+  private final ExecutorService executor;
+  private final int parallelism;
+  private final TimeZone defaultTzid;
+  private final boolean strict;
+  private final RecurrenceCache cache;
+  private final int window;
+
+  /**
+   * @param executor runs the workers other than the calling thread.
+   * @param parallelism the maximum number of threads, including the caller,
+   *   to work on a file at once.  Typically the number of threads in the
+   *   executor plus one.
+   * @param defaultTzid the timezone of events whose DTSTART has no TZID and
+   *   is not in UTC.
+   * @param strict true if an event with a malformed recurrence line should be
+   *   reported with an error.  false causes bad lines to be logged and
+   *   ignored.
+   * @param cache used to compile the recurrences if not null, so that events
+   *   that share rules are only compiled once.
+   */
+  public CalendarIngester(
+      ExecutorService executor, int parallelism, TimeZone defaultTzid,
+      boolean strict, RecurrenceCache cache) {
+    this(executor, parallelism, defaultTzid, strict, cache, DEFAULT_WINDOW);
+  }
+
+  /** @param window the size of the windows in which the file is mapped. */
+  CalendarIngester(
+      ExecutorService executor, int parallelism, TimeZone defaultTzid,
+      boolean strict, RecurrenceCache cache, int window) {
+    if (null == executor || null == defaultTzid) {
+      throw new NullPointerException();
+    }
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("" + parallelism);
+    }
+    this.executor = executor;
+    this.parallelism = parallelism;
+    this.defaultTzid = defaultTzid;
+    this.strict = strict;
+    this.cache = cache;
+    this.window = window;
+  }
+
+  /** receives events as they are read. */
+  public interface Sink {
+    /**
+     * called once per VEVENT, from several threads at once and in no
+     * particular order.
+     */
+    void event(Event event);
+  }
+
+  /**
+   * reads each VEVENT in the file and passes it to sink.
+   * @throws InterruptedException if interrupted while waiting for workers.
+   *   Workers may still be running.
+   */
+  public void ingest(File file, Sink sink)
+      throws IOException, InterruptedException {
+    // Null if the caller works alone.
+    BlockingQueue<Batch> queue = parallelism > 1
+        ? new ArrayBlockingQueue<Batch>(2 * (parallelism - 1)) : null;
+    AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    List<Worker> workers = new ArrayList<Worker>();
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    Worker caller = new Worker(queue, sink, failure);
+    try {
+      // If the executor rejects a worker, the ones already started still get
+      // their end markers below.
+      for (int i = 1; i < parallelism; ++i) {
+        Worker worker = new Worker(queue, sink, failure);
+        futures.add(executor.submit(worker));
+        workers.add(worker);
+      }
+      FileInputStream in = new FileInputStream(file);
+      try {
+        scan(in.getChannel(), queue, caller, failure);
+      } finally {
+        in.close();
+      }
+      if (null != queue) {
+        // Help finish the batches that are still queued.
+        for (Batch batch; null != (batch = queue.poll());) {
+          caller.process(batch);
+        }
+      }
+    } catch (RuntimeException ex) {
+      failure.compareAndSet(null, ex);
+    } catch (Error err) {
+      failure.compareAndSet(null, err);
+    } finally {
+      // Workers that have not started yet may be queued behind this thread,
+      // as when it is the executor's only thread, so waiting for them could
+      // deadlock.  They are cancelled instead, since every batch has been
+      // processed or is queued for a worker that has started.  Those drain
+      // the queue until they see the end, so this can't block for long.
+      for (int i = 0; i < futures.size(); ++i) {
+        if (workers.get(i).started.compareAndSet(false, true)) {
+          futures.get(i).cancel(false);
+        } else {
+          queue.put(Batch.END);
+        }
+      }
+    }
+    for (Future<Void> future : futures) {
+      try {
+        future.get();
+      } catch (CancellationException ex) {
+        // It never started.
+      } catch (ExecutionException ex) {
+        failure.compareAndSet(null, ex.getCause());
+      }
+    }
+    Throwable t = failure.get();
+    if (t instanceof RuntimeException) {
+      throw (RuntimeException) t;
+    } else if (t instanceof Error) {
+      throw (Error) t;
+    }
+  }
+
+  /**
+   * maps the file a window at a time, and queues batches of the events in it.
+   */
+  private void scan(FileChannel channel, BlockingQueue<Batch> queue,
+                    Worker caller, AtomicReference<Throwable> failure)
+      throws IOException {
+    long size = channel.size();
+    long base = 0;
+    int windowSize = window;
+    while (base < size && null == failure.get()) {
+      int len = (int) Math.min(size - base, windowSize);
+      boolean last = base + len == size;
+      ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, base, len);
+
+      Batch batch = new Batch(buf, base);
+      int eventStart = -1;
+      int lineStart = 0;
+      while (true) {
+        if (startsLine(buf, lineStart, len, BEGIN_VEVENT, last)) {
+          if (eventStart >= 0) { batch.addUnterminated(eventStart); }
+          eventStart = lineStart;
+        } else if (eventStart >= 0
+                   && startsLine(buf, lineStart, len, END_VEVENT, last)) {
+          batch.add(eventStart, lineStart + END_VEVENT.length);
+          eventStart = -1;
+          if (batch.isFull()) {
+            submit(batch, queue, caller);
+            batch = new Batch(buf, base);
+          }
+        }
+        int next = nextLine(buf, lineStart, len);
+        if (next < 0) { break; }
+        lineStart = next;
+      }
+
+      if (last) {
+        if (eventStart >= 0) { batch.addUnterminated(eventStart); }
+        submit(batch, queue, caller);
+        break;
+      }
+      // Start the next window at the unfinished event or at the last line,
+      // which may have been cut short.
+      int resume = eventStart >= 0 ? eventStart : lineStart;
+      if (resume == 0) {
+        if (eventStart < 0) {
+          // A single line fills the window.
+          resume = len;
+        } else if (windowSize < Integer.MAX_VALUE) {
+          windowSize = (int) Math.min(2L * windowSize, Integer.MAX_VALUE);
+          continue;
+        } else {
+          batch.addUnterminated(0);
+          resume = len;
+        }
+      }
+      submit(batch, queue, caller);
+      base += resume;
+    }
+  }
+
+  private static void submit(
+      Batch batch, BlockingQueue<Batch> queue, Worker caller) {
+    if (batch.isEmpty()) { return; }
+    if (null == queue || !queue.offer(batch)) {
+      // The workers are behind, so help out instead of waiting.
+      caller.process(batch);
+    }
+  }
+
+  /**
+   * true if the line at buf[pos:limit] is token, ignoring case.
+   * @param last true if limit is the end of the input, so a line can end there.
+   */
+  private static boolean startsLine(
+      ByteBuffer buf, int pos, int limit, byte[] token, boolean last) {
+    int end = pos + token.length;
+    if (end > limit) { return false; }
+    for (int i = 0; i < token.length; ++i) {
+      if ((buf.get(pos + i) & ~0x20) != token[i]
+          && buf.get(pos + i) != token[i]) {
+        return false;
+      }
+    }
+    if (end == limit) { return last; }
+    byte b = buf.get(end);
+    return '\r' == b || '\n' == b;
+  }
+
+  /**
+   * the start of the line after the one at buf[pos:limit], or -1 if it does
+   * not start before limit.
+   */
+  private static int nextLine(ByteBuffer buf, int pos, int limit) {
+    for (int i = pos; i < limit; ++i) {
+      byte b = buf.get(i);
+      if ('\n' == b) {
+        return i + 1 < limit ? i + 1 : -1;
+      } else if ('\r' == b) {
+        if (i + 1 < limit && '\n' == buf.get(i + 1)) { ++i; }
+        return i + 1 < limit ? i + 1 : -1;
+      }
+    }
+    return -1;
+  }
+
+  /** processes batches from a queue. */
+  private final class Worker implements Callable<Void> {
+    private final BlockingQueue<Batch> queue;
+    private final Sink sink;
+    private final AtomicReference<Throwable> failure;
+    /** the bytes of the current line.  Reused across lines. */
+    private byte[] lineBytes = new byte[256];
+    /** timezones by TZID, since looking them up is slow. */
+    private final Map<String, TimeZone> zones =
+        new HashMap<String, TimeZone>();
+    /**
+     * set by the worker when it starts, or by the caller to stop it from
+     * starting, so that the caller knows whether it will take an end marker.
+     */
+    final AtomicBoolean started = new AtomicBoolean();
+
+    Worker(BlockingQueue<Batch> queue, Sink sink,
+           AtomicReference<Throwable> failure) {
+      this.queue = queue;
+      this.sink = sink;
+      this.failure = failure;
+    }
+
+    public Void call() throws InterruptedException {
+      if (!started.compareAndSet(false, true)) { return null; }
+      for (Batch batch; Batch.END != (batch = queue.take());) {
+        process(batch);
+      }
+      return null;
+    }
+
+    void process(Batch batch) {
+      for (int i = 0; i < batch.size && null == failure.get(); ++i) {
+        int start = batch.starts[i], end = batch.ends[i];
+        long offset = batch.base + start;
+        Event event = end >= 0
+            ? parseEvent(batch.buf, start, end, offset)
+            : new Event(offset, null, null, null, null,
+                        new ParseException("unterminated VEVENT", 0));
+        try {
+          sink.event(event);
+        } catch (RuntimeException ex) {
+          failure.compareAndSet(null, ex);
+        } catch (Error err) {
+          failure.compareAndSet(null, err);
+        }
+      }
+    }
+
+    /** parses and compiles the event in buf[start:end]. */
+    private Event parseEvent(ByteBuffer buf, int start, int end, long offset) {
+      String uid = null;
+      String dtStartLine = null;
+      List<String> ruleLines = new ArrayList<String>();
+      List<String> dateLines = new ArrayList<String>();
+      int depth = 0;
+      int pos = start;
+      while (pos < end) {
+        // Unfold the next line, keeping only the properties of interest.
+        int n = 0;
+        int property = -1;
+        boolean named = false;
+        while (pos < end) {
+          byte b = buf.get(pos++);
+          if ('\r' == b || '\n' == b) {
+            if ('\r' == b && pos < end && '\n' == buf.get(pos)) { ++pos; }
+            if (pos < end && (' ' == buf.get(pos) || '\t' == buf.get(pos))) {
+              ++pos;
+              continue;
+            }
+            break;
+          }
+          if (!named && (':' == b || ';' == b)) {
+            named = true;
+            property = property(n);
+          }
+          if (!named || property >= 0) {
+            if (n == lineBytes.length) {
+              byte[] newLine = new byte[n * 2];
+              System.arraycopy(lineBytes, 0, newLine, 0, n);
+              lineBytes = newLine;
+            }
+            lineBytes[n++] = b;
+          }
+        }
+        if (property < 0) { continue; }
+
+        if (PROP_BEGIN == property) {
+          ++depth;
+        } else if (PROP_END == property) {
+          --depth;
+        } else if (depth == 1) {
+          String content =
+              UTF8.decode(ByteBuffer.wrap(lineBytes, 0, n)).toString();
+          switch (property) {
+            case PROP_DTSTART: dtStartLine = content; break;
+            case PROP_UID:
+              uid = content.substring(content.indexOf(':') + 1);
+              break;
+            case PROP_RULE: ruleLines.add(content); break;
+            default: dateLines.add(content); break;
+          }
+        }
+      }
+
+      if (null == dtStartLine) {
+        return new Event(offset, uid, null, null, null,
+                         new ParseException("missing DTSTART", 0));
+      }
+      DateValue dtStart;
+      TimeZone tzid;
+      try {
+        int colon = valueStart(dtStartLine);
+        String value = dtStartLine.substring(colon + 1).trim();
+        dtStart = IcalParseUtil.parseDateValue(value);
+        tzid = value.endsWith("Z")
+            ? TimeUtils.utcTimezone()
+            : timezone(dtStartLine.substring(0, colon));
+      } catch (ParseException ex) {
+        return new Event(offset, uid, null, null, null, ex);
+      } catch (IllegalArgumentException ex) {
+        // Such as a NumberFormatException from a year too large for an int.
+        return new Event(offset, uid, null, null, null, ex);
+      }
+      try {
+        CompiledRecurrence recurrence = compile(
+            ruleLines, dateLines, dtStart, tzid);
+        return new Event(offset, uid, dtStart, tzid, recurrence, null);
+      } catch (ParseException ex) {
+        return new Event(offset, uid, dtStart, tzid, null, ex);
+      } catch (IllegalArgumentException ex) {
+        return new Event(offset, uid, dtStart, tzid, null, ex);
+      }
+    }
+
+    private CompiledRecurrence compile(
+        List<String> ruleLines, List<String> dateLines, DateValue dtStart,
+        TimeZone tzid)
+        throws ParseException {
+      if (null != cache) {
+        StringBuilder rdata = new StringBuilder();
+        for (String line : ruleLines) { rdata.append(line).append('\n'); }
+        for (String line : dateLines) { rdata.append(line).append('\n'); }
+        return cache.compileRecurrence(
+            rdata.toString(), dtStart, tzid, strict);
+      }
+      List<IcalObject> contentLines = new ArrayList<IcalObject>();
+      int nRules = ruleLines.size();
+      for (int i = 0, n = nRules + dateLines.size(); i < n; ++i) {
+        String line = i < nRules ? ruleLines.get(i) : dateLines.get(i - nRules);
+        try {
+          contentLines.add(
+              i < nRules ? new RRule(line) : new RDateList(line, tzid));
+        } catch (ParseException ex) {
+          if (strict) { throw ex; }
+          LOGGER.log(Level.SEVERE,
+                     "Dropping bad recurrence rule line: " + line, ex);
+        } catch (IllegalArgumentException ex) {
+          if (strict) { throw ex; }
+          LOGGER.log(Level.SEVERE,
+                     "Dropping bad recurrence rule line: " + line, ex);
+        }
+      }
+      return RecurrenceIteratorFactory.compileRecurrence(
+          contentLines.toArray(new IcalObject[contentLines.size()]),
+          dtStart, tzid, strict);
+    }
+
+    /**
+     * the timezone named by the TZID parameter among the given parameters, or
+     * the default.
+     * @param params a property name followed by parameters, each preceded by
+     *   a semicolon.
+     */
+    private TimeZone timezone(String params) throws ParseException {
+      int pos = params.indexOf(';');
+      while (pos >= 0) {
+        int end = pos + 1;
+        boolean quoted = false;
+        while (end < params.length()
+               && (quoted || ';' != params.charAt(end))) {
+          if ('"' == params.charAt(end)) { quoted = !quoted; }
+          ++end;
+        }
+        String param = params.substring(pos + 1, end);
+        if (param.regionMatches(true, 0, "TZID=", 0, 5)) {
+          String value = param.substring(5).replace("\"", "").trim();
+          if (value.startsWith("/")) { value = value.substring(1).trim(); }
+          TimeZone tz = zones.get(value);
+          if (null == tz) {
+            tz = TimeUtils.timeZoneForName(value.replace(' ', '_'));
+            if (null == tz) {
+              throw new ParseException("unknown TZID " + value, 0);
+            }
+            zones.put(value, tz);
+          }
+          return tz;
+        }
+        pos = end < params.length() ? end : -1;
+      }
+      return defaultTzid;
+    }
+
+    /**
+     * the PROP_* constant for the property named by lineBytes[0:len], or -1 if
+     * it is not read.
+     */
+    private int property(int len) {
+      switch (len) {
+        case 3:
+          if (matches("UID", len)) { return PROP_UID; }
+          if (matches("END", len)) { return PROP_END; }
+          return -1;
+        case 5:
+          if (matches("BEGIN", len)) { return PROP_BEGIN; }
+          if (matches("RRULE", len)) { return PROP_RULE; }
+          if (matches("RDATE", len)) { return PROP_DATE; }
+          return -1;
+        case 6:
+          if (matches("EXRULE", len)) { return PROP_RULE; }
+          if (matches("EXDATE", len)) { return PROP_DATE; }
+          return -1;
+        case 7: return matches("DTSTART", len) ? PROP_DTSTART : -1;
+        default: return -1;
+      }
+    }
+
+    /** true if lineBytes[0:len] is name, ignoring case. */
+    private boolean matches(String name, int len) {
+      for (int i = 0; i < len; ++i) {
+        if (Character.toUpperCase((char) lineBytes[i]) != name.charAt(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /** the index of the colon that ends the parameters of a content line. */
+  private static int valueStart(String line) throws ParseException {
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); ++i) {
+      char ch = line.charAt(i);
+      if ('"' == ch) {
+        quoted = !quoted;
+      } else if (':' == ch && !quoted) {
+        return i;
+      }
+    }
+    throw new ParseException(line, 0);
+  }
+
+  private static byte[] ascii(String s) {
+    byte[] bytes = new byte[s.length()];
+    for (int i = 0; i < bytes.length; ++i) { bytes[i] = (byte) s.charAt(i); }
+    return bytes;
+  }
+
+  /** the events found in one window of the file. */
+  private static final class Batch {
+    static final Batch END = new Batch(null, 0);
+
+    final ByteBuffer buf;
+    /** the offset of buf in the file. */
+    final long base;
+    /**
+     * the start and end of each event in buf.  An end of -1 marks an event
+     * that was not terminated.
+     */
+    int[] starts = new int[16], ends = new int[16];
+    int size;
+    private int bytes;
+
+    Batch(ByteBuffer buf, long base) {
+      this.buf = buf;
+      this.base = base;
+    }
+
+    void add(int start, int end) {
+      if (size == starts.length) {
+        int[] newStarts = new int[size * 2], newEnds = new int[size * 2];
+        System.arraycopy(starts, 0, newStarts, 0, size);
+        System.arraycopy(ends, 0, newEnds, 0, size);
+        starts = newStarts;
+        ends = newEnds;
+      }
+      starts[size] = start;
+      ends[size] = end;
+      ++size;
+      if (end >= 0) { bytes += end - start; }
+    }
+
+    void addUnterminated(int start) { add(start, -1); }
+
+    boolean isEmpty() { return size == 0; }
+
+    boolean isFull() { return size >= BATCH_EVENTS || bytes >= BATCH_BYTES; }
+  }
+
+  /** a VEVENT read from a file. */
+  public static final class Event {
+    private final long offset;
+    private final String uid;
+    private final DateValue dtStart;
+    private final TimeZone tzid;
+    private final CompiledRecurrence recurrence;
+    private final Exception error;
+
+    Event(long offset, String uid, DateValue dtStart, TimeZone tzid,
+          CompiledRecurrence recurrence, Exception error) {
+      this.offset = offset;
+      this.uid = uid;
+      this.dtStart = dtStart;
+      this.tzid = tzid;
+      this.recurrence = recurrence;
+      this.error = error;
+    }
+
+    /** the offset in bytes of the event's BEGIN:VEVENT line in the file. */
+    public long getOffset() { return offset; }
+
+    /** the value of the event's UID property, or null if it has none. */
+    public String getUid() { return uid; }
+
+    /** the start of the event in {@link #getTzid}, or null on error. */
+    public DateValue getDtStart() { return dtStart; }
+
+    /**
+     * the timezone of the event's DTSTART, which is UTC for a DTSTART ending
+     * in 'Z', or null on error.
+     */
+    public TimeZone getTzid() { return tzid; }
+
+    /**
+     * the occurrences of the event, including its DTSTART, or null on error.
+     */
+    public CompiledRecurrence getRecurrence() { return recurrence; }
+
+    /**
+     * the ParseException or IllegalArgumentException raised while reading
+     * the event, or null.
+     */
+    public Exception getError() { return error; }
+  }
+
+}
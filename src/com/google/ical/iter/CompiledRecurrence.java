@@ -0,0 +1,199 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.iter;
+
+import com.google.ical.util.PackedDates;
+import com.google.ical.util.TimeUtils;
+import com.google.ical.values.DateValue;
+import com.google.ical.values.IcalObject;
+import com.google.ical.values.RDateList;
+import com.google.ical.values.RRule;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * a set of RRULE, RDATE, EXRULE, and EXDATE content lines that has been
+ * parsed and planned once so that it can be iterated many times.
+ *
+ * <p>Instances are immutable and may be shared across threads.  Each call to
+ * {@link #iterator} returns an independent iterator which reuses the
+ * decisions made when the recurrence was compiled, and the date lists, so only
+ * allocates the per-iterator state.</p>
+ *
+ * @see RecurrenceIteratorFactory#compileRecurrence
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+public final class CompiledRecurrence implements RecurrenceIterable {
+
+  private static final Logger LOGGER = Logger.getLogger(
+      CompiledRecurrence.class.getName());
+
+  private final RecurrenceIterable[] inclusions;
+  private final RecurrenceIterable[] exclusions;
+  /**
+   * the packed dates in UTC of all EXDATEs, sorted and without dupes, which
+   * are looked up instead of merged so that long lists of exceptions are cheap.
+   */
+  private final long[] excludedDates;
+
+  /**
+   * @param contentLines RRULE, RDATE, EXRULE, and EXDATE content lines.
+   * @param dtStart the date of the first occurrence in timezone tzid.
+   * @param tzid the timezone to iterate in.
+   * @param strict true if rules that cannot be iterated should result in an
+   *   IllegalArgumentException.  false causes them to be logged and ignored.
+   */
+  CompiledRecurrence(IcalObject[] contentLines, DateValue dtStart,
+                     TimeZone tzid, boolean strict) {
+    List<RecurrenceIterable> incl = new ArrayList<RecurrenceIterable>();
+    List<RecurrenceIterable> excl = new ArrayList<RecurrenceIterable>();
+    long[] excludedDates = new long[0];
+    int nExcludedDates = 0;
+    // always include DTStart
+    incl.add(new DateList(new long[] {
+      DateValueComparison.comparable(TimeUtils.toUtc(dtStart, tzid))
+    }));
+    for (IcalObject contentLine : contentLines) {
+      try {
+        String name = contentLine.getName();
+        if ("rrule".equalsIgnoreCase(name)) {
+          incl.add(new RRulePlan((RRule) contentLine, dtStart, tzid));
+        } else if ("rdate".equalsIgnoreCase(name)) {
+          incl.add(new DateList(
+              RecurrenceIteratorFactory.uniqueComparablesUtc(
+                  (RDateList) contentLine)));
+        } else if ("exrule".equalsIgnoreCase(name)) {
+          excl.add(new RRulePlan((RRule) contentLine, dtStart, tzid));
+        } else if ("exdate".equalsIgnoreCase(name)) {
+          long[] datesUtc = ((RDateList) contentLine).getPackedDatesUtc();
+          if (nExcludedDates + datesUtc.length > excludedDates.length) {
+            long[] newExcludedDates = new long[
+                Math.max(nExcludedDates + datesUtc.length,
+                         excludedDates.length * 2)];
+            System.arraycopy(
+                excludedDates, 0, newExcludedDates, 0, nExcludedDates);
+            excludedDates = newExcludedDates;
+          }
+          System.arraycopy(
+              datesUtc, 0, excludedDates, nExcludedDates, datesUtc.length);
+          nExcludedDates += datesUtc.length;
+        }
+      } catch (IllegalArgumentException ex) {
+        // bad frequency on rrule or exrule
+        if (strict) { throw ex; }
+        LOGGER.log(
+            Level.SEVERE,
+            "Dropping bad recurrence rule line: " + contentLine.toIcal(), ex);
+      }
+    }
+    this.inclusions = incl.toArray(new RecurrenceIterable[incl.size()]);
+    this.exclusions = excl.toArray(new RecurrenceIterable[excl.size()]);
+    this.excludedDates = Util.uniquify(excludedDates, 0, nExcludedDates);
+  }
+
+  /** a fresh iterator over the occurrences in UTC. */
+  public RecurrenceIterator iterator() {
+    List<RecurrenceIterator> incl =
+        new ArrayList<RecurrenceIterator>(inclusions.length);
+    for (RecurrenceIterable inclusion : inclusions) {
+      incl.add(inclusion.iterator());
+    }
+    List<RecurrenceIterator> excl =
+        new ArrayList<RecurrenceIterator>(exclusions.length);
+    for (RecurrenceIterable exclusion : exclusions) {
+      excl.add(exclusion.iterator());
+    }
+    return new CompoundIteratorImpl(incl, excl, excludedDates);
+  }
+
+  /**
+   * the first occurrence in UTC, or null if there are none.
+   * Only the iterators' first steps are taken.
+   */
+  public DateValue firstOccurrence() {
+    RecurrenceIterator it = iterator();
+    return it.hasNext() ? it.next() : null;
+  }
+
+  /**
+   * the last occurrence in UTC, or null if the recurrence has no end or no
+   * occurrences, or if a rule's COUNT is too large to find its end quickly.
+   *
+   * <p>The last instance of an RDATE is its maximum, and the last instance of
+   * a periodic rule with a COUNT, such as <code>FREQ=DAILY;COUNT=10</code>, is
+   * computed directly.  Rules with an UNTIL are searched backwards from it.
+   * Other rules with a COUNT that occur at most once a day count the days in
+   * each year on which they occur, and the rest are iterated to the end, but
+   * give up after tens of thousands of instances.  If the recurrence has
+   * exclusions, it is searched backwards from the latest instance of any
+   * inclusion to find the last that is not excluded.</p>
+   */
+  public DateValue lastOccurrence() {
+    long last = Long.MIN_VALUE;
+    for (RecurrenceIterable inclusion : inclusions) {
+      long lastInstance = inclusion instanceof RRulePlan
+          ? ((RRulePlan) inclusion).lastInstanceUtc()
+          : ((DateList) inclusion).lastDateUtc();
+      if (Long.MAX_VALUE == lastInstance) { return null; }
+      last = Math.max(last, lastInstance);
+    }
+    if (Long.MIN_VALUE != last
+        && (exclusions.length != 0 || excludedDates.length != 0)) {
+      last = RecurrenceSearch.previousBeforePacked(this, last + 1);
+    }
+    return Long.MIN_VALUE != last ? PackedDates.unpack(last) : null;
+  }
+
+  /**
+   * true iff some rule's iterators cannot skip ahead, so advancing an
+   * iterator over this costs as much as iterating up to the same point.
+   */
+  boolean advancesByWalking() {
+    for (RecurrenceIterable[] group
+         : new RecurrenceIterable[][] { inclusions, exclusions }) {
+      for (RecurrenceIterable series : group) {
+        if (series instanceof RRulePlan
+            && ((RRulePlan) series).advancesByWalking()) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /** sorted, unique dates shared by all iterators over them. */
+  private static final class DateList implements RecurrenceIterable {
+    /** packed dates in UTC in increasing order without dupes. */
+    private final long[] comparablesUtc;
+
+    DateList(long[] comparablesUtc) {
+      this.comparablesUtc = comparablesUtc;
+    }
+
+    public RecurrenceIterator iterator() {
+      return new RDateIteratorImpl(comparablesUtc);
+    }
+
+    /** the packed form of the last date, or Long.MIN_VALUE if none. */
+    long lastDateUtc() {
+      return comparablesUtc.length != 0
+          ? comparablesUtc[comparablesUtc.length - 1] : Long.MIN_VALUE;
+    }
+  }
+
+}
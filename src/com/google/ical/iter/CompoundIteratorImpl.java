@@ -14,29 +14,69 @@
 
 package com.google.ical.iter;
 
+import com.google.ical.util.PackedDates;
 import com.google.ical.values.DateValue;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Comparator;
 import java.util.NoSuchElementException;
-import java.util.PriorityQueue;
 
 /**
  * a recurrence iterator that combines others.  Some may be inclusions, and
  * some may be exclusions.
  *
+ * <p>The heads of the iterators are merged by a loser tree: a tournament in
+ * which each internal node remembers the loser of the match played there, so
+ * replacing the winner's head replays only the matches on its path to the
+ * root.</p>
+ *
+ * <p>Excluded dates, as from EXDATEs, may be given as a sorted array instead
+ * of as iterators.  They are then looked up as each candidate comes off the
+ * tree instead of taking part in the merge.</p>
+ *
  * @author mikesamuel+svn@gmail.com (Mike Samuel)
  */
 final class CompoundIteratorImpl implements RecurrenceIterator {
 
-  /** a queue that keeps the earliest dates at the head */
-  private PriorityQueue<HeapElement> queue;
-  private HeapElement pending;
+  /** the head of an exhausted iterator.  No packed date is this large. */
+  private static final long EXHAUSTED = Long.MAX_VALUE;
+
+  private static final long[] NO_DATES = new long[0];
+
+  /**
+   * the iterators being merged.  Inclusions come first, so the leaf at index
+   * i is an inclusion iff i &lt; nInclusions.
+   */
+  private final RecurrenceIterator[] its;
+  private final int nInclusions;
+  /**
+   * the {@link DateValueComparison#comparable} of the last value removed from
+   * each iterator, in utc, or EXHAUSTED.
+   */
+  private final long[] heads;
+  /**
+   * tree[0] is the index of the leaf with the earliest head, and tree[i] for
+   * i in [1, its.length) is the loser of the match at internal node i, whose
+   * children are nodes 2i and 2i + 1.  Leaf j is node j + its.length.
+   */
+  private final int[] tree;
+  /** the next date to return, if hasPending. */
+  private long pending;
+  private boolean hasPending;
   /**
-   * the number of inclusions on queue.  We keep track of this so that we
-   * don't have to drain the exclusions to conclude that the series is
+   * the number of inclusions that are not exhausted.  We keep track of this so
+   * that we don't have to drain the exclusions to conclude that the series is
    * exhausted.
    */
   private int nInclusionsRemaining;
+  /** the number of exclusions that are not exhausted. */
+  private int nExclusionsRemaining;
+  /** packed dates in utc that are excluded, sorted and without dupes. */
+  private final long[] excludedDates;
+  /**
+   * the index of the first of excludedDates that may not be before the last
+   * date checked against them.
+   */
+  private int excludedDatesIdx;
 
   /**
    * A generator that will generate only dates that are generated by inclusions
@@ -50,178 +90,221 @@ final class CompoundIteratorImpl implements RecurrenceIterator {
   CompoundIteratorImpl(
       Collection<RecurrenceIterator> inclusions,
       Collection<RecurrenceIterator> exclusions) {
-    queue = new PriorityQueue<HeapElement>(
-        inclusions.size() + exclusions.size(), HeapElement.CMP);
-    for (RecurrenceIterator it : inclusions) {
-      HeapElement el = new HeapElement(true, it);
-      if (el.shift()) {
-        queue.add(el);
-        ++nInclusionsRemaining;
+    this(inclusions, exclusions, NO_DATES);
+  }
+
+  /**
+   * like {@link #CompoundIteratorImpl(Collection, Collection)} but also
+   * excludes the given dates.
+   * @param excludedDates packed dates in utc, sorted and without dupes.  The
+   *   array is shared, so must not be modified.
+   */
+  CompoundIteratorImpl(
+      Collection<RecurrenceIterator> inclusions,
+      Collection<RecurrenceIterator> exclusions, long[] excludedDates) {
+    this.excludedDates = excludedDates;
+    int n = inclusions.size() + exclusions.size();
+    its = new RecurrenceIterator[n];
+    heads = new long[n];
+    nInclusions = inclusions.size();
+    int i = 0;
+    for (RecurrenceIterator it : inclusions) { its[i++] = it; }
+    for (RecurrenceIterator it : exclusions) { its[i++] = it; }
+    for (i = 0; i < n; ++i) {
+      if (shift(i)) {
+        if (i < nInclusions) {
+          ++nInclusionsRemaining;
+        } else {
+          ++nExclusionsRemaining;
+        }
       }
     }
-    for (RecurrenceIterator it : exclusions) {
-      HeapElement el = new HeapElement(false, it);
-      if (el.shift()) { queue.add(el); }
-    }
+    tree = new int[Math.max(n, 1)];
+    Arrays.fill(tree, -1);
+    for (i = 0; i < n; ++i) { insert(i); }
   }
 
   public boolean hasNext() {
-    requirePending();
-    return null != pending;
+    return requirePending();
   }
 
   public DateValue next() {
-    requirePending();
-    if (null == pending) { throw new NoSuchElementException(); }
-    DateValue head = pending.head();
-    reattach(pending);
-    pending = null;
-    return head;
+    return PackedDates.unpack(nextPacked());
+  }
+
+  public long nextPacked() {
+    if (!requirePending()) { throw new NoSuchElementException(); }
+    hasPending = false;
+    return pending;
+  }
+
+  public int fill(long[] out, int off, int len, long endExclusive) {
+    int n = 0;
+    while (n < len && requirePending()) {
+      if (pending >= endExclusive) { break; }
+      out[off + n++] = pending;
+      hasPending = false;
+      if (1 == nInclusionsRemaining && 0 == nExclusionsRemaining && n < len) {
+        // Only one iterator is left, so let it fill directly up to the next
+        // excluded date.
+        int leaf = tree[0];
+        long limit = endExclusive;
+        if (excludedDatesIdx < excludedDates.length
+            && excludedDates[excludedDatesIdx] < limit) {
+          limit = excludedDates[excludedDatesIdx];
+        }
+        if (heads[leaf] < limit) {
+          out[off + n++] = heads[leaf];
+          n += its[leaf].fill(out, off + n, len - n, limit);
+          if (!shift(leaf)) { nInclusionsRemaining = 0; }
+        }
+      }
+    }
+    return n;
   }
 
   public void remove() { throw new UnsupportedOperationException(); }
 
   public void advanceTo(DateValue newStart) {
-    long newStartCmp = DateValueComparison.comparable(newStart);
-    if (null != pending) {
-      if (pending.comparable() >= newStartCmp) { return; }
-      pending.advanceTo(newStart);
-      reattach(pending);
-      pending = null;
+    advanceToPacked(DateValueComparison.comparable(newStart));
+  }
+
+  public void advanceToPacked(long newStartCmp) {
+    if (hasPending) {
+      if (pending >= newStartCmp) { return; }
+      hasPending = false;
     }
 
-    // Pull each element off the stack in turn, and advance it.
-    // Once we reach one we don't need to advance, we're done
-    while (0 != nInclusionsRemaining && !queue.isEmpty()
-           && queue.peek().comparable() < newStartCmp) {
-      HeapElement el = queue.poll();
-      el.advanceTo(newStart);
-      reattach(el);
+    // Advance each iterator whose head is before newStart in turn.
+    // Once the earliest head doesn't need advancing, we're done.
+    while (0 != nInclusionsRemaining) {
+      int leaf = tree[0];
+      if (heads[leaf] >= newStartCmp) { break; }
+      its[leaf].advanceToPacked(newStartCmp);
+      consume(leaf);
     }
   }
 
   /**
-   * if the given element's iterator has more data, then push back onto the
-   * heap.
+   * make sure that pending contains the next date that some inclusion
+   * generates and no exclusion does.
+   * @return hasPending.
    */
-  private void reattach(HeapElement el) {
-    if (el.shift()) {
-      queue.add(el);
-    } else if (el.inclusion) {
-      // if we have no live inclusions, then the rest are exclusions which we
-      // can safely discard.
-      if (0 == --nInclusionsRemaining) {
-        queue.clear();
+  private boolean requirePending() {
+    if (hasPending) { return true; }
+    while (0 != nInclusionsRemaining) {
+      long earliest;
+      if (1 == nInclusionsRemaining && 0 == nExclusionsRemaining) {
+        // Only one iterator is left, so there is nothing to merge.  This is
+        // the common case of a rule once its DTSTART has been returned.
+        int leaf = tree[0];
+        earliest = heads[leaf];
+        if (!shift(leaf)) { nInclusionsRemaining = 0; }
+      } else {
+        // Consume every head equal to the earliest, noting whether any of
+        // them were inclusions or exclusions.
+        earliest = heads[tree[0]];
+        boolean included = false, excluded = false;
+        do {
+          int leaf = tree[0];
+          if (leaf < nInclusions) {
+            included = true;
+          } else {
+            excluded = true;
+          }
+          consume(leaf);
+        } while (heads[tree[0]] == earliest && EXHAUSTED != earliest);
+        if (!included || excluded) { continue; }
+      }
+      if (!isExcludedDate(earliest)) {
+        pending = earliest;
+        hasPending = true;
+        return true;
       }
     }
+    return false;
   }
 
   /**
-   * make sure that pending contains the next inclusive HeapElement that doesn't
-   * match any exclusion, and remove any dupes of it.
+   * true if date is one of excludedDates.  Dates must be checked in
+   * increasing order, as they come off the tree.
    */
-  private void requirePending() {
-    if (null != pending) { return; }
-
-    long exclusionComparable = Long.MIN_VALUE;
-    while (0 != nInclusionsRemaining && !queue.isEmpty()) {
-      // find a candidate that is not excluded
-      HeapElement inclusion = null;
-      do {
-        HeapElement candidate = queue.poll();
-        if (candidate.inclusion) {
-          if (exclusionComparable != candidate.comparable()) {
-            inclusion = candidate;
-            break;
-          }
+  private boolean isExcludedDate(long date) {
+    int i = excludedDatesIdx, n = excludedDates.length;
+    if (i < n && excludedDates[i] < date) {
+      // Binary search for the first excluded date not before date.
+      int lo = i + 1, hi = n;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (excludedDates[mid] < date) {
+          lo = mid + 1;
         } else {
-          exclusionComparable = candidate.comparable();
+          hi = mid;
         }
-        reattach(candidate);
-        if (0 == nInclusionsRemaining) { return; }
-      } while (!queue.isEmpty());
-      if (inclusion == null) { return; }
-      long inclusionComparable = inclusion.comparable();
-
-      // Check for any following exclusions and for duplicates.
-      // We could change the sort order so that exclusions always preceded
-      // inclusions, but that would be less efficient and would make the
-      // ordering different than the comparable value.
-      boolean excluded = exclusionComparable == inclusionComparable;
-      while (!queue.isEmpty()
-             && queue.peek().comparable() == inclusionComparable) {
-        HeapElement match = queue.poll();
-        excluded |= !match.inclusion;
-        reattach(match);
-        if (0 == nInclusionsRemaining) { return; }
-      }
-      if (!excluded) {
-        pending = inclusion;
-        return;
-      } else {
-        reattach(inclusion);
       }
+      excludedDatesIdx = i = lo;
     }
+    return i < n && excludedDates[i] == date;
   }
 
-}
-
-final class HeapElement {
-  /**
-   * should iterators items be included in the series or should they
-   * nullify any matched items included by other series.
-   */
-  final boolean inclusion;
-  /** the {@link DateValueComparison#comparable} for {@link #head}. */
-  private long comparable;
-  /** the last value removed from it.  In utc. */
-  private DateValue head;
-  private RecurrenceIterator it;
-
-  HeapElement(boolean inclusion, RecurrenceIterator it) {
-    this.inclusion = inclusion;
-    this.it = it;
+  /** replaces the head of the given leaf, which must be the winner. */
+  private void consume(int leaf) {
+    if (!shift(leaf)) {
+      if (leaf < nInclusions) {
+        --nInclusionsRemaining;
+      } else {
+        --nExclusionsRemaining;
+      }
+    }
+    replay(leaf);
   }
 
-  /** the last value removed from the iterator. */
-  DateValue head() { return head; }
   /**
-   * A given HeapElement may be compared to many others as it bubbles towards
-   * the heap's root, so we cache this for each HeapElement.
+   * replaces the head of the given leaf with the next value from its
+   * iterator.
+   * @return false if the iterator is exhausted.
    */
-  long comparable() { return comparable; }
-  /**
-   * discard the current, and return true iff there is another head to
-   * replace it.
-   */
-  boolean shift() {
-    if (!it.hasNext()) { return false; }
-    head = it.next();
-    comparable = DateValueComparison.comparable(head);
-    return true;
+  private boolean shift(int leaf) {
+    RecurrenceIterator it = its[leaf];
+    if (EXHAUSTED != heads[leaf] && it.hasNext()) {
+      heads[leaf] = it.nextPacked();
+      return true;
+    }
+    heads[leaf] = EXHAUSTED;
+    return false;
   }
 
   /**
-   * advance the underlying iterator to the given date value a la
-   * {@link RecurrenceIterator#advanceTo}.
+   * plays the given leaf up the tree while building it, stopping at the first
+   * node that hasn't seen a player yet.
    */
-  void advanceTo(DateValue dvUtc) {
-    it.advanceTo(dvUtc);
-  }
-
-  @Override
-  public String toString() {
-    return
-      "[" + head.toString() + (inclusion ? ", inclusion]" : ", exclusion]");
+  private void insert(int leaf) {
+    int winner = leaf;
+    for (int node = (leaf + its.length) >>> 1; node > 0; node >>>= 1) {
+      int other = tree[node];
+      if (other < 0) {
+        tree[node] = winner;
+        return;
+      }
+      if (heads[other] < heads[winner]) {
+        tree[node] = winner;
+        winner = other;
+      }
+    }
+    tree[0] = winner;
   }
 
-  /** compares to heap elements by comparing their heads. */
-  static Comparator<HeapElement> CMP = new Comparator<HeapElement>() {
-    public int compare(HeapElement a, HeapElement b) {
-      long ac = a.comparable(),
-           bc = b.comparable();
-      return ac < bc ? -1 : ac == bc ? 0 : 1;
+  /** replays the matches on the path from a changed leaf to the root. */
+  private void replay(int leaf) {
+    int winner = leaf;
+    for (int node = (leaf + its.length) >>> 1; node > 0; node >>>= 1) {
+      int other = tree[node];
+      if (heads[other] < heads[winner]) {
+        tree[node] = winner;
+        winner = other;
+      }
     }
-  };
+    tree[0] = winner;
+  }
 
 }
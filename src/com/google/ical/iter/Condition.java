@@ -0,0 +1,40 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.iter;
+
+import com.google.ical.util.Predicate;
+import com.google.ical.values.DateValue;
+
+/**
+ * a predicate that determines when a recurrence ends.  Conditions are applied
+ * to the {@link DateValueComparison#comparable packed} form of a UTC date so
+ * that iterators can test the end of a recurrence without allocating a
+ * DateValue for each instance.
+ *
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+abstract class Condition implements Predicate<DateValue> {
+
+  /**
+   * @param comparableUtc the packed form of a date in UTC.
+   * @return true iff the recurrence continues through the given date.
+   */
+  abstract boolean apply(long comparableUtc);
+
+  public final boolean apply(DateValue dateUtc) {
+    return apply(DateValueComparison.comparable(dateUtc));
+  }
+
+}
@@ -14,7 +14,7 @@
 
 package com.google.ical.iter;
 
-import com.google.ical.util.Predicate;
+import com.google.ical.util.PackedDates;
 import com.google.ical.values.DateValue;
 
 /**
@@ -25,10 +25,11 @@ import com.google.ical.values.DateValue;
 final class Conditions {
 
   /** constructs a condition that fails after passing count dates. */
-  static Predicate<DateValue> countCondition(final int count) {
-    return new Predicate<DateValue>() {
+  static Condition countCondition(final int count) {
+    return new Condition() {
       int count_ = count;
-      public boolean apply(DateValue _) {
+      @Override
+      boolean apply(long date) {
         return --count_ >= 0;
       }
       @Override
@@ -42,18 +43,43 @@ final class Conditions {
    * constructs a condition that passes for every date on or before until.
    * @param until non null.
    */
-  static Predicate<DateValue> untilCondition(final DateValue until) {
-    return new Predicate<DateValue>() {
-      public boolean apply(DateValue date) {
-        return date.compareTo(until) <= 0;
+  static Condition untilCondition(final DateValue until) {
+    return untilCondition(DateValueComparison.comparable(until));
+  }
+
+  /**
+   * like {@link #untilCondition(DateValue)} but takes the
+   * {@link DateValueComparison#comparable packed} form of until.
+   */
+  static Condition untilCondition(final long untilComparable) {
+    return new Condition() {
+      @Override
+      boolean apply(long date) {
+        return date <= untilComparable;
       }
       @Override
       public String toString() {
-        return "UntilCondition:" + until;
+        return "UntilCondition:" + PackedDates.unpack(untilComparable);
       }
     };
   }
 
+  /** a condition that passes for every date. */
+  static Condition alwaysTrue() {
+    return ALWAYS_TRUE;
+  }
+
+  private static final Condition ALWAYS_TRUE = new Condition() {
+      @Override
+      boolean apply(long date) {
+        return true;
+      }
+      @Override
+      public String toString() {
+        return "AlwaysTrue";
+      }
+    };
+
   private Conditions() {
     // uninstantiable
   }
@@ -0,0 +1,360 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.iter;
+
+import com.google.ical.util.DTBuilder;
+import com.google.ical.util.PackedDates;
+import com.google.ical.util.TimeUtils;
+import com.google.ical.values.DateValue;
+import com.google.ical.values.TimeValue;
+
+import java.util.TimeZone;
+
+/**
+ * an iterator over an RRULE that occurs at most once a day, such as
+ * <code>FREQ=MONTHLY;BYDAY=-1FR</code>, which reads the days on which the rule
+ * occurs from {@link DayOfYearMasks} shared with other iterators over the same
+ * rule.
+ *
+ * <p>Every instance has the time of day of dtStart, so instances are found by
+ * scanning a year's mask for set bits, and skipping ahead or counting skipped
+ * instances only requires looking at whole words of a mask.</p>
+ *
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+final class DayMaskIteratorImpl implements RecurrenceIterator {
+  private final DayOfYearMasks masks_;
+  /** true iff dtStart is a date-time, so instances must be converted to UTC. */
+  private final boolean timed_;
+  private final int hour_, minute_, second_;
+  /** the timezone that instances are generated in. */
+  private final TimeZone tzid_;
+  /**
+   * the offset of tzid_ from UTC in seconds if it never changes, or
+   * {@link Util#NOT_FIXED}.
+   */
+  private final int fixedOffsetSecs_;
+  /** the maximum number of instances, or Long.MAX_VALUE if no COUNT. */
+  private final long count_;
+  /** the packed UTC form of the last permissible date, or Long.MAX_VALUE. */
+  private final long untilUtc_;
+  /** the packed UTC form of dtStart.  Earlier instances are not included. */
+  private final long dtStartUtc_;
+  /**
+   * the span of years that the year generator of the equivalent
+   * {@link RRuleIteratorImpl} covers before its throttle gives up.
+   */
+  private final int throttleYears_;
+  /** the year of dtStart, the first year the year generator produces. */
+  private final int firstYear_;
+  /** the number of years between years the year generator produces. */
+  private final int yearInterval_;
+
+  /** the mask for the year being scanned, or null if the rule is exhausted. */
+  private DayOfYearMasks.YearMask year_;
+  /** the index of the next bit in year_ to look at. */
+  private int bit_;
+  /** the number of instances yielded or skipped so far. */
+  private long index_;
+  /**
+   * the year from which the equivalent {@link RRuleIteratorImpl}'s throttle
+   * counts.  It is reset by each instance found, and by advancing to a later
+   * year, since years skipped don't count against the throttle.
+   */
+  private int throttleYear_;
+  /**
+   * the packed UTC form of the next instance, or {@link #NO_DATE} if not yet
+   * computed.
+   */
+  private long pendingUtc_ = NO_DATE;
+  /** true iff the recurrence has been exhausted. */
+  private boolean done_;
+  /** scratch space used to convert instances to UTC. */
+  private final DTBuilder builder_ = new DTBuilder(0, 0, 0);
+
+  /**
+   * a packed value that is never produced by
+   * {@link DateValueComparison#comparable}.
+   */
+  private static final long NO_DATE = Long.MIN_VALUE;
+
+  /**
+   * @param masks the days on which the rule occurs, none of which are before
+   *   dtStart.
+   * @param dtStart the start of the series, in tzid.
+   * @param dtStartUtc the packed form of dtStart in UTC.
+   * @param instanceTime the date whose time of day is the time of day of every
+   *   instance, usually dtStart.
+   * @param count the value of the COUNT rule part, or 0 if none.
+   * @param untilUtc the UNTIL rule part, or null if none.  It must be a
+   *   date-time iff dtStart is.
+   * @param yearInterval the number of years between years generated by the
+   *   equivalent {@link RRuleIteratorImpl}'s year generator.
+   * @param fixedOffsetSecs the offset of tzid from UTC in seconds if it never
+   *   changes, or {@link Util#NOT_FIXED}.
+   */
+  DayMaskIteratorImpl(
+      DayOfYearMasks masks, DateValue dtStart, long dtStartUtc,
+      DateValue instanceTime, TimeZone tzid, int count, DateValue untilUtc,
+      int yearInterval, int fixedOffsetSecs) {
+    this.masks_ = masks;
+    this.timed_ = dtStart instanceof TimeValue;
+    if (this.timed_) {
+      TimeValue tv = (TimeValue) instanceTime;
+      this.hour_ = tv.hour();
+      this.minute_ = tv.minute();
+      this.second_ = tv.second();
+    } else {
+      this.hour_ = this.minute_ = this.second_ = 0;
+    }
+    this.tzid_ = tzid;
+    this.fixedOffsetSecs_ = fixedOffsetSecs;
+    this.count_ = 0 != count ? count : Long.MAX_VALUE;
+    this.untilUtc_ = null != untilUtc
+        ? DateValueComparison.comparable(untilUtc) : Long.MAX_VALUE;
+    this.dtStartUtc_ = dtStartUtc;
+    this.throttleYears_ =
+        Generators.MAX_YEARS_BETWEEN_INSTANCES * yearInterval;
+    this.firstYear_ = dtStart.year();
+    this.yearInterval_ = yearInterval;
+    this.throttleYear_ = dtStart.year() - yearInterval;
+    this.year_ = masks.onOrAfter(dtStart.year());
+    // If instances are earlier in the day than dtStart, then the instance on
+    // dtStart's date, if any, is before dtStart.  It is not included, and
+    // does not count towards COUNT.
+    if (null != this.year_) {
+      int doy = nextSetBit(this.year_.days, 0);
+      if (this.toUtc(this.year_.year, doy) < dtStartUtc) {
+        this.bit_ = doy + 1;
+      }
+    }
+    // Like an RRuleIteratorImpl, find the first instance up front, without
+    // resetting the throttle.
+    this.fetchNext(false);
+  }
+
+  public boolean hasNext() {
+    if (NO_DATE == this.pendingUtc_) { this.fetchNext(true); }
+    return !this.done_;
+  }
+
+  public DateValue next() {
+    long next = this.nextPacked();
+    return NO_DATE != next ? PackedDates.unpack(next) : null;
+  }
+
+  public long nextPacked() {
+    if (!this.hasNext()) { return NO_DATE; }
+    long next = this.pendingUtc_;
+    this.pendingUtc_ = NO_DATE;
+    return next;
+  }
+
+  public int fill(long[] out, int off, int len, long endExclusive) {
+    int n = 0;
+    while (n < len && this.hasNext() && this.pendingUtc_ < endExclusive) {
+      out[off + n++] = this.pendingUtc_;
+      this.pendingUtc_ = NO_DATE;
+    }
+    return n;
+  }
+
+  public void remove() { throw new UnsupportedOperationException(); }
+
+  public void advanceTo(DateValue dateUtc) {
+    this.advanceToPacked(DateValueComparison.comparable(dateUtc));
+  }
+
+  public void advanceToPacked(long dateUtc) {
+    if (this.done_ || this.pendingUtc_ >= dateUtc) { return; }
+    PackedDates.unpack(dateUtc, this.builder_);
+    if (this.timed_ && PackedDates.isDateTime(dateUtc)) {
+      Util.fromUtc(this.builder_, this.tzid_, this.fixedOffsetSecs_);
+    }
+    DTBuilder b = this.builder_;
+    int yearLocal = b.year;
+    int dayOfYearLocal = TimeUtils.dayOfYear(b.year, b.month, b.day);
+    if (NO_DATE == this.pendingUtc_) {
+      // Like RRuleIteratorImpl, don't look for the next instance if dateUtc is
+      // not after the local date of the last one.
+      if (0 != this.bit_ && (yearLocal < this.year_.year
+                             || (yearLocal == this.year_.year
+                                 && dayOfYearLocal < this.bit_))) {
+        return;
+      }
+    }
+    if (this.year_.year < yearLocal) {
+      // An RRuleIteratorImpl skipping to yearLocal resets its throttle before
+      // generating each year, so the throttle counts from the first year on or
+      // after yearLocal that its year generator produces.
+      int skips = (yearLocal - this.firstYear_ + this.yearInterval_ - 1)
+          / this.yearInterval_;
+      this.throttleYear_ = Math.max(
+          this.throttleYear_,
+          this.firstYear_ + (skips - 1) * this.yearInterval_);
+    }
+    if (NO_DATE == this.pendingUtc_) {
+      this.fetchNext(true);
+      if (this.done_ || this.pendingUtc_ >= dateUtc) { return; }
+    }
+
+    // Skip whole days up to the day before the local date of dateUtc, and
+    // then step over any instances on the days around it that are still
+    // before dateUtc.  The day before is far enough back that no instance on
+    // an earlier local day can be on or after dateUtc.
+    b.year = yearLocal;
+    b.month = 1;
+    b.day = dayOfYearLocal;  // dayOfYearLocal is zero indexed
+    b.normalize();
+    this.pendingUtc_ = NO_DATE;
+    this.skipTo(b.year, TimeUtils.dayOfYear(b.year, b.month, b.day));
+    while (true) {
+      this.fetchNext(true);
+      if (this.done_ || this.pendingUtc_ >= dateUtc) { break; }
+      this.pendingUtc_ = NO_DATE;
+    }
+  }
+
+  /**
+   * the packed UTC form of the last instance, {@link #NO_DATE} if there are
+   * none, or Long.MAX_VALUE if the series runs on for more than maxYears
+   * years after dtStart's.  Consumes the iterator.  The instances left in a
+   * year are skipped by counting its bits when they all fit within COUNT and
+   * UNTIL, so this takes time proportional to the number of years spanned
+   * instead of the number of instances.
+   */
+  long lastPacked(int maxYears) {
+    long last = NO_DATE;
+    while (this.hasNext()) {
+      last = this.nextPacked();
+      DayOfYearMasks.YearMask year = this.year_;
+      if (year.year - this.firstYear_ > maxYears) { return Long.MAX_VALUE; }
+      int rest = countBits(year.days, this.bit_, Integer.MAX_VALUE);
+      if (0 != rest && this.index_ + rest <= this.count_) {
+        int lastDoy = lastSetBit(year.days);
+        long lastUtc = this.toUtc(year.year, lastDoy);
+        if (lastUtc <= this.untilUtc_) {
+          this.index_ += rest;
+          this.bit_ = lastDoy + 1;
+          last = lastUtc;
+        }
+      }
+    }
+    return last;
+  }
+
+  /**
+   * moves to the given day of the given year, counting any instances skipped
+   * so that COUNT is honored.
+   */
+  private void skipTo(int year, int dayOfYear) {
+    while (null != this.year_ && this.year_.year < year) {
+      this.index_ += countBits(this.year_.days, this.bit_, Integer.MAX_VALUE);
+      this.year_ = this.masks_.onOrAfter(this.year_.year + 1);
+      this.bit_ = 0;
+    }
+    if (null != this.year_ && this.year_.year == year
+        && this.bit_ < dayOfYear) {
+      this.index_ += countBits(this.year_.days, this.bit_, dayOfYear);
+      this.bit_ = dayOfYear;
+    }
+  }
+
+  /**
+   * finds the next set bit and checks the end conditions.
+   * @param resetsThrottle false for the first instance, which an
+   *   {@link RRuleIteratorImpl} finds without resetting its throttle.  Either
+   *   way, the series ends if the instance is too far from the year the
+   *   throttle was last reset in.
+   */
+  private void fetchNext(boolean resetsThrottle) {
+    if (this.done_) { return; }
+    while (null != this.year_) {
+      int doy = nextSetBit(this.year_.days, this.bit_);
+      if (doy >= 0) {
+        this.bit_ = doy + 1;
+        if (this.year_.year - this.throttleYear_ > this.throttleYears_) {
+          break;
+        }
+        if (this.index_++ >= this.count_) { break; }
+        long dUtc = this.toUtc(this.year_.year, doy);
+        if (dUtc > this.untilUtc_) { break; }
+        this.pendingUtc_ = dUtc;
+        // Advancing may already have reset the throttle to a later year.
+        if (resetsThrottle && this.year_.year > this.throttleYear_) {
+          this.throttleYear_ = this.year_.year;
+        }
+        return;
+      }
+      this.year_ = this.masks_.onOrAfter(this.year_.year + 1);
+      this.bit_ = 0;
+    }
+    this.done_ = true;
+    this.year_ = null;
+  }
+
+  /** the packed UTC form of the instance on the given day of year. */
+  private long toUtc(int year, int dayOfYear) {
+    DTBuilder b = this.builder_;
+    b.year = year;
+    b.month = 1;
+    b.day = 1 + dayOfYear;
+    b.hour = this.hour_;
+    b.minute = this.minute_;
+    b.second = this.second_;
+    b.normalize();
+    if (!this.timed_) { return PackedDates.pack(b, false); }
+    Util.toUtc(b, this.tzid_, this.fixedOffsetSecs_);
+    return PackedDates.pack(b, true);
+  }
+
+  /** the index of the first set bit at or after start, or -1 if none. */
+  private static int nextSetBit(long[] words, int start) {
+    int w = start >>> 6;
+    if (w >= words.length) { return -1; }
+    long word = words[w] & (-1L << start);
+    while (true) {
+      if (0 != word) { return (w << 6) + Long.numberOfTrailingZeros(word); }
+      if (++w == words.length) { return -1; }
+      word = words[w];
+    }
+  }
+
+  /** the index of the last set bit, or -1 if none. */
+  private static int lastSetBit(long[] words) {
+    for (int w = words.length; --w >= 0;) {
+      if (0 != words[w]) {
+        return (w << 6) + 63 - Long.numberOfLeadingZeros(words[w]);
+      }
+    }
+    return -1;
+  }
+
+  /** the number of set bits in [start, end). */
+  private static int countBits(long[] words, int start, int end) {
+    end = Math.min(end, words.length << 6);
+    int n = 0;
+    for (int i = start; i < end;) {
+      int w = i >>> 6;
+      int wordEnd = Math.min(end, (w + 1) << 6);
+      long word = words[w] & (-1L << i);
+      if (wordEnd < ((w + 1) << 6)) { word &= ~(-1L << wordEnd); }
+      n += Long.bitCount(word);
+      i = wordEnd;
+    }
+    return n;
+  }
+
+}
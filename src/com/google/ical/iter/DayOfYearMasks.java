@@ -0,0 +1,225 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.iter;
+
+import com.google.ical.util.PackedDates;
+import com.google.ical.util.TimeUtils;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * the days on which a rule that produces at most one instance per day occurs,
+ * computed a year at a time and memoized so that they can be shared by all
+ * iterators over the rule.
+ *
+ * <p>Most rules' days are computed a year at a time by {@link ByPartMasks},
+ * which intersects masks of the days allowed by each rule part.  Otherwise
+ * each year's days are computed by running the rule's generators over that
+ * year, so the first iterator to reach a year pays what it would have paid
+ * anyway, and later iterators only have to scan bits.  Years are looked up
+ * independently, using {@link RecurrenceIterator#advanceTo}, except for
+ * rules with a BYSETPOS part whose generators can't skip ahead; those are
+ * computed in order, by a scanner of each iterator's own, since generator
+ * iterators over such rules have to walk anyway.</p>
+ *
+ * <p>Instances are thread-safe, except for those returned by
+ * {@link #forIterator} for rules computed in order.</p>
+ *
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+final class DayOfYearMasks {
+
+  /**
+   * the days in a year on which a rule occurs.  Bit i of the mask is set iff
+   * the rule occurs on the i-th (zero indexed) day of the year.
+   */
+  static final class YearMask {
+    final int year;
+    final long[] days;
+
+    YearMask(int year, long[] days) {
+      this.year = year;
+      this.days = days;
+    }
+  }
+
+  /** the number of longs needed to hold a bit per day of a leap year. */
+  static final int N_WORDS = (366 + 63) / 64;
+
+  /** the number of years memoized for rules that can be looked up by year. */
+  private static final int MAX_CACHED_YEARS = 64;
+
+  /** a mask marking the end of the series. */
+  private static final YearMask NONE = new YearMask(Integer.MAX_VALUE, null);
+
+  /** computes the days in a year directly, or null to use source. */
+  private final ByPartMasks evaluator;
+  /**
+   * iterates over the rule in a timezone where dates and times are the same
+   * as local ones, without regard to COUNT or UNTIL.
+   */
+  private final RRulePlan source;
+  /** true iff years have to be computed in order. */
+  private final boolean sequential;
+
+  /** maps years to the mask for the first year on or after it with dates. */
+  private final Map<Integer, YearMask> byYear;
+
+  /** the iterator used to compute masks in order. */
+  private RecurrenceIterator scanner;
+  /** the first date from scanner not yet included in a mask. */
+  private long scannerPending = Long.MIN_VALUE;
+  /** the last mask computed by scanner, or null if none yet. */
+  private YearMask scanned;
+
+  /**
+   * @param source an iterable over a rule whose dtStart is a date and whose
+   *   timezone is UTC.
+   * @param sequential true if source's iterators can't be trusted to
+   *   {@link RecurrenceIterator#advanceTo advance}.
+   */
+  DayOfYearMasks(RRulePlan source, boolean sequential) {
+    this(null, source, sequential);
+  }
+
+  /**
+   * @param evaluator computes the days in a year on which the rule occurs.
+   */
+  DayOfYearMasks(ByPartMasks evaluator) {
+    this(evaluator, null, false);
+  }
+
+  private DayOfYearMasks(
+      ByPartMasks evaluator, RRulePlan source, boolean sequential) {
+    this.evaluator = evaluator;
+    this.source = source;
+    this.sequential = sequential;
+    if (sequential) {
+      this.byYear = null;
+    } else {
+      this.byYear = new LinkedHashMap<Integer, YearMask>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<Integer, YearMask> eldest) {
+          return size() > MAX_CACHED_YEARS;
+        }
+      };
+    }
+  }
+
+  /**
+   * the masks for a single iterator to use: this if years can be looked up
+   * independently, or otherwise fresh masks that keep only the year last
+   * asked for, and so must be asked for years in increasing order.
+   */
+  DayOfYearMasks forIterator() {
+    return sequential ? new DayOfYearMasks(null, source, true) : this;
+  }
+
+  /**
+   * the mask for the first year on or after the given year in which the rule
+   * occurs, or null if it does not occur in or after that year.
+   */
+  YearMask onOrAfter(int year) {
+    YearMask mask;
+    if (sequential) {
+      mask = scanTo(year);
+    } else {
+      synchronized (byYear) {
+        mask = lookUp(year);
+      }
+    }
+    return NONE != mask ? mask : null;
+  }
+
+  private YearMask lookUp(int year) {
+    YearMask mask = byYear.get(year);
+    if (null == mask && null != evaluator) {
+      mask = evaluate(year);
+      if (NONE != mask) { byYear.put(mask.year, mask); }
+      byYear.put(year, mask);
+    } else if (null == mask) {
+      RecurrenceIterator it = source.unboundedIterator();
+      mask = NONE;
+      it.advanceToPacked(PackedDates.packDate(year, 1, 1));
+      if (it.hasNext()) {
+        long date = it.nextPacked();
+        if (PackedDates.year(date) >= year) {
+          mask = readYear(it, date);
+          byYear.put(mask.year, mask);
+        }
+      }
+      byYear.put(year, mask);
+    }
+    return mask;
+  }
+
+  /**
+   * the mask for the first year on or after the given year in which the
+   * evaluator finds days, or NONE if there are none in the span of years
+   * that the year generator's throttle allows between instances.  Iterators
+   * apply the throttle themselves, so would end the series before looking
+   * further.
+   */
+  private YearMask evaluate(int year) {
+    int interval = evaluator.yearInterval();
+    int y = evaluator.firstYearOnOrAfter(year);
+    for (int n = Generators.MAX_YEARS_BETWEEN_INSTANCES; --n >= 0;
+         y += interval) {
+      long[] days = evaluator.days(y);
+      if (null != days) { return new YearMask(y, days); }
+    }
+    return NONE;
+  }
+
+  /** year must be no less than in the previous call. */
+  private YearMask scanTo(int year) {
+    if (null == scanner) {
+      scanner = source.unboundedIterator();
+      if (scanner.hasNext()) { scannerPending = scanner.nextPacked(); }
+    }
+    while ((null == scanned || scanned.year < year)
+           && Long.MIN_VALUE != scannerPending) {
+      scanned = readYear(scanner, scannerPending);
+    }
+    return null != scanned && scanned.year >= year ? scanned : NONE;
+  }
+
+  /**
+   * reads the dates in the year of first from it.
+   * @param first the first date in the year, already consumed from it.
+   * @return the mask for first's year.  As a side effect, sets scannerPending
+   *   to the first date after that year, or Long.MIN_VALUE if none.
+   */
+  private YearMask readYear(RecurrenceIterator it, long first) {
+    int year = PackedDates.year(first);
+    long[] days = new long[N_WORDS];
+    long date = first;
+    scannerPending = Long.MIN_VALUE;
+    while (true) {
+      int doy = TimeUtils.dayOfYear(
+          year, PackedDates.month(date), PackedDates.day(date));
+      days[doy >>> 6] |= 1L << doy;
+      if (!it.hasNext()) { break; }
+      date = it.nextPacked();
+      if (PackedDates.year(date) != year) {
+        scannerPending = date;
+        break;
+      }
+    }
+    return new YearMask(year, days);
+  }
+
+}
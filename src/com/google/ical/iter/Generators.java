@@ -39,7 +39,7 @@ final class Generators {
    * a span of 400 years before giving up and concluding that the rule generates
    * no usable dates.
    */
-  private static final int MAX_YEARS_BETWEEN_INSTANCES = 100;
+  static final int MAX_YEARS_BETWEEN_INSTANCES = 100;
 
   /**
    * constructs a generator that generates years successively counting from the
@@ -16,6 +16,7 @@ package com.google.ical.iter;
 
 import com.google.ical.util.DTBuilder;
 import com.google.ical.util.Predicate;
+import com.google.ical.util.Predicates;
 import com.google.ical.util.TimeUtils;
 import com.google.ical.values.Frequency;
 import com.google.ical.values.TimeValue;
@@ -62,7 +63,7 @@ class InstanceGenerators {
               }
             }
             // apply filters to generated dates
-          } while (!filter.apply(builder.toDateTime()));
+          } while (!applyFilter(filter, builder));
 
           return true;
         }
@@ -95,7 +96,7 @@ class InstanceGenerators {
               }
             }
             // apply filters to generated dates
-          } while (!filter.apply(builder.toDateTime()));
+          } while (!applyFilter(filter, builder));
           // TODO: maybe group the filters into different kinds so we don't
           // apply filters that only affect days to every second.
 
@@ -239,12 +240,14 @@ class InstanceGenerators {
                     int nb = TimeUtils.daysBetween(d, d0);
                     // Two dates (d, d0) are in the same week
                     // if there isn't a whole week in between them and the
-                    // later day is later in the week than the earlier day.
+                    // later day is no earlier in the week than the earlier day.
+                    // Rules with BYHOUR etc. can produce several dates on the
+                    // same day.
                     contained =
                       nb < 7
                       && ((7 + Weekday.valueOf(d).javaDayNum
                            - wkst.javaDayNum) % 7)
-                      > ((7 + Weekday.valueOf(d0).javaDayNum
+                      >= ((7 + Weekday.valueOf(d0).javaDayNum
                           - wkst.javaDayNum) % 7);
                     break;
                   case MONTHLY:
@@ -312,6 +315,19 @@ class InstanceGenerators {
       };
   }
 
+  /**
+   * applies filter to the date in builder, normalizing builder.
+   * Avoids allocating a date when there is nothing to filter.
+   */
+  private static boolean applyFilter(
+      Predicate<? super DateValue> filter, DTBuilder builder) {
+    if (filter == Predicates.<DateValue>alwaysTrue()) {
+      builder.normalize();
+      return true;
+    }
+    return filter.apply(builder.toDateTime());
+  }
+
   static boolean skipSubDayGenerators(
       Generator hourGenerator, Generator minuteGenerator,
       Generator secondGenerator) {
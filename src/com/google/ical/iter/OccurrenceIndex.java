@@ -0,0 +1,186 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.iter;
+
+import com.google.ical.util.PackedDates;
+import com.google.ical.values.DateValue;
+
+/**
+ * random access to the occurrences of a recurrence by position.
+ *
+ * <p>The first time a position or date is looked up, the series is iterated
+ * up to it, and the position of the first occurrence in each month is
+ * recorded.  Later lookups at or before the furthest point seen start a fresh
+ * iterator, {@link RecurrenceIterator#advanceTo advance} it to the right
+ * month, and iterate only within that month, so paging through a long series
+ * does not require iterating from its start each time.  If advancing is seen
+ * to skip an occurrence, lookups iterate from the start instead.</p>
+ *
+ * <p>Instances are thread-safe.  The series must produce the same dates each
+ * time it is iterated.</p>
+ *
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+public final class OccurrenceIndex {
+  private final RecurrenceIterable series;
+  /** an iterator used to extend the checkpoints.  Created lazily. */
+  private RecurrenceIterator scanner;
+  /** the number of occurrences consumed from scanner. */
+  private long nScanned;
+  /** the packed form of the last occurrence consumed from scanner. */
+  private long lastScanned = Long.MIN_VALUE;
+  /** true iff scanner has been exhausted. */
+  private boolean exhausted;
+  /**
+   * true once advancing a fresh iterator to a checkpoint has been seen to
+   * miss it.
+   */
+  private boolean advanceUnreliable;
+  /**
+   * the packed form of the first occurrence in each month that has
+   * occurrences, in increasing order.
+   */
+  private long[] checkpointDates = new long[16];
+  /** the position of the date at the same index in checkpointDates. */
+  private long[] checkpointPositions = new long[16];
+  private int nCheckpoints;
+  private final long[] buffer = new long[256];
+
+  /**
+   * @param series the series to index, such as one returned by
+   *   {@link RecurrenceIteratorFactory#createRecurrenceIterable}.
+   */
+  public OccurrenceIndex(RecurrenceIterable series) {
+    this.series = series;
+  }
+
+  /**
+   * the occurrence at the given zero-indexed position in the series, in UTC,
+   * or null if the series has n or fewer occurrences.
+   */
+  public synchronized DateValue occurrenceAt(long n) {
+    if (n < 0) { throw new IndexOutOfBoundsException("" + n); }
+    while (nScanned <= n && !exhausted) { scan(); }
+    if (n >= nScanned) { return null; }
+
+    int cp = checkpointAtOrBefore(checkpointPositions, n);
+    if (checkpointPositions[cp] == n) {
+      return PackedDates.unpack(checkpointDates[cp]);
+    }
+    RecurrenceIterator it = iteratorPast(cp);
+    for (long i = checkpointPositions[cp] + 1; i < n; ++i) {
+      it.nextPacked();
+    }
+    return PackedDates.unpack(it.nextPacked());
+  }
+
+  /**
+   * the zero-indexed position of the given date in the series, or -1 if it is
+   * not an occurrence.
+   * @param dateUtc non null.
+   */
+  public synchronized long indexOf(DateValue dateUtc) {
+    long date = DateValueComparison.comparable(dateUtc);
+    while (lastScanned < date && !exhausted) { scan(); }
+
+    int cp = checkpointAtOrBefore(checkpointDates, date);
+    if (cp < 0) { return -1; }
+    if (checkpointDates[cp] == date) { return checkpointPositions[cp]; }
+    RecurrenceIterator it = iteratorPast(cp);
+    for (long i = checkpointPositions[cp] + 1; it.hasNext(); ++i) {
+      long d = it.nextPacked();
+      if (d >= date) { return d == date ? i : -1; }
+    }
+    return -1;
+  }
+
+  /**
+   * a fresh iterator that has just produced the occurrence at the given
+   * checkpoint.
+   */
+  private RecurrenceIterator iteratorPast(int cp) {
+    long date = checkpointDates[cp];
+    if (!advanceUnreliable) {
+      RecurrenceIterator it = series.iterator();
+      it.advanceToPacked(date);
+      if (it.hasNext() && it.nextPacked() == date) { return it; }
+      // Some series skip occurrences when advanced, so iterate from the start
+      // from now on.
+      advanceUnreliable = true;
+    }
+    RecurrenceIterator it = series.iterator();
+    for (long toSkip = checkpointPositions[cp] + 1; toSkip > 0;) {
+      int n = it.fill(
+          buffer, 0, (int) Math.min(buffer.length, toSkip), Long.MAX_VALUE);
+      if (0 == n) { break; }
+      toSkip -= n;
+    }
+    return it;
+  }
+
+  /** consumes a batch of occurrences from scanner, recording checkpoints. */
+  private void scan() {
+    if (null == scanner) { scanner = series.iterator(); }
+    int n = scanner.fill(buffer, 0, buffer.length, Long.MAX_VALUE);
+    if (0 == n) {
+      exhausted = true;
+      return;
+    }
+    for (int i = 0; i < n; ++i) {
+      long d = buffer[i];
+      if (0 == nCheckpoints || yearAndMonth(d) != yearAndMonth(lastScanned)) {
+        addCheckpoint(d, nScanned);
+      }
+      lastScanned = d;
+      ++nScanned;
+    }
+  }
+
+  private void addCheckpoint(long date, long position) {
+    if (nCheckpoints == checkpointDates.length) {
+      long[] dates = new long[nCheckpoints * 2];
+      long[] positions = new long[nCheckpoints * 2];
+      System.arraycopy(checkpointDates, 0, dates, 0, nCheckpoints);
+      System.arraycopy(checkpointPositions, 0, positions, 0, nCheckpoints);
+      checkpointDates = dates;
+      checkpointPositions = positions;
+    }
+    checkpointDates[nCheckpoints] = date;
+    checkpointPositions[nCheckpoints] = position;
+    ++nCheckpoints;
+  }
+
+  /**
+   * the index of the last checkpoint whose key in keys is at or before key,
+   * or -1 if none.  keys must be sorted.
+   */
+  private int checkpointAtOrBefore(long[] keys, long key) {
+    int lo = 0, hi = nCheckpoints;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (keys[mid] <= key) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo - 1;
+  }
+
+  private static long yearAndMonth(long packed) {
+    return (((long) PackedDates.year(packed)) << 4) + PackedDates.month(packed);
+  }
+
+}
@@ -0,0 +1,210 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.iter;
+
+import com.google.ical.util.DTBuilder;
+import com.google.ical.util.PackedDates;
+import com.google.ical.util.TimeUtils;
+import com.google.ical.values.DateValue;
+import com.google.ical.values.TimeValue;
+
+import java.util.TimeZone;
+
+/**
+ * an iterator over an RRULE whose instances are a fixed number of seconds
+ * apart in local time, such as <code>FREQ=DAILY;INTERVAL=2</code> or
+ * <code>FREQ=HOURLY</code> with no BYxxx parts.
+ *
+ * <p>Since the k-th instance is just dtStart plus k periods, instances are
+ * computed arithmetically instead of by the generators used by
+ * {@link RRuleIteratorImpl}, so {@link #advanceTo} and {@link #countBetween}
+ * take constant time regardless of how far they skip.  The instances produced
+ * are the same as those {@link RRuleIteratorImpl} would produce for the same
+ * rule, as long as no two instances map to the same time in UTC, which could
+ * happen if the period were no longer than a daylight savings shift.</p>
+ *
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+final class PeriodicIteratorImpl implements RecurrenceIterator {
+  /** seconds since the epoch of dtStart in tzid_. */
+  private final long startSecs_;
+  /** seconds between successive instances in tzid_. */
+  private final long periodSecs_;
+  /** true iff dtStart is a date-time, so instances must be converted to UTC. */
+  private final boolean timed_;
+  /** the timezone that instances are generated in. */
+  private final TimeZone tzid_;
+  /**
+   * the offset of tzid_ from UTC in seconds if it never changes, or
+   * {@link Util#NOT_FIXED}.
+   */
+  private final int fixedOffsetSecs_;
+  /** the maximum number of instances, or Long.MAX_VALUE if no COUNT. */
+  private final long count_;
+  /** the packed UTC form of the last permissible date, or Long.MAX_VALUE. */
+  private final long untilUtc_;
+  /** the index of the next instance to yield. */
+  private long index_;
+  /**
+   * the packed UTC form of the instance at index_, or {@link #NO_DATE} if not
+   * yet computed.
+   */
+  private long pendingUtc_ = NO_DATE;
+  /** true iff the recurrence has been exhausted. */
+  private boolean done_;
+  /** scratch space used to convert instances to UTC. */
+  private final DTBuilder builder_ = new DTBuilder(0, 0, 0);
+
+  /**
+   * a packed value that is never produced by
+   * {@link DateValueComparison#comparable}.
+   */
+  private static final long NO_DATE = Long.MIN_VALUE;
+
+  /**
+   * @param dtStart the first instance, in tzid.
+   * @param periodSecs the number of seconds between instances.  Must be a
+   *   multiple of a day if dtStart is not a date-time.
+   * @param count the value of the COUNT rule part, or 0 if none.
+   * @param untilUtc the UNTIL rule part, or null if none.  It must be a
+   *   date-time iff dtStart is.
+   * @param fixedOffsetSecs the offset of tzid from UTC in seconds if it never
+   *   changes, or {@link Util#NOT_FIXED}.
+   */
+  PeriodicIteratorImpl(
+      DateValue dtStart, TimeZone tzid, long periodSecs, int count,
+      DateValue untilUtc, int fixedOffsetSecs) {
+    this.startSecs_ = TimeUtils.secsSinceEpoch(dtStart);
+    this.periodSecs_ = periodSecs;
+    this.timed_ = dtStart instanceof TimeValue;
+    this.tzid_ = tzid;
+    this.fixedOffsetSecs_ = fixedOffsetSecs;
+    this.count_ = 0 != count ? count : Long.MAX_VALUE;
+    this.untilUtc_ = null != untilUtc
+        ? DateValueComparison.comparable(untilUtc) : Long.MAX_VALUE;
+    assert timed_ || 0 == periodSecs % SECS_PER_DAY;
+  }
+
+  public boolean hasNext() {
+    if (NO_DATE == this.pendingUtc_) { this.fetchNext(); }
+    return !this.done_;
+  }
+
+  public DateValue next() {
+    long next = this.nextPacked();
+    return NO_DATE != next ? PackedDates.unpack(next) : null;
+  }
+
+  public long nextPacked() {
+    if (!this.hasNext()) { return NO_DATE; }
+    long next = this.pendingUtc_;
+    this.pendingUtc_ = NO_DATE;
+    ++this.index_;
+    return next;
+  }
+
+  public int fill(long[] out, int off, int len, long endExclusive) {
+    int n = 0;
+    while (n < len && this.hasNext() && this.pendingUtc_ < endExclusive) {
+      out[off + n++] = this.pendingUtc_;
+      this.pendingUtc_ = NO_DATE;
+      ++this.index_;
+    }
+    return n;
+  }
+
+  public void remove() { throw new UnsupportedOperationException(); }
+
+  public void advanceTo(DateValue dateUtc) {
+    this.advanceToPacked(DateValueComparison.comparable(dateUtc));
+  }
+
+  public void advanceToPacked(long dateUtc) {
+    if (!this.hasNext() || this.pendingUtc_ >= dateUtc) { return; }
+
+    this.index_ = this.indexOnOrAfter(dateUtc, this.index_ + 1);
+    this.pendingUtc_ = NO_DATE;
+    this.fetchNext();
+  }
+
+  /**
+   * the number of instances on or after startUtc and before endUtc, computed
+   * without iterating.  Independent of the iterator's position.
+   * @param startUtc a packed date in UTC, inclusive.
+   * @param endUtc a packed date in UTC, exclusive.
+   */
+  long countBetween(long startUtc, long endUtc) {
+    long end = this.count_;
+    if (Long.MAX_VALUE != this.untilUtc_) {
+      // Adding one to a packed date gives a larger value with the same fields.
+      end = Math.min(end, this.indexOnOrAfter(this.untilUtc_ + 1, 0));
+    }
+    long lo = Math.min(end, this.indexOnOrAfter(startUtc, 0));
+    long hi = Math.min(end, this.indexOnOrAfter(endUtc, 0));
+    return Math.max(0, hi - lo);
+  }
+
+  /**
+   * the index of the first instance on or after dateUtc, ignoring UNTIL, and
+   * no less than minIndex.
+   */
+  private long indexOnOrAfter(long dateUtc, long minIndex) {
+    // Guess the index from the local time, and then correct for any
+    // discrepancy between local and UTC ordering due to daylight savings.
+    long dateLocal = dateUtc;
+    if (this.timed_ && PackedDates.isDateTime(dateUtc)) {
+      PackedDates.unpack(dateUtc, this.builder_);
+      Util.fromUtc(this.builder_, this.tzid_, this.fixedOffsetSecs_);
+      dateLocal = PackedDates.pack(this.builder_, true);
+    }
+    long delta = PackedDates.secsSinceEpoch(dateLocal) - this.startSecs_;
+    long k = Math.max(
+        minIndex, (delta + this.periodSecs_ - 1) / this.periodSecs_);
+    while (k > minIndex && this.occurrenceUtc(k - 1) >= dateUtc) {
+      --k;
+    }
+    while (k < this.count_ && this.occurrenceUtc(k) < dateUtc) {
+      ++k;
+    }
+    return k;
+  }
+
+  /** computes the instance at index_ and checks the end conditions. */
+  private void fetchNext() {
+    if (this.done_) { return; }
+    if (this.index_ >= this.count_) {
+      this.done_ = true;
+      return;
+    }
+    long dUtc = this.occurrenceUtc(this.index_);
+    if (dUtc > this.untilUtc_) {
+      this.done_ = true;
+      return;
+    }
+    this.pendingUtc_ = dUtc;
+  }
+
+  /** the packed UTC form of the k-th instance, ignoring end conditions. */
+  long occurrenceUtc(long k) {
+    DTBuilder b = this.builder_;
+    TimeUtils.timeFromSecsSinceEpoch(this.startSecs_ + k * this.periodSecs_, b);
+    if (!this.timed_) { return PackedDates.pack(b, false); }
+    Util.toUtc(b, this.tzid_, this.fixedOffsetSecs_);
+    return PackedDates.pack(b, true);
+  }
+
+  private static final long SECS_PER_DAY = 60L * 60 * 24;
+
+}
@@ -14,40 +14,82 @@
 
 package com.google.ical.iter;
 
+import com.google.ical.util.PackedDates;
 import com.google.ical.values.DateValue;
 
 /**
- * a recurrence iterator that iterates over an array of dates.
+ * a recurrence iterator that iterates over an array of dates in packed form.
  *
  * @author mikesamuel+svn@gmail.com (Mike Samuel)
  */
 final class RDateIteratorImpl implements RecurrenceIterator {
   private int i;
-  private DateValue[] datesUtc;
+  /**
+   * the {@link DateValueComparison#comparable} of each date, in utc, in
+   * increasing order.
+   */
+  private final long[] comparablesUtc;
 
-  RDateIteratorImpl(DateValue[] datesUtc) {
-    this.datesUtc = datesUtc.clone();  // defensive copy
-    assert increasing(datesUtc);  // indirectly checks that not-null.
+  /**
+   * an iterator that shares the given array instead of copying it, so it must
+   * not be modified.
+   * @param comparablesUtc the {@link DateValueComparison#comparable} of each
+   *   date, in increasing order without dupes.
+   */
+  RDateIteratorImpl(long[] comparablesUtc) {
+    assert increasing(comparablesUtc);
+    this.comparablesUtc = comparablesUtc;
   }
 
-  public boolean hasNext() { return i < datesUtc.length; }
+  public boolean hasNext() { return i < comparablesUtc.length; }
 
-  public DateValue next() { return datesUtc[i++]; }
+  public DateValue next() { return PackedDates.unpack(comparablesUtc[i++]); }
+
+  public long nextPacked() { return comparablesUtc[i++]; }
+
+  public int fill(long[] out, int off, int len, long endExclusive) {
+    int n = 0;
+    while (n < len && i < comparablesUtc.length
+           && comparablesUtc[i] < endExclusive) {
+      out[off + n++] = comparablesUtc[i++];
+    }
+    return n;
+  }
 
   public void remove() { throw new UnsupportedOperationException(); }
 
   public void advanceTo(DateValue newStartUtc) {
-    long startCmp = DateValueComparison.comparable(newStartUtc);
-    while (i < datesUtc.length
-           && startCmp > DateValueComparison.comparable(datesUtc[i])) {
-      ++i;
+    advanceToPacked(DateValueComparison.comparable(newStartUtc));
+  }
+
+  public void advanceToPacked(long startCmp) {
+    int n = comparablesUtc.length;
+    if (i >= n || comparablesUtc[i] >= startCmp) { return; }
+    // Gallop forward to bracket the first date not before startCmp, so that
+    // short skips stay cheap, then binary search within the bracket.
+    int lo = i + 1, step = 1;
+    while (lo < n && comparablesUtc[lo] < startCmp) {
+      i = lo;
+      lo += step;
+      step <<= 1;
+    }
+    int hi = Math.min(lo, n);
+    lo = i + 1;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (comparablesUtc[mid] < startCmp) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
     }
+    i = lo;
   }
 
-  /** monotonically. */
-  private static <C extends Comparable<C>> boolean increasing(C[] els) {
+  /** strictly monotonically. */
+  private static boolean increasing(long[] els) {
     for (int i = els.length; --i >= 1;) {
-      if (els[i - 1].compareTo(els[i]) > 0) { return false; }
+      if (els[i - 1] >= els[i]) { return false; }
     }
     return true;
   }
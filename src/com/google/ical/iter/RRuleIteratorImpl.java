@@ -15,10 +15,9 @@
 package com.google.ical.iter;
 
 import com.google.ical.util.DTBuilder;
-import com.google.ical.util.Predicate;
+import com.google.ical.util.PackedDates;
 import com.google.ical.util.TimeUtils;
 import com.google.ical.values.DateValue;
-import com.google.ical.values.DateValueImpl;
 import com.google.ical.values.TimeValue;
 
 import java.util.TimeZone;
@@ -26,6 +25,10 @@ import java.util.TimeZone;
 /**
  * an iterator over dates in an RRULE or EXRULE series.
  *
+ * <p>Dates are computed and compared in their
+ * {@link DateValueComparison#comparable packed} form so that iterating via
+ * {@link #nextPacked} does not allocate a DateValue per instance.</p>
+ *
  * @author mikesamuel+svn@gmail.com (Mike Samuel)
  */
 final class RRuleIteratorImpl implements RecurrenceIterator {
@@ -34,7 +37,7 @@ final class RRuleIteratorImpl implements RecurrenceIterator {
    * Takes a date builder and yields shouldContinue:boolean.
    * The condition is applied <b>after</b> the date is converted to utc.
    */
-  private final Predicate<? super DateValue> condition_;
+  private Condition condition_;
   /**
    * a function that applies the various period generators to generate an entire
    * date.
@@ -53,69 +56,105 @@ final class RRuleIteratorImpl implements RecurrenceIterator {
    */
   private final Generator monthGenerator_;
   /**
-   * a date that has been computed but not yet yielded to the user.
+   * the year, month, day, hour, and minute generators in that order, if the
+   * instance generator uses sub-day generators, or null otherwise.
+   * Used to reinitialize the smaller fields after advanceTo skips months.
+   */
+  private final Generator[] fieldGenerators_;
+  /**
+   * a date that has been computed but not yet yielded to the user, in packed
+   * form, or {@link #NO_DATE}.
    */
-  private DateValue pendingUtc_;
+  private long pendingUtc_ = NO_DATE;
   /**
    * used to build successive dates.
    * At the start of the building process, contains the last date generated.
    * Different periods are successively inserted into it.
    */
   private DTBuilder builder_;
+  /**
+   * scratch space used to convert dates between tzid_ and UTC without
+   * clobbering builder_.
+   */
+  private final DTBuilder convBuilder_ = new DTBuilder(0, 0, 0);
   /** true iff the recurrence has been exhausted. */
   private boolean done_;
-  /** the start date of the recurrence */
-  private final DateValue dtStart_;
+  /** true iff the start date of the recurrence is a date-time. */
+  private final boolean timed_;
   /**
    * false iff shorcutting advance would break the semantics of the iteration.
    * This may happen when, for example, the end condition requires that it see
    * every item.
    */
   private final boolean canShortcutAdvance_;
+  /**
+   * for a COUNT rule, the number of instances before each month, which lets
+   * advanceTo skip whole years and months and then count afresh from the
+   * number of instances left, or null if not a COUNT rule.
+   */
+  private final RRulePlan.MonthCounts monthCounts_;
   /**
    * the timezone that result dates should be converted <b>from</b>.
    * All date fields, parameters, and local variables in this class are in
    * the tzid_ timezone, unless they carry the Utc suffix.
    */
   private final TimeZone tzid_;
+  /**
+   * the offset of tzid_ from UTC in seconds if it never changes, or
+   * {@link Util#NOT_FIXED}.
+   */
+  private final int fixedOffsetSecs_;
+
+  /**
+   * a packed value that is never produced by
+   * {@link DateValueComparison#comparable}.
+   */
+  private static final long NO_DATE = Long.MIN_VALUE;
 
   /** An iterator that generates dates from an RFC2445 Recurrence Rule */
   RRuleIteratorImpl(
-    DateValue dtStart, TimeZone tzid, Predicate<? super DateValue> condition,
+    DateValue dtStart, TimeZone tzid, Condition condition,
     Generator instanceGenerator, ThrottledGenerator yearGenerator,
     Generator monthGenerator, Generator dayGenerator,
     Generator hourGenerator, Generator minuteGenerator,
     Generator secondGenerator,
-    boolean canShortcutAdvance) {
+    boolean canShortcutAdvance, RRulePlan.MonthCounts monthCounts,
+    int fixedOffsetSecs) {
 
     this.condition_ = condition;
     this.instanceGenerator_ = instanceGenerator;
     this.yearGenerator_ = yearGenerator;
     this.monthGenerator_ = monthGenerator;
-    this.dtStart_ = dtStart;
+    this.timed_ = dtStart instanceof TimeValue;
     this.tzid_ = tzid;
+    this.fixedOffsetSecs_ = fixedOffsetSecs;
     this.canShortcutAdvance_ = canShortcutAdvance;
+    this.monthCounts_ = monthCounts;
 
     int initWorkLimit = 1000;
 
     // Initialize the builder and skip over any extraneous start instances
     DTBuilder builder = new DTBuilder(dtStart);
     this.builder_ = builder;
+    boolean skipSubDayGenerators = InstanceGenerators.skipSubDayGenerators(
+        hourGenerator, minuteGenerator, secondGenerator);
+    this.fieldGenerators_ = skipSubDayGenerators
+        ? null
+        : new Generator[] {
+            yearGenerator, monthGenerator, dayGenerator,
+            hourGenerator, minuteGenerator,
+          };
     // Apply the generators from largest field to smallest so we can start by
     // applying the smallest field iterator when asked to generate a date.
     try {
       Generator[] toInitialize;
-      if (InstanceGenerators.skipSubDayGenerators(
-              hourGenerator, minuteGenerator, secondGenerator)) {
+      if (skipSubDayGenerators) {
         toInitialize = new Generator[] { yearGenerator, monthGenerator };
         builder.hour = ((SingleValueGenerator) hourGenerator).getValue();
         builder.minute = ((SingleValueGenerator) minuteGenerator).getValue();
         builder.second = ((SingleValueGenerator) secondGenerator).getValue();
       } else {
-        toInitialize = new Generator[] {
-            yearGenerator, monthGenerator, dayGenerator,
-            hourGenerator, minuteGenerator,
-        };
+        toInitialize = this.fieldGenerators_;
       }
       for (int i = 0; i != toInitialize.length;) {
         if (toInitialize[i].generate(builder)) {
@@ -135,18 +174,19 @@ final class RRuleIteratorImpl implements RecurrenceIterator {
       this.done_ = true;
     }
 
+    long dtStartUtc = DateValueComparison.comparable(
+        TimeUtils.toUtc(dtStart, tzid));
     while (!this.done_) {
       this.pendingUtc_ = this.generateInstance();
-      if (null == this.pendingUtc_) {
+      if (NO_DATE == this.pendingUtc_) {
         this.done_ = true;
         break;
-      } else if (this.pendingUtc_.compareTo(
-                     TimeUtils.toUtc(dtStart, tzid)) >= 0) {
+      } else if (this.pendingUtc_ >= dtStartUtc) {
         // We only apply the condition to the ones past dtStart to avoid
         // counting useless instances
         if (!this.condition_.apply(this.pendingUtc_)) {
           this.done_ = true;
-          this.pendingUtc_ = null;
+          this.pendingUtc_ = NO_DATE;
         }
         break;
       }
@@ -159,20 +199,39 @@ final class RRuleIteratorImpl implements RecurrenceIterator {
 
   /** are there more dates in this recurrence? */
   public boolean hasNext() {
-    if (null == this.pendingUtc_) { this.fetchNext(); }
-    return null != this.pendingUtc_;
+    if (NO_DATE == this.pendingUtc_) { this.fetchNext(); }
+    return NO_DATE != this.pendingUtc_;
   }
 
   /** fetch and return the next date in this recurrence. */
   public DateValue next() {
-    if (null == this.pendingUtc_) {
+    long next = this.nextPacked();
+    return NO_DATE != next ? PackedDates.unpack(next) : null;
+  }
+
+  public long nextPacked() {
+    if (NO_DATE == this.pendingUtc_) {
       this.fetchNext();
     }
-    DateValue next = this.pendingUtc_;
-    this.pendingUtc_ = null;
+    long next = this.pendingUtc_;
+    this.pendingUtc_ = NO_DATE;
     return next;
   }
 
+  public int fill(long[] out, int off, int len, long endExclusive) {
+    int n = 0;
+    while (n < len) {
+      if (NO_DATE == this.pendingUtc_) {
+        this.fetchNext();
+        if (NO_DATE == this.pendingUtc_) { break; }
+      }
+      if (this.pendingUtc_ >= endExclusive) { break; }
+      out[off + n++] = this.pendingUtc_;
+      this.pendingUtc_ = NO_DATE;
+    }
+    return n;
+  }
+
   public void remove() { throw new UnsupportedOperationException(); }
 
   /**
@@ -181,28 +240,59 @@ final class RRuleIteratorImpl implements RecurrenceIterator {
    * date, assuming the recurrence includes such a date.
    */
   public void advanceTo(DateValue dateUtc) {
+    this.advanceToPacked(DateValueComparison.comparable(dateUtc));
+  }
+
+  public void advanceToPacked(long dateUtc) {
     // Don't throw away a future pending date since the iterators will not
     // generate it again.
-    if (this.pendingUtc_ !=  null && dateUtc.compareTo(this.pendingUtc_) <= 0) {
+    if (NO_DATE != this.pendingUtc_ && dateUtc <= this.pendingUtc_) {
       return;
     }
 
-    DateValue dateLocal = TimeUtils.fromUtc(dateUtc, tzid_);
+    long dateLocal = this.fromUtc(dateUtc);
     // Short-circuit if we're already past dateUtc.
-    if (dateLocal.compareTo(this.builder_.toDate()) <= 0) { return; }
-    this.pendingUtc_ = null;
+    this.builder_.normalize();
+    if (dateLocal <= PackedDates.pack(this.builder_, false)) { return; }
+    this.pendingUtc_ = NO_DATE;
+    int yearLocal = PackedDates.year(dateLocal);
+    int monthLocal = PackedDates.month(dateLocal);
+
+    boolean shortcut = this.canShortcutAdvance_;
+    if (null != this.monthCounts_
+        && (this.builder_.year < yearLocal
+            || (this.builder_.year == yearLocal
+                && this.builder_.month < monthLocal))) {
+      // Skipping months would skip instances without counting them, so start
+      // counting afresh from the number left at the start of dateLocal's
+      // month.
+      int remaining = this.monthCounts_.remainingFrom(yearLocal, monthLocal);
+      if (0 == remaining) {
+        this.done_ = true;
+        return;
+      }
+      this.condition_ = Conditions.countCondition(remaining);
+      shortcut = true;
+    }
 
     try {
-      if (this.canShortcutAdvance_) {
+      if (shortcut) {
+        // Years skipped don't count against the year generator's throttle, so
+        // that it limits the span between dateUtc and the next instance, as
+        // it would between two instances found by iterating.
+        boolean skipped = false;
         // skip years before date.year
-        if (this.builder_.year < dateLocal.year()) {
+        if (this.builder_.year < yearLocal) {
+          skipped = true;
           do {
+            this.yearGenerator_.workDone();
             if (!this.yearGenerator_.generate(this.builder_)) {
               this.done_ = true;
               return;
             }
-          } while (this.builder_.year < dateLocal.year());
+          } while (this.builder_.year < yearLocal);
           while (!this.monthGenerator_.generate(this.builder_)) {
+            this.yearGenerator_.workDone();
             if (!this.yearGenerator_.generate(this.builder_)) {
               this.done_ = true;
               return;
@@ -210,10 +300,12 @@ final class RRuleIteratorImpl implements RecurrenceIterator {
           }
         }
         // skip months before date.year/date.month
-        while (this.builder_.year == dateLocal.year()
-               && this.builder_.month < dateLocal.month()) {
+        while (this.builder_.year == yearLocal
+               && this.builder_.month < monthLocal) {
+          skipped = true;
           while (!this.monthGenerator_.generate(this.builder_)) {
             // if there are more years available fetch one
+            this.yearGenerator_.workDone();
             if (!this.yearGenerator_.generate(this.builder_)) {
               // otherwise the recurrence is exhausted
               this.done_ = true;
@@ -221,19 +313,31 @@ final class RRuleIteratorImpl implements RecurrenceIterator {
             }
           }
         }
+        // The instance generator starts with the smallest field, so unless the
+        // day and sub-day fields are regenerated for the new month, the hour
+        // generator would happily fill in times for a day of the new month
+        // that was never produced by the day generator.
+        if (skipped && null != this.fieldGenerators_
+            && !this.initializeFields(2)) {
+          this.done_ = true;
+          return;
+        }
       }
 
       // consume any remaining instances
       while (!this.done_) {
-        DateValue dUtc = this.generateInstance();
-        if (null == dUtc) {
+        long dUtc = this.generateInstance();
+        if (NO_DATE == dUtc) {
           this.done_ = true;
         } else {
           if (!this.condition_.apply(dUtc)) {
             this.done_ = true;
-          } else if (dUtc.compareTo(dateUtc) >= 0) {
-            this.pendingUtc_ = dUtc;
-            break;
+          } else {
+            this.yearGenerator_.workDone();
+            if (dUtc >= dateUtc) {
+              this.pendingUtc_ = dUtc;
+              break;
+            }
           }
         }
       }
@@ -242,14 +346,32 @@ final class RRuleIteratorImpl implements RecurrenceIterator {
     }
   }
 
+  /**
+   * applies {@link #fieldGenerators_} from index i onwards, falling back to
+   * larger fields when smaller ones are exhausted, as done by the constructor.
+   * @return false if there are no more years.
+   */
+  private boolean initializeFields(int i)
+      throws Generator.IteratorShortCircuitingException {
+    Generator[] generators = this.fieldGenerators_;
+    while (i != generators.length) {
+      if (generators[i].generate(this.builder_)) {
+        ++i;
+      } else if (--i < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   /** calculates and stored the next date in this recurrence. */
   private void fetchNext() {
-    if (null != this.pendingUtc_ || this.done_) { return; }
+    if (NO_DATE != this.pendingUtc_ || this.done_) { return; }
 
-    DateValue dUtc = this.generateInstance();
+    long dUtc = this.generateInstance();
 
     // check the exit condition
-    if (null != dUtc && this.condition_.apply(dUtc)) {
+    if (NO_DATE != dUtc && this.condition_.apply(dUtc)) {
       this.pendingUtc_ = dUtc;
       this.yearGenerator_.workDone();
     } else {
@@ -257,31 +379,59 @@ final class RRuleIteratorImpl implements RecurrenceIterator {
     }
   }
 
-  private static final DateValue MIN_DATE =
-    new DateValueImpl(Integer.MIN_VALUE, 1, 1);
   /**
    * make sure the iterator is monotonically increasing.
    * The local time is guaranteed to be monotonic, but because of daylight
    * savings shifts, the time in UTC may not be.
    */
-  private DateValue lastUtc_ = MIN_DATE;
+  private long lastUtc_ = NO_DATE;
   /**
-   * @return a date value in UTC.
+   * @return a date value in UTC in packed form or {@link #NO_DATE} if there
+   *   are no more instances.
    */
-  private DateValue generateInstance() {
+  private long generateInstance() {
     try {
       do {
-        if (!this.instanceGenerator_.generate(this.builder_)) { return null; }
-        DateValue dUtc = this.dtStart_ instanceof TimeValue
-            ? TimeUtils.toUtc(this.builder_.toDateTime(), this.tzid_)
-            : this.builder_.toDate();
-        if (dUtc.compareTo(this.lastUtc_) > 0) {
+        if (!this.instanceGenerator_.generate(this.builder_)) {
+          return NO_DATE;
+        }
+        long dUtc = this.toUtc(this.builder_);
+        if (dUtc > this.lastUtc_) {
+          this.lastUtc_ = dUtc;
           return dUtc;
         }
       } while (true);
     } catch (Generator.IteratorShortCircuitingException ex) {
-      return null;
+      return NO_DATE;
     }
   }
 
+  /**
+   * the packed UTC form of the date in the given builder, which is in tzid_.
+   * Normalizes builder.
+   */
+  private long toUtc(DTBuilder builder) {
+    builder.normalize();
+    if (!this.timed_) { return PackedDates.pack(builder, false); }
+    if (0 == this.fixedOffsetSecs_) { return PackedDates.pack(builder, true); }
+    DTBuilder utc = this.convBuilder_;
+    utc.year = builder.year;
+    utc.month = builder.month;
+    utc.day = builder.day;
+    utc.hour = builder.hour;
+    utc.minute = builder.minute;
+    utc.second = builder.second;
+    Util.toUtc(utc, this.tzid_, this.fixedOffsetSecs_);
+    return PackedDates.pack(utc, true);
+  }
+
+  /** converts a packed date in UTC to a packed date in tzid_. */
+  private long fromUtc(long dateUtc) {
+    if (!PackedDates.isDateTime(dateUtc)) { return dateUtc; }
+    DTBuilder local = this.convBuilder_;
+    PackedDates.unpack(dateUtc, local);
+    Util.fromUtc(local, this.tzid_, this.fixedOffsetSecs_);
+    return PackedDates.pack(local, true);
+  }
+
 }
@@ -0,0 +1,959 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.iter;
+
+import com.google.ical.util.DTBuilder;
+import com.google.ical.util.PackedDates;
+import com.google.ical.util.Predicate;
+import com.google.ical.util.Predicates;
+import com.google.ical.util.TimeUtils;
+import com.google.ical.values.DateTimeValueImpl;
+import com.google.ical.values.DateValue;
+import com.google.ical.values.DateValueImpl;
+import com.google.ical.values.Frequency;
+import com.google.ical.values.RRule;
+import com.google.ical.values.TimeValue;
+import com.google.ical.values.Weekday;
+import com.google.ical.values.WeekdayNum;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * the result of deciding how to iterate over an RRULE.
+ *
+ * <p>Generators and count conditions are stateful, so each iterator needs its
+ * own, but the choice of generators, the normalization of the rule parts, and
+ * the filters do not depend on iteration state.  A plan makes those decisions
+ * once, and records for each field a recipe that creates a fresh generator, so
+ * that {@link #iterator} only has to allocate.</p>
+ *
+ * <p>Plans are immutable and may be shared across threads.</p>
+ *
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+final class RRulePlan implements RecurrenceIterable {
+  private final DateValue dtStart_;
+  private final TimeZone tzid_;
+  /**
+   * the offset of tzid_ from UTC in seconds if it never changes, or
+   * {@link Util#NOT_FIXED}, so that iterators can shift instead of converting.
+   */
+  private final int fixedOffsetSecs_;
+  /**
+   * the number of seconds between instances if the rule is iterated by a
+   * {@link PeriodicIteratorImpl}, or 0 if it is iterated by generators.
+   */
+  private final long periodSecs_;
+  /** the COUNT rule part, or 0 if none. */
+  private final int count_;
+  /**
+   * the UNTIL rule part, coerced to a date-time iff dtStart is one, or null if
+   * none.
+   */
+  private final DateValue untilUtc_;
+
+  // The rest are null or zero for periodic rules.
+  private final int yearInterval_;
+  private final GeneratorRecipe monthRecipe_;
+  private final GeneratorRecipe dayRecipe_;
+  private final GeneratorRecipe hourRecipe_;
+  private final GeneratorRecipe minuteRecipe_;
+  private final GeneratorRecipe secondRecipe_;
+  /** the conjunction of all filters.  Filters are stateless so are shared. */
+  private final Predicate<? super DateValue> filter_;
+  /** the BYSETPOS rule part after optimization. */
+  private final int[] bySetPos_;
+  private final Frequency freq_;
+  private final Weekday wkst_;
+  /**
+   * the days on which the rule occurs if it occurs at most once a day, or
+   * null if the rule is iterated by an {@link RRuleIteratorImpl}.
+   */
+  private final DayOfYearMasks dayMasks_;
+  /** for rules iterated using dayMasks_, the time of day of every instance. */
+  private final DateValue instanceTime_;
+  /** for rules iterated using dayMasks_, the packed form of dtStart in UTC. */
+  private final long dtStartUtc_;
+  /**
+   * for COUNT rules iterated by generators without BYSETPOS, the number of
+   * instances before each month, shared by all iterators; null otherwise.
+   */
+  private final MonthCounts monthCounts_;
+
+  /**
+   * @param rrule the recurrence rule to iterate.
+   * @param dtStart the start of the series, in tzid.
+   * @param tzid the timezone to iterate in.
+   */
+  RRulePlan(RRule rrule, DateValue dtStart, TimeZone tzid) {
+    this(rrule, dtStart, tzid, true);
+  }
+
+  /**
+   * @param useDayMasks false to always iterate using generators.
+   */
+  private RRulePlan(
+      RRule rrule, DateValue dtStart, TimeZone tzid, boolean useDayMasks) {
+    assert null != tzid;
+    assert null != dtStart;
+
+    Frequency freq = rrule.getFreq();
+    Weekday wkst = rrule.getWkSt();
+    DateValue untilUtc = rrule.getUntil();
+    int count = rrule.getCount();
+    int interval = rrule.getInterval();
+    WeekdayNum[] byDay = rrule.getByDay().toArray(new WeekdayNum[0]);
+    int[] byMonth = rrule.getByMonth();
+    int[] byMonthDay = rrule.getByMonthDay();
+    int[] byWeekNo = rrule.getByWeekNo();
+    int[] byYearDay = rrule.getByYearDay();
+    int[] bySetPos = rrule.getBySetPos();
+    int[] byHour = rrule.getByHour();
+    int[] byMinute = rrule.getByMinute();
+    int[] bySecond = rrule.getBySecond();
+
+    if (interval <= 0) {  interval = 1; }
+
+    if (null == wkst) {
+      wkst = Weekday.MO;
+    }
+
+    this.dtStart_ = dtStart;
+    this.tzid_ = tzid;
+    this.fixedOffsetSecs_ = Util.fixedOffsetSecs(tzid);
+    this.count_ = count;
+    this.untilUtc_ = null != untilUtc ? coerceUntil(untilUtc, dtStart) : null;
+    this.freq_ = freq;
+    this.wkst_ = wkst;
+
+    // Rules whose instances are a fixed period apart don't need generators.
+    // Unless the zone's offset is fixed, a period no longer than a daylight
+    // savings shift can map two instances to the same time in UTC, and only
+    // the generators drop the duplicate.
+    long periodSecs = fixedPeriodSecs(freq, interval, dtStart);
+    if (periodSecs <= MAX_DAYLIGHT_SHIFT_SECS
+        && Util.NOT_FIXED == this.fixedOffsetSecs_) {
+      periodSecs = 0;
+    }
+    if (0 != periodSecs
+        && byDay.length == 0 && byMonth.length == 0 && byMonthDay.length == 0
+        && byWeekNo.length == 0 && byYearDay.length == 0
+        && bySetPos.length == 0 && byHour.length == 0 && byMinute.length == 0
+        && bySecond.length == 0) {
+      this.periodSecs_ = periodSecs;
+      this.yearInterval_ = 0;
+      this.monthRecipe_ = this.dayRecipe_ = null;
+      this.hourRecipe_ = this.minuteRecipe_ = this.secondRecipe_ = null;
+      this.filter_ = null;
+      this.bySetPos_ = null;
+      this.dayMasks_ = null;
+      this.instanceTime_ = null;
+      this.dtStartUtc_ = 0;
+      this.monthCounts_ = null;
+      return;
+    }
+    this.periodSecs_ = 0;
+
+    // Optimize out BYSETPOS where possible.
+    if (bySetPos.length != 0) {
+      switch (freq) {
+        case HOURLY:
+          // ;BYHOUR=3,6,9;BYSETPOS=-1,1
+          //     is equivalent to
+          // ;BYHOUR=3,9
+          if (byHour.length != 0 && byMinute.length <= 1
+              && bySecond.length <= 1) {
+            byHour = filterBySetPos(byHour, bySetPos);
+          }
+          // Handling bySetPos for rules that are more frequent than daily
+          // tends to lead to large amounts of processor being used before other
+          // work limiting features can kick in since there many seconds between
+          // dtStart and where the year limit kicks in.
+          // There are no known use cases for the use of bySetPos with hourly
+          // minutely and secondly rules so we just ignore it.
+          bySetPos = NO_INTS;
+          break;
+        case MINUTELY:
+          // ;BYHOUR=3,6,9;BYSETPOS=-1,1
+          //     is equivalent to
+          // ;BYHOUR=3,9
+          if (byMinute.length != 0 && bySecond.length <= 1) {
+            byMinute = filterBySetPos(byMinute, bySetPos);
+          }
+          // See bySetPos handling comment above.
+          bySetPos = NO_INTS;
+          break;
+        case SECONDLY:
+          // ;BYHOUR=3,6,9;BYSETPOS=-1,1
+          //     is equivalent to
+          // ;BYHOUR=3,9
+          if (bySecond.length != 0) {
+            bySecond = filterBySetPos(bySecond, bySetPos);
+          }
+          // See bySetPos handling comment above.
+          bySetPos = NO_INTS;
+          break;
+        default:
+      }
+    }
+
+    DateValue start = dtStart;
+    if (bySetPos.length != 0) {
+      // Roll back till the beginning of the period to make sure that any
+      // positive indices are indexed properly.
+      // The actual iterator implementation is responsible for anything
+      // < dtStart.
+      switch (freq) {
+        case YEARLY:
+          start = dtStart instanceof TimeValue
+              ? new DateTimeValueImpl(start.year(), 1, 1, 0, 0, 0)
+              : new DateValueImpl(start.year(), 1, 1);
+          break;
+        case MONTHLY:
+          start = dtStart instanceof TimeValue
+              ? new DateTimeValueImpl(start.year(), start.month(), 1, 0, 0, 0)
+              : new DateValueImpl(start.year(), start.month(), 1);
+          break;
+        case WEEKLY:
+          int d = (7 + wkst.ordinal() - Weekday.valueOf(dtStart).ordinal()) % 7;
+          start = TimeUtils.add(dtStart, new DateValueImpl(0, 0, -d));
+          break;
+        default: break;
+      }
+    }
+
+    // recurrences are implemented as a sequence of periodic generators.
+    // First a year is generated, and then months, and within months, days
+    this.yearInterval_ = freq == Frequency.YEARLY ? interval : 1;
+    GeneratorRecipe monthRecipe = null;
+    GeneratorRecipe dayRecipe = null;
+    GeneratorRecipe secondRecipe = null;
+    GeneratorRecipe minuteRecipe = null;
+    GeneratorRecipe hourRecipe = null;
+
+    // When multiple generators are specified for a period, they act as a union
+    // operator.  We could have multiple generators (for day say) and then
+    // run each and merge the results, but some generators are more efficient
+    // than others, so to avoid generating 53 sundays and throwing away all but
+    // 1 for RRULE:FREQ=YEARLY;BYDAY=TU;BYWEEKNO=1, we reimplement some of the
+    // more prolific generators as filters.
+    List<Predicate<? super DateValue>> filters =
+      new ArrayList<Predicate<? super DateValue>>();
+    // the days of the year accepted by each day filter, used to evaluate rules
+    // that occur at most once a day without running the filters.
+    List<ByPartMasks.DaySet> filterDays = new ArrayList<ByPartMasks.DaySet>();
+
+    switch (freq) {
+      case SECONDLY:
+        if (bySecond.length == 0 || interval != 1) {
+          secondRecipe = serialSecond(interval, dtStart);
+          if (bySecond.length != 0) {
+            filters.add(Filters.bySecondFilter(bySecond));
+          }
+        }
+        break;
+      case MINUTELY:
+        if (byMinute.length == 0 || interval != 1) {
+          minuteRecipe = serialMinute(interval, dtStart);
+          if (byMinute.length != 0) {
+            filters.add(Filters.byMinuteFilter(byMinute));
+          }
+        }
+        break;
+      case HOURLY:
+        if (byHour.length == 0 || interval != 1) {
+          hourRecipe = serialHour(interval, dtStart);
+          if (byHour.length != 0) {
+            filters.add(Filters.byHourFilter(bySecond));
+          }
+        }
+        break;
+      case DAILY:
+        break;
+      case WEEKLY:
+        // week is not considered a period because a week may span multiple
+        // months &| years.  There are no week generators, but so a filter is
+        // used to make sure that FREQ=WEEKLY;INTERVAL=2 only generates dates
+        // within the proper week.
+        if (0 != byDay.length) {
+          dayRecipe = byDay(byDay, false, start);
+          byDay = NO_DAYS;
+          if (interval > 1) {
+            filters.add(Filters.weekIntervalFilter(interval, wkst, dtStart));
+            filterDays.add(ByPartMasks.weekInterval(interval, wkst, dtStart));
+          }
+        } else {
+          dayRecipe = serialDay(interval * 7, dtStart);
+        }
+        break;
+      case YEARLY:
+        if (0 != byYearDay.length) {
+          // The BYYEARDAY rule part specifies a COMMA separated list of days of
+          // the year. Valid values are 1 to 366 or -366 to -1. For example, -1
+          // represents the last day of the year (December 31st) and -306
+          // represents the 306th to the last day of the year (March 1st).
+          dayRecipe = byYearDay(byYearDay, start);
+          break;
+        }
+        // $FALL-THROUGH$
+      case MONTHLY:
+        if (0 != byMonthDay.length) {
+          // The BYMONTHDAY rule part specifies a COMMA separated list of days
+          // of the month. Valid values are 1 to 31 or -31 to -1. For example,
+          // -10 represents the tenth to the last day of the month.
+          dayRecipe = byMonthDay(byMonthDay, start);
+          byMonthDay = NO_INTS;
+        } else if (0 != byWeekNo.length && Frequency.YEARLY == freq) {
+          // The BYWEEKNO rule part specifies a COMMA separated list of ordinals
+          // specifying weeks of the year.  This rule part is only valid for
+          // YEARLY rules.
+          dayRecipe = byWeekNo(byWeekNo, wkst, start);
+          byWeekNo = NO_INTS;
+        } else if (0 != byDay.length) {
+          // Each BYDAY value can also be preceded by a positive (n) or negative
+          // (-n) integer. If present, this indicates the nth occurrence of the
+          // specific day within the MONTHLY or YEARLY RRULE. For example,
+          // within a MONTHLY rule, +1MO (or simply 1MO) represents the first
+          // Monday within the month, whereas -1MO represents the last Monday of
+          // the month. If an integer modifier is not present, it means all days
+          // of this type within the specified frequency. For example, within a
+          // MONTHLY rule, MO represents all Mondays within the month.
+          dayRecipe = byDay(
+              byDay, Frequency.YEARLY == freq && 0 == byMonth.length, start);
+          byDay = NO_DAYS;
+        } else {
+          if (Frequency.YEARLY == freq) {
+            monthRecipe = byMonth(new int[] { dtStart.month() }, start);
+          }
+          dayRecipe = byMonthDay(new int[] { dtStart.day() }, start);
+        }
+        break;
+    }
+
+    if (secondRecipe == null) {
+      secondRecipe = bySecond(bySecond, start);
+    }
+    if (minuteRecipe == null) {
+      if (byMinute.length == 0 && freq.compareTo(Frequency.MINUTELY) < 0) {
+        minuteRecipe = serialMinute(1, dtStart);
+      } else {
+        minuteRecipe = byMinute(byMinute, start);
+      }
+    }
+    if (hourRecipe == null) {
+      if (byHour.length == 0 && freq.compareTo(Frequency.HOURLY) < 0) {
+        hourRecipe = serialHour(1, dtStart);
+      } else {
+        hourRecipe = byHour(byHour, start);
+      }
+    }
+
+    if (dayRecipe == null) {
+      boolean dailyOrMoreOften = freq.compareTo(Frequency.DAILY) <= 0;
+      if (byMonthDay.length != 0) {
+        dayRecipe = byMonthDay(byMonthDay, start);
+        byMonthDay = NO_INTS;
+      } else if (byDay.length != 0) {
+        dayRecipe = byDay(byDay, Frequency.YEARLY == freq, start);
+        byDay = NO_DAYS;
+      } else if (dailyOrMoreOften) {
+        dayRecipe = serialDay(Frequency.DAILY == freq ? interval : 1, dtStart);
+      } else {
+        dayRecipe = byMonthDay(new int[] { dtStart.day() }, start);
+      }
+    }
+
+    if (0 != byDay.length) {
+      filters.add(Filters.byDayFilter(byDay, Frequency.YEARLY == freq, wkst));
+      filterDays.add(
+          ByPartMasks.weekdayFilter(byDay, Frequency.YEARLY == freq, wkst));
+      byDay = NO_DAYS;
+    }
+
+    if (0 != byMonthDay.length) {
+      filters.add(Filters.byMonthDayFilter(byMonthDay));
+      filterDays.add(ByPartMasks.monthDays(byMonthDay));
+    }
+
+    // generator inference common to all periods
+    if (0 != byMonth.length) {
+      monthRecipe = byMonth(byMonth, start);
+    } else if (null == monthRecipe) {
+      monthRecipe = serialMonth(
+          freq == Frequency.MONTHLY ? interval : 1, dtStart);
+    }
+
+    // combine filters into a single function
+    Predicate<? super DateValue> filter;
+    switch (filters.size()) {
+      case 0:
+        filter = Predicates.<DateValue>alwaysTrue();
+        break;
+      case 1:
+        filter = filters.get(0);
+        break;
+      default:
+        filter = Predicates.and(filters);
+        break;
+    }
+
+    this.monthRecipe_ = monthRecipe;
+    this.dayRecipe_ = dayRecipe;
+    this.hourRecipe_ = hourRecipe;
+    this.minuteRecipe_ = minuteRecipe;
+    this.secondRecipe_ = secondRecipe;
+    this.filter_ = filter;
+    this.bySetPos_ = bySetPos;
+
+    // Rules that occur at most once a day, at the time of dtStart, can be
+    // iterated by scanning masks of the days on which they occur.  The masks
+    // are computed by intersecting the days produced by the generators and
+    // accepted by the filters, or failing that, by running the same rule
+    // starting on the date part of dtStart in UTC, which generates the same
+    // local dates without conversion.
+    if (useDayMasks && freq.compareTo(Frequency.DAILY) >= 0
+        && byHour.length == 0 && byMinute.length == 0
+        && bySecond.length == 0) {
+      ByPartMasks evaluator = null;
+      // The candidates that the BYSETPOS instance generator sees for a daily
+      // or weekly rule depend on where iteration started, so those rules are
+      // left to the generators.
+      if (null != monthRecipe.days && null != dayRecipe.days
+          && !filterDays.contains(null)
+          && (0 == bySetPos.length || Frequency.WEEKLY.compareTo(freq) < 0)) {
+        List<ByPartMasks.DaySet> sets = new ArrayList<ByPartMasks.DaySet>();
+        sets.add(monthRecipe.days);
+        sets.add(dayRecipe.days);
+        sets.addAll(filterDays);
+        evaluator = new ByPartMasks(
+            sets.toArray(new ByPartMasks.DaySet[0]), dtStart,
+            this.yearInterval_, freq, bySetPos);
+      }
+      if (null != evaluator) {
+        this.dayMasks_ = new DayOfYearMasks(evaluator);
+      } else {
+        RRulePlan dateRule = new RRulePlan(
+            rrule,
+            new DateValueImpl(dtStart.year(), dtStart.month(), dtStart.day()),
+            TimeUtils.utcTimezone(), false);
+        // The BYSETPOS instance generator doesn't reset its candidates when
+        // skipping ahead, so those rules' masks have to be computed in order.
+        this.dayMasks_ = new DayOfYearMasks(dateRule, 0 != bySetPos.length);
+      }
+      // The hour, minute, and second generators take their values from start,
+      // which is not dtStart for some BYSETPOS rules.
+      this.instanceTime_ = start;
+      this.dtStartUtc_ = DateValueComparison.comparable(
+          TimeUtils.toUtc(dtStart, tzid));
+    } else {
+      this.dayMasks_ = null;
+      this.instanceTime_ = null;
+      this.dtStartUtc_ = 0;
+    }
+    // The BYSETPOS instance generator keeps its own set of candidates which
+    // skipping months would not reset, so those rules are never skipped.
+    this.monthCounts_ = 0 != count && null == this.dayMasks_
+        && 0 == this.bySetPos_.length
+        ? new MonthCounts(this, count) : null;
+  }
+
+  /** a fresh iterator over the rule's instances. */
+  public RecurrenceIterator iterator() {
+    if (0 != this.periodSecs_) {
+      return new PeriodicIteratorImpl(
+          this.dtStart_, this.tzid_, this.periodSecs_, this.count_,
+          this.untilUtc_, this.fixedOffsetSecs_);
+    }
+    if (null != this.dayMasks_) {
+      return new DayMaskIteratorImpl(
+          this.dayMasks_.forIterator(), this.dtStart_, this.dtStartUtc_, this.instanceTime_,
+          this.tzid_, this.count_, this.untilUtc_, this.yearInterval_,
+          this.fixedOffsetSecs_);
+    }
+    return this.generatorIterator(true);
+  }
+
+  /**
+   * the packed date in UTC of the rule's last instance, Long.MIN_VALUE if it
+   * has none, or Long.MAX_VALUE if it has neither COUNT nor UNTIL, or if its
+   * COUNT runs past {@link #MAX_INSTANCES_WALKED} walked instances or
+   * {@link #MAX_YEARS_SCANNED} scanned years.
+   */
+  long lastInstanceUtc() {
+    if (0 != this.count_) {
+      long last;
+      if (0 != this.periodSecs_) {
+        // The k-th instance of a periodic rule can be computed directly.
+        last = new PeriodicIteratorImpl(
+            this.dtStart_, this.tzid_, this.periodSecs_, this.count_,
+            this.untilUtc_, this.fixedOffsetSecs_)
+            .occurrenceUtc(this.count_ - 1);
+      } else if (null != this.dayMasks_) {
+        // Count the days in each year's mask.
+        last = ((DayMaskIteratorImpl) this.iterator())
+            .lastPacked(MAX_YEARS_SCANNED);
+      } else if (null != this.monthCounts_) {
+        // Find the month of the last instance, then iterate over it.
+        int lastMonth = this.monthCounts_.lastMonth(MAX_INSTANCES_WALKED);
+        if (Integer.MAX_VALUE == lastMonth) { return Long.MAX_VALUE; }
+        if (lastMonth < 0) { return Long.MIN_VALUE; }
+        int year = this.dtStart_.year() + lastMonth / 12;
+        int month = 1 + lastMonth % 12;
+        RecurrenceIterator it = this.iterator();
+        it.advanceToPacked(DateValueComparison.comparable(
+            this.dtStart_ instanceof TimeValue
+            ? TimeUtils.toUtc(
+                new DateTimeValueImpl(year, month, 1, 0, 0, 0), this.tzid_)
+            : new DateValueImpl(year, month, 1)));
+        last = lastOf(it, Integer.MAX_VALUE);
+      } else {
+        // The COUNT condition has to see every instance.
+        last = lastOf(this.iterator(), MAX_INSTANCES_WALKED);
+      }
+      if (Long.MAX_VALUE == last || null == this.untilUtc_
+          || last <= DateValueComparison.comparable(this.untilUtc_)) {
+        return last;
+      }
+    } else if (null == this.untilUtc_) {
+      return Long.MAX_VALUE;
+    }
+    // Search back from UNTIL.  Adding one to a packed date or date-time gives
+    // a larger value with the same date fields.
+    return RecurrenceSearch.previousBeforePacked(
+        this, DateValueComparison.comparable(this.untilUtc_) + 1);
+  }
+
+  /**
+   * the last instance from it, Long.MIN_VALUE if none, or Long.MAX_VALUE if
+   * there are more than budget.
+   */
+  private static long lastOf(RecurrenceIterator it, int budget) {
+    long[] buf = new long[64];
+    long last = Long.MIN_VALUE;
+    for (int n; (n = it.fill(buf, 0, buf.length, Long.MAX_VALUE)) != 0;) {
+      last = buf[n - 1];
+      if ((budget -= n) < 0) { return Long.MAX_VALUE; }
+    }
+    return last;
+  }
+
+  /**
+   * true iff iterators over the rule cannot skip ahead, so advancing them
+   * costs as much as iterating up to the same point.
+   */
+  boolean advancesByWalking() {
+    return 0 == this.periodSecs_ && null == this.dayMasks_
+        && 0 != this.bySetPos_.length;
+  }
+
+  /**
+   * a fresh iterator over the rule's instances that ignores COUNT and UNTIL.
+   * Only valid for plans that use generators.
+   */
+  RecurrenceIterator unboundedIterator() {
+    assert 0 == this.periodSecs_ && null == this.dayMasks_;
+    return this.generatorIterator(false);
+  }
+
+  /**
+   * @param bounded true to honor the COUNT and UNTIL rule parts.
+   */
+  private RecurrenceIterator generatorIterator(boolean bounded) {
+
+    ThrottledGenerator yearGenerator = Generators.serialYearGenerator(
+        this.yearInterval_, this.dtStart_);
+    Generator monthGenerator = this.monthRecipe_.create();
+    Generator dayGenerator = this.dayRecipe_.create();
+    Generator hourGenerator = this.hourRecipe_.create();
+    Generator minuteGenerator = this.minuteRecipe_.create();
+    Generator secondGenerator = this.secondRecipe_.create();
+
+    // the condition tells the iterator when to halt.
+    // The condition is exclusive, so the date that triggers it will not be
+    // included.
+    Condition condition;
+    // The BYSETPOS instance generator keeps its own set of candidates which
+    // skipping years and months would not reset.
+    boolean canShortcutAdvance = !this.advancesByWalking();
+    MonthCounts monthCounts = null;
+    if (!bounded) {
+      condition = Conditions.alwaysTrue();
+    } else if (0 != this.count_) {
+      condition = Conditions.countCondition(this.count_);
+      // We can't shortcut because the countCondition must see every generated
+      // instance, unless we know how many instances the skipped months hold.
+      canShortcutAdvance = false;
+      monthCounts = this.monthCounts_;
+    } else if (null != this.untilUtc_) {
+      condition = Conditions.untilCondition(this.untilUtc_);
+    } else {
+      condition = Conditions.alwaysTrue();
+    }
+
+    Generator instanceGenerator;
+    if (0 != this.bySetPos_.length) {
+      instanceGenerator = InstanceGenerators.bySetPosInstanceGenerator(
+          this.bySetPos_, this.freq_, this.wkst_, this.filter_,
+          yearGenerator, monthGenerator, dayGenerator, hourGenerator,
+          minuteGenerator, secondGenerator);
+    } else {
+      instanceGenerator = InstanceGenerators.serialInstanceGenerator(
+          this.filter_, yearGenerator, monthGenerator, dayGenerator,
+          hourGenerator, minuteGenerator, secondGenerator);
+    }
+
+    return new RRuleIteratorImpl(
+        this.dtStart_, this.tzid_, condition, instanceGenerator,
+        yearGenerator, monthGenerator, dayGenerator,
+        hourGenerator, minuteGenerator, secondGenerator,
+        canShortcutAdvance, monthCounts, this.fixedOffsetSecs_);
+  }
+
+  /**
+   * counts the instances of a COUNT rule in each month so that iterators can
+   * skip months without counting their instances.  The counts are computed
+   * lazily, by a single walk over the series that is shared by all iterators,
+   * so advancing a fresh iterator costs time proportional to the number of
+   * months skipped, and the series is walked only as far as iterators have
+   * advanced.
+   */
+  static final class MonthCounts {
+    private final RRulePlan plan;
+    private final int count;
+    /** the local year of dtStart.  Months are indexed from its January. */
+    private final int firstYear;
+    /**
+     * counts[i] is the number of instances in months with indices less than i.
+     * Only the first nCounts are valid.
+     */
+    private int[] counts = new int[16];
+    private int nCounts = 1;
+    /** walks the series, or null until first needed. */
+    private RecurrenceIterator walker;
+    /**
+     * the month index of the next instance from walker, or Integer.MAX_VALUE
+     * if the series is exhausted.
+     */
+    private int pendingMonth;
+    /** the number of instances walked before the pending one. */
+    private int seen;
+    private final DTBuilder scratch = new DTBuilder(0, 0, 0);
+
+    MonthCounts(RRulePlan plan, int count) {
+      this.plan = plan;
+      this.count = count;
+      this.firstYear = plan.dtStart_.year();
+    }
+
+    /**
+     * the number of instances left in the series from the start of the given
+     * month in the rule's timezone.
+     */
+    int remainingFrom(int year, int month) {
+      return Math.max(0, this.count - this.instancesBefore(year, month));
+    }
+
+    /**
+     * the number of instances before the start of the given month in the
+     * rule's timezone.
+     */
+    synchronized int instancesBefore(int year, int month) {
+      int k = (year - this.firstYear) * 12 + month - 1;
+      if (k <= 0) { return 0; }
+      this.startWalking();
+      while (this.nCounts <= k && Integer.MAX_VALUE != this.pendingMonth) {
+        this.consume();
+      }
+      // If the series is exhausted, no later month holds an instance.
+      return k < this.nCounts ? this.counts[k] : this.seen;
+    }
+
+    /**
+     * the month index of the last instance, -1 if there are none, or
+     * Integer.MAX_VALUE if finding it would take walking more than budget
+     * instances past those already walked.
+     */
+    synchronized int lastMonth(int budget) {
+      this.startWalking();
+      while (Integer.MAX_VALUE != this.pendingMonth) {
+        if (--budget < 0) { return Integer.MAX_VALUE; }
+        this.consume();
+      }
+      // consume records counts up to the month of the last instance.
+      return 0 != this.seen ? this.nCounts - 1 : -1;
+    }
+
+    private void startWalking() {
+      if (null == this.walker) {
+        this.walker = this.plan.generatorIterator(false);
+        this.pendingMonth = this.nextMonth();
+      }
+    }
+
+    /**
+     * counts the pending instance, first recording the counts before each
+     * month up to its own.
+     */
+    private void consume() {
+      while (this.nCounts <= this.pendingMonth) {
+        if (this.nCounts == this.counts.length) {
+          int[] newCounts = new int[this.counts.length * 2];
+          System.arraycopy(this.counts, 0, newCounts, 0, this.nCounts);
+          this.counts = newCounts;
+        }
+        this.counts[this.nCounts++] = this.seen;
+      }
+      ++this.seen;
+      this.pendingMonth = this.nextMonth();
+    }
+
+    /** the month index of the next instance in the rule's timezone. */
+    private int nextMonth() {
+      if (this.seen >= this.count || !this.walker.hasNext()) {
+        return Integer.MAX_VALUE;
+      }
+      long dateUtc = this.walker.nextPacked();
+      int year, month;
+      if (PackedDates.isDateTime(dateUtc)) {
+        DTBuilder local = this.scratch;
+        PackedDates.unpack(dateUtc, local);
+        Util.fromUtc(local, this.plan.tzid_, this.plan.fixedOffsetSecs_);
+        year = local.year;
+        month = local.month;
+      } else {
+        year = PackedDates.year(dateUtc);
+        month = PackedDates.month(dateUtc);
+      }
+      return (year - this.firstYear) * 12 + month - 1;
+    }
+  }
+
+  /**
+   * creates fresh instances of a generator.  The arguments captured by a
+   * recipe must not be modified.
+   */
+  private abstract static class GeneratorRecipe {
+    /**
+     * the days of the year that the generators produce, or null if they are
+     * not days or can't be computed a year at a time.
+     */
+    final ByPartMasks.DaySet days;
+
+    GeneratorRecipe(ByPartMasks.DaySet days) {
+      this.days = days;
+    }
+
+    abstract Generator create();
+  }
+
+  private static GeneratorRecipe serialMonth(
+      final int interval, final DateValue dtStart) {
+    return new GeneratorRecipe(ByPartMasks.serialMonths(interval, dtStart)) {
+        Generator create() {
+          return Generators.serialMonthGenerator(interval, dtStart);
+        }
+      };
+  }
+
+  private static GeneratorRecipe serialDay(
+      final int interval, final DateValue dtStart) {
+    return new GeneratorRecipe(ByPartMasks.serialDays(interval, dtStart)) {
+        Generator create() {
+          return Generators.serialDayGenerator(interval, dtStart);
+        }
+      };
+  }
+
+  private static GeneratorRecipe serialHour(
+      final int interval, final DateValue dtStart) {
+    return new GeneratorRecipe(null) {
+        Generator create() {
+          return Generators.serialHourGenerator(interval, dtStart);
+        }
+      };
+  }
+
+  private static GeneratorRecipe serialMinute(
+      final int interval, final DateValue dtStart) {
+    return new GeneratorRecipe(null) {
+        Generator create() {
+          return Generators.serialMinuteGenerator(interval, dtStart);
+        }
+      };
+  }
+
+  private static GeneratorRecipe serialSecond(
+      final int interval, final DateValue dtStart) {
+    return new GeneratorRecipe(null) {
+        Generator create() {
+          return Generators.serialSecondGenerator(interval, dtStart);
+        }
+      };
+  }
+
+  private static GeneratorRecipe byMonth(
+      int[] months, final DateValue start) {
+    final int[] umonths = Util.uniquify(months);
+    return new GeneratorRecipe(ByPartMasks.months(umonths)) {
+        Generator create() {
+          return Generators.byMonthGenerator(umonths, start);
+        }
+      };
+  }
+
+  private static GeneratorRecipe byHour(int[] hours, final DateValue start) {
+    final int[] uhours = Util.uniquify(hours);
+    return new GeneratorRecipe(null) {
+        Generator create() {
+          return Generators.byHourGenerator(uhours, start);
+        }
+      };
+  }
+
+  private static GeneratorRecipe byMinute(
+      int[] minutes, final DateValue start) {
+    final int[] uminutes = Util.uniquify(minutes);
+    return new GeneratorRecipe(null) {
+        Generator create() {
+          return Generators.byMinuteGenerator(uminutes, start);
+        }
+      };
+  }
+
+  private static GeneratorRecipe bySecond(
+      int[] seconds, final DateValue start) {
+    final int[] useconds = Util.uniquify(seconds);
+    return new GeneratorRecipe(null) {
+        Generator create() {
+          return Generators.bySecondGenerator(useconds, start);
+        }
+      };
+  }
+
+  private static GeneratorRecipe byMonthDay(
+      int[] monthDays, final DateValue start) {
+    final int[] umonthDays = Util.uniquify(monthDays);
+    return new GeneratorRecipe(ByPartMasks.monthDays(umonthDays)) {
+        Generator create() {
+          return Generators.byMonthDayGenerator(umonthDays, start);
+        }
+      };
+  }
+
+  private static GeneratorRecipe byDay(
+      WeekdayNum[] days, final boolean weeksInYear, final DateValue start) {
+    final WeekdayNum[] udays = days.clone();
+    return new GeneratorRecipe(ByPartMasks.weekdays(udays, weeksInYear)) {
+        Generator create() {
+          return Generators.byDayGenerator(udays, weeksInYear, start);
+        }
+      };
+  }
+
+  private static GeneratorRecipe byWeekNo(
+      int[] weekNos, final Weekday wkst, final DateValue start) {
+    final int[] uweekNos = Util.uniquify(weekNos);
+    return new GeneratorRecipe(ByPartMasks.weekNos(uweekNos, wkst)) {
+        Generator create() {
+          return Generators.byWeekNoGenerator(uweekNos, wkst, start);
+        }
+      };
+  }
+
+  private static GeneratorRecipe byYearDay(
+      int[] yearDays, final DateValue start) {
+    final int[] uyearDays = Util.uniquify(yearDays);
+    return new GeneratorRecipe(ByPartMasks.yearDays(uyearDays)) {
+        Generator create() {
+          return Generators.byYearDayGenerator(uyearDays, start);
+        }
+      };
+  }
+
+  /**
+   * the number of seconds between instances of a rule with the given frequency
+   * and interval, if no BYxxx parts are specified, or 0 if the instances of
+   * such a rule are not a fixed period apart.
+   */
+  private static long fixedPeriodSecs(
+      Frequency freq, int interval, DateValue dtStart) {
+    long unit;
+    switch (freq) {
+      case WEEKLY:   unit = 7 * 24 * 60 * 60; break;
+      case DAILY:    unit = 24 * 60 * 60; break;
+      case HOURLY:   unit = 60 * 60; break;
+      case MINUTELY: unit = 60; break;
+      case SECONDLY: unit = 1; break;
+      default: return 0;
+    }
+    // An all-day rule that repeats more often than daily yields the same date
+    // repeatedly.
+    if (unit < 24 * 60 * 60 && !(dtStart instanceof TimeValue)) { return 0; }
+    return unit * interval;
+  }
+
+  /** makes sure that untilUtc is a date-time iff dtStart is. */
+  private static DateValue coerceUntil(DateValue untilUtc, DateValue dtStart) {
+    if ((untilUtc instanceof TimeValue) != (dtStart instanceof TimeValue)) {
+      // TODO(msamuel): warn
+      if (dtStart instanceof TimeValue) {
+        untilUtc = TimeUtils.dayStart(untilUtc);
+      } else {
+        untilUtc = TimeUtils.toDateValue(untilUtc);
+      }
+    }
+    return untilUtc;
+  }
+
+  /**
+   * Given an array like BYMONTH=2,3,4,5 and a set pos like BYSETPOS=1,-1
+   * reduce both clauses to a single one, BYMONTH=2,5 in the preceding.
+   */
+  private static int[] filterBySetPos(int[] members, int[] bySetPos) {
+    members = Util.uniquify(members);
+    IntSet iset = new IntSet();
+    for (int pos : bySetPos) {
+      if (pos == 0) { continue; }
+      if (pos < 0) {
+        pos += members.length;
+      } else {
+        --pos;  // Zero-index.
+      }
+      if (pos >= 0 && pos < members.length) {
+        iset.add(members[pos]);
+      }
+    }
+    return iset.toIntArray();
+  }
+
+  /**
+   * the most instances of a COUNT rule that {@link #lastInstanceUtc} walks
+   * before giving up.
+   */
+  private static final int MAX_INSTANCES_WALKED = 1 << 16;
+  /**
+   * the most years of a COUNT rule's day masks that {@link #lastInstanceUtc}
+   * scans before giving up.
+   */
+  private static final int MAX_YEARS_SCANNED = 1 << 14;
+
+  /** the largest change in a zone's offset from UTC due to daylight savings. */
+  private static final long MAX_DAYLIGHT_SHIFT_SECS = 2 * 60 * 60;
+
+  private static final int[] NO_INTS = new int[0];
+  private static final WeekdayNum[] NO_DAYS = new WeekdayNum[0];
+
+}
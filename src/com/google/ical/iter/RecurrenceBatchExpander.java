@@ -0,0 +1,288 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.iter;
+
+import com.google.ical.values.DateValue;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * expands the occurrences of many series within windows, spreading the work
+ * across the threads of an executor.
+ *
+ * <p>{@link RecurrenceIterator}s are not thread-safe, but
+ * {@link CompiledRecurrence}s are, so the way to expand series in parallel is
+ * to compile each once and give each thread its own iterators.  This class
+ * does that for a batch of {@link Job}s.  Workers claim jobs in chunks from a
+ * shared cursor, with chunks shrinking as the batch runs down, so a thread
+ * that gets cheap jobs goes back for more while one stuck on an expensive
+ * series holds up only the few jobs in its chunk.  The calling thread works
+ * on the batch too, and once it runs out of jobs it cancels workers that
+ * have not started instead of waiting for them, so a batch submitted from a
+ * thread of the executor itself cannot deadlock.</p>
+ *
+ * <p>Instances are thread-safe if their executor and cache are.</p>
+ *
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+public final class RecurrenceBatchExpander {
+
+  private final ExecutorService executor;
+  private final int parallelism;
+  private final boolean strict;
+  private final RecurrenceCache cache;
+
+  /**
+   * @param executor runs the workers other than the calling thread.
+   * @param parallelism the maximum number of threads, including the caller,
+   *   to work on a batch at once.  Typically the number of threads in the
+   *   executor plus one.
+   * @param strict passed to
+   *   {@link RecurrenceIteratorFactory#compileRecurrence}.
+   * @param cache used to compile the series if not null, so that series that
+   *   share rules are only compiled once.
+   */
+  public RecurrenceBatchExpander(
+      ExecutorService executor, int parallelism, boolean strict,
+      RecurrenceCache cache) {
+    if (null == executor) { throw new NullPointerException(); }
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("" + parallelism);
+    }
+    this.executor = executor;
+    this.parallelism = parallelism;
+    this.strict = strict;
+    this.cache = cache;
+  }
+
+  /**
+   * expands each job.
+   * @param jobs non null.
+   * @return a result per job in the same order as jobs.  A job whose series
+   *   cannot be compiled has a result with an error instead of dates, but does
+   *   not affect the rest of the batch.
+   * @throws InterruptedException if interrupted while waiting for workers.
+   *   Workers may still be running.
+   */
+  public Result[] expand(List<Job> jobs) throws InterruptedException {
+    Job[] jobArr = jobs.toArray(new Job[jobs.size()]);
+    Result[] results = new Result[jobArr.length];
+    int nWorkers = Math.min(parallelism, jobArr.length);
+    if (nWorkers == 0) { return results; }
+    AtomicInteger cursor = new AtomicInteger();
+    List<Worker> workers = new ArrayList<Worker>();
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    for (int i = 1; i < nWorkers; ++i) {
+      Worker worker = new Worker(jobArr, results, cursor, nWorkers);
+      workers.add(worker);
+      futures.add(executor.submit(worker));
+    }
+    Throwable failure = null;
+    try {
+      new Worker(jobArr, results, cursor, nWorkers).call();
+    } catch (RuntimeException ex) {
+      failure = ex;
+    } catch (Error err) {
+      failure = err;
+    }
+    // Every job has been claimed, so workers that have not started have
+    // nothing left to do.  Waiting for them would deadlock if they are queued
+    // behind the calling thread, as when it is the executor's only thread.
+    for (int i = 0; i < futures.size(); ++i) {
+      Future<Void> future = futures.get(i);
+      if (workers.get(i).started.compareAndSet(false, true)) {
+        future.cancel(false);
+        continue;
+      }
+      try {
+        future.get();
+      } catch (CancellationException ex) {
+        // Cancelled elsewhere, in which case it did no work.
+      } catch (ExecutionException ex) {
+        if (null == failure) { failure = ex.getCause(); }
+      }
+    }
+    if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    } else if (failure instanceof Error) {
+      throw (Error) failure;
+    }
+    return results;
+  }
+
+  /** expands the jobs claimed from a shared cursor. */
+  private final class Worker implements Callable<Void> {
+    private final Job[] jobs;
+    private final Result[] results;
+    private final AtomicInteger cursor;
+    private final int nWorkers;
+    /** receives the occurrences of each job.  Reused across jobs. */
+    private long[] buffer = new long[64];
+    /**
+     * set by the worker when it starts, or by the caller to stop it from
+     * starting, so that the caller knows whether to wait for it.
+     */
+    final AtomicBoolean started = new AtomicBoolean();
+
+    Worker(Job[] jobs, Result[] results, AtomicInteger cursor, int nWorkers) {
+      this.jobs = jobs;
+      this.results = results;
+      this.cursor = cursor;
+      this.nWorkers = nWorkers;
+    }
+
+    public Void call() {
+      if (!started.compareAndSet(false, true)) { return null; }
+      int n = jobs.length;
+      try {
+        while (true) {
+          // Claim a share of what remains, so that chunks are large while
+          // there is plenty of work and small near the end, when an uneven
+          // split would leave threads idle.
+          int start, end;
+          do {
+            start = cursor.get();
+            if (start >= n) { return null; }
+            end = start + Math.max(1, (n - start) / (4 * nWorkers));
+          } while (!cursor.compareAndSet(start, end));
+          for (int i = start; i < end; ++i) {
+            results[i] = expandOne(jobs[i]);
+          }
+        }
+      } catch (RuntimeException ex) {
+        // Stop the other workers from claiming jobs.
+        cursor.set(n);
+        throw ex;
+      } catch (Error err) {
+        cursor.set(n);
+        throw err;
+      }
+    }
+
+    private Result expandOne(Job job) {
+      long t0 = System.nanoTime();
+      RecurrenceIterable series;
+      try {
+        series = null != cache
+            ? cache.compileRecurrence(
+                job.rdata, job.dtStart, job.tzid, strict)
+            : RecurrenceIteratorFactory.compileRecurrence(
+                job.rdata, job.dtStart, job.tzid, strict);
+      } catch (ParseException ex) {
+        return new Result(null, ex, System.nanoTime() - t0);
+      } catch (IllegalArgumentException ex) {
+        return new Result(null, ex, System.nanoTime() - t0);
+      }
+      RecurrenceIterator it = series.iterator();
+      if (Long.MIN_VALUE != job.windowStartUtc) {
+        it.advanceToPacked(job.windowStartUtc);
+      }
+      int count = 0;
+      while (count < job.limit) {
+        if (count == buffer.length) {
+          long[] newBuffer = new long[count * 2];
+          System.arraycopy(buffer, 0, newBuffer, 0, count);
+          buffer = newBuffer;
+        }
+        int len = Math.min(buffer.length, job.limit) - count;
+        int nFilled = it.fill(buffer, count, len, job.windowEndUtc);
+        if (nFilled == 0) { break; }
+        count += nFilled;
+      }
+      long[] dates = new long[count];
+      System.arraycopy(buffer, 0, dates, 0, count);
+      return new Result(dates, null, System.nanoTime() - t0);
+    }
+  }
+
+  /** a series and the window in which to expand it. */
+  public static final class Job {
+    final String rdata;
+    final DateValue dtStart;
+    final TimeZone tzid;
+    final long windowStartUtc;
+    final long windowEndUtc;
+    final int limit;
+
+    /**
+     * @param rdata RRULE, RDATE, EXRULE, and EXDATE content lines as for
+     *   {@link RecurrenceIteratorFactory#compileRecurrence}.
+     * @param dtStart the start of the series in tzid.
+     * @param tzid the timezone to iterate in.
+     * @param windowStartUtc the earliest occurrence to include, or null to
+     *   start at the start of the series.
+     * @param windowEndUtc the exclusive end of the window, or null for no end.
+     * @param limit the maximum number of occurrences to expand, which bounds
+     *   the work for series that have no end.
+     */
+    public Job(String rdata, DateValue dtStart, TimeZone tzid,
+               DateValue windowStartUtc, DateValue windowEndUtc, int limit) {
+      if (null == rdata || null == dtStart || null == tzid) {
+        throw new NullPointerException();
+      }
+      if (limit < 0) { throw new IllegalArgumentException("" + limit); }
+      this.rdata = rdata;
+      this.dtStart = dtStart;
+      this.tzid = tzid;
+      this.windowStartUtc = null != windowStartUtc
+          ? DateValueComparison.comparable(windowStartUtc) : Long.MIN_VALUE;
+      this.windowEndUtc = null != windowEndUtc
+          ? DateValueComparison.comparable(windowEndUtc) : Long.MAX_VALUE;
+      this.limit = limit;
+    }
+  }
+
+  /** the outcome of a {@link Job}. */
+  public static final class Result {
+    private final long[] dates;
+    private final Exception error;
+    private final long costNanos;
+
+    Result(long[] dates, Exception error, long costNanos) {
+      this.dates = dates;
+      this.error = error;
+      this.costNanos = costNanos;
+    }
+
+    /**
+     * the occurrences in the window, as packed dates in UTC in increasing
+     * order as described at {@link com.google.ical.util.PackedDates}, or null
+     * if the series could not be compiled.  The array is not shared.
+     */
+    public long[] getDates() { return dates; }
+
+    /**
+     * the ParseException or IllegalArgumentException raised while compiling
+     * the series, or null.
+     */
+    public Exception getError() { return error; }
+
+    /**
+     * the wall-clock time spent compiling and expanding the series, so that
+     * expensive series can be found.
+     */
+    public long getCostNanos() { return costNanos; }
+  }
+
+}
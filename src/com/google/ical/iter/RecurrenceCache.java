@@ -0,0 +1,183 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.iter;
+
+import com.google.ical.values.DateValue;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * a bounded cache of {@link CompiledRecurrence}s, so that series that share
+ * the same rules are parsed and planned only once.
+ *
+ * <p>Entries are keyed by the unfolded, trimmed content lines, the start date,
+ * the timezone, and the strictness, and the least recently used entries are
+ * evicted once the cache is full.  Since compiled recurrences are immutable,
+ * the same instance is returned to every caller that asks for the same key.
+ * </p>
+ *
+ * <p>Instances are thread-safe.  The entries are spread across several
+ * independently locked segments so that threads looking up different keys
+ * rarely contend.  A cache is meant to be long lived, and shared by all the
+ * code that loads series, since it only pays off when series are repeated.
+ * </p>
+ *
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+public final class RecurrenceCache {
+  private final Segment[] segments;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  private static final int N_SEGMENTS = 16;
+
+  /**
+   * @param maxSize the maximum number of entries.  Since each segment is
+   *   bounded separately, entries may be evicted before the cache as a whole
+   *   is full if keys are unevenly spread.
+   */
+  public RecurrenceCache(int maxSize) {
+    if (maxSize <= 0) { throw new IllegalArgumentException("" + maxSize); }
+    int nSegments = Math.min(N_SEGMENTS, maxSize);
+    this.segments = new Segment[nSegments];
+    for (int i = 0; i < nSegments; ++i) {
+      // Distribute maxSize so that the segment sizes sum to it.
+      int segmentSize = maxSize / nSegments + (i < maxSize % nSegments ? 1 : 0);
+      segments[i] = new Segment(segmentSize);
+    }
+  }
+
+  /**
+   * like {@link RecurrenceIteratorFactory#compileRecurrence} but returns a
+   * previously compiled recurrence if one is available for the same content
+   * lines, dtStart, tzid, and strictness.
+   */
+  public CompiledRecurrence compileRecurrence(
+      String rdata, DateValue dtStart, TimeZone tzid, boolean strict)
+      throws ParseException {
+    String[] lines = RecurrenceIteratorFactory.splitContentLines(rdata);
+    Key key = new Key(lines, dtStart, tzid, strict);
+    Segment segment = segments[(key.hashCode() & 0x7fffffff) % segments.length];
+
+    CompiledRecurrence recurrence;
+    synchronized (segment) {
+      recurrence = segment.get(key);
+    }
+    if (null != recurrence) {
+      hits.incrementAndGet();
+      return recurrence;
+    }
+    misses.incrementAndGet();
+    // Compile outside the lock.  If two threads race to compile the same key,
+    // the first one to finish wins, and both get the same instance.
+    recurrence = RecurrenceIteratorFactory.compileRecurrence(
+        lines, dtStart, tzid, strict);
+    synchronized (segment) {
+      CompiledRecurrence existing = segment.get(key);
+      if (null != existing) { return existing; }
+      segment.put(key, recurrence);
+    }
+    return recurrence;
+  }
+
+  /** the number of lookups that returned a cached recurrence. */
+  public long hitCount() { return hits.get(); }
+
+  /** the number of lookups that had to compile a recurrence. */
+  public long missCount() { return misses.get(); }
+
+  /** the number of entries evicted to make room for others. */
+  public long evictionCount() { return evictions.get(); }
+
+  /** the number of entries currently cached. */
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+
+  /** removes all entries.  Does not reset the counts. */
+  public void clear() {
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        segment.clear();
+      }
+    }
+  }
+
+  /** a least recently used map.  Callers must synchronize on it. */
+  private final class Segment extends LinkedHashMap<Key, CompiledRecurrence> {
+    private static final long serialVersionUID = -3195270631455738624L;
+    private final int maxSize;
+
+    Segment(int maxSize) {
+      super(16, 0.75f, true);
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(
+        Map.Entry<Key, CompiledRecurrence> eldest) {
+      if (size() <= maxSize) { return false; }
+      evictions.incrementAndGet();
+      return true;
+    }
+  }
+
+  private static final class Key {
+    private final String[] lines;
+    /**
+     * the {@link DateValueComparison#comparable} for dtStart, which
+     * distinguishes dates from date-times.
+     */
+    private final long dtStart;
+    private final TimeZone tzid;
+    private final boolean strict;
+    private final int hashCode;
+
+    Key(String[] lines, DateValue dtStart, TimeZone tzid, boolean strict) {
+      this.lines = lines;
+      this.dtStart = DateValueComparison.comparable(dtStart);
+      this.tzid = tzid;
+      this.strict = strict;
+      this.hashCode = Arrays.hashCode(lines)
+          + 31 * ((int) (this.dtStart ^ (this.dtStart >>> 32))
+                  + 31 * (tzid.hashCode() + (strict ? 1 : 0)));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) { return false; }
+      Key that = (Key) o;
+      return this.hashCode == that.hashCode
+          && this.dtStart == that.dtStart && this.strict == that.strict
+          && Arrays.equals(this.lines, that.lines)
+          && this.tzid.equals(that.tzid);
+    }
+
+    @Override
+    public int hashCode() { return hashCode; }
+  }
+
+}
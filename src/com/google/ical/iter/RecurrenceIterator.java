@@ -21,6 +21,11 @@ import java.util.Iterator;
  * an iterator over date values in order.  Does not support the
  * <code>remove</code> operation.
  *
+ * <p>Iterators are not thread-safe.  To iterate a series from several
+ * threads, compile it once with
+ * {@link RecurrenceIteratorFactory#compileRecurrence} and give each thread
+ * its own iterator, as {@link RecurrenceBatchExpander} does.</p>
+ *
  * @author mikesamuel+svn@gmail.com (Mike Samuel)
  */
 public interface RecurrenceIterator extends Iterator<DateValue> {
@@ -44,6 +49,40 @@ public interface RecurrenceIterator extends Iterator<DateValue> {
    */
   void advanceTo(DateValue newStartUtc);
 
+  /**
+   * like {@link #next} but returns the date in the packed form described at
+   * {@link com.google.ical.util.PackedDates}, so that callers that only need
+   * to compare or store dates need not allocate a DateValue per date.
+   * If <code>!hasNext()</code>, then behavior is undefined.
+   *
+   * @return the packed form of a date in UTC that is strictly greater than
+   *   any date previously returned by this iterator.
+   */
+  long nextPacked();
+
+  /**
+   * like {@link #advanceTo} but takes the packed form of the date as
+   * described at {@link com.google.ical.util.PackedDates}.
+   */
+  void advanceToPacked(long newStartUtc);
+
+  /**
+   * consumes dates from the series into out, in the packed form returned by
+   * {@link #nextPacked}, stopping when len dates have been written, the series
+   * is exhausted, or the next date is on or after endExclusive.
+   * A date at or after endExclusive is not consumed, so it will be returned by
+   * a subsequent call to {@link #next}.
+   *
+   * <p>This is equivalent to, but cheaper than, calling {@link #hasNext} and
+   * {@link #nextPacked} in a loop.</p>
+   *
+   * @param out receives packed dates in UTC starting at out[off].
+   * @param endExclusive the packed form of a date in UTC.
+   *   Use <code>Long.MAX_VALUE</code> for no limit.
+   * @return the number of dates written, in [0, len].
+   */
+  int fill(long[] out, int off, int len, long endExclusive);
+
   /**
    * unsupported.
    * @throws UnsupportedOperationException always
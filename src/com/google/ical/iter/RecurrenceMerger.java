@@ -0,0 +1,245 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.iter;
+
+import com.google.ical.util.PackedDates;
+import com.google.ical.values.DateValue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * merges the occurrences of many series, such as the events on a calendar,
+ * into one sequence in date order, tagging each with a payload identifying
+ * its series.
+ *
+ * <p>Series are added up front, and are iterated lazily.  The next occurrence
+ * of each series is kept in a loser tree, so each occurrence taken costs a
+ * number of comparisons logarithmic in the number of series, and touches only
+ * the series it came from.  A series whose next occurrence is after the end of
+ * a window is not iterated while reading that window, and
+ * {@link #advanceTo} only advances the series that have occurrences before
+ * the new start.  Occurrences on the same date from different series are all
+ * returned, in the order in which their series were added.</p>
+ *
+ * <p>For example, to list the next 50 events after <code>now</code>:</p>
+ * <pre>
+ *   RecurrenceMerger&lt;String&gt; agenda =
+ *       new RecurrenceMerger&lt;String&gt;();
+ *   for (Event e : events) { agenda.add(e.getRecurrence(), e.getId()); }
+ *   agenda.advanceTo(now);
+ *   long[] dates = new long[50];
+ *   List&lt;String&gt; ids = new ArrayList&lt;String&gt;();
+ *   int n = agenda.fill(dates, ids, 0, dates.length, Long.MAX_VALUE);
+ * </pre>
+ *
+ * <p>Instances are not thread-safe.</p>
+ *
+ * @param <T> the type of the payloads.
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+public final class RecurrenceMerger<T> {
+
+  /** the head of an exhausted series.  No packed date is this large. */
+  private static final long EXHAUSTED = Long.MAX_VALUE;
+
+  /** the series added, and their payloads. */
+  private final List<RecurrenceIterable> series =
+      new ArrayList<RecurrenceIterable>();
+  private final List<T> payloads = new ArrayList<T>();
+
+  /** iterators over the series, indexed like series.  Null until started. */
+  private RecurrenceIterator[] its;
+  /** the packed date in UTC of the next occurrence of each, or EXHAUSTED. */
+  private long[] heads;
+  /**
+   * tree[0] is the index of the series with the earliest head, and tree[i]
+   * for i in [1, its.length) is the loser of the match at internal node i,
+   * whose children are nodes 2i and 2i + 1.  Series j is node j + its.length.
+   */
+  private int[] tree;
+  /** the index of the series of the last occurrence returned, or -1. */
+  private int last = -1;
+
+  public RecurrenceMerger() {
+    // Series are added via add.
+  }
+
+  /**
+   * adds a series to merge.
+   * @param recurrence non null, such as a {@link CompiledRecurrence}.
+   * @param payload returned by {@link #payload} for occurrences of this series.
+   * @throws IllegalStateException if occurrences have already been read.
+   */
+  public void add(RecurrenceIterable recurrence, T payload) {
+    if (null != its) { throw new IllegalStateException(); }
+    if (null == recurrence) { throw new NullPointerException(); }
+    series.add(recurrence);
+    payloads.add(payload);
+  }
+
+  /** true iff any series has another occurrence. */
+  public boolean hasNext() {
+    start(Long.MIN_VALUE);
+    return its.length != 0 && EXHAUSTED != heads[tree[0]];
+  }
+
+  /** the next occurrence in UTC. */
+  public DateValue next() {
+    return PackedDates.unpack(nextPacked());
+  }
+
+  /**
+   * the next occurrence in UTC in the packed form described at
+   * {@link PackedDates}.
+   */
+  public long nextPacked() {
+    if (!hasNext()) { throw new NoSuchElementException(); }
+    int leaf = tree[0];
+    long date = heads[leaf];
+    last = leaf;
+    shift(leaf);
+    replay(leaf);
+    return date;
+  }
+
+  /**
+   * the payload of the series of the occurrence last returned by
+   * {@link #next} or {@link #nextPacked}.
+   * @throws IllegalStateException if no occurrence has been returned.
+   */
+  public T payload() {
+    if (last < 0) { throw new IllegalStateException(); }
+    return payloads.get(last);
+  }
+
+  /**
+   * consumes occurrences into dates, and appends their payloads to out,
+   * stopping when len occurrences have been written, all series are
+   * exhausted, or the next occurrence is on or after endExclusive.
+   * An occurrence at or after endExclusive is not consumed, and series with no
+   * occurrences before it are not iterated.
+   *
+   * @param dates receives packed dates in UTC starting at dates[off].
+   * @param out receives one payload per date written.
+   * @param endExclusive the packed form of a date in UTC.
+   *   Use <code>Long.MAX_VALUE</code> for no limit.
+   * @return the number of occurrences written, in [0, len].
+   */
+  public int fill(long[] dates, List<? super T> out, int off, int len,
+                  long endExclusive) {
+    int n = 0;
+    while (n < len && hasNext() && heads[tree[0]] < endExclusive) {
+      dates[off + n++] = nextPacked();
+      out.add(payloads.get(last));
+    }
+    return n;
+  }
+
+  /**
+   * skips all occurrences before newStartUtc.
+   * Only the series with an occurrence before newStartUtc are advanced.
+   * @param newStartUtc non null.
+   */
+  public void advanceTo(DateValue newStartUtc) {
+    advanceToPacked(DateValueComparison.comparable(newStartUtc));
+  }
+
+  /**
+   * like {@link #advanceTo} but takes a date in the packed form described at
+   * {@link PackedDates}.
+   */
+  public void advanceToPacked(long newStartUtc) {
+    if (null == its) {
+      // Advance each series before taking its first occurrence.
+      start(newStartUtc);
+      return;
+    }
+    while (its.length != 0) {
+      int leaf = tree[0];
+      if (heads[leaf] >= newStartUtc) { break; }
+      its[leaf].advanceToPacked(newStartUtc);
+      shift(leaf);
+      replay(leaf);
+    }
+  }
+
+  /**
+   * creates iterators over the series and builds the tree, if that has not
+   * been done already.
+   * @param startUtc the packed date to advance each iterator to, or
+   *   Long.MIN_VALUE.
+   */
+  private void start(long startUtc) {
+    if (null != its) { return; }
+    int n = series.size();
+    its = new RecurrenceIterator[n];
+    heads = new long[n];
+    tree = new int[Math.max(n, 1)];
+    for (int i = 0; i < n; ++i) {
+      its[i] = series.get(i).iterator();
+      if (Long.MIN_VALUE != startUtc) { its[i].advanceToPacked(startUtc); }
+      shift(i);
+      tree[i] = -1;
+    }
+    for (int i = 0; i < n; ++i) { insert(i); }
+  }
+
+  /** replaces the head of the given series with its next occurrence. */
+  private void shift(int leaf) {
+    RecurrenceIterator it = its[leaf];
+    heads[leaf] = it.hasNext() ? it.nextPacked() : EXHAUSTED;
+  }
+
+  /** true if series a's head comes before series b's. */
+  private boolean before(int a, int b) {
+    long ha = heads[a], hb = heads[b];
+    return ha < hb || (ha == hb && a < b);
+  }
+
+  /**
+   * plays the given series up the tree while building it, stopping at the
+   * first node that hasn't seen a player yet.
+   */
+  private void insert(int leaf) {
+    int winner = leaf;
+    for (int node = (leaf + its.length) >>> 1; node > 0; node >>>= 1) {
+      int other = tree[node];
+      if (other < 0) {
+        tree[node] = winner;
+        return;
+      }
+      if (before(other, winner)) {
+        tree[node] = winner;
+        winner = other;
+      }
+    }
+    tree[0] = winner;
+  }
+
+  /** replays the matches on the path from a changed series to the root. */
+  private void replay(int leaf) {
+    int winner = leaf;
+    for (int node = (leaf + its.length) >>> 1; node > 0; node >>>= 1) {
+      int other = tree[node];
+      if (before(other, winner)) {
+        tree[node] = winner;
+        winner = other;
+      }
+    }
+    tree[0] = winner;
+  }
+
+}
@@ -0,0 +1,116 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.iter;
+
+import com.google.ical.util.DTBuilder;
+import com.google.ical.util.PackedDates;
+import com.google.ical.util.TimeUtils;
+import com.google.ical.values.DateValue;
+
+/**
+ * queries over a recurrence that are not naturally expressed as forward
+ * iteration from its start.
+ *
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+public final class RecurrenceSearch {
+
+  /**
+   * the latest occurrence of series strictly before the given date.
+   *
+   * <p>This looks at windows ending at dateUtc of exponentially increasing
+   * length, using {@link RecurrenceIterator#advanceTo} to skip to the start
+   * of each, so the cost is proportional to the distance between dateUtc and
+   * the occurrence found rather than to the distance from the start of the
+   * series.  Series that can only be advanced by iterating, such as those
+   * with BYSETPOS rules iterated by generators, are instead iterated once
+   * from their start.</p>
+   *
+   * @param series non null.
+   * @param dateUtc non null.
+   * @return a date in UTC or null if there is no occurrence before dateUtc.
+   */
+  public static DateValue previousBefore(
+      RecurrenceIterable series, DateValue dateUtc) {
+    long last = previousBeforePacked(
+        series, DateValueComparison.comparable(dateUtc));
+    return Long.MIN_VALUE != last ? PackedDates.unpack(last) : null;
+  }
+
+  /**
+   * like {@link #previousBefore} but takes and returns packed dates.
+   * @param end the packed form of a date in UTC.  Only its date fields need be
+   *   valid.
+   * @return a packed date in UTC or Long.MIN_VALUE if there is none before end.
+   */
+  static long previousBeforePacked(RecurrenceIterable series, long end) {
+    RecurrenceIterator it = series.iterator();
+    if (!it.hasNext()) { return Long.MIN_VALUE; }
+    long first = it.nextPacked();
+    if (first >= end) { return Long.MIN_VALUE; }
+
+    long[] buffer = new long[64];
+    if (advancesByWalking(series)) {
+      long last = first;
+      for (int n; (n = it.fill(buffer, 0, buffer.length, end)) != 0;) {
+        last = buffer[n - 1];
+      }
+      return last;
+    }
+
+    DTBuilder b = new DTBuilder(0, 0, 0);
+    int endDay = TimeUtils.fixedFromGregorian(
+        PackedDates.year(end), PackedDates.month(end), PackedDates.day(end));
+    for (long spanDays = 1;; spanDays *= 2) {
+      long start = Long.MIN_VALUE;
+      if (spanDays < endDay) {
+        TimeUtils.timeFromSecsSinceEpoch(
+            (endDay - spanDays) * SECS_PER_DAY, b);
+        start = PackedDates.pack(b, false);
+      }
+      // Once the window includes the whole series before end, there is no
+      // need to advance, and no point in looking further.
+      boolean wholeSeries = start <= first;
+      RecurrenceIterator probe = series.iterator();
+      if (!wholeSeries) { probe.advanceToPacked(start); }
+      long last = Long.MIN_VALUE;
+      for (int n; (n = probe.fill(buffer, 0, buffer.length, end)) != 0;) {
+        last = buffer[n - 1];
+      }
+      if (Long.MIN_VALUE != last || wholeSeries) { return last; }
+    }
+  }
+
+  /**
+   * true if advancing an iterator over series costs as much as iterating up
+   * to the same point, so probing windows would be slower than one scan.
+   */
+  private static boolean advancesByWalking(RecurrenceIterable series) {
+    if (series instanceof RRulePlan) {
+      return ((RRulePlan) series).advancesByWalking();
+    }
+    if (series instanceof CompiledRecurrence) {
+      return ((CompiledRecurrence) series).advancesByWalking();
+    }
+    return false;
+  }
+
+  private static final long SECS_PER_DAY = 60L * 60 * 24;
+
+  private RecurrenceSearch() {
+    // uninstantiable
+  }
+
+}
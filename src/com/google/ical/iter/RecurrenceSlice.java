@@ -0,0 +1,253 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.iter;
+
+import com.google.ical.util.DTBuilder;
+import com.google.ical.util.PackedDates;
+import com.google.ical.util.TimeUtils;
+import com.google.ical.values.DateValue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * the occurrences of a series within a range of time, which can be split into
+ * smaller ranges so that a prolific series can be expanded by several threads
+ * at once.
+ *
+ * <p>Each slice is iterated independently, by an iterator over the whole
+ * series that is {@link RecurrenceIterator#advanceTo advanced} to the start of
+ * the slice and stops at its end, so the slices of a series can be handed to
+ * different threads as long as the series itself, like a
+ * {@link CompiledRecurrence}, can be iterated from several threads.
+ * Concatenating the occurrences of the slices from {@link #partition} in order
+ * gives the occurrences of the whole range.</p>
+ *
+ * <p>Ranges are split at the start of a year if one falls near the middle of
+ * the range, and otherwise at the start of a month, day, or hour, so that the
+ * rules in a series generate similar sets for each half.</p>
+ *
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+public final class RecurrenceSlice implements RecurrenceIterable {
+  private final RecurrenceIterable series;
+  /** the packed dates in UTC bounding the slice. */
+  private final long start, end;
+
+  /**
+   * @param series non null.
+   * @param startUtc the inclusive start of the range.
+   * @param endUtc the exclusive end of the range.
+   */
+  public RecurrenceSlice(
+      RecurrenceIterable series, DateValue startUtc, DateValue endUtc) {
+    this(series, DateValueComparison.comparable(startUtc),
+         DateValueComparison.comparable(endUtc));
+  }
+
+  private RecurrenceSlice(RecurrenceIterable series, long start, long end) {
+    if (null == series) { throw new NullPointerException(); }
+    this.series = series;
+    this.start = start;
+    this.end = end;
+  }
+
+  /** the inclusive start of the slice in UTC. */
+  public DateValue getStart() { return PackedDates.unpack(start); }
+
+  /** the exclusive end of the slice in UTC. */
+  public DateValue getEnd() { return PackedDates.unpack(end); }
+
+  /** a fresh iterator over the occurrences of the series in this slice. */
+  public RecurrenceIterator iterator() {
+    RecurrenceIterator it = series.iterator();
+    SliceIterator slice = new SliceIterator(it, end);
+    if (PackedDates.isDateTime(start)) {
+      it.advanceToPacked(start);
+    } else {
+      // Iterators over date-times take a date passed to advanceTo as a local
+      // date, so advance to the day before, which is before start in any
+      // timezone, and skip the rest here.
+      DTBuilder b = new DTBuilder(0, 0, 0);
+      PackedDates.unpack(start, b);
+      --b.day;
+      b.normalize();
+      it.advanceToPacked(PackedDates.pack(b, false));
+      slice.skipBefore(start);
+    }
+    return slice;
+  }
+
+  /**
+   * splits this slice in two at a boundary near its middle.
+   * @return the earlier and later halves, or null if the slice is too short to
+   *   split.
+   */
+  public RecurrenceSlice[] split() {
+    if (start >= end) { return null; }
+    long startSecs = PackedDates.secsSinceEpoch(start);
+    long endSecs = PackedDates.secsSinceEpoch(end);
+    // Only split within the middle half so that neither half is tiny.
+    long lo = startSecs + (endSecs - startSecs) / 4;
+    long hi = endSecs - (endSecs - startSecs) / 4;
+    long midSecs = startSecs + (endSecs - startSecs) / 2;
+    DTBuilder mid = new DTBuilder(0, 0, 0);
+    TimeUtils.timeFromSecsSinceEpoch(midSecs, mid);
+
+    for (int level = 0; level < 4; ++level) {
+      // The boundaries at this level on either side of the middle.
+      DTBuilder b = new DTBuilder(mid.year, 1, 1);
+      if (level >= 1) { b.month = mid.month; }
+      if (level >= 2) { b.day = mid.day; }
+      if (level >= 3) { b.hour = mid.hour; }
+      long before = pack(b, level);
+      switch (level) {
+        case 0: ++b.year; break;
+        case 1: ++b.month; break;
+        case 2: ++b.day; break;
+        default: ++b.hour; break;
+      }
+      b.normalize();
+      long after = pack(b, level);
+
+      long boundary = Long.MIN_VALUE;
+      long beforeSecs = PackedDates.secsSinceEpoch(before);
+      long afterSecs = PackedDates.secsSinceEpoch(after);
+      boolean beforeOk = beforeSecs >= lo && beforeSecs <= hi;
+      boolean afterOk = afterSecs >= lo && afterSecs <= hi;
+      if (beforeOk && afterOk) {
+        boundary = afterSecs - midSecs < midSecs - beforeSecs ? after : before;
+      } else if (beforeOk) {
+        boundary = before;
+      } else if (afterOk) {
+        boundary = after;
+      }
+      if (boundary > start && boundary < end) {
+        return new RecurrenceSlice[] {
+          new RecurrenceSlice(series, start, boundary),
+          new RecurrenceSlice(series, boundary, end),
+        };
+      }
+    }
+    return null;
+  }
+
+  /**
+   * splits this slice into at most n slices by repeatedly halving, stopping
+   * early if they become too short to split.
+   * @return slices in order that together cover this slice.
+   */
+  public List<RecurrenceSlice> partition(int n) {
+    List<RecurrenceSlice> parts = new ArrayList<RecurrenceSlice>();
+    parts.add(this);
+    boolean progress = true;
+    while (progress && parts.size() < n) {
+      progress = false;
+      List<RecurrenceSlice> next = new ArrayList<RecurrenceSlice>();
+      for (int i = 0; i < parts.size(); ++i) {
+        RecurrenceSlice part = parts.get(i);
+        // Split while the total would not exceed n.
+        RecurrenceSlice[] halves = next.size() + parts.size() - i < n
+            ? part.split() : null;
+        if (null != halves) {
+          next.add(halves[0]);
+          next.add(halves[1]);
+          progress = true;
+        } else {
+          next.add(part);
+        }
+      }
+      parts = next;
+    }
+    return parts;
+  }
+
+  /**
+   * a boundary at the start of a year, month, or day as a date, or at the
+   * start of an hour as a date-time.  A date sorts before any date-time on the
+   * same day so a date boundary puts the whole day in the later slice.
+   */
+  private static long pack(DTBuilder b, int level) {
+    return level < 3
+        ? PackedDates.packDate(b.year, b.month, b.day)
+        : PackedDates.packDateTime(b.year, b.month, b.day, b.hour, 0, 0);
+  }
+
+  /** stops an iterator at the end of a slice. */
+  private static final class SliceIterator implements RecurrenceIterator {
+    private final RecurrenceIterator it_;
+    private final long end_;
+    /** a date read from it_ but not yet returned. */
+    private long pending_;
+    private boolean hasPending_;
+
+    SliceIterator(RecurrenceIterator it, long end) {
+      this.it_ = it;
+      this.end_ = end;
+    }
+
+    public boolean hasNext() {
+      if (!hasPending_) {
+        if (!it_.hasNext()) { return false; }
+        pending_ = it_.nextPacked();
+        hasPending_ = true;
+      }
+      return pending_ < end_;
+    }
+
+    /** discards dates before start. */
+    void skipBefore(long start) {
+      while (hasNext() && pending_ < start) { hasPending_ = false; }
+    }
+
+    public DateValue next() {
+      return PackedDates.unpack(nextPacked());
+    }
+
+    public long nextPacked() {
+      if (!hasNext()) { throw new NoSuchElementException(); }
+      hasPending_ = false;
+      return pending_;
+    }
+
+    public int fill(long[] out, int off, int len, long endExclusive) {
+      long limit = Math.min(end_, endExclusive);
+      if (len == 0) { return 0; }
+      int n = 0;
+      if (hasPending_) {
+        if (pending_ >= limit) { return 0; }
+        out[off] = pending_;
+        hasPending_ = false;
+        n = 1;
+      }
+      return n + it_.fill(out, off + n, len - n, limit);
+    }
+
+    public void advanceTo(DateValue newStartUtc) {
+      advanceToPacked(DateValueComparison.comparable(newStartUtc));
+    }
+
+    public void advanceToPacked(long newStartUtc) {
+      if (hasPending_) {
+        if (pending_ >= newStartUtc) { return; }
+        hasPending_ = false;
+      }
+      it_.advanceToPacked(newStartUtc);
+    }
+
+    public void remove() { throw new UnsupportedOperationException(); }
+  }
+
+}
@@ -15,9 +15,13 @@
 package com.google.ical.iter;
 
 import com.google.ical.util.DTBuilder;
+import com.google.ical.util.TimeUtils;
 import com.google.ical.values.Weekday;
 import com.google.ical.values.WeekdayNum;
 import com.google.ical.values.DateValue;
+import java.util.Arrays;
+import java.util.SimpleTimeZone;
+import java.util.TimeZone;
 
 /**
  * a dumping ground for utility functions that don't fit anywhere else.
@@ -66,6 +70,29 @@ class Util {
     return iset.toIntArray();
   }
 
+  /** returns a sorted unique copy of longs[start:end]. */
+  static long[] uniquify(long[] longs, int start, int end) {
+    long[] sorted = new long[end - start];
+    System.arraycopy(longs, start, sorted, 0, sorted.length);
+    // Lists of dates are usually sorted already.
+    for (int i = 1; i < sorted.length; ++i) {
+      if (sorted[i - 1] > sorted[i]) {
+        Arrays.sort(sorted);
+        break;
+      }
+    }
+    int k = 0;
+    for (int i = 1; i < sorted.length; ++i) {
+      if (sorted[i] != sorted[k]) { sorted[++k] = sorted[i]; }
+    }
+    if (sorted.length != 0 && ++k < sorted.length) {
+      long[] unique = new long[k];
+      System.arraycopy(sorted, 0, unique, 0, k);
+      sorted = unique;
+    }
+    return sorted;
+  }
+
   /**
    * given a weekday number, such as -1SU, returns the day of the month that it
    * falls on.
@@ -139,4 +166,50 @@ class Util {
     // uninstantiable
   }
 
+  /** returned by {@link #fixedOffsetSecs} for zones whose offset varies. */
+  static final int NOT_FIXED = Integer.MIN_VALUE;
+
+  /**
+   * the offset in seconds from UTC of a timezone whose offset never changes,
+   * or {@link #NOT_FIXED}.  Only UTC and SimpleTimeZones without daylight
+   * savings are recognized, since a zone that doesn't observe daylight savings
+   * now may have changed its offset in the past.
+   */
+  static int fixedOffsetSecs(TimeZone tzid) {
+    if (tzid.hasSameRules(TimeUtils.utcTimezone())) { return 0; }
+    if (tzid instanceof SimpleTimeZone && !tzid.useDaylightTime()) {
+      // Round the way TimeUtils does.
+      int millisecondOffset = tzid.getRawOffset();
+      int millisecondRound = millisecondOffset < 0 ? -500 : 500;
+      return (millisecondOffset + millisecondRound) / 1000;
+    }
+    return NOT_FIXED;
+  }
+
+  /**
+   * like {@link TimeUtils#toUtc(DTBuilder, TimeZone)} but shifts by
+   * fixedOffsetSecs unless it is {@link #NOT_FIXED}.
+   */
+  static void toUtc(DTBuilder bldr, TimeZone tzid, int fixedOffsetSecs) {
+    if (NOT_FIXED == fixedOffsetSecs) {
+      TimeUtils.toUtc(bldr, tzid);
+    } else if (0 != fixedOffsetSecs && 0 != bldr.year) {
+      bldr.second -= fixedOffsetSecs;
+      bldr.normalize();
+    }
+  }
+
+  /**
+   * like {@link TimeUtils#fromUtc(DTBuilder, TimeZone)} but shifts by
+   * fixedOffsetSecs unless it is {@link #NOT_FIXED}.
+   */
+  static void fromUtc(DTBuilder bldr, TimeZone tzid, int fixedOffsetSecs) {
+    if (NOT_FIXED == fixedOffsetSecs) {
+      TimeUtils.fromUtc(bldr, tzid);
+    } else if (0 != fixedOffsetSecs && 0 != bldr.year) {
+      bldr.second += fixedOffsetSecs;
+      bldr.normalize();
+    }
+  }
+
 }
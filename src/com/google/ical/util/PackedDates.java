@@ -0,0 +1,153 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.util;
+
+import com.google.ical.values.DateTimeValueImpl;
+import com.google.ical.values.DateValue;
+import com.google.ical.values.DateValueImpl;
+import com.google.ical.values.TimeValue;
+
+/**
+ * packs {@link DateValue}s into longs so that they can be stored and compared
+ * without allocating objects.
+ *
+ * <p>The packed form orders the same way as
+ * {@link DateValueImpl#compareTo}: a date with no time sorts before midnight
+ * of the same day, and a date-time sorts by its fields.  The low 17 bits hold
+ * the time of day plus one, or zero for a date with no time, and the high bits
+ * hold the year, month, and day.</p>
+ *
+ * <p>All methods assume their inputs are normalized, i.e. that the fields are
+ * in the ranges produced by {@link DTBuilder#normalize}.</p>
+ *
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+public final class PackedDates {
+
+  /** number of low order bits used for the time of day. */
+  private static final int TIME_BITS = 17;
+  private static final long TIME_MASK = (1L << TIME_BITS) - 1;
+
+  /** the packed form of the given date or date-time. */
+  public static long pack(DateValue dv) {
+    if (dv instanceof TimeValue) {
+      TimeValue tv = (TimeValue) dv;
+      return packDateTime(dv.year(), dv.month(), dv.day(),
+                          tv.hour(), tv.minute(), tv.second());
+    } else {
+      return packDate(dv.year(), dv.month(), dv.day());
+    }
+  }
+
+  /**
+   * the packed form of the builder's fields.
+   * @param bldr normalized.
+   * @param timed true to pack a date-time, false to ignore the time fields.
+   */
+  public static long pack(DTBuilder bldr, boolean timed) {
+    return timed
+        ? packDateTime(bldr.year, bldr.month, bldr.day,
+                       bldr.hour, bldr.minute, bldr.second)
+        : packDate(bldr.year, bldr.month, bldr.day);
+  }
+
+  /** the packed form of a date with no time. */
+  public static long packDate(int year, int month, int day) {
+    return dayPart(year, month, day) << TIME_BITS;
+  }
+
+  /** the packed form of a date-time. */
+  public static long packDateTime(
+      int year, int month, int day, int hour, int minute, int second) {
+    // We add 1 to timed values to make sure that they are distinct from dates
+    // with no time, in keeping with DateValue.compareTo.
+    return (((((dayPart(year, month, day) << 5) + hour) << 6) + minute) << 6)
+        + second + 1;
+  }
+
+  private static long dayPart(int year, int month, int day) {
+    return (((((long) year) << 4) + month) << 5) + day;
+  }
+
+  /** true iff the packed value is a date-time, not a date. */
+  public static boolean isDateTime(long packed) {
+    return 0 != (packed & TIME_MASK);
+  }
+
+  public static int year(long packed) { return (int) (packed >> 26); }
+
+  public static int month(long packed) {
+    return (int) ((packed >> 22) & 0xf);
+  }
+
+  public static int day(long packed) { return (int) ((packed >> 17) & 0x1f); }
+
+  /** the hour of a packed date-time or 0 for a packed date. */
+  public static int hour(long packed) {
+    return isDateTime(packed) ? (int) (((packed & TIME_MASK) - 1) >> 12) : 0;
+  }
+
+  /** the minute of a packed date-time or 0 for a packed date. */
+  public static int minute(long packed) {
+    return isDateTime(packed)
+        ? (int) ((((packed & TIME_MASK) - 1) >> 6) & 0x3f) : 0;
+  }
+
+  /** the second of a packed date-time or 0 for a packed date. */
+  public static int second(long packed) {
+    return isDateTime(packed) ? (int) (((packed & TIME_MASK) - 1) & 0x3f) : 0;
+  }
+
+  /** a date value equivalent to the packed value. */
+  public static DateValue unpack(long packed) {
+    if (isDateTime(packed)) {
+      return new DateTimeValueImpl(
+          year(packed), month(packed), day(packed),
+          hour(packed), minute(packed), second(packed));
+    } else {
+      return new DateValueImpl(year(packed), month(packed), day(packed));
+    }
+  }
+
+  /**
+   * sets the fields of bldr from the packed value.  The time fields are zeroed
+   * for a packed date.
+   */
+  public static void unpack(long packed, DTBuilder bldr) {
+    bldr.year = year(packed);
+    bldr.month = month(packed);
+    bldr.day = day(packed);
+    bldr.hour = hour(packed);
+    bldr.minute = minute(packed);
+    bldr.second = second(packed);
+  }
+
+  /**
+   * the number of seconds from the Proleptic Gregorian epoch to the packed
+   * date, consistent with {@link TimeUtils#secsSinceEpoch}.
+   */
+  public static long secsSinceEpoch(long packed) {
+    return TimeUtils.fixedFromGregorian(
+        year(packed), month(packed), day(packed)) * SECS_PER_DAY
+        + (hour(packed) * 60 + minute(packed)) * 60 + second(packed);
+  }
+
+  private static final long SECS_PER_DAY = 60L * 60 * 24;
+
+  private PackedDates() {
+    // uninstantiable
+  }
+
+}
@@ -42,21 +42,30 @@ public class TimeUtils {
   }
 
   /**
-   * Get a "time_t" in millis given a number of seconds since
-   * Dershowitz/Reingold epoch relative to a given timezone.
-   * @param epochSecs Number of seconds since Dershowitz/Reingold
-   * epoch, relatve to zone.
-   * @param zone Timezone against which epochSecs applies
+   * a calendar per thread that is reused by the conversion functions below so
+   * that converting a time does not require allocating a calendar.
+   */
+  private static final ThreadLocal<Calendar> CALENDAR =
+    new ThreadLocal<Calendar>() {
+      @Override
+      protected Calendar initialValue() {
+        return new GregorianCalendar(ZULU);
+      }
+    };
+
+  /**
+   * Get a "time_t" in millis given the fields of a date-time relative to a
+   * given timezone.
+   * @param bldr normalized fields relative to zone.
+   * @param zone Timezone against which the fields apply
    * @return Number of milliseconds since 00:00:00 Jan 1, 1970 GMT
    */
-  private static long timetMillisFromEpochSecs(long epochSecs,
-                                               TimeZone zone) {
-    DateTimeValue date = timeFromSecsSinceEpoch(epochSecs);
-    Calendar cal = new GregorianCalendar(zone);
+  private static long timetMillisFromFields(DTBuilder bldr, TimeZone zone) {
+    Calendar cal = CALENDAR.get();
     cal.clear(); // clear millis
     cal.setTimeZone(zone);
-    cal.set(date.year(), date.month() - 1, date.day(),
-            date.hour(), date.minute(), date.second());
+    cal.set(bldr.year, bldr.month - 1, bldr.day,
+            bldr.hour, bldr.minute, bldr.second);
     return cal.getTimeInMillis();
   }
 
@@ -64,26 +73,101 @@ public class TimeUtils {
                                        TimeZone zone,
                                        int sense) {
     if (zone == null ||
-        zone.hasSameRules(ZULU) ||
-        time.year() == 0) {
+        time.year() == 0 ||
+        ZoneOffsetTable.forZone(zone).isUtc()) {
       return time;
     }
 
+    DTBuilder bldr = new DTBuilder(time);
+    // normalize so that the calendar sees the same fields as secsSinceEpoch
+    bldr.normalize();
+    convert(bldr, zone, sense);
+    return bldr.toDateTime();
+  }
+
+  /**
+   * converts the date-time in bldr in place.
+   * @param bldr normalized.
+   * @param sense +1 to convert from UTC to zone, -1 to convert from zone to
+   *   UTC.
+   */
+  private static void convert(DTBuilder bldr, TimeZone zone, int sense) {
+    if (zone == null ||
+        bldr.year == 0) {
+      return;
+    }
+    ZoneOffsetTable offsets = ZoneOffsetTable.forZone(zone);
+    if (offsets.isUtc()) { return; }
+
+    int tabulatedOffset = sense > 0
+        ? offsets.offsetFromUtc(bldr) : offsets.offsetFromLocal(bldr);
+    if (tabulatedOffset != ZoneOffsetTable.UNKNOWN) {
+      bldr.second += sense * tabulatedOffset;
+      bldr.normalize();
+      return;
+    }
+
     long timetMillis = 0;
 
     if (sense > 0) {
       // time is in UTC
-      timetMillis = timetMillisFromEpochSecs(secsSinceEpoch(time), ZULU);
+      timetMillis = timetMillisFromFields(bldr, ZULU);
     } else {
       // time is in local time; since zone.getOffset() expects millis
       // in UTC, need to convert before we can get the offset (ironic)
-      timetMillis = timetMillisFromEpochSecs(secsSinceEpoch(time), zone);
+      timetMillis = timetMillisFromFields(bldr, zone);
     }
 
     int millisecondOffset = zone.getOffset(timetMillis);
     int millisecondRound = millisecondOffset < 0 ? -500 : 500;
     int secondOffset = (millisecondOffset + millisecondRound) / 1000;
-    return addSeconds(time, sense * secondOffset);
+    bldr.second += sense * secondOffset;
+    bldr.normalize();
+  }
+
+  /**
+   * like {@link #fromUtc(DateTimeValue, TimeZone)} but converts the date-time
+   * fields of bldr in place instead of allocating a new value.
+   * @param bldr normalized date-time fields in UTC.  Modified in place.
+   */
+  public static void fromUtc(DTBuilder bldr, TimeZone zone) {
+    convert(bldr, zone, +1);
+  }
+
+  /**
+   * like {@link #toUtc(DateValue, TimeZone)} for a date-time but converts the
+   * fields of bldr in place instead of allocating a new value.
+   * @param bldr normalized date-time fields in zone.  Modified in place.
+   */
+  public static void toUtc(DTBuilder bldr, TimeZone zone) {
+    convert(bldr, zone, -1);
+  }
+
+  /**
+   * converts the packed date-times in packed[off:off+len] from zone to UTC in
+   * place, leaving packed dates alone.  The zone's offsets are looked up once
+   * for the whole range, so this is cheaper than converting each separately.
+   * @see PackedDates
+   */
+  public static void toUtc(long[] packed, int off, int len, TimeZone zone) {
+    if (zone == null) { return; }
+    ZoneOffsetTable offsets = ZoneOffsetTable.forZone(zone);
+    if (offsets.isUtc()) { return; }
+    DTBuilder bldr = new DTBuilder(0, 0, 0);
+    for (int i = off, end = off + len; i < end; ++i) {
+      long value = packed[i];
+      if (!PackedDates.isDateTime(value)) { continue; }
+      PackedDates.unpack(value, bldr);
+      if (bldr.year == 0) { continue; }
+      int tabulatedOffset = offsets.offsetFromLocal(bldr);
+      if (tabulatedOffset != ZoneOffsetTable.UNKNOWN) {
+        bldr.second -= tabulatedOffset;
+        bldr.normalize();
+      } else {
+        convert(bldr, zone, -1);
+      }
+      packed[i] = PackedDates.pack(bldr, true);
+    }
   }
 
   public static DateValue fromUtc(DateValue date, TimeZone zone) {
@@ -102,13 +186,6 @@ public class TimeUtils {
       : date;
   }
 
-  private static DateTimeValue addSeconds(DateTimeValue dtime, int seconds) {
-    return new DTBuilder(dtime.year(), dtime.month(),
-                         dtime.day(), dtime.hour(),
-                         dtime.minute(),
-                         dtime.second() + seconds).toDateTime();
-  }
-
   public static DateValue add(DateValue d, DateValue dur) {
     DTBuilder db = new DTBuilder(d);
     db.year += dur.year();
@@ -222,6 +299,21 @@ public class TimeUtils {
    * See "Calendrical Calculations", Reingold and Dershowitz.
    */
   public static DateTimeValue timeFromSecsSinceEpoch(long secsSinceEpoch) {
+    DTBuilder bldr = new DTBuilder(0, 0, 0);
+    timeFromSecsSinceEpoch(secsSinceEpoch, bldr);
+    DateTimeValue result = new DateTimeValueImpl(
+        bldr.year, bldr.month, bldr.day, bldr.hour, bldr.minute, bldr.second);
+    // assert result.equals(normalize(result));
+    // assert secsSinceEpoch(result) == secsSinceEpoch;
+    return result;
+  }
+
+  /**
+   * like {@link #timeFromSecsSinceEpoch(long)} but stores the fields in bldr
+   * instead of allocating a new value.
+   */
+  public static void timeFromSecsSinceEpoch(
+      long secsSinceEpoch, DTBuilder bldr) {
     // TODO: should we handle -ve years?
     int secsInDay = (int) (secsSinceEpoch % SECS_PER_DAY);
     int daysSinceEpoch = (int) (secsSinceEpoch / SECS_PER_DAY);
@@ -242,11 +334,12 @@ public class TimeUtils {
     int hour = minutesInDay / 60;
     if (!(hour >= 0 && hour < 24)) throw new AssertionError(
         "Input was: " + secsSinceEpoch + "to make hour: " + hour);
-    DateTimeValue result =
-      new DateTimeValueImpl(year, month, day, hour, minute, second);
-    // assert result.equals(normalize(result));
-    // assert secsSinceEpoch(result) == secsSinceEpoch;
-    return result;
+    bldr.year = year;
+    bldr.month = month;
+    bldr.day = day;
+    bldr.hour = hour;
+    bldr.minute = minute;
+    bldr.second = second;
   }
 
   private static final long SECS_PER_DAY = 60L * 60 * 24;
@@ -0,0 +1,233 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.util;
+
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.WeakHashMap;
+
+/**
+ * the UTC offsets of a timezone, recorded as the instants at which the offset
+ * changes and the offset after each change, so that converting a time between
+ * UTC and the zone is a search of a short array instead of a trip through a
+ * {@link java.util.Calendar}.
+ *
+ * <p>Offsets are computed lazily a year at a time, by sampling the zone's
+ * offset every few hours and bisecting to find the instant of each change, so
+ * a change that is reverted within the sampling interval would be missed.  No
+ * zone in the tz database does that.</p>
+ *
+ * <p>Tables are shared by all conversions in equivalent zones, and are
+ * thread-safe.  A zone must not be modified once it has been used in a
+ * conversion, since its table would not be updated.</p>
+ *
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+final class ZoneOffsetTable {
+
+  /** returned by the offset methods when the table can't answer. */
+  static final int UNKNOWN = Integer.MIN_VALUE;
+
+  /** the range of years for which offsets are tabulated. */
+  private static final int MIN_YEAR = 1900, MAX_YEAR = 2199;
+
+  private static final long MILLIS_PER_HOUR = 60L * 60 * 1000;
+  private static final long MILLIS_PER_DAY = 24 * MILLIS_PER_HOUR;
+  /** the interval at which offsets are sampled when looking for changes. */
+  private static final long SAMPLE_MILLIS = 6 * MILLIS_PER_HOUR;
+  private static final int EPOCH_DAY = TimeUtils.fixedFromGregorian(1970, 1, 1);
+
+  /** tables by zone.  Zones are compared by their rules, not identity. */
+  private static final Map<TimeZone, ZoneOffsetTable> BY_ZONE =
+      new WeakHashMap<TimeZone, ZoneOffsetTable>();
+
+  /** the zone last looked up on each thread, and its table. */
+  private static final ThreadLocal<Object[]> LAST_USED =
+    new ThreadLocal<Object[]>() {
+      @Override
+      protected Object[] initialValue() {
+        return new Object[2];
+      }
+    };
+
+  /** the table for the given zone. */
+  static ZoneOffsetTable forZone(TimeZone zone) {
+    Object[] lastUsed = LAST_USED.get();
+    if (lastUsed[0] == zone) { return (ZoneOffsetTable) lastUsed[1]; }
+    ZoneOffsetTable table;
+    synchronized (BY_ZONE) {
+      table = BY_ZONE.get(zone);
+      if (null == table) {
+        table = new ZoneOffsetTable((TimeZone) zone.clone());
+        BY_ZONE.put(zone, table);
+      }
+    }
+    lastUsed[0] = zone;
+    lastUsed[1] = table;
+    return table;
+  }
+
+  /**
+   * a copy of the zone.  The table does not hold the zone it is keyed by so
+   * that the table doesn't keep its own key alive.
+   */
+  private final TimeZone zone;
+  /** true if the zone has the same rules as UTC. */
+  private final boolean utc;
+  /**
+   * the offsets in each year, indexed by year - MIN_YEAR.  Elements are null
+   * until computed, and are immutable once computed, so they are read without
+   * locking.  Two threads may compute the same year, but will agree.
+   */
+  private final YearOffsets[] years = new YearOffsets[MAX_YEAR - MIN_YEAR + 1];
+
+  private ZoneOffsetTable(TimeZone zone) {
+    this.zone = zone;
+    this.utc = zone.hasSameRules(TimeUtils.utcTimezone());
+  }
+
+  /** true if conversions in this zone don't change the time. */
+  boolean isUtc() { return utc; }
+
+  /**
+   * the offset in seconds to add to the given UTC time to get the local time,
+   * or UNKNOWN.
+   * @param bldr normalized date-time fields in UTC.
+   */
+  int offsetFromUtc(DTBuilder bldr) {
+    YearOffsets offsets = yearOffsets(bldr.year);
+    if (null == offsets) { return UNKNOWN; }
+    return offsets.offsetAt(millis(bldr));
+  }
+
+  /**
+   * the offset in seconds to subtract from the given local time to get UTC, or
+   * UNKNOWN if the time is within a day of a change in offset, since the
+   * treatment of local times that are skipped or repeated at a change is left
+   * to {@link java.util.Calendar}.
+   * @param bldr normalized date-time fields in this zone.
+   */
+  int offsetFromLocal(DTBuilder bldr) {
+    YearOffsets offsets = yearOffsets(bldr.year);
+    if (null == offsets) { return UNKNOWN; }
+    long local = millis(bldr);
+    if (offsets.changesBetween(
+            local - MILLIS_PER_DAY, local + MILLIS_PER_DAY)) {
+      return UNKNOWN;
+    }
+    return offsets.offsetAt(local);
+  }
+
+  private YearOffsets yearOffsets(int year) {
+    if (year < MIN_YEAR || year > MAX_YEAR) { return null; }
+    YearOffsets offsets = years[year - MIN_YEAR];
+    if (null == offsets) {
+      offsets = new YearOffsets(zone, year);
+      years[year - MIN_YEAR] = offsets;
+    }
+    return offsets;
+  }
+
+  /** milliseconds since the epoch, treating the fields as UTC. */
+  private static long millis(DTBuilder bldr) {
+    long days = TimeUtils.fixedFromGregorian(bldr.year, bldr.month, bldr.day)
+        - EPOCH_DAY;
+    return 1000L * (
+        days * 24 * 60 * 60 + bldr.hour * 60 * 60 + bldr.minute * 60
+        + bldr.second);
+  }
+
+  /**
+   * the offsets from a couple of days before the start of a year to a couple
+   * of days after its end, which covers any time whose local or UTC fields
+   * fall in that year, with a day to spare.
+   */
+  private static final class YearOffsets {
+    /** the instants at which the offset changes, in increasing order. */
+    private final long[] changes;
+    /**
+     * offsets[0] is the offset in seconds before the first change, and
+     * offsets[i + 1] the offset after changes[i].
+     */
+    private final int[] offsets;
+
+    YearOffsets(TimeZone zone, int year) {
+      long start = 1000L * 24 * 60 * 60
+          * (TimeUtils.fixedFromGregorian(year, 1, 1) - 2 - EPOCH_DAY);
+      long end = 1000L * 24 * 60 * 60
+          * (TimeUtils.fixedFromGregorian(year + 1, 1, 1) + 2 - EPOCH_DAY);
+      long[] changes = new long[4];
+      int[] offsets = new int[5];
+      int n = 0;
+      int offset = zone.getOffset(start);
+      offsets[0] = offset;
+      for (long t = start; t < end;) {
+        long next = Math.min(end, t + SAMPLE_MILLIS);
+        int nextOffset = zone.getOffset(next);
+        if (nextOffset == offset) {
+          t = next;
+          continue;
+        }
+        // Bisect to find the first instant after t with a different offset.
+        long lo = t, hi = next;
+        while (hi - lo > 1) {
+          long mid = lo + (hi - lo) / 2;
+          if (zone.getOffset(mid) == offset) {
+            lo = mid;
+          } else {
+            hi = mid;
+          }
+        }
+        if (n == changes.length) {
+          long[] newChanges = new long[n * 2];
+          System.arraycopy(changes, 0, newChanges, 0, n);
+          changes = newChanges;
+          int[] newOffsets = new int[n * 2 + 1];
+          System.arraycopy(offsets, 0, newOffsets, 0, n + 1);
+          offsets = newOffsets;
+        }
+        offset = zone.getOffset(hi);
+        changes[n] = hi;
+        offsets[++n] = offset;
+        t = hi;
+      }
+      this.changes = new long[n];
+      System.arraycopy(changes, 0, this.changes, 0, n);
+      this.offsets = new int[n + 1];
+      for (int i = 0; i <= n; ++i) {
+        // Round to the nearest second the way TimeUtils always has.
+        int millisecondOffset = offsets[i];
+        int millisecondRound = millisecondOffset < 0 ? -500 : 500;
+        this.offsets[i] = (millisecondOffset + millisecondRound) / 1000;
+      }
+    }
+
+    /** the offset in seconds at the given instant. */
+    int offsetAt(long millis) {
+      int i = 0;
+      while (i < changes.length && changes[i] <= millis) { ++i; }
+      return offsets[i];
+    }
+
+    /** true if the offset changes in (start, end]. */
+    boolean changesBetween(long start, long end) {
+      for (long change : changes) {
+        if (change > start && change <= end) { return true; }
+      }
+      return false;
+    }
+  }
+
+}
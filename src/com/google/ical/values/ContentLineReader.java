@@ -0,0 +1,269 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.values;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.TimeZone;
+
+/**
+ * reads the RRULE, EXRULE, RDATE, and EXDATE content lines from a stream of
+ * ical text, such as a whole .ics file, without reading the whole stream
+ * into memory.
+ *
+ * <p>Lines are unfolded as per RFC 2445 section 4.1 as they are read, and
+ * other properties, such as a long DESCRIPTION or ATTACH, are skipped without
+ * being buffered, so memory use is bounded by the longest recurrence line.
+ * </p>
+ *
+ * <p>BEGIN and END lines are tracked so that the RRULEs of VTIMEZONEs and
+ * the properties of VALARMs are skipped, and so that callers can tell which
+ * VEVENT each line belongs to from {@link #getEventNumber}.  Lines outside
+ * any component, as in a bare list of recurrence lines, are read too.</p>
+ *
+ * <p>A bad recurrence line causes {@link #next} to throw, but the line is
+ * consumed, so callers that want to skip bad lines can catch the exception and
+ * call {@link #next} again.</p>
+ *
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+public final class ContentLineReader implements Closeable {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final Reader in;
+  private final TimeZone tzid;
+  private final char[] buf = new char[8192];
+  /** the unread chars are buf[pos:limit]. */
+  private int pos, limit;
+  /** the unfolded text of the current line. */
+  private final StringBuilder line = new StringBuilder();
+  /** the kind of the current line, one of the LINE_* constants. */
+  private int kind;
+  /** the number of line breaks read. */
+  private int lineBreaks;
+  /** the line number at which the current line started. */
+  private int lineNumber;
+  /** the number of components begun and not yet ended. */
+  private int depth;
+  /**
+   * the depth of the outermost VTIMEZONE or VALARM being skipped, or 0 if
+   * none.
+   */
+  private int skipDepth;
+  /** the depth of the VEVENT being read, or 0 if none. */
+  private int eventDepth;
+  /** the number of VEVENTs begun so far. */
+  private int eventCount;
+  /** the event number of the line last read by {@link #next}. */
+  private int eventNumber;
+
+  private static final int LINE_OTHER = 0, LINE_RULE = 1, LINE_DATE = 2,
+      LINE_BEGIN = 3, LINE_END = 4;
+
+  /**
+   * @param in the ical text.
+   * @param tzid the timezone of RDATEs and EXDATEs without a TZID parameter.
+   */
+  public ContentLineReader(Reader in, TimeZone tzid) {
+    if (null == in) { throw new NullPointerException(); }
+    this.in = in;
+    this.tzid = tzid;
+  }
+
+  /**
+   * @param in UTF-8 encoded ical text.
+   * @param tzid the timezone of RDATEs and EXDATEs without a TZID parameter.
+   */
+  public ContentLineReader(InputStream in, TimeZone tzid) {
+    this(new InputStreamReader(in, UTF8), tzid);
+  }
+
+  /**
+   * @param in UTF-8 encoded ical text.
+   * @param tzid the timezone of RDATEs and EXDATEs without a TZID parameter.
+   */
+  public ContentLineReader(ReadableByteChannel in, TimeZone tzid) {
+    this(Channels.newReader(in, UTF8.newDecoder(), -1), tzid);
+  }
+
+  /**
+   * the next recurrence content line.
+   * @return an {@link RRule} for an RRULE or EXRULE, an {@link RDateList} for
+   *   an RDATE or EXDATE, or null at the end of input.
+   * @throws ParseException if the line is malformed.  The reader can still be
+   *   used.
+   */
+  public IcalObject next() throws IOException, ParseException {
+    if (!readRecurrenceLine()) { return null; }
+    String content = line.toString().trim();
+    return LINE_RULE == kind
+        ? new RRule(content) : new RDateList(content, tzid);
+  }
+
+  /**
+   * the 1-indexed line number, in the folded text, at which the line last
+   * read by {@link #next} started.
+   */
+  public int getLineNumber() { return lineNumber; }
+
+  /**
+   * the 1-indexed number of the VEVENT containing the line last read by
+   * {@link #next}, or 0 if it was not in one.  Lines with the same number
+   * belong to the same event, so a change of number marks the end of an
+   * event.
+   */
+  public int getEventNumber() { return eventNumber; }
+
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /**
+   * unfolds the next recurrence content line into line, skipping others, and
+   * those in skipped components.
+   * @return false at the end of input.
+   */
+  private boolean readRecurrenceLine() throws IOException {
+    while (true) {
+      // Skip blank lines and leading whitespace.
+      int ch;
+      do {
+        ch = read();
+      } while (ch >= 0 && ch <= ' ');
+      if (ch < 0) { return false; }
+
+      lineNumber = lineBreaks + 1;
+      line.setLength(0);
+      boolean named = false;
+      boolean keep = true;
+      while (ch >= 0) {
+        if ('\r' == ch || '\n' == ch) {
+          if ('\r' == ch && '\n' == peek()) { read(); }
+          int next = peek();
+          if (' ' == next || '\t' == next) {
+            // A fold.
+            read();
+            ch = read();
+            continue;
+          }
+          break;
+        }
+        if (!named && (':' == ch || ';' == ch)) {
+          // Decide whether to keep the line once its name is known.
+          named = true;
+          kind = kind();
+          keep = LINE_OTHER != kind;
+        }
+        if (keep) { line.append((char) ch); }
+        ch = read();
+      }
+      if (!named || !keep) { continue; }
+      switch (kind) {
+        case LINE_BEGIN:
+          begin(componentName());
+          break;
+        case LINE_END:
+          end();
+          break;
+        default:
+          if (0 == skipDepth) {
+            eventNumber = 0 != eventDepth ? eventCount : 0;
+            return true;
+          }
+          break;
+      }
+    }
+  }
+
+  private void begin(String component) {
+    ++depth;
+    if (0 != skipDepth) { return; }
+    if ("VTIMEZONE".equalsIgnoreCase(component)
+        || "VALARM".equalsIgnoreCase(component)) {
+      skipDepth = depth;
+    } else if ("VEVENT".equalsIgnoreCase(component) && 0 == eventDepth) {
+      eventDepth = depth;
+      ++eventCount;
+    }
+  }
+
+  private void end() {
+    if (0 == depth) { return; }  // An unbalanced END.
+    if (depth == skipDepth) { skipDepth = 0; }
+    if (depth == eventDepth) { eventDepth = 0; }
+    --depth;
+  }
+
+  /** the value of the BEGIN line in line. */
+  private String componentName() {
+    int colon = line.indexOf(":");
+    return colon >= 0 ? line.substring(colon + 1).trim() : "";
+  }
+
+  /** the kind of line whose property name is in line. */
+  private int kind() {
+    int n = line.length();
+    if (n < 3 || n > 6) { return LINE_OTHER; }
+    String name = line.toString();
+    if ("RRULE".equalsIgnoreCase(name) || "EXRULE".equalsIgnoreCase(name)) {
+      return LINE_RULE;
+    }
+    if ("RDATE".equalsIgnoreCase(name) || "EXDATE".equalsIgnoreCase(name)) {
+      return LINE_DATE;
+    }
+    if ("BEGIN".equalsIgnoreCase(name)) { return LINE_BEGIN; }
+    if ("END".equalsIgnoreCase(name)) { return LINE_END; }
+    return LINE_OTHER;
+  }
+
+  /** the next char, or -1 at the end of input, counting line breaks. */
+  private int read() throws IOException {
+    if (pos == limit && !fill()) { return -1; }
+    char ch = buf[pos++];
+    // Count CRLF once.
+    if ('\n' == ch || ('\r' == ch && '\n' != peek())) { ++lineBreaks; }
+    return ch;
+  }
+
+  /** the next char without consuming it, or -1 at the end of input. */
+  private int peek() throws IOException {
+    if (pos == limit && !fill()) { return -1; }
+    return buf[pos];
+  }
+
+  /**
+   * refills the buffer, which must have been consumed.
+   * @return false at the end of input.
+   */
+  private boolean fill() throws IOException {
+    int n;
+    do {
+      n = in.read(buf, 0, buf.length);
+    } while (n == 0);
+    if (n < 0) { return false; }
+    pos = 0;
+    limit = n;
+    return true;
+  }
+
+}
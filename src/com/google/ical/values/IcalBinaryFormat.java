@@ -0,0 +1,421 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.values;
+
+import com.google.ical.util.PackedDates;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * static functions that write {@link RRule}s and {@link RDateList}s in a
+ * compact binary form, and read them back, for storing parsed rules without
+ * paying to parse their text again.
+ *
+ * <p>Each value starts with a byte identifying its type and a version byte.
+ * Integers are written as variable length quantities, seven bits to a byte,
+ * with signed values zig-zag encoded so that small negative numbers are short.
+ * BYDAY entries take one or two bytes each, and the dates of an RDateList are
+ * written as the differences between consecutive
+ * {@link PackedDates packed dates}.  Enums are written by ordinal, so
+ * reordering {@link Frequency}, {@link Weekday}, or {@link IcalValueType}
+ * requires a new version.</p>
+ *
+ * <p>A value read back produces the same {@link IcalObject#toIcal} as the
+ * value written.</p>
+ *
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+public final class IcalBinaryFormat {
+
+  /** the version of the format written. */
+  public static final int VERSION = 1;
+
+  private static final int TYPE_RRULE = 1, TYPE_RDATE_LIST = 2;
+
+  /** codes for common names, so that they needn't be spelled out. */
+  private static final int NAME_OTHER = 0, NAME_RULE = 1, NAME_EX_RULE = 2;
+
+  /** bits of the flags that say which optional parts of an RRule follow. */
+  private static final int HAS_WKST = 1, HAS_UNTIL = 2, HAS_COUNT = 4,
+      HAS_INTERVAL = 8, HAS_BYDAY = 0x10, HAS_BYMONTH = 0x20,
+      HAS_BYMONTHDAY = 0x40, HAS_BYWEEKNO = 0x80, HAS_BYYEARDAY = 0x100,
+      HAS_BYHOUR = 0x200, HAS_BYMINUTE = 0x400, HAS_BYSECOND = 0x800,
+      HAS_BYSETPOS = 0x1000, HAS_EXT_PARAMS = 0x2000;
+
+  private static final Frequency[] FREQUENCIES = Frequency.values();
+  private static final Weekday[] WEEKDAYS = Weekday.values();
+  private static final IcalValueType[] VALUE_TYPES = IcalValueType.values();
+
+  /**
+   * the WeekdayNums indexed by their encoding plus WEEKDAY_NUM_BIAS, so that
+   * decoding does not allocate them.  Slots for bad weekdays are null.
+   */
+  private static final WeekdayNum[] WEEKDAY_NUMS = new WeekdayNum[107 << 3];
+  private static final int WEEKDAY_NUM_BIAS = 53 << 3;
+  static {
+    for (int num = -53; num <= 53; ++num) {
+      for (Weekday wday : WEEKDAYS) {
+        WEEKDAY_NUMS[((num << 3) | wday.ordinal()) + WEEKDAY_NUM_BIAS] =
+            new WeekdayNum(num, wday);
+      }
+    }
+  }
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final long[] NO_DATES = new long[0];
+
+  /**
+   * writes rule to out.
+   * @throws java.nio.BufferOverflowException if out does not have room, in
+   *   which case the position of out is undefined.
+   */
+  public static void write(RRule rule, ByteBuffer out) {
+    out.put((byte) TYPE_RRULE).put((byte) VERSION);
+    writeName(rule.getName(), "RRULE", "EXRULE", out);
+    Frequency freq = rule.getFreq();
+    writeVarint(null != freq ? freq.ordinal() + 1 : 0, out);
+
+    int flags = 0;
+    if (null != rule.getWkSt()) { flags |= HAS_WKST; }
+    if (null != rule.getUntil()) { flags |= HAS_UNTIL; }
+    if (0 != rule.getCount()) { flags |= HAS_COUNT; }
+    if (0 != rule.getInterval()) { flags |= HAS_INTERVAL; }
+    if (!rule.getByDay().isEmpty()) { flags |= HAS_BYDAY; }
+    if (0 != rule.getByMonth().length) { flags |= HAS_BYMONTH; }
+    if (0 != rule.getByMonthDay().length) { flags |= HAS_BYMONTHDAY; }
+    if (0 != rule.getByWeekNo().length) { flags |= HAS_BYWEEKNO; }
+    if (0 != rule.getByYearDay().length) { flags |= HAS_BYYEARDAY; }
+    if (0 != rule.getByHour().length) { flags |= HAS_BYHOUR; }
+    if (0 != rule.getByMinute().length) { flags |= HAS_BYMINUTE; }
+    if (0 != rule.getBySecond().length) { flags |= HAS_BYSECOND; }
+    if (0 != rule.getBySetPos().length) { flags |= HAS_BYSETPOS; }
+    if (rule.hasExtParams()) { flags |= HAS_EXT_PARAMS; }
+    writeVarint(flags, out);
+
+    if (0 != (flags & HAS_WKST)) { out.put((byte) rule.getWkSt().ordinal()); }
+    if (0 != (flags & HAS_UNTIL)) {
+      writeSignedVarint(PackedDates.pack(rule.getUntil()), out);
+    }
+    if (0 != (flags & HAS_COUNT)) { writeSignedVarint(rule.getCount(), out); }
+    if (0 != (flags & HAS_INTERVAL)) {
+      writeSignedVarint(rule.getInterval(), out);
+    }
+    if (0 != (flags & HAS_BYDAY)) {
+      List<WeekdayNum> byDay = rule.getByDay();
+      writeVarint(byDay.size(), out);
+      for (WeekdayNum day : byDay) {
+        // The weekday in the low bits, so that most entries take one byte.
+        writeSignedVarint(((long) day.num << 3) | day.wday.ordinal(), out);
+      }
+    }
+    if (0 != (flags & HAS_BYMONTH)) { writeInts(rule.getByMonth(), out); }
+    if (0 != (flags & HAS_BYMONTHDAY)) {
+      writeInts(rule.getByMonthDay(), out);
+    }
+    if (0 != (flags & HAS_BYWEEKNO)) { writeInts(rule.getByWeekNo(), out); }
+    if (0 != (flags & HAS_BYYEARDAY)) { writeInts(rule.getByYearDay(), out); }
+    if (0 != (flags & HAS_BYHOUR)) { writeInts(rule.getByHour(), out); }
+    if (0 != (flags & HAS_BYMINUTE)) { writeInts(rule.getByMinute(), out); }
+    if (0 != (flags & HAS_BYSECOND)) { writeInts(rule.getBySecond(), out); }
+    if (0 != (flags & HAS_BYSETPOS)) { writeInts(rule.getBySetPos(), out); }
+    if (0 != (flags & HAS_EXT_PARAMS)) { writeExtParams(rule, out); }
+  }
+
+  /**
+   * reads a rule written by {@link #write(RRule, ByteBuffer)}, leaving the
+   * position of in after it.
+   * @throws ParseException if in does not start with a well formed rule of a
+   *   known version.
+   */
+  public static RRule readRRule(ByteBuffer in) throws ParseException {
+    int start = in.position();
+    try {
+      readHeader(TYPE_RRULE, in);
+      RRule rule = new RRule();
+      rule.setName(readName("RRULE", "EXRULE", in));
+      int freq = readVarint(in);
+      rule.setFreq(0 != freq ? enumValue(FREQUENCIES, freq - 1, in) : null);
+
+      int flags = readVarint(in);
+      if (0 != (flags & HAS_WKST)) {
+        rule.setWkSt(enumValue(WEEKDAYS, in.get(), in));
+      }
+      if (0 != (flags & HAS_UNTIL)) {
+        rule.setUntil(PackedDates.unpack(readSignedVarint(in)));
+      }
+      if (0 != (flags & HAS_COUNT)) {
+        rule.setCount((int) readSignedVarint(in));
+      }
+      if (0 != (flags & HAS_INTERVAL)) {
+        rule.setInterval((int) readSignedVarint(in));
+      }
+      if (0 != (flags & HAS_BYDAY)) {
+        int n = readLength(in);
+        List<WeekdayNum> byDay = rule.getByDay();
+        for (int i = 0; i < n; ++i) {
+          long day = readSignedVarint(in) + WEEKDAY_NUM_BIAS;
+          if (day < 0 || day >= WEEKDAY_NUMS.length
+              || null == WEEKDAY_NUMS[(int) day]) {
+            throw new ParseException(
+                "BYDAY " + (day - WEEKDAY_NUM_BIAS), in.position() - 1);
+          }
+          byDay.add(WEEKDAY_NUMS[(int) day]);
+        }
+      }
+      if (0 != (flags & HAS_BYMONTH)) { rule.setByMonth(readInts(in)); }
+      if (0 != (flags & HAS_BYMONTHDAY)) { rule.setByMonthDay(readInts(in)); }
+      if (0 != (flags & HAS_BYWEEKNO)) { rule.setByWeekNo(readInts(in)); }
+      if (0 != (flags & HAS_BYYEARDAY)) { rule.setByYearDay(readInts(in)); }
+      if (0 != (flags & HAS_BYHOUR)) { rule.setByHour(readInts(in)); }
+      if (0 != (flags & HAS_BYMINUTE)) { rule.setByMinute(readInts(in)); }
+      if (0 != (flags & HAS_BYSECOND)) { rule.setBySecond(readInts(in)); }
+      if (0 != (flags & HAS_BYSETPOS)) { rule.setBySetPos(readInts(in)); }
+      if (0 != (flags & HAS_EXT_PARAMS)) { readExtParams(rule, in); }
+      return rule;
+    } catch (BufferUnderflowException ex) {
+      throw (ParseException) new ParseException("truncated", start)
+          .initCause(ex);
+    }
+  }
+
+  /**
+   * writes dates to out.
+   * @throws java.nio.BufferOverflowException if out does not have room, in
+   *   which case the position of out is undefined.
+   */
+  public static void write(RDateList dates, ByteBuffer out) {
+    out.put((byte) TYPE_RDATE_LIST).put((byte) VERSION);
+    writeName(dates.getName(), "RDATE", "EXDATE", out);
+    // No zone has an empty ID, so it marks a list without one.
+    TimeZone tzid = dates.getTzid();
+    writeString(null != tzid ? tzid.getID() : "", out);
+    IcalValueType valueType = dates.getValueType();
+    writeVarint(null != valueType ? valueType.ordinal() + 1 : 0, out);
+    if (dates.hasExtParams()) {
+      writeExtParams(dates, out);
+    } else {
+      writeVarint(0, out);
+    }
+    // A list without dates is written as an empty one.
+    long[] packed = dates.getPackedDatesUtc();
+    if (null == packed) { packed = NO_DATES; }
+    writeVarint(packed.length, out);
+    long last = 0;
+    for (long date : packed) {
+      writeSignedVarint(date - last, out);
+      last = date;
+    }
+  }
+
+  /**
+   * reads a list written by {@link #write(RDateList, ByteBuffer)}, leaving
+   * the position of in after it.
+   * @throws ParseException if in does not start with a well formed list of a
+   *   known version.
+   */
+  public static RDateList readRDateList(ByteBuffer in) throws ParseException {
+    int start = in.position();
+    try {
+      readHeader(TYPE_RDATE_LIST, in);
+      String name = readName("RDATE", "EXDATE", in);
+      String tzid = readString(in);
+      RDateList dates;
+      if ("".equals(tzid)) {
+        dates = new RDateList();
+      } else {
+        // Look up the zone by ID exactly, since TimeUtils.timeZoneForName
+        // canonicalizes UTC aliases, which would change the output of toIcal.
+        TimeZone tz = TimeZone.getTimeZone(tzid);
+        if (!tzid.equals(tz.getID())) {
+          throw new ParseException("unknown timezone " + tzid, in.position());
+        }
+        dates = new RDateList(tz);
+      }
+      dates.setName(name);
+      int valueType = readVarint(in);
+      readExtParams(dates, in);
+      int n = readLength(in);
+      long[] packed = new long[n];
+      long last = 0;
+      for (int i = 0; i < n; ++i) {
+        last += readSignedVarint(in);
+        packed[i] = last;
+      }
+      dates.setPackedDatesUtc(packed);
+      dates.setValueType(
+          0 != valueType ? enumValue(VALUE_TYPES, valueType - 1, in) : null);
+      return dates;
+    } catch (BufferUnderflowException ex) {
+      throw (ParseException) new ParseException("truncated", start)
+          .initCause(ex);
+    }
+  }
+
+  private static void readHeader(int type, ByteBuffer in)
+      throws ParseException {
+    int actualType = in.get();
+    if (type != actualType) {
+      throw new ParseException("type " + actualType, in.position() - 1);
+    }
+    int version = in.get();
+    if (VERSION != version) {
+      throw new ParseException("version " + version, in.position() - 1);
+    }
+  }
+
+  private static void writeName(
+      String name, String ruleName, String exName, ByteBuffer out) {
+    if (ruleName.equals(name)) {
+      writeVarint(NAME_RULE, out);
+    } else if (exName.equals(name)) {
+      writeVarint(NAME_EX_RULE, out);
+    } else {
+      writeVarint(NAME_OTHER, out);
+      writeString(name, out);
+    }
+  }
+
+  private static String readName(
+      String ruleName, String exName, ByteBuffer in)
+      throws ParseException {
+    int code = readVarint(in);
+    switch (code) {
+      case NAME_RULE: return ruleName;
+      case NAME_EX_RULE: return exName;
+      case NAME_OTHER: return readString(in);
+      default: throw new ParseException("name " + code, in.position() - 1);
+    }
+  }
+
+  /** writes the number of ext params, followed by each name and value. */
+  private static void writeExtParams(AbstractIcalObject obj, ByteBuffer out) {
+    Map<String, String> params = obj.getExtParams();
+    writeVarint(params.size(), out);
+    for (Map.Entry<String, String> param : params.entrySet()) {
+      writeString(param.getKey(), out);
+      writeString(param.getValue(), out);
+    }
+  }
+
+  private static void readExtParams(AbstractIcalObject obj, ByteBuffer in)
+      throws ParseException {
+    int n = readLength(in);
+    if (0 == n) { return; }
+    Map<String, String> params = obj.getExtParams();
+    for (int i = 0; i < n; ++i) {
+      String key = readString(in);
+      params.put(key, readString(in));
+    }
+  }
+
+  private static void writeInts(int[] values, ByteBuffer out) {
+    writeVarint(values.length, out);
+    for (int value : values) { writeSignedVarint(value, out); }
+  }
+
+  private static int[] readInts(ByteBuffer in) throws ParseException {
+    int[] values = new int[readLength(in)];
+    for (int i = 0; i < values.length; ++i) {
+      values[i] = (int) readSignedVarint(in);
+    }
+    return values;
+  }
+
+  /** writes a string as its length in UTF-8 bytes followed by the bytes. */
+  private static void writeString(String s, ByteBuffer out) {
+    ByteBuffer bytes = UTF8.encode(s);
+    writeVarint(bytes.remaining(), out);
+    out.put(bytes);
+  }
+
+  private static String readString(ByteBuffer in) throws ParseException {
+    int n = readLength(in);
+    ByteBuffer bytes = in.slice();
+    bytes.limit(n);
+    in.position(in.position() + n);
+    return UTF8.decode(bytes).toString();
+  }
+
+  /** writes a non-negative int seven bits at a time, low bits first. */
+  private static void writeVarint(int value, ByteBuffer out) {
+    while ((value & ~0x7f) != 0) {
+      out.put((byte) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    out.put((byte) value);
+  }
+
+  private static int readVarint(ByteBuffer in) throws ParseException {
+    long value = readUnsignedVarint(in);
+    // A ten byte varint can set the sign bit.
+    if (value < 0 || value > Integer.MAX_VALUE) {
+      throw new ParseException("varint " + value, in.position());
+    }
+    return (int) value;
+  }
+
+  /** a count that must fit in the remaining input, as each item is a byte. */
+  private static int readLength(ByteBuffer in) throws ParseException {
+    int n = readVarint(in);
+    if (n > in.remaining()) { throw new BufferUnderflowException(); }
+    return n;
+  }
+
+  /** zig-zag encodes value so that values near zero are short. */
+  private static void writeSignedVarint(long value, ByteBuffer out) {
+    long zigZag = (value << 1) ^ (value >> 63);
+    while ((zigZag & ~0x7fL) != 0) {
+      out.put((byte) ((zigZag & 0x7f) | 0x80));
+      zigZag >>>= 7;
+    }
+    out.put((byte) zigZag);
+  }
+
+  private static long readSignedVarint(ByteBuffer in) throws ParseException {
+    long zigZag = readUnsignedVarint(in);
+    return (zigZag >>> 1) ^ -(zigZag & 1);
+  }
+
+  private static long readUnsignedVarint(ByteBuffer in)
+      throws ParseException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = in.get();
+      value |= (long) (b & 0x7f) << shift;
+      if (b >= 0) { return value; }
+    }
+    throw new ParseException("varint too long", in.position());
+  }
+
+  private static <E extends Enum<E>> E enumValue(
+      E[] values, int ordinal, ByteBuffer in)
+      throws ParseException {
+    if (ordinal < 0 || ordinal >= values.length) {
+      throw new ParseException("ordinal " + ordinal, in.position() - 1);
+    }
+    return values[ordinal];
+  }
+
+  private IcalBinaryFormat() {
+    // uninstantiable
+  }
+
+}
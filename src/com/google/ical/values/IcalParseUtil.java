@@ -15,10 +15,10 @@
 package com.google.ical.values;
 
 import com.google.ical.util.DTBuilder;
+import com.google.ical.util.PackedDates;
 import com.google.ical.util.TimeUtils;
 import java.text.ParseException;
 import java.util.TimeZone;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -28,10 +28,6 @@ import java.util.regex.Pattern;
  */
 public final class IcalParseUtil {
 
-  private static final Pattern DATE_VALUE = Pattern.compile(
-      "(\\d{4,})(\\d\\d)(\\d\\d)" +
-      "(?:T([0-1]\\d|2[0-3])([0-5]\\d)([0-5]\\d)(Z)?)?");
-
   /** parses a date of the form yyyymmdd or yyyymmdd'T'hhMMss */
   public static DateValue parseDateValue(String s) throws ParseException {
     return parseDateValue(s, null);
@@ -43,26 +39,131 @@ public final class IcalParseUtil {
    */
   public static DateValue parseDateValue(String s, TimeZone tzid)
       throws ParseException {
-    Matcher m = DATE_VALUE.matcher(s);
-    if (!m.matches()) { throw new ParseException(s, 0); }
-    int year = Integer.parseInt(m.group(1)),
-      month = Integer.parseInt(m.group(2)),
-      day = Integer.parseInt(m.group(3));
-    if (null != m.group(4)) {
-      int hour = Integer.parseInt(m.group(4)),
-        minute = Integer.parseInt(m.group(5)),
-        second = Integer.parseInt(m.group(6));
-      boolean utc = null != m.group(7);
-
-      DateValue dv = new DTBuilder(
-          year, month, day, hour, minute, second).toDateTime();
-      if (!utc && null != tzid) {
-        dv = TimeUtils.toUtc(dv, tzid);
+    return parseDateValue(s, 0, s.length(), tzid);
+  }
+
+  /** parses the date in s[start:end] as by {@link #parseDateValue}. */
+  private static DateValue parseDateValue(
+      String s, int start, int end, TimeZone tzid)
+      throws ParseException {
+    long packed = scanDateValue(s, start, end);
+    if (BAD_DATE == packed) {
+      throw new ParseException(s.substring(start, end), 0);
+    }
+    DateValue dv = PackedDates.unpack(packed);
+    if (PackedDates.isDateTime(packed) && 'Z' != s.charAt(end - 1)
+        && null != tzid) {
+      dv = TimeUtils.toUtc(dv, tzid);
+    }
+    return dv;
+  }
+
+  /**
+   * parses a comma separated list of dates or date-times, as in the content of
+   * an RDATE or EXDATE, converting date-times that don't end in 'Z' from the
+   * given timezone to UTC.
+   * @return the {@link PackedDates packed} dates in the order given.
+   */
+  static long[] parsePackedDateValues(String s, TimeZone tzid)
+      throws ParseException {
+    // Like String.split, ignore trailing empty values, and treat a list of
+    // nothing but commas as empty.
+    int end = s.length();
+    while (end > 0 && ',' == s.charAt(end - 1)) { --end; }
+    if (0 == end && 0 != s.length()) { return new long[0]; }
+
+    int n = 1;
+    for (int i = 0; i < end; ++i) {
+      if (',' == s.charAt(i)) { ++n; }
+    }
+    long[] packed = new long[n];
+    // The start of the run of values, ending at i, to convert from tzid.  Runs
+    // are broken by values in UTC.
+    int local = 0;
+    int start = 0;
+    for (int i = 0; i < n; ++i) {
+      int comma = s.indexOf(',', start);
+      if (comma < 0 || comma > end) { comma = end; }
+      long value = scanDateValue(s, start, comma);
+      if (BAD_DATE == value) {
+        throw new ParseException(s.substring(start, comma), 0);
+      }
+      packed[i] = value;
+      if ('Z' == s.charAt(comma - 1)) {
+        TimeUtils.toUtc(packed, local, i - local, tzid);
+        local = i + 1;
       }
-      return dv;
+      start = comma + 1;
+    }
+    TimeUtils.toUtc(packed, local, n - local, tzid);
+    return packed;
+  }
+
+  /** returned by scanDateValue for malformed input. */
+  private static final long BAD_DATE = Long.MIN_VALUE;
+
+  /**
+   * the packed form of the date in s[start:end], of the form yyyymmdd or
+   * yyyymmdd'T'hhMMss with an optional trailing 'Z', or BAD_DATE.
+   * The year may have more than four digits, and the month and day are
+   * normalized, so 20060229 is March 1st.
+   */
+  private static long scanDateValue(String s, int start, int end) {
+    int dateEnd = start;
+    while (dateEnd < end && isDigit(s.charAt(dateEnd))) { ++dateEnd; }
+    if (dateEnd - start < 8) { return BAD_DATE; }
+
+    boolean timed = dateEnd != end;
+    int hour = 0, minute = 0, second = 0;
+    if (timed) {
+      int timeEnd = dateEnd + 7;
+      if ('T' != s.charAt(dateEnd)
+          || !(end == timeEnd || (end == timeEnd + 1
+                                  && 'Z' == s.charAt(timeEnd)))) {
+        return BAD_DATE;
+      }
+      hour = parseTwoDigits(s, dateEnd + 1);
+      minute = parseTwoDigits(s, dateEnd + 3);
+      second = parseTwoDigits(s, dateEnd + 5);
+      if (hour < 0 || hour > 23 || minute < 0 || minute > 59
+          || second < 0 || second > 59) {
+        return BAD_DATE;
+      }
+    }
+
+    int yearEnd = dateEnd - 4;
+    int year;
+    if (yearEnd - start > 9) {
+      // Too long to accumulate without overflow.
+      year = Integer.parseInt(s.substring(start, yearEnd));
     } else {
-      return new DTBuilder(year, month, day).toDate();
+      year = 0;
+      for (int i = start; i < yearEnd; ++i) {
+        year = year * 10 + (s.charAt(i) - '0');
+      }
     }
+    int month = parseTwoDigits(s, yearEnd);
+    int day = parseTwoDigits(s, yearEnd + 2);
+    if (month < 1 || month > 12
+        || day < 1 || day > TimeUtils.monthLength(year, month)) {
+      DTBuilder b = new DTBuilder(year, month, day, hour, minute, second);
+      b.normalize();
+      return PackedDates.pack(b, timed);
+    }
+    return timed
+        ? PackedDates.packDateTime(year, month, day, hour, minute, second)
+        : PackedDates.packDate(year, month, day);
+  }
+
+  /** the value of the two digits at s[pos:pos+2] or -1. */
+  private static int parseTwoDigits(String s, int pos) {
+    char tens = s.charAt(pos), ones = s.charAt(pos + 1);
+    if (!(isDigit(tens) && isDigit(ones))) { return -1; }
+    return (tens - '0') * 10 + (ones - '0');
+  }
+
+  private static boolean isDigit(char ch) {
+    return ch >= '0' && ch <= '9';
   }
 
   /**
@@ -82,8 +183,8 @@ public final class IcalParseUtil {
       throws ParseException {
     int sep = s.indexOf('/');
     if (sep < 0) { throw new ParseException(s, s.length()); }
-    DateValue start = parseDateValue(s.substring(0, sep), tzid),
-                end = parseDateValue(s.substring(sep + 1), tzid);
+    DateValue start = parseDateValue(s, 0, sep, tzid),
+                end = parseDateValue(s, sep + 1, s.length(), tzid);
     if ((start instanceof TimeValue) != (end instanceof TimeValue)) {
       throw new ParseException(s, 0);
     }
@@ -14,6 +14,7 @@
 
 package com.google.ical.values;
 
+import com.google.ical.util.PackedDates;
 import java.text.ParseException;
 import java.util.Map;
 import java.util.TimeZone;
@@ -28,7 +29,12 @@ import java.util.TimeZone;
 public class RDateList extends AbstractIcalObject {
 
   private TimeZone tzid;
+  /**
+   * the dates, as date values and packed.  Lists parsed from ical are only
+   * packed, and the date values are created when first requested.
+   */
   private DateValue[] datesUtc;
+  private long[] packedDatesUtc;
   private IcalValueType valueType;
 
   public RDateList(String icalString, TimeZone tzid) throws ParseException {
@@ -42,6 +48,15 @@ public class RDateList extends AbstractIcalObject {
     datesUtc = new DateValue[0];
   }
 
+  /**
+   * a list without a timezone, for {@link IcalBinaryFormat} to read back
+   * one that was written without.
+   */
+  RDateList() {
+    setName("RDATE");
+    datesUtc = new DateValue[0];
+  }
+
   public TimeZone getTzid() { return this.tzid; }
   public void setTzid(TimeZone tzid) {
     assert null != tzid;
@@ -49,10 +64,18 @@ public class RDateList extends AbstractIcalObject {
   }
 
   public DateValue[] getDatesUtc() {
+    if (null == this.datesUtc && null != this.packedDatesUtc) {
+      DateValue[] unpacked = new DateValue[packedDatesUtc.length];
+      for (int i = 0; i < unpacked.length; ++i) {
+        unpacked[i] = PackedDates.unpack(packedDatesUtc[i]);
+      }
+      this.datesUtc = unpacked;
+    }
     return null != this.datesUtc ? this.datesUtc.clone() : null;
   }
   public void setDatesUtc(DateValue[] datesUtc) {
     this.datesUtc = datesUtc.clone();
+    this.packedDatesUtc = null;
     if (datesUtc.length > 0) {
       setValueType((datesUtc[0] instanceof TimeValue)
                    ? IcalValueType.DATE_TIME
@@ -60,6 +83,30 @@ public class RDateList extends AbstractIcalObject {
     }
   }
 
+  /**
+   * the dates in UTC as {@link PackedDates packed} values, in the same order
+   * as {@link #getDatesUtc}.
+   */
+  public long[] getPackedDatesUtc() {
+    if (null == this.packedDatesUtc && null != this.datesUtc) {
+      long[] packed = new long[datesUtc.length];
+      for (int i = 0; i < packed.length; ++i) {
+        packed[i] = PackedDates.pack(datesUtc[i]);
+      }
+      this.packedDatesUtc = packed;
+    }
+    return null != this.packedDatesUtc ? this.packedDatesUtc.clone() : null;
+  }
+  void setPackedDatesUtc(long[] packedDatesUtc) {
+    this.packedDatesUtc = packedDatesUtc;
+    this.datesUtc = null;
+    if (packedDatesUtc.length > 0) {
+      setValueType(PackedDates.isDateTime(packedDatesUtc[0])
+                   ? IcalValueType.DATE_TIME
+                   : IcalValueType.DATE);
+    }
+  }
+
   /**
    * the type of the values contained by this list as reported by the ical
    * "VALUE" parameter, typically DATE or DATE-TIME.
@@ -89,6 +136,7 @@ public class RDateList extends AbstractIcalObject {
       }
     }
     buf.append(':');
+    DateValue[] datesUtc = getDatesUtc();
     for (int i = 0; i < datesUtc.length; ++i) {
       if (0 != i) { buf.append(','); }
       DateValue v = datesUtc[i];
@@ -49,7 +49,11 @@ public class RRule extends AbstractIcalObject {
   }
 
   public RRule(String icalString) throws ParseException {
-    parse(VcalRewriter.rewriteRule(icalString), RRuleSchema.instance());
+    // Most rules can be parsed in one pass.  The rest, including vcal rules and
+    // malformed ones, go through the schema.
+    if (!RRuleParser.parse(icalString, this)) {
+      parse(VcalRewriter.rewriteRule(icalString), RRuleSchema.instance());
+    }
   }
 
   /**
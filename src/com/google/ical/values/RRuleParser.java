@@ -0,0 +1,283 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.values;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * a single pass parser for RRULE and EXRULE content lines in the form that
+ * nearly all rules take: unfolded, without parameters or extension parts, and
+ * well formed.
+ *
+ * <p>Any other line, including vcal rules and malformed ones, is left to
+ * {@link RRuleSchema} so that it is rewritten or reported exactly as before.
+ * Lines are only accepted here if the schema would accept them and produce
+ * the same rule.</p>
+ *
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+final class RRuleParser {
+
+  /** the rule parts in the order of the PART_* constants. */
+  private static final String[] PART_NAMES = {
+    "FREQ", "UNTIL", "COUNT", "INTERVAL", "BYSECOND", "BYMINUTE", "BYHOUR",
+    "BYDAY", "BYMONTHDAY", "BYYEARDAY", "BYWEEKNO", "BYMONTH", "BYSETPOS",
+    "WKST",
+  };
+  private static final int PART_FREQ = 0, PART_UNTIL = 1, PART_COUNT = 2,
+      PART_INTERVAL = 3, PART_BYSECOND = 4, PART_BYMINUTE = 5,
+      PART_BYHOUR = 6, PART_BYDAY = 7, PART_BYMONTHDAY = 8,
+      PART_BYYEARDAY = 9, PART_BYWEEKNO = 10, PART_BYMONTH = 11,
+      PART_BYSETPOS = 12, PART_WKST = 13;
+
+  private static final Frequency[] FREQUENCIES = Frequency.values();
+  private static final Weekday[] WEEKDAYS = Weekday.values();
+
+  /**
+   * parses the given content line into out.
+   * @return false, without modifying out, if the line is not in the form
+   *   handled here.
+   */
+  static boolean parse(String s, RRule out) {
+    int n = s.length();
+    for (int i = 0; i < n; ++i) {
+      // Folded lines and non-ASCII characters are left to the schema.
+      char ch = s.charAt(i);
+      if (ch < 0x20 || ch > 0x7e) { return false; }
+    }
+    // Since parameters are separated from the name by a semicolon, a line
+    // with parameters fails these checks.
+    int colon = s.indexOf(':');
+    String name;
+    if (colon == 5 && s.regionMatches(true, 0, "RRULE", 0, 5)) {
+      name = "RRULE";
+    } else if (colon == 6 && s.regionMatches(true, 0, "EXRULE", 0, 6)) {
+      name = "EXRULE";
+    } else {
+      return false;
+    }
+
+    Object[] values = new Object[PART_NAMES.length];
+    int pos = colon + 1;
+    while (true) {
+      int end = s.indexOf(';', pos);
+      if (end < 0) { end = n; }
+      int eq = s.indexOf('=', pos);
+      if (eq < 0 || eq >= end) { return false; }
+      int part = partIndex(s, pos, eq);
+      if (part < 0 || null != values[part]) { return false; }
+      Object value = parseValue(part, s, eq + 1, end);
+      if (null == value) { return false; }
+      values[part] = value;
+      if (end == n) { break; }
+      pos = end + 1;
+    }
+    if (null == values[PART_FREQ]
+        || (null != values[PART_UNTIL] && null != values[PART_COUNT])) {
+      return false;
+    }
+
+    out.setName(name);
+    out.setFreq((Frequency) values[PART_FREQ]);
+    if (null != values[PART_UNTIL]) {
+      out.setUntil((DateValue) values[PART_UNTIL]);
+    }
+    if (null != values[PART_COUNT]) {
+      out.setCount((Integer) values[PART_COUNT]);
+    }
+    if (null != values[PART_INTERVAL]) {
+      out.setInterval((Integer) values[PART_INTERVAL]);
+    }
+    if (null != values[PART_BYSECOND]) {
+      out.setBySecond((int[]) values[PART_BYSECOND]);
+    }
+    if (null != values[PART_BYMINUTE]) {
+      out.setByMinute((int[]) values[PART_BYMINUTE]);
+    }
+    if (null != values[PART_BYHOUR]) {
+      out.setByHour((int[]) values[PART_BYHOUR]);
+    }
+    if (null != values[PART_BYDAY]) {
+      @SuppressWarnings("unchecked")
+      List<WeekdayNum> byDay = (List<WeekdayNum>) values[PART_BYDAY];
+      out.setByDay(byDay);
+    }
+    if (null != values[PART_BYMONTHDAY]) {
+      out.setByMonthDay((int[]) values[PART_BYMONTHDAY]);
+    }
+    if (null != values[PART_BYYEARDAY]) {
+      out.setByYearDay((int[]) values[PART_BYYEARDAY]);
+    }
+    if (null != values[PART_BYWEEKNO]) {
+      out.setByWeekNo((int[]) values[PART_BYWEEKNO]);
+    }
+    if (null != values[PART_BYMONTH]) {
+      out.setByMonth((int[]) values[PART_BYMONTH]);
+    }
+    if (null != values[PART_BYSETPOS]) {
+      out.setBySetPos((int[]) values[PART_BYSETPOS]);
+    }
+    if (null != values[PART_WKST]) {
+      out.setWkSt((Weekday) values[PART_WKST]);
+    }
+    return true;
+  }
+
+  /**
+   * the index into PART_NAMES of the part name in s[start:end], ignoring case,
+   * or -1.
+   */
+  private static int partIndex(String s, int start, int end) {
+    int len = end - start;
+    for (int i = 0; i < PART_NAMES.length; ++i) {
+      String partName = PART_NAMES[i];
+      if (partName.length() == len
+          && s.regionMatches(true, start, partName, 0, len)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** the value of the given part in s[start:end], or null if malformed. */
+  private static Object parseValue(int part, String s, int start, int end) {
+    switch (part) {
+      case PART_FREQ:
+        // The schema's Frequency.valueOf is case-sensitive.
+        for (Frequency freq : FREQUENCIES) {
+          String freqName = freq.name();
+          if (freqName.length() == end - start
+              && s.regionMatches(start, freqName, 0, freqName.length())) {
+            return freq;
+          }
+        }
+        return null;
+      case PART_UNTIL:
+        try {
+          return IcalParseUtil.parseDateValue(
+              s.substring(start, end).toUpperCase());
+        } catch (ParseException ex) {
+          return null;
+        } catch (IllegalArgumentException ex) {
+          return null;
+        }
+      case PART_COUNT: case PART_INTERVAL: {
+        int value = parseUnsigned(s, start, end);
+        return value >= 0 ? Integer.valueOf(value) : null;
+      }
+      case PART_BYSECOND: case PART_BYMINUTE:
+        return parseIntList(s, start, end, 0, 59, false);
+      case PART_BYHOUR:
+        return parseIntList(s, start, end, 0, 23, false);
+      case PART_BYDAY:
+        return parseWeekdayNumList(s, start, end);
+      case PART_BYMONTHDAY:
+        return parseIntList(s, start, end, 1, 31, true);
+      case PART_BYYEARDAY: case PART_BYSETPOS:
+        return parseIntList(s, start, end, 1, 366, true);
+      case PART_BYWEEKNO:
+        return parseIntList(s, start, end, 1, 53, true);
+      case PART_BYMONTH:
+        return parseIntList(s, start, end, 1, 12, true);
+      case PART_WKST:
+        return end - start == 2 ? parseWeekday(s, start) : null;
+      default:
+        throw new AssertionError(part);
+    }
+  }
+
+  /**
+   * the non-empty, comma separated integers in s[start:end] if all are in
+   * range, or null.
+   * @param signed true if a minus sign is allowed, in which case min and max
+   *   bound the absolute value.
+   */
+  private static int[] parseIntList(
+      String s, int start, int end, int min, int max, boolean signed) {
+    int count = 1;
+    for (int i = start; i < end; ++i) {
+      if (s.charAt(i) == ',') { ++count; }
+    }
+    int[] values = new int[count];
+    int k = 0;
+    for (int pos = start; k < count; ++pos) {
+      int comma = s.indexOf(',', pos);
+      if (comma < 0 || comma > end) { comma = end; }
+      boolean negative = signed && pos < comma && s.charAt(pos) == '-';
+      int value = parseUnsigned(s, negative ? pos + 1 : pos, comma);
+      if (value < min || value > max) { return null; }
+      values[k++] = negative ? -value : value;
+      pos = comma;
+    }
+    return values;
+  }
+
+  /** the weekday numbers in s[start:end] if all are well formed, or null. */
+  private static List<WeekdayNum> parseWeekdayNumList(
+      String s, int start, int end) {
+    List<WeekdayNum> days = new ArrayList<WeekdayNum>();
+    for (int pos = start; pos <= end; ++pos) {
+      int comma = s.indexOf(',', pos);
+      if (comma < 0 || comma > end) { comma = end; }
+      // [-]?\d\d?(SU|MO|TU|WE|TH|FR|SA)
+      int dayStart = comma - 2;
+      if (dayStart < pos) { return null; }
+      Weekday wday = parseWeekday(s, dayStart);
+      if (null == wday) { return null; }
+      int num = 0;
+      if (dayStart != pos) {
+        boolean negative = s.charAt(pos) == '-';
+        int numStart = negative ? pos + 1 : pos;
+        if (dayStart - numStart > 2) { return null; }
+        num = parseUnsigned(s, numStart, dayStart);
+        if (num < 1 || num > 53) { return null; }
+        if (negative) { num = -num; }
+      }
+      days.add(new WeekdayNum(num, wday));
+      pos = comma;
+    }
+    return days;
+  }
+
+  /** the weekday abbreviated at s[start:start+2], ignoring case, or null. */
+  private static Weekday parseWeekday(String s, int start) {
+    for (Weekday wday : WEEKDAYS) {
+      if (s.regionMatches(true, start, wday.name(), 0, 2)) { return wday; }
+    }
+    return null;
+  }
+
+  /**
+   * the value of the one to nine decimal digits in s[start:end], or -1 if
+   * there are none, too many, or other characters.
+   */
+  private static int parseUnsigned(String s, int start, int end) {
+    if (start >= end || end - start > 9) { return -1; }
+    int value = 0;
+    for (int i = start; i < end; ++i) {
+      int digit = s.charAt(i) - '0';
+      if (digit < 0 || digit > 9) { return -1; }
+      value = value * 10 + digit;
+    }
+    return value;
+  }
+
+  private RRuleParser() {
+    // uninstantiable
+  }
+
+}
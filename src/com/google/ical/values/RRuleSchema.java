@@ -507,14 +507,9 @@ class RRuleSchema extends IcalSchema{
         public void apply(IcalSchema schema, String content, IcalObject target)
             throws ParseException {
           RDateList rdates = (RDateList) target;
-          String[] parts = COMMA.split(content);
-          DateValue[] datesUtc = new DateValue[parts.length];
-          for (int i = 0; i < parts.length; ++i) {
-            String part = parts[i];
-            // TODO(msamuel): figure out what to do with periods.
-            datesUtc[i] = IcalParseUtil.parseDateValue(part, rdates.getTzid());
-          }
-          rdates.setDatesUtc(datesUtc);
+          // TODO(msamuel): figure out what to do with periods.
+          rdates.setPackedDatesUtc(
+              IcalParseUtil.parsePackedDateValues(content, rdates.getTzid()));
         }
       });
 
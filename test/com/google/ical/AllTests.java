@@ -30,21 +30,36 @@ public class AllTests extends TestSuite {
         com.google.ical.compat.jodatime.LocalDateIteratorFactoryTest.class);
     this.addTestSuite(
         com.google.ical.compat.jodatime.TimeZoneConverterTest.class);
+    this.addTestSuite(com.google.ical.iter.ByPartMasksTest.class);
+    this.addTestSuite(com.google.ical.iter.CalendarIngesterTest.class);
+    this.addTestSuite(com.google.ical.iter.CompiledRecurrenceTest.class);
     this.addTestSuite(com.google.ical.iter.CompoundIteratorImplTest.class);
     this.addTestSuite(com.google.ical.iter.ConditionsTest.class);
     this.addTestSuite(com.google.ical.iter.DateValueComparisonTest.class);
+    this.addTestSuite(com.google.ical.iter.DayMaskIteratorImplTest.class);
     this.addTestSuite(com.google.ical.iter.FiltersTest.class);
     this.addTestSuite(com.google.ical.iter.GeneratorsTest.class);
     this.addTestSuite(com.google.ical.iter.IntSetTest.class);
     this.addTestSuite(com.google.ical.iter.MonkeyKeyboardTest.class);
+    this.addTestSuite(com.google.ical.iter.OccurrenceIndexTest.class);
+    this.addTestSuite(com.google.ical.iter.PeriodicIteratorImplTest.class);
     this.addTestSuite(com.google.ical.iter.RDateIteratorImplTest.class);
     this.addTestSuite(com.google.ical.iter.RRuleIteratorImplTest.class);
+    this.addTestSuite(com.google.ical.iter.RecurrenceBatchExpanderTest.class);
+    this.addTestSuite(com.google.ical.iter.RecurrenceCacheTest.class);
+    this.addTestSuite(com.google.ical.iter.RecurrenceMergerTest.class);
+    this.addTestSuite(com.google.ical.iter.RecurrenceSearchTest.class);
+    this.addTestSuite(com.google.ical.iter.RecurrenceSliceTest.class);
     this.addTestSuite(com.google.ical.iter.StressTest.class);
     this.addTestSuite(com.google.ical.iter.UtilTest.class);
     this.addTestSuite(com.google.ical.util.DTBuilderTest.class);
+    this.addTestSuite(com.google.ical.util.ZoneOffsetTableTest.class);
+    this.addTestSuite(com.google.ical.values.ContentLineReaderTest.class);
+    this.addTestSuite(com.google.ical.values.IcalBinaryFormatTest.class);
     this.addTestSuite(com.google.ical.values.IcalParseUtilTest.class);
     this.addTestSuite(com.google.ical.values.PeriodValueImplTest.class);
     this.addTestSuite(com.google.ical.values.RDateListTest.class);
+    this.addTestSuite(com.google.ical.values.RRuleParserTest.class);
     this.addTestSuite(com.google.ical.values.RRuleTest.class);
     this.addTestSuite(com.google.ical.values.VcalRewriterTest.class);
   }
@@ -14,6 +14,8 @@
 
 package com.google.ical.compat.javautil;
 
+import com.google.ical.iter.RecurrenceIteratorFactory;
+import com.google.ical.iter.RecurrenceSlice;
 import com.google.ical.util.TimeUtils;
 import com.google.ical.values.DateTimeValueImpl;
 import com.google.ical.values.DateValue;
@@ -136,6 +138,19 @@ public class DateIteratorFactoryTest extends TestCase {
     assertTrue(!it.hasNext());
   }
 
+  public void testCreateDateIterableFromSlice() throws Exception {
+    RecurrenceSlice slice = new RecurrenceSlice(
+        RecurrenceIteratorFactory.createRecurrenceIterable(
+            "RRULE:FREQ=DAILY", new DateValueImpl(2006, 1, 1), PST, true),
+        new DateValueImpl(2006, 1, 10), new DateValueImpl(2006, 1, 12));
+    DateIterator it = DateIteratorFactory.createDateIterable(slice).iterator();
+    assertTrue(it.hasNext());
+    assertEquals(date(2006, 1, 10), it.next());
+    assertTrue(it.hasNext());
+    assertEquals(date(2006, 1, 11), it.next());
+    assertTrue(!it.hasNext());
+  }
+
   private Date createDateUtc(int ye, int mo, int da, int ho, int mi, int se) {
     Calendar c = new GregorianCalendar(TimeUtils.utcTimezone());
     c.clear();
@@ -155,6 +155,71 @@ public class TimeZoneConverterTest extends TestCase {
     checkEqualsAndHashCodeMethods(tz1, tz2, false);
   }
 
+  public void testAdaptersAreCached() {
+    TimeZone tz1 = TimeZoneConverter.toTimeZone(
+        DateTimeZone.forID("America/Sao_Paulo"));
+    TimeZone tz2 = TimeZoneConverter.toTimeZone(
+        DateTimeZone.forID("America/Sao_Paulo"));
+    assertSame(tz1, tz2);
+    // Since adapters are shared, they can't be modified.
+    try {
+      tz1.setID("Mutated");
+      fail();
+    } catch (UnsupportedOperationException ex) {
+      // pass
+    }
+    assertEquals("America/Sao_Paulo", tz2.getID());
+  }
+
+  public void testTransitionTableMatchesDateTimeZone() {
+    String[] tzids = {
+      "America/Los_Angeles", "America/Sao_Paulo", "Europe/London",
+      "Australia/Lord_Howe", "Asia/Calcutta", "Pacific/Apia", "+05:30",
+    };
+    for (String tzid : tzids) {
+      DateTimeZone jodaTz = DateTimeZone.forID(tzid);
+      TimeZone convertedTz = TimeZoneConverter.toTimeZone(jodaTz);
+      // Step a few minutes short of an hour at a time, which lands in and
+      // around every transition, and run past the ends of the table.
+      for (int year : new int[] { 1899, 1950, 2006, 2099 }) {
+        GregorianCalendar c = new GregorianCalendar(
+            TimeZone.getTimeZone("UTC"));
+        c.clear();
+        c.set(year, 0, 1);
+        long start = c.getTimeInMillis();
+        for (long t = start; t < start + 2 * MILLIS_PER_YEAR;
+             t += 53 * 60 * 1000) {
+          assertEquals(tzid + " " + t,
+                       jodaTz.getOffset(t), convertedTz.getOffset(t));
+          assertEquals(
+              jodaTz.getStandardOffset(t) != jodaTz.getOffset(t),
+              convertedTz.inDaylightTime(new Date(t)));
+          c.setTimeInMillis(t);
+          int era = c.get(Calendar.ERA),
+              y = c.get(Calendar.YEAR),
+              month = c.get(Calendar.MONTH),
+              day = c.get(Calendar.DAY_OF_MONTH),
+              dow = c.get(Calendar.DAY_OF_WEEK),
+              millis = (int) (((t % MILLIS_PER_DAY) + MILLIS_PER_DAY)
+                              % MILLIS_PER_DAY);
+          Integer expected, actual;
+          try {
+            expected = TimeZoneConverter.offsetFromFields(
+                jodaTz, era, y, month, day, millis);
+          } catch (IllegalArgumentException ex) {
+            expected = null;  // In a gap that Joda won't step over.
+          }
+          try {
+            actual = convertedTz.getOffset(era, y, month, day, dow, millis);
+          } catch (IllegalArgumentException ex) {
+            actual = null;
+          }
+          assertEquals(tzid + " " + t, expected, actual);
+        }
+      }
+    }
+  }
+
   private static void assertDST(String tzid, boolean expectedHasDST) {
     TimeZone tz = TimeZoneConverter.toTimeZone(DateTimeZone.forID(tzid));
     assertEquals(tzid, tz.getID());
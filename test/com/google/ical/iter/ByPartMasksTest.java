@@ -0,0 +1,197 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.iter;
+
+import com.google.ical.util.DTBuilder;
+import com.google.ical.util.Predicate;
+import com.google.ical.util.TimeUtils;
+import com.google.ical.values.DateValue;
+import com.google.ical.values.DateValueImpl;
+import com.google.ical.values.Frequency;
+import com.google.ical.values.Weekday;
+import com.google.ical.values.WeekdayNum;
+
+import junit.framework.TestCase;
+
+/**
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+public class ByPartMasksTest extends TestCase {
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+  }
+
+  public void testMonthDays() throws Exception {
+    assertEquals(
+        "20060115,20060131,20060215,20060228",
+        daysIn(2006, 1, 2, ByPartMasks.monthDays(new int[] { 15, -1 })));
+    assertEquals(
+        "20080229,20080331",
+        daysIn(2008, 2, 3, ByPartMasks.monthDays(new int[] { 31, -1 })));
+  }
+
+  public void testWeekdays() throws Exception {
+    WeekdayNum[] days = {
+      new WeekdayNum(1, Weekday.MO), new WeekdayNum(-1, Weekday.FR),
+    };
+    assertEquals(
+        "20060102,20060127,20060206,20060224",
+        daysIn(2006, 1, 2, ByPartMasks.weekdays(days, false)));
+    assertEquals(
+        "20060102", daysIn(2006, 1, 1, ByPartMasks.weekdays(days, true)));
+    assertEquals(
+        "20061229", daysIn(2006, 12, 12, ByPartMasks.weekdays(days, true)));
+  }
+
+  public void testWeekNos() throws Exception {
+    // Week 1 of 2005 starts on Monday the 3rd of January, and the last week
+    // ends on the 1st of January 2006.
+    assertEquals(
+        "20050103,20050104,20050105,20050106,20050107,20050108,20050109,"
+        + "20051226,20051227,20051228,20051229,20051230,20051231",
+        daysIn(2005, 1, 12,
+               ByPartMasks.weekNos(new int[] { 1, -1 }, Weekday.MO)));
+    // With weeks starting on Sunday, week 1 starts on the 2nd.
+    assertEquals(
+        "20050102,20050103,20050104,20050105,20050106,20050107,20050108",
+        daysIn(2005, 1, 12, ByPartMasks.weekNos(new int[] { 1 }, Weekday.SU)));
+  }
+
+  public void testYearDays() throws Exception {
+    assertEquals(
+        "20060101,20061231",
+        daysIn(2006, 1, 12, ByPartMasks.yearDays(new int[] { 1, -1, 366 })));
+    assertEquals(
+        "20080101,20081231",
+        daysIn(2008, 1, 12, ByPartMasks.yearDays(new int[] { 1, 366 })));
+  }
+
+  public void testFiltersMatchPredicates() throws Exception {
+    WeekdayNum[][] byDays = {
+      { new WeekdayNum(0, Weekday.TU) },
+      { new WeekdayNum(2, Weekday.SU), new WeekdayNum(-1, Weekday.WE) },
+      { new WeekdayNum(20, Weekday.MO), new WeekdayNum(-53, Weekday.SA) },
+    };
+    DateValue dtStart = new DateValueImpl(2004, 3, 17);
+    for (Weekday wkst : Weekday.values()) {
+      for (WeekdayNum[] byDay : byDays) {
+        assertSameDays(Filters.byDayFilter(byDay, true, wkst),
+                       ByPartMasks.weekdayFilter(byDay, true, wkst));
+        assertSameDays(Filters.byDayFilter(byDay, false, wkst),
+                       ByPartMasks.weekdayFilter(byDay, false, wkst));
+      }
+      for (int interval = 1; interval <= 3; ++interval) {
+        assertSameDays(
+            Filters.weekIntervalFilter(interval, wkst, dtStart),
+            ByPartMasks.weekInterval(interval, wkst, dtStart));
+      }
+    }
+    int[] monthDays = { 1, 30, -2 };
+    assertSameDays(Filters.byMonthDayFilter(monthDays),
+                   ByPartMasks.monthDays(monthDays));
+  }
+
+  public void testIntersection() throws Exception {
+    // FREQ=YEARLY;INTERVAL=2;BYMONTH=6;BYDAY=FR;BYMONTHDAY=13
+    ByPartMasks masks = new ByPartMasks(
+        new ByPartMasks.DaySet[] {
+          ByPartMasks.months(new int[] { 6 }),
+          ByPartMasks.monthDays(new int[] { 13 }),
+          ByPartMasks.weekdayFilter(
+              new WeekdayNum[] { new WeekdayNum(0, Weekday.FR) }, false,
+              Weekday.MO),
+        },
+        new DateValueImpl(2003, 7, 1), 2, Frequency.YEARLY, new int[0]);
+    assertNull(masks.days(2003));  // 13 June 2003 is before dtStart
+    assertNull(masks.days(2008));  // 2008 is not generated
+    assertNull(masks.days(2009));  // 13 June 2009 is a Saturday
+    assertEquals("20250613", format(2025, masks.days(2025)));
+    assertEquals(2025, masks.firstYearOnOrAfter(2024));
+  }
+
+  public void testBySetPos() throws Exception {
+    // FREQ=MONTHLY;BYDAY=MO,TU,WE,TH,FR;BYSETPOS=1,-1,30
+    WeekdayNum[] weekdays = new WeekdayNum[5];
+    for (int i = 0; i < 5; ++i) {
+      weekdays[i] = new WeekdayNum(0, Weekday.values()[i + 1]);
+    }
+    DateValue dtStart = new DateValueImpl(2006, 10, 15);
+    ByPartMasks masks = new ByPartMasks(
+        new ByPartMasks.DaySet[] {
+          ByPartMasks.serialMonths(1, dtStart),
+          ByPartMasks.weekdays(weekdays, false),
+        },
+        dtStart, 1, Frequency.MONTHLY, new int[] { 1, -1, 30 });
+    assertEquals("20061031,20061101,20061130,20061201,20061229",
+                 format(2006, masks.days(2006)));
+  }
+
+  /**
+   * checks that a day set contains the days in 2004 through 2006 on or after
+   * 17 March 2004 that a filter accepts.
+   */
+  private static void assertSameDays(
+      Predicate<? super DateValue> filter, ByPartMasks.DaySet days) {
+    DateValue earliest = new DateValueImpl(2004, 3, 17);
+    for (int year = 2004; year <= 2006; ++year) {
+      long[] mask = new long[DayOfYearMasks.N_WORDS];
+      days.fill(year, mask);
+      for (int doy = 0; doy < TimeUtils.yearLength(year); ++doy) {
+        DateValue date = dateOf(year, doy);
+        if (date.compareTo(earliest) < 0) { continue; }
+        assertEquals(date.toString(), filter.apply(date),
+                     0 != (mask[doy >>> 6] & (1L << doy)));
+      }
+    }
+  }
+
+  /** the days in the given months of year that are in days. */
+  private static String daysIn(
+      int year, int firstMonth, int lastMonth, ByPartMasks.DaySet days) {
+    long[] mask = new long[DayOfYearMasks.N_WORDS];
+    days.fill(year, mask);
+    int start = TimeUtils.dayOfYear(year, firstMonth, 1);
+    int end = TimeUtils.dayOfYear(year, lastMonth, 1)
+        + TimeUtils.monthLength(year, lastMonth);
+    for (int doy = 0; doy < mask.length * 64; ++doy) {
+      if (doy < start || doy >= end) { mask[doy >>> 6] &= ~(1L << doy); }
+    }
+    return format(year, mask);
+  }
+
+  private static String format(int year, long[] mask) {
+    StringBuilder sb = new StringBuilder();
+    for (int doy = 0; doy < mask.length * 64; ++doy) {
+      if (0 != (mask[doy >>> 6] & (1L << doy))) {
+        if (0 != sb.length()) { sb.append(','); }
+        sb.append(dateOf(year, doy));
+      }
+    }
+    return sb.toString();
+  }
+
+  private static DateValue dateOf(int year, int doy) {
+    DTBuilder b = new DTBuilder(year, 1, 1 + doy);
+    b.normalize();
+    return b.toDate();
+  }
+}
@@ -0,0 +1,265 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.iter;
+
+import com.google.ical.values.IcalParseUtil;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+public class CalendarIngesterTest extends TestCase {
+
+  static final TimeZone PST = TimeZone.getTimeZone("America/Los_Angeles");
+
+  private static final String ICS =
+      "BEGIN:VCALENDAR\r\n"
+      + "BEGIN:VTIMEZONE\r\n"
+      + "TZID:America/New_York\r\n"
+      + "BEGIN:DAYLIGHT\r\n"
+      + "RRULE:FREQ=YEARLY;BYMONTH=3;BYDAY=2SU\r\n"
+      + "END:DAYLIGHT\r\n"
+      + "END:VTIMEZONE\r\n"
+      + "BEGIN:VEVENT\r\n"
+      + "UID:weekly\r\n"
+      + "DTSTART;TZID=\"America/New_York\":20060102T090000\r\n"
+      + "DESCRIPTION:a long description that is\r\n"
+      + " folded\r\n"
+      + "RRULE:FREQ=WEEKLY;BYDAY=MO,\r\n"
+      + " WE;COUNT=6\r\n"
+      + "EXDATE;TZID=America/New_York:20060104T090000\r\n"
+      + "BEGIN:VALARM\r\n"
+      + "TRIGGER:-PT15M\r\n"
+      + "RRULE:FREQ=DAILY\r\n"
+      + "END:VALARM\r\n"
+      + "END:VEVENT\r\n"
+      + "begin:vevent\n"
+      + "uid:allday\n"
+      + "dtstart;value=date:20060301\n"
+      + "rrule:FREQ=MONTHLY;COUNT=3\n"
+      + "rdate;value=date:20060315\n"
+      + "end:vevent\n"
+      + "BEGIN:VEVENT\r\n"
+      + "UID:single\r\n"
+      + "DTSTART:20060401T120000Z\r\n"
+      + "END:VEVENT\r\n"
+      + "BEGIN:VEVENT\r\n"
+      + "UID:bad\r\n"
+      + "DTSTART:20060401T120000\r\n"
+      + "RRULE:FREQ=FORTNIGHTLY\r\n"
+      + "RRULE:FREQ=DAILY;COUNT=2\r\n"
+      + "END:VEVENT\r\n"
+      + "BEGIN:VEVENT\r\n"
+      + "UID:nostart\r\n"
+      + "END:VEVENT\r\n"
+      + "END:VCALENDAR\r\n"
+      + "BEGIN:VEVENT\r\n"
+      + "UID:unterminated\r\n";
+
+  private ExecutorService executor;
+  private File file;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    executor = Executors.newFixedThreadPool(2);
+    file = File.createTempFile("calendar", ".ics");
+    OutputStream out = new FileOutputStream(file);
+    out.write(ICS.getBytes("UTF-8"));
+    out.close();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+    file.delete();
+    super.tearDown();
+  }
+
+  public void testIngest() throws Exception {
+    // Small windows split events and lines, and force the window to grow.
+    for (int window : new int[] { 1 << 20, 300, 64 }) {
+      for (int parallelism : new int[] { 1, 3 }) {
+        String msg = window + "/" + parallelism;
+        List<CalendarIngester.Event> events = ingest(
+            new CalendarIngester(
+                executor, parallelism, PST, true, null, window));
+        assertEquals(msg, 6, events.size());
+
+        CalendarIngester.Event weekly = events.get(0);
+        assertEquals(msg, "weekly", weekly.getUid());
+        assertEquals(msg, ICS.indexOf("BEGIN:VEVENT"), weekly.getOffset());
+        assertEquals(msg, "America/New_York", weekly.getTzid().getID());
+        assertEquals(
+            msg,
+            join(RecurrenceIteratorFactory.compileRecurrence(
+                "RRULE:FREQ=WEEKLY;BYDAY=MO,WE;COUNT=6\n"
+                + "EXDATE;TZID=America/New_York:20060104T090000",
+                IcalParseUtil.parseDateValue("20060102T090000"),
+                weekly.getTzid(), true)),
+            join(weekly.getRecurrence()));
+
+        CalendarIngester.Event allDay = events.get(1);
+        assertEquals(msg, "allday", allDay.getUid());
+        assertEquals(msg, "20060301,20060315,20060401,20060501",
+                     join(allDay.getRecurrence()));
+
+        CalendarIngester.Event single = events.get(2);
+        assertEquals(msg, "20060401T120000", join(single.getRecurrence()));
+
+        CalendarIngester.Event bad = events.get(3);
+        assertTrue(msg, bad.getError() instanceof ParseException);
+        assertNull(msg, bad.getRecurrence());
+
+        CalendarIngester.Event noStart = events.get(4);
+        assertEquals(msg, "nostart", noStart.getUid());
+        assertTrue(msg, noStart.getError() instanceof ParseException);
+
+        CalendarIngester.Event unterminated = events.get(5);
+        assertEquals(msg, ICS.lastIndexOf("BEGIN:VEVENT"),
+                     unterminated.getOffset());
+        assertTrue(msg, unterminated.getError() instanceof ParseException);
+      }
+    }
+  }
+
+  public void testLenientIngestDropsBadLines() throws Exception {
+    RecurrenceCache cache = new RecurrenceCache(16);
+    for (RecurrenceCache c : new RecurrenceCache[] { null, cache }) {
+      List<CalendarIngester.Event> events = ingest(
+          new CalendarIngester(executor, 2, PST, false, c));
+      CalendarIngester.Event bad = events.get(3);
+      assertNull(bad.getError());
+      // Daylight savings time starts on the 2nd.
+      assertEquals("20060401T200000,20060402T190000",
+                   join(bad.getRecurrence()));
+    }
+    assertTrue(cache.missCount() > 0);
+  }
+
+  public void testSinkFailureStopsIngest() throws Exception {
+    try {
+      new CalendarIngester(executor, 3, PST, true, null, 64).ingest(
+          file,
+          new CalendarIngester.Sink() {
+            public void event(CalendarIngester.Event event) {
+              throw new IllegalStateException(event.getUid());
+            }
+          });
+      fail("sink failed");
+    } catch (IllegalStateException ex) {
+      // pass
+    }
+  }
+
+  public void testBadStartDoesNotStopIngest() throws Exception {
+    OutputStream out = new FileOutputStream(file);
+    out.write((
+        "BEGIN:VEVENT\r\n"
+        + "UID:huge\r\n"
+        + "DTSTART:99999999990101\r\n"
+        + "END:VEVENT\r\n"
+        + "BEGIN:VEVENT\r\n"
+        + "UID:fine\r\n"
+        + "DTSTART:20060101\r\n"
+        + "END:VEVENT\r\n").getBytes("UTF-8"));
+    out.close();
+    List<CalendarIngester.Event> events = ingest(
+        new CalendarIngester(executor, 2, PST, true, null));
+    assertEquals(2, events.size());
+    assertEquals("huge", events.get(0).getUid());
+    assertTrue(events.get(0).getError() instanceof IllegalArgumentException);
+    assertNull(events.get(0).getRecurrence());
+    assertEquals("20060101", join(events.get(1).getRecurrence()));
+  }
+
+  public void testRejectedWorkersDoNotLeakOthers() throws Exception {
+    // Runs one worker, and rejects the next.
+    ThreadPoolExecutor oneThread = new ThreadPoolExecutor(
+        1, 1, 0, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+    try {
+      ingest(new CalendarIngester(oneThread, 3, PST, true, null));
+      fail("rejected");
+    } catch (RejectedExecutionException ex) {
+      // pass
+    }
+    // The worker that did start was told to stop.
+    oneThread.shutdown();
+    assertTrue(oneThread.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  public void testIngestFromExecutorThread() throws Exception {
+    // The workers are queued behind the only thread, which is the caller's.
+    final ExecutorService oneThread = Executors.newFixedThreadPool(1);
+    try {
+      Future<List<CalendarIngester.Event>> future = oneThread.submit(
+          new Callable<List<CalendarIngester.Event>>() {
+            public List<CalendarIngester.Event> call() throws Exception {
+              return ingest(
+                  new CalendarIngester(oneThread, 3, PST, true, null, 64));
+            }
+          });
+      assertEquals(6, future.get(10, TimeUnit.SECONDS).size());
+    } finally {
+      oneThread.shutdownNow();
+    }
+  }
+
+  /** the events of the test file in order. */
+  private List<CalendarIngester.Event> ingest(CalendarIngester ingester)
+      throws Exception {
+    final List<CalendarIngester.Event> events =
+        Collections.synchronizedList(new ArrayList<CalendarIngester.Event>());
+    ingester.ingest(file, new CalendarIngester.Sink() {
+        public void event(CalendarIngester.Event event) {
+          events.add(event);
+        }
+      });
+    Collections.sort(events, new Comparator<CalendarIngester.Event>() {
+        public int compare(CalendarIngester.Event a, CalendarIngester.Event b) {
+          return a.getOffset() < b.getOffset() ? -1
+              : a.getOffset() == b.getOffset() ? 0 : 1;
+        }
+      });
+    return events;
+  }
+
+  private static String join(RecurrenceIterable recurrence) {
+    StringBuilder sb = new StringBuilder();
+    for (RecurrenceIterator it = recurrence.iterator(); it.hasNext();) {
+      sb.append(',').append(it.next());
+    }
+    return sb.substring(1);
+  }
+
+}
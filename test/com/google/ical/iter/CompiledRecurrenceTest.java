@@ -0,0 +1,215 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.iter;
+
+import com.google.ical.values.ContentLineReader;
+import com.google.ical.values.DateValue;
+import com.google.ical.values.IcalObject;
+import com.google.ical.values.IcalParseUtil;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+/**
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+public class CompiledRecurrenceTest extends TestCase {
+
+  static final TimeZone PST = TimeZone.getTimeZone("America/Los_Angeles");
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+  }
+
+  private static final String RDATA =
+      "RRULE:FREQ=MONTHLY;BYDAY=-1FR;BYHOUR=9,17;COUNT=6\n"
+      + "RRULE:FREQ=WEEKLY;INTERVAL=3;UNTIL=20060301T000000Z\n"
+      + "EXRULE:FREQ=YEARLY;BYMONTH=2;BYMONTHDAY=3;BYHOUR=17\n"
+      + "EXDATE:20060127T090000\n"
+      + "RDATE:20060101T120000";
+
+  private static final String EXPECTED =
+      "20060101T200000,20060106T010000,20060127T010000,20060128T010000,"
+      + "20060217T010000,20060224T170000,20060225T010000,20060331T170000,"
+      + "20060401T010000";
+
+  public void testIteratorsAreIndependent() throws Exception {
+    CompiledRecurrence recurrence =
+        RecurrenceIteratorFactory.compileRecurrence(
+            RDATA, IcalParseUtil.parseDateValue("20060105T170000"), PST, true);
+    RecurrenceIterator a = recurrence.iterator();
+    RecurrenceIterator b = recurrence.iterator();
+    // Interleave the two so that any state shared between them would show.
+    StringBuilder sa = new StringBuilder(), sb = new StringBuilder();
+    while (a.hasNext()) {
+      sa.append(',').append(a.next());
+      if (b.hasNext()) { sb.append(',').append(b.next()); }
+      if (b.hasNext()) { sb.append(',').append(b.next()); }
+    }
+    assertFalse(b.hasNext());
+    assertEquals(EXPECTED, sa.substring(1));
+    assertEquals(EXPECTED, sb.substring(1));
+    assertEquals(EXPECTED, join(recurrence.iterator()));
+  }
+
+  public void testCompileFromReader() throws Exception {
+    ContentLineReader reader = new ContentLineReader(
+        new StringReader("BEGIN:VEVENT\n" + RDATA + "\nEND:VEVENT"), PST);
+    List<IcalObject> lines = new ArrayList<IcalObject>();
+    for (IcalObject line; null != (line = reader.next());) {
+      lines.add(line);
+    }
+    CompiledRecurrence recurrence =
+        RecurrenceIteratorFactory.compileRecurrence(
+            lines.toArray(new IcalObject[lines.size()]),
+            IcalParseUtil.parseDateValue("20060105T170000"), PST, true);
+    assertEquals(EXPECTED, join(recurrence.iterator()));
+  }
+
+  public void testConcurrentIteration() throws Exception {
+    final CompiledRecurrence recurrence =
+        RecurrenceIteratorFactory.compileRecurrence(
+            RDATA, IcalParseUtil.parseDateValue("20060105T170000"), PST, true);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<String>> results = new ArrayList<Future<String>>();
+      for (int i = 0; i < 64; ++i) {
+        final int skip = i % 4;
+        results.add(executor.submit(new Callable<String>() {
+            public String call() throws Exception {
+              // Skip ahead in another iterator so that the iterators in
+              // different threads are in different states.
+              if (0 != skip) {
+                recurrence.iterator().advanceTo(
+                    IcalParseUtil.parseDateValue("2006030" + skip));
+              }
+              return join(recurrence.iterator());
+            }
+          }));
+      }
+      for (Future<String> result : results) {
+        assertEquals(EXPECTED, result.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static String join(RecurrenceIterator it) {
+    StringBuilder sb = new StringBuilder();
+    while (it.hasNext()) {
+      DateValue dv = it.next();
+      sb.append(',').append(dv);
+    }
+    return sb.substring(1);
+  }
+
+  public void testFirstAndLastOccurrence() throws Exception {
+    String[][] tests = {
+      // Periodic rules with a COUNT, including across daylight savings.
+      { "RRULE:FREQ=DAILY;COUNT=400", "20060101T093000" },
+      { "RRULE:FREQ=HOURLY;INTERVAL=5;COUNT=1000", "20060101T093000" },
+      { "RRULE:FREQ=WEEKLY;INTERVAL=2;COUNT=30", "20060101" },
+      // Rules iterated by generators or masks.
+      { "RRULE:FREQ=MONTHLY;BYDAY=-1FR;BYHOUR=9,17;COUNT=25",
+        "20060101T090000" },
+      { "RRULE:FREQ=YEARLY;BYMONTH=2;BYMONTHDAY=29;COUNT=5", "20040229" },
+      { "RRULE:FREQ=MONTHLY;BYDAY=MO,TU,WE,TH,FR;BYSETPOS=-1;COUNT=13",
+        "20060101" },
+      // UNTIL, which need not be an instance.
+      { "RRULE:FREQ=WEEKLY;BYDAY=TU,TH;UNTIL=20070519T000000Z",
+        "20060101T120000" },
+      { "RRULE:FREQ=MINUTELY;INTERVAL=17;UNTIL=20060402T120000Z",
+        "20060301T000000" },
+      // RDATEs, and DTSTART after all other instances.
+      { "RDATE:20060105,20080101,20070101\nRRULE:FREQ=DAILY;COUNT=3",
+        "20060101" },
+      { "RRULE:FREQ=DAILY;UNTIL=20050101", "20060101" },
+      // Exclusions that remove the latest instances.
+      { "RRULE:FREQ=DAILY;COUNT=40\nEXDATE:20060208,20060209",
+        "20060101" },
+      { "RRULE:FREQ=DAILY;COUNT=40\nEXRULE:FREQ=WEEKLY;BYDAY=TH,FR",
+        "20060101" },
+      { "RRULE:FREQ=DAILY;COUNT=3\nEXDATE:20060101,20060102,20060103",
+        "20060101" },
+    };
+    for (String[] test : tests) {
+      String rdata = test[0];
+      CompiledRecurrence recurrence =
+          RecurrenceIteratorFactory.compileRecurrence(
+              rdata, IcalParseUtil.parseDateValue(test[1]), PST, true);
+      DateValue first = null, last = null;
+      for (RecurrenceIterator it = recurrence.iterator(); it.hasNext();) {
+        last = it.next();
+        if (null == first) { first = last; }
+      }
+      assertEquals(rdata, first, recurrence.firstOccurrence());
+      assertEquals(rdata, last, recurrence.lastOccurrence());
+    }
+  }
+
+  public void testLastOccurrenceOfLongSeries() throws Exception {
+    String[][] tests = {
+      // Counted from day masks.
+      { "RRULE:FREQ=WEEKLY;BYDAY=MO,WE;COUNT=200000", "20060101T120000" },
+      { "RRULE:FREQ=MONTHLY;BYDAY=-1FR;COUNT=5000", "20060101T090000" },
+      // Walked by generators.
+      { "RRULE:FREQ=DAILY;BYHOUR=9,17;COUNT=20000", "20060101T090000" },
+      { "RRULE:FREQ=YEARLY;UNTIL=20250615T120000Z;BYMONTHDAY=-6;BYHOUR=10"
+        + ";BYSETPOS=3,5;WKST=WE", "20230927T202900" },
+    };
+    for (String[] test : tests) {
+      String rdata = test[0];
+      CompiledRecurrence recurrence =
+          RecurrenceIteratorFactory.compileRecurrence(
+              rdata, IcalParseUtil.parseDateValue(test[1]), PST, true);
+      DateValue last = null;
+      for (RecurrenceIterator it = recurrence.iterator(); it.hasNext();) {
+        last = it.next();
+      }
+      assertEquals(rdata, last, recurrence.lastOccurrence());
+    }
+
+    // Too many instances to walk.
+    assertNull(RecurrenceIteratorFactory.compileRecurrence(
+        "RRULE:FREQ=DAILY;BYHOUR=9,17;COUNT=1000000",
+        IcalParseUtil.parseDateValue("20060101T090000"), PST, true)
+        .lastOccurrence());
+  }
+
+  public void testLastOccurrenceOfUnboundedRecurrence() throws Exception {
+    CompiledRecurrence recurrence =
+        RecurrenceIteratorFactory.compileRecurrence(
+            "RRULE:FREQ=DAILY;COUNT=3\nRRULE:FREQ=YEARLY",
+            IcalParseUtil.parseDateValue("20060101"), PST, true);
+    assertEquals(IcalParseUtil.parseDateValue("20060101"),
+                 recurrence.firstOccurrence());
+    assertNull(recurrence.lastOccurrence());
+  }
+
+}
@@ -18,6 +18,7 @@ import com.google.ical.values.RDateList;
 import com.google.ical.values.DateTimeValueImpl;
 import com.google.ical.values.DateValue;
 import com.google.ical.values.DateValueImpl;
+import com.google.ical.util.PackedDates;
 import com.google.ical.util.TimeUtils;
 
 import java.util.Collections;
@@ -134,6 +135,96 @@ public class CompoundIteratorImplTest extends TestCase {
         /*"20060412,20060413,*/"20060418,20060422,20070101");
   }
 
+  public void testFill() throws Exception {
+    RecurrenceIterator ri = RecurrenceIteratorFactory.createRecurrenceIterator(
+        "RRULE:FREQ=DAILY;INTERVAL=2\n"
+        + "EXDATE:20060417\n"
+        + "RDATE:20060414",
+        new DateValueImpl(2006, 4, 13), PST);
+    long end = DateValueComparison.comparable(new DateValueImpl(2006, 4, 23));
+    long[] out = new long[8];
+    // limited by len
+    assertEquals(3, ri.fill(out, 1, 3, end));
+    // limited by the window end
+    assertEquals(2, ri.fill(out, 4, 4, end));
+    assertEquals(0, ri.fill(out, 6, 2, end));
+    StringBuilder sb = new StringBuilder();
+    for (int i = 1; i < 6; ++i) {
+      if (i != 1) { sb.append(','); }
+      sb.append(PackedDates.unpack(out[i]));
+    }
+    assertEquals("20060413,20060414,20060415,20060419,20060421", sb.toString());
+    // the date at the window end is not consumed
+    assertEquals(new DateValueImpl(2006, 4, 23), ri.next());
+  }
+
+  public void testFillOnceOneIteratorRemains() throws Exception {
+    // After the 15th, only the rule is left to fill from.
+    RecurrenceIterator ri = RecurrenceIteratorFactory.createRecurrenceIterator(
+        "RRULE:FREQ=DAILY;INTERVAL=3\n"
+        + "RDATE:20060415",
+        new DateValueImpl(2006, 4, 13), PST);
+    long end = DateValueComparison.comparable(new DateValueImpl(2006, 4, 28));
+    long[] out = new long[8];
+    assertEquals(6, ri.fill(out, 0, 8, end));
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 6; ++i) {
+      if (i != 0) { sb.append(','); }
+      sb.append(PackedDates.unpack(out[i]));
+    }
+    assertEquals("20060413,20060415,20060416,20060419,20060422,20060425",
+                 sb.toString());
+    assertEquals(new DateValueImpl(2006, 4, 28), ri.next());
+    assertEquals(new DateValueImpl(2006, 5, 1), ri.next());
+  }
+
+  public void testManyInclusionsAndExclusions() throws Exception {
+    // Five inclusions, counting DTSTART, and three exclusions, so the tree
+    // that merges them is not complete.
+    runRecurrenceIteratorTest(
+        "RDATE:20060414,20060420\n"
+        + "RRULE:FREQ=WEEKLY;COUNT=3\n"
+        + "RDATE:20060416,20060420,20060427\n"
+        + "RRULE:FREQ=DAILY;INTERVAL=5;COUNT=4\n"
+        + "EXDATE:20060414\n"
+        + "EXRULE:FREQ=WEEKLY;BYDAY=SU;COUNT=1\n"
+        + "EXDATE:20060423,20060427",
+        new DateValueImpl(2006, 4, 13), PST, 10, null,
+        "20060413,20060418,20060420,20060428");
+    runRecurrenceIteratorTest(
+        "RDATE:20060414,20060420\n"
+        + "RRULE:FREQ=WEEKLY;COUNT=3\n"
+        + "RDATE:20060416,20060420,20060427\n"
+        + "RRULE:FREQ=DAILY;INTERVAL=5;COUNT=4\n"
+        + "EXDATE:20060414\n"
+        + "EXRULE:FREQ=WEEKLY;BYDAY=SU;COUNT=1\n"
+        + "EXDATE:20060423,20060427",
+        new DateValueImpl(2006, 4, 13), PST, 10, new DateValueImpl(2006, 4, 19),
+        "20060420,20060428");
+  }
+
+  public void testExcludedDates() throws Exception {
+    // EXDATEs are merged into one list, and dates don't match date-times.
+    String rdata = "RRULE:FREQ=DAILY;COUNT=10\n"
+        + "EXDATE:20060415,20060417\n"
+        + "EXDATE:20060417,20060422\n"
+        + "EXDATE:20060420T000000";
+    runRecurrenceIteratorTest(
+        rdata, new DateValueImpl(2006, 4, 13), UTC, 10, null,
+        "20060413,20060414,20060416,20060418,20060419,20060420,20060421");
+    runRecurrenceIteratorTest(
+        rdata, new DateValueImpl(2006, 4, 13), UTC, 10,
+        new DateValueImpl(2006, 4, 17), "20060418,20060419,20060420,20060421");
+
+    // fill stops short of each excluded date and carries on past it.
+    RecurrenceIterator ri = RecurrenceIteratorFactory.createRecurrenceIterator(
+        rdata, new DateValueImpl(2006, 4, 13), UTC);
+    long[] out = new long[10];
+    assertEquals(7, ri.fill(out, 0, 10, Long.MAX_VALUE));
+    assertEquals(new DateValueImpl(2006, 4, 21), PackedDates.unpack(out[6]));
+    assertFalse(ri.hasNext());
+  }
+
   public void testInfiniteRecurrences() throws Exception {
     runRecurrenceIteratorTest(
         "\r\n\n \r\n"
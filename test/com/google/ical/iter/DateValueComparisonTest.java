@@ -14,6 +14,7 @@
 
 package com.google.ical.iter;
 
+import com.google.ical.util.PackedDates;
 import com.google.ical.values.DateTimeValueImpl;
 import com.google.ical.values.DateValue;
 import com.google.ical.values.DateValueImpl;
@@ -65,6 +66,22 @@ public class DateValueComparisonTest extends TestCase {
     }
   }
 
+  public void testUnpack() throws Exception {
+    DateValue[] dates = {
+      new DateValueImpl(2006, 4, 11),
+      new DateTimeValueImpl(2006, 4, 11, 0, 0, 0),
+      new DateTimeValueImpl(2006, 12, 31, 23, 59, 59),
+      new DateValueImpl(1, 1, 1),
+      new DateTimeValueImpl(9999, 2, 28, 12, 30, 15),
+    };
+    for (DateValue dv : dates) {
+      long packed = DateValueComparison.comparable(dv);
+      assertEquals(dv instanceof DateTimeValueImpl,
+                   PackedDates.isDateTime(packed));
+      assertEquals(dv, PackedDates.unpack(packed));
+    }
+  }
+
   static final int sign3(int i) {
     return i < 0 ? -1 : i != 0 ? 1 : 0;
   }
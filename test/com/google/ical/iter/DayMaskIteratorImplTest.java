@@ -0,0 +1,146 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.iter;
+
+import com.google.ical.values.IcalParseUtil;
+import com.google.ical.values.RRule;
+import com.google.ical.util.TimeUtils;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+/**
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+public class DayMaskIteratorImplTest extends TestCase {
+
+  static final TimeZone PST = TimeZone.getTimeZone("America/Los_Angeles");
+  static final TimeZone UTC = TimeUtils.utcTimezone();
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+  }
+
+  public void testOnlyDailyRulesUseMasks() throws Exception {
+    assertTrue(createIterator("RRULE:FREQ=WEEKLY;BYDAY=MO", "20060101", UTC)
+               instanceof DayMaskIteratorImpl);
+    assertTrue(
+        createIterator("RRULE:FREQ=MONTHLY;BYDAY=-1FR", "20060101T090000", PST)
+        instanceof DayMaskIteratorImpl);
+    assertFalse(
+        createIterator("RRULE:FREQ=WEEKLY;BYDAY=MO;BYHOUR=9,17",
+                       "20060101T090000", PST)
+        instanceof DayMaskIteratorImpl);
+    assertFalse(
+        createIterator("RRULE:FREQ=HOURLY;BYDAY=MO", "20060101T090000", PST)
+        instanceof DayMaskIteratorImpl);
+  }
+
+  public void testCountAndUntil() throws Exception {
+    runRecurrenceIteratorTest(
+        "RRULE:FREQ=MONTHLY;BYDAY=-1FR;COUNT=5", "20060105T090000", PST, null,
+        "20060127T170000,20060224T170000,20060331T170000,20060428T160000,"
+        + "20060526T160000");
+    // The BYSETPOS rule's instances take their time from the start of the
+    // month.
+    runRecurrenceIteratorTest(
+        "RRULE:FREQ=MONTHLY;BYDAY=MO,TU,WE,TH,FR;BYSETPOS=-1;"
+        + "UNTIL=20060601T000000Z",
+        "20060131T090000", PST, null,
+        "20060228T080000,20060331T080000,20060428T070000,20060531T070000");
+  }
+
+  public void testAdvanceCountsSkippedInstances() throws Exception {
+    // 2 April 2006 is the first day of daylight savings in PST.
+    runRecurrenceIteratorTest(
+        "RRULE:FREQ=WEEKLY;INTERVAL=2;BYDAY=SU,TU;COUNT=10", "20060305T013000",
+        PST, "20060401",
+        "20060402T093000,20060411T083000,20060416T083000,20060425T083000,"
+        + "20060430T083000,20060509T083000");
+  }
+
+  public void testAdvanceFar() throws Exception {
+    runRecurrenceIteratorTest(
+        "RRULE:FREQ=YEARLY;BYMONTH=2;BYMONTHDAY=29", "20000229", UTC,
+        "20900101", 3, "20920229,20960229,21040229");
+    // Years skipped by advancing don't count against the generator's
+    // throttle, which counts from the year advanced to instead.
+    runRecurrenceIteratorTest(
+        "RRULE:FREQ=YEARLY;BYMONTH=2;BYMONTHDAY=29", "20000229", UTC,
+        "21020101", 2, "21040229,21080229");
+    runRecurrenceIteratorTest(
+        "RRULE:FREQ=YEARLY;BYMONTH=2;BYMONTHDAY=30", "20000101", UTC,
+        "21020101", "");
+    runRecurrenceIteratorTest(
+        "RRULE:FREQ=MONTHLY;BYDAY=MO,TU,WE,TH,FR;BYSETPOS=-1",
+        "20060131", UTC, "20500101", 3, "20500131,20500228,20500331");
+  }
+
+  public void testIteratorsOverSequentialMasksAreIndependent()
+      throws Exception {
+    // A weekly BYSETPOS rule's masks are computed in order.
+    RecurrenceIterable series = new RRulePlan(
+        new RRule("RRULE:FREQ=WEEKLY;BYDAY=MO,WE,FR;BYSETPOS=-1"),
+        IcalParseUtil.parseDateValue("20060101T090000"), PST);
+    RecurrenceIterator a = series.iterator();
+    RecurrenceIterator b = series.iterator();
+    assertTrue(a instanceof DayMaskIteratorImpl);
+    b.advanceTo(IcalParseUtil.parseDateValue("20100101T000000"));
+    assertEquals("20100101T170000", b.next().toString());
+    assertEquals("20060106T170000", a.next().toString());
+    assertEquals("20060113T170000", a.next().toString());
+    assertEquals("20100108T170000", b.next().toString());
+    RecurrenceIterator c = series.iterator();
+    c.advanceTo(IcalParseUtil.parseDateValue("20060110T000000"));
+    assertEquals("20060113T170000", c.next().toString());
+  }
+
+  private static RecurrenceIterator createIterator(
+      String rrule, String dtStart, TimeZone tz) throws Exception {
+    return RecurrenceIteratorFactory.createRecurrenceIterator(
+        new RRule(rrule), IcalParseUtil.parseDateValue(dtStart), tz);
+  }
+
+  private void runRecurrenceIteratorTest(
+      String rrule, String dtStart, TimeZone tz, String advanceTo,
+      String golden)
+  throws Exception {
+    runRecurrenceIteratorTest(rrule, dtStart, tz, advanceTo, 50, golden);
+  }
+
+  private void runRecurrenceIteratorTest(
+      String rrule, String dtStart, TimeZone tz, String advanceTo, int limit,
+      String golden)
+  throws Exception {
+    RecurrenceIterator ri = createIterator(rrule, dtStart, tz);
+    if (null != advanceTo) {
+      ri.advanceTo(IcalParseUtil.parseDateValue(advanceTo));
+    }
+    StringBuilder sb = new StringBuilder();
+    int k = 0;
+    while (ri.hasNext() && k < limit) {
+      if (k++ != 0) { sb.append(','); }
+      sb.append(ri.next());
+    }
+    assertEquals(golden, sb.toString());
+  }
+
+}
@@ -0,0 +1,110 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.iter;
+
+import com.google.ical.values.DateValue;
+import com.google.ical.values.DateValueImpl;
+import com.google.ical.values.IcalParseUtil;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+/**
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+public class OccurrenceIndexTest extends TestCase {
+
+  static final TimeZone PST = TimeZone.getTimeZone("America/Los_Angeles");
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+  }
+
+  public void testRandomAccessMatchesIteration() throws Exception {
+    RecurrenceIterable series =
+        RecurrenceIteratorFactory.createRecurrenceIterable(
+            "RRULE:FREQ=MONTHLY;BYDAY=MO,-1FR;BYHOUR=9,17;COUNT=500\n"
+            + "EXDATE:20060306T090000,20060417T170000\n"
+            + "RDATE:20060101T120000",
+            IcalParseUtil.parseDateValue("20060102T090000"), PST, true);
+    List<DateValue> all = new ArrayList<DateValue>();
+    for (DateValue dv : series) { all.add(dv); }
+
+    OccurrenceIndex index = new OccurrenceIndex(series);
+    // look up out of order so that some lookups extend the index and some
+    // are served from it.
+    for (int n : new int[] { 450, 3, 0, 498, 200, 201, 1 }) {
+      assertEquals(all.get(n), index.occurrenceAt(n));
+      assertEquals(n, index.indexOf(all.get(n)));
+    }
+    assertEquals(499, all.size());
+    assertNull(index.occurrenceAt(499));
+    assertNull(index.occurrenceAt(10000));
+  }
+
+  public void testIndexOfNonOccurrence() throws Exception {
+    OccurrenceIndex index = new OccurrenceIndex(
+        RecurrenceIteratorFactory.createRecurrenceIterable(
+            "RRULE:FREQ=DAILY;INTERVAL=2", new DateValueImpl(2006, 1, 1), PST,
+            true));
+    assertEquals(-1, index.indexOf(new DateValueImpl(2005, 12, 31)));
+    assertEquals(0, index.indexOf(new DateValueImpl(2006, 1, 1)));
+    assertEquals(-1, index.indexOf(new DateValueImpl(2006, 1, 2)));
+    assertEquals(1000, index.indexOf(new DateValueImpl(2011, 06, 24)));
+    assertEquals(new DateValueImpl(2011, 06, 24), index.occurrenceAt(1000));
+  }
+
+  public void testMoreThanACenturyOfOccurrences() throws Exception {
+    RecurrenceIterable series =
+        RecurrenceIteratorFactory.createRecurrenceIterable(
+            "RRULE:FREQ=YEARLY;COUNT=300", new DateValueImpl(2006, 1, 1),
+            TimeZone.getTimeZone("UTC"), true);
+    OccurrenceIndex index = new OccurrenceIndex(series);
+    assertEquals(new DateValueImpl(2305, 1, 1), index.occurrenceAt(299));
+    assertEquals(new DateValueImpl(2110, 1, 1), index.occurrenceAt(104));
+    assertEquals(104, index.indexOf(new DateValueImpl(2110, 1, 1)));
+    assertEquals(250, index.indexOf(new DateValueImpl(2256, 1, 1)));
+  }
+
+  public void testSeriesThatSkipWhenAdvanced() throws Exception {
+    // The candidates for BYSETPOS depend on where iteration started.
+    assertLookupsMatchIteration(
+        RecurrenceIteratorFactory.createRecurrenceIterable(
+            "RRULE:FREQ=YEARLY;UNTIL=20250615T120000Z;BYMONTHDAY=-6;BYHOUR=10"
+            + ";BYSETPOS=3,5;WKST=WE",
+            IcalParseUtil.parseDateValue("20230927T202900"),
+            TimeZone.getTimeZone("America/New_York"), true));
+  }
+
+  private static void assertLookupsMatchIteration(RecurrenceIterable series) {
+    List<DateValue> all = new ArrayList<DateValue>();
+    for (DateValue dv : series) { all.add(dv); }
+    OccurrenceIndex index = new OccurrenceIndex(series);
+    assertNull(index.occurrenceAt(all.size()));
+    for (int n = all.size(); --n >= 0;) {
+      assertEquals(all.get(n), index.occurrenceAt(n));
+      assertEquals(n, index.indexOf(all.get(n)));
+    }
+  }
+
+}
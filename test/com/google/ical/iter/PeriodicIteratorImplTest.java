@@ -0,0 +1,171 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.iter;
+
+import com.google.ical.values.DateValue;
+import com.google.ical.values.IcalParseUtil;
+import com.google.ical.values.RRule;
+import com.google.ical.util.TimeUtils;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+/**
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+public class PeriodicIteratorImplTest extends TestCase {
+
+  static final TimeZone PST = TimeZone.getTimeZone("America/Los_Angeles");
+  static final TimeZone UTC = TimeUtils.utcTimezone();
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+  }
+
+  public void testOnlySimpleRulesAreArithmetic() throws Exception {
+    assertTrue(createIterator("RRULE:FREQ=DAILY;INTERVAL=3", "20060101", UTC)
+               instanceof PeriodicIteratorImpl);
+    assertTrue(createIterator("RRULE:FREQ=WEEKLY;COUNT=4", "20060101", UTC)
+               instanceof PeriodicIteratorImpl);
+    assertTrue(
+        createIterator("RRULE:FREQ=MINUTELY", "20060101T120000", UTC)
+        instanceof PeriodicIteratorImpl);
+    assertFalse(
+        createIterator("RRULE:FREQ=WEEKLY;BYDAY=MO", "20060101", UTC)
+        instanceof PeriodicIteratorImpl);
+    assertFalse(createIterator("RRULE:FREQ=MONTHLY", "20060101", UTC)
+                instanceof PeriodicIteratorImpl);
+    // An all-day hourly rule is degenerate, so is left to the generators.
+    assertFalse(createIterator("RRULE:FREQ=HOURLY", "20060101", UTC)
+                instanceof PeriodicIteratorImpl);
+    // Hourly instances can collide across a daylight savings shift.
+    assertFalse(
+        createIterator("RRULE:FREQ=HOURLY", "20060101T120000", PST)
+        instanceof PeriodicIteratorImpl);
+    assertTrue(
+        createIterator("RRULE:FREQ=HOURLY;INTERVAL=3", "20060101T120000", PST)
+        instanceof PeriodicIteratorImpl);
+  }
+
+  public void testDaylightSavings() throws Exception {
+    // 2:30 does not exist on 2 April 2006 in PST, so is treated as 1:30 PST,
+    // which is dropped as a duplicate.
+    runRecurrenceIteratorTest(
+        "RRULE:FREQ=HOURLY;COUNT=4", "20060402T003000", PST, null,
+        "20060402T083000,20060402T093000,20060402T103000,20060402T113000");
+    runRecurrenceIteratorTest(
+        "RRULE:FREQ=HOURLY;INTERVAL=3;COUNT=3", "20060402T003000", PST, null,
+        "20060402T083000,20060402T103000,20060402T133000");
+    runRecurrenceIteratorTest(
+        "RRULE:FREQ=DAILY;COUNT=3", "20061028T120000", PST, null,
+        "20061028T190000,20061029T200000,20061030T200000");
+  }
+
+  public void testAdvanceFar() throws Exception {
+    runRecurrenceIteratorTest(
+        "RRULE:FREQ=MINUTELY;INTERVAL=7;COUNT=100000000", "20060101T000000",
+        UTC, "20300101T000000", 3,
+        "20300101T000400,20300101T001100,20300101T001800");
+    runRecurrenceIteratorTest(
+        "RRULE:FREQ=WEEKLY;INTERVAL=2;COUNT=100", "20060110", PST,
+        "20091001",
+        "20091013,20091027");
+  }
+
+  public void testAdvancePastEnd() throws Exception {
+    runRecurrenceIteratorTest(
+        "RRULE:FREQ=DAILY;COUNT=10", "20060101", UTC, "20060111", "");
+    runRecurrenceIteratorTest(
+        "RRULE:FREQ=HOURLY;UNTIL=20060101T235959Z", "20060101T120000", UTC,
+        "20060101T223000", "20060101T230000");
+  }
+
+  public void testCountBetween() throws Exception {
+    PeriodicIteratorImpl it = (PeriodicIteratorImpl) createIterator(
+        "RRULE:FREQ=MINUTELY;INTERVAL=7;COUNT=100000000", "20060101T000000",
+        UTC);
+    // 2030 is 8766 days after 2006, and a day holds 205 5/7 periods.
+    assertEquals(1440 * 8766 / 7 + 1,
+                 it.countBetween(packed("20060101T000000"),
+                                 packed("20300101T000100")));
+    assertEquals(0, it.countBetween(packed("20300101T000100"),
+                                    packed("20300101T000400")));
+    assertEquals(1, it.countBetween(packed("20300101T000100"),
+                                    packed("20300101T000401")));
+    assertEquals(0, it.countBetween(packed("20300101T000000"),
+                                    packed("20200101T000000")));
+    // Independent of the iterator's position.
+    it.advanceTo(IcalParseUtil.parseDateValue("20300101T000000"));
+    assertEquals(1, it.countBetween(packed("20060101T000000"),
+                                    packed("20060101T000001")));
+
+    // COUNT and UNTIL bound the count.
+    it = (PeriodicIteratorImpl) createIterator(
+        "RRULE:FREQ=DAILY;COUNT=10", "20060101", UTC);
+    assertEquals(10, it.countBetween(packed("19000101"), packed("21000101")));
+    assertEquals(3, it.countBetween(packed("20060108"), packed("21000101")));
+    it = (PeriodicIteratorImpl) createIterator(
+        "RRULE:FREQ=DAILY;UNTIL=20061030T190000Z", "20061028T120000", PST);
+    // 12:00 PDT on the 28th and 12:00 PST on the 29th, but not the 30th.
+    assertEquals(2, it.countBetween(packed("20060101T000000"),
+                                    packed("20070101T000000")));
+    assertEquals(1, it.countBetween(packed("20061029T200000"),
+                                    packed("20070101T000000")));
+    assertEquals(0, it.countBetween(packed("20061029T200001"),
+                                    packed("20070101T000000")));
+  }
+
+  private static long packed(String date) throws Exception {
+    return DateValueComparison.comparable(
+        IcalParseUtil.parseDateValue(date));
+  }
+
+  private static RecurrenceIterator createIterator(
+      String rrule, String dtStart, TimeZone tz) throws Exception {
+    return RecurrenceIteratorFactory.createRecurrenceIterator(
+        new RRule(rrule), IcalParseUtil.parseDateValue(dtStart), tz);
+  }
+
+  private void runRecurrenceIteratorTest(
+      String rrule, String dtStart, TimeZone tz, String advanceTo,
+      String golden)
+  throws Exception {
+    runRecurrenceIteratorTest(rrule, dtStart, tz, advanceTo, 50, golden);
+  }
+
+  private void runRecurrenceIteratorTest(
+      String rrule, String dtStart, TimeZone tz, String advanceTo, int limit,
+      String golden)
+  throws Exception {
+    RecurrenceIterator ri = createIterator(rrule, dtStart, tz);
+    if (null != advanceTo) {
+      ri.advanceTo(IcalParseUtil.parseDateValue(advanceTo));
+    }
+    StringBuilder sb = new StringBuilder();
+    int k = 0;
+    while (ri.hasNext() && k < limit) {
+      if (k++ != 0) { sb.append(','); }
+      sb.append(ri.next());
+    }
+    assertEquals(golden, sb.toString());
+  }
+
+}
@@ -14,8 +14,10 @@
 
 package com.google.ical.iter;
 
+import com.google.ical.util.DTBuilder;
 import com.google.ical.values.RDateList;
 import com.google.ical.values.DateValue;
+import com.google.ical.values.DateValueImpl;
 import java.util.TimeZone;
 
 import junit.framework.TestCase;
@@ -66,6 +68,59 @@ public class RDateIteratorImplTest extends TestCase {
         "RDATE:20060413,20060412,20060412", UTC, "20060412,20060413");
   }
 
+  public void testAdvanceTo() throws Exception {
+    String rdates = "RDATE:20060412,20060413,20060415,20060420,20060501,"
+        + "20060502,20060503,20060601,20060701,20070101";
+    runRecurrenceIteratorTest(
+        rdates, UTC, "20060412,20060413,20060415,20060420,20060501,20060502,"
+        + "20060503,20060601,20060701,20070101",
+        new DateValueImpl(2006, 4, 1));
+    runRecurrenceIteratorTest(
+        rdates, UTC, "20060413,20060415,20060420,20060501,20060502,"
+        + "20060503,20060601,20060701,20070101",
+        new DateValueImpl(2006, 4, 13));
+    runRecurrenceIteratorTest(
+        rdates, UTC, "20060502,20060503,20060601,20060701,20070101",
+        new DateValueImpl(2006, 5, 2));
+    runRecurrenceIteratorTest(
+        rdates, UTC, "20060601,20060701,20070101",
+        new DateValueImpl(2006, 5, 4));
+    runRecurrenceIteratorTest(
+        rdates, UTC, "20070101", new DateValueImpl(2006, 12, 31));
+    runRecurrenceIteratorTest(rdates, UTC, "", new DateValueImpl(2007, 1, 2));
+  }
+
+  public void testAdvanceToRepeatedly() throws Exception {
+    // Advance a little and a lot through a long list and check against a
+    // linear scan.
+    DateValue[] dates = new DateValue[1000];
+    for (int i = 0; i < dates.length; ++i) {
+      DTBuilder b = new DTBuilder(2006, 1, 1 + 3 * i);
+      b.normalize();
+      dates[i] = b.toDate();
+    }
+    RDateList rdates = new RDateList(UTC);
+    rdates.setDatesUtc(dates);
+    RecurrenceIterator ri =
+        RecurrenceIteratorFactory.createRecurrenceIterator(rdates);
+    int expected = 0;
+    for (int skip : new int[] { 0, 1, 2, 5, 31, 100, 250, 1000, 2000 }) {
+      DTBuilder b = new DTBuilder(2006, 1, 1 + 3 * expected + skip);
+      b.normalize();
+      DateValue start = b.toDate();
+      ri.advanceTo(start);
+      while (expected < dates.length
+             && dates[expected].compareTo(start) < 0) {
+        ++expected;
+      }
+      if (expected == dates.length) {
+        assertFalse(ri.hasNext());
+        break;
+      }
+      assertEquals(dates[expected++], ri.next());
+    }
+  }
+
   private void runRecurrenceIteratorTest(
       String icalText, TimeZone tz, String golden)
   throws Exception {
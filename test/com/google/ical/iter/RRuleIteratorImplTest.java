@@ -926,11 +926,12 @@ public class RRuleIteratorImplTest extends TestCase {
         "",
         IcalParseUtil.parseDateValue("19970901"));
 
-    // advancing way past year generator timeout
+    // advancing way past year generator timeout.  The timeout counts from
+    // the date advanced to.
     runRecurrenceIteratorTest(
         "RRULE:FREQ=YEARLY;BYMONTH=2;BYMONTHDAY=28",
-        IcalParseUtil.parseDateValue("20000101"), 10,
-        "",
+        IcalParseUtil.parseDateValue("20000101"), 3,
+        "25000228,25010228,25020228,...",
         IcalParseUtil.parseDateValue("25000101"));
 
     // advancing right to the start
@@ -1040,9 +1041,9 @@ public class RRuleIteratorImplTest extends TestCase {
         "RRULE:FREQ=WEEKLY;COUNT=13;INTERVAL=1;BYDAY=MO,SA,SU,FR"
         + ";BYSECOND=6,48,20;BYSETPOS=8,2,5,7,-8,4",
         IcalParseUtil.parseDateValue("19090424T075754"), 9,
-        "19090425T075706,19090425T075748,19090430T075706,"
-        + "19090430T075720,19090430T075748,19090501T075706,"
-        + "19090501T075748,19090502T075706,19090507T075706,...");
+        "19090425T075706,19090425T075720,19090426T075720,"
+        + "19090430T075706,19090430T075720,19090501T075706,"
+        + "19090501T075720,19090503T075720,19090507T075706,...");
   }
 
   public void testMonkeyHourly() throws Exception {
@@ -1089,6 +1090,51 @@ public class RRuleIteratorImplTest extends TestCase {
         );
   }
 
+  public void testAdvanceCountRule() throws Exception {
+    runRecurrenceIteratorTest(
+        "RRULE:FREQ=DAILY;COUNT=5000",
+        IcalParseUtil.parseDateValue("20060101"), 10,
+        "20190905,20190906,20190907,20190908,20190909",
+        IcalParseUtil.parseDateValue("20190905"));
+    runRecurrenceIteratorTest(
+        "RRULE:FREQ=MONTHLY;BYDAY=FR;BYMONTHDAY=13;COUNT=3",
+        IcalParseUtil.parseDateValue("19970902T090000"), 10,
+        "19980313T170000,19981113T170000",
+        IcalParseUtil.parseDateValue("19980301T000000"), PST);
+    runRecurrenceIteratorTest(
+        "RRULE:FREQ=WEEKLY;COUNT=20;BYDAY=TU,SU;BYHOUR=1,2",
+        IcalParseUtil.parseDateValue("20060301T013000"), 10,
+        "20060402T093000,20060404T083000,20060404T093000,20060409T083000",
+        IcalParseUtil.parseDateValue("20060402T000000"), PST);
+    runRecurrenceIteratorTest(
+        "RRULE:FREQ=DAILY;COUNT=3",
+        IcalParseUtil.parseDateValue("20060101"), 10,
+        "", IcalParseUtil.parseDateValue("20060104"));
+  }
+
+  public void testPackedIterationMatchesNext() throws Exception {
+    RRule rrule = new RRule(
+        "RRULE:FREQ=WEEKLY;COUNT=20;BYDAY=TU,SU;BYHOUR=1,2");
+    DateValue dtStart = IcalParseUtil.parseDateValue("20060301T013000");
+    RecurrenceIterator it = RecurrenceIteratorFactory.createRecurrenceIterator(
+        rrule, dtStart, PST);
+    RecurrenceIterator packedIt =
+        RecurrenceIteratorFactory.createRecurrenceIterator(
+            rrule, dtStart, PST);
+    it.advanceTo(IcalParseUtil.parseDateValue("20060402T000000"));
+    packedIt.advanceToPacked(DateValueComparison.comparable(
+        IcalParseUtil.parseDateValue("20060402T000000")));
+    int n = 0;
+    while (it.hasNext()) {
+      assertTrue(packedIt.hasNext());
+      assertEquals(DateValueComparison.comparable(it.next()),
+                   packedIt.nextPacked());
+      ++n;
+    }
+    assertFalse(packedIt.hasNext());
+    assertTrue(n > 0);
+  }
+
   // TODO(msamuel): test BYSETPOS with FREQ in (WEEKLY,MONTHLY,YEARLY) x
   // (setPos absolute, setPos relative, setPos mixed)
 
@@ -0,0 +1,151 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.iter;
+
+import com.google.ical.util.PackedDates;
+import com.google.ical.values.DateValueImpl;
+import com.google.ical.values.IcalParseUtil;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+public class RecurrenceBatchExpanderTest extends TestCase {
+
+  static final TimeZone PST =
+    TimeZone.getTimeZone("America/Los_Angeles");
+
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    executor = Executors.newFixedThreadPool(3);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+    super.tearDown();
+  }
+
+  public void testResultsMatchSerialExpansion() throws Exception {
+    String[] rules = {
+      "RRULE:FREQ=DAILY",
+      "RRULE:FREQ=WEEKLY;BYDAY=MO,WE,FR",
+      "RRULE:FREQ=MONTHLY;BYDAY=-1FR;COUNT=20",
+      "RRULE:FREQ=YEARLY;BYMONTH=2;BYMONTHDAY=29",
+      "RDATE:20060301T100000Z,20060315T100000Z\nEXDATE:20060315T100000Z",
+    };
+    List<RecurrenceBatchExpander.Job> jobs =
+        new ArrayList<RecurrenceBatchExpander.Job>();
+    for (int i = 0; i < 500; ++i) {
+      jobs.add(new RecurrenceBatchExpander.Job(
+          rules[i % rules.length],
+          IcalParseUtil.parseDateValue("200601" + (i % 9 + 10) + "T090000"),
+          PST, new DateValueImpl(2006, 3, 1), new DateValueImpl(2007, 3, 1),
+          40));
+    }
+    RecurrenceBatchExpander.Result[] results = new RecurrenceBatchExpander(
+        executor, 4, true, new RecurrenceCache(16)).expand(jobs);
+    assertEquals(jobs.size(), results.length);
+    for (int i = 0; i < results.length; ++i) {
+      RecurrenceBatchExpander.Job job = jobs.get(i);
+      assertNull(results[i].getError());
+      assertTrue(results[i].getCostNanos() >= 0);
+      RecurrenceIterator it =
+          RecurrenceIteratorFactory.createRecurrenceIterator(
+              job.rdata, job.dtStart, job.tzid);
+      it.advanceToPacked(job.windowStartUtc);
+      long[] expected = new long[job.limit];
+      int n = it.fill(expected, 0, job.limit, job.windowEndUtc);
+      long[] actual = results[i].getDates();
+      assertEquals(job.rdata, n, actual.length);
+      for (int j = 0; j < n; ++j) {
+        assertEquals(job.rdata, PackedDates.unpack(expected[j]),
+                     PackedDates.unpack(actual[j]));
+      }
+    }
+    // The daily rule stops at the limit, and the leap day rule finds nothing.
+    assertEquals(40, results[0].getDates().length);
+    assertEquals(0, results[3].getDates().length);
+  }
+
+  public void testBadSeriesDoesNotFailBatch() throws Exception {
+    List<RecurrenceBatchExpander.Job> jobs =
+        new ArrayList<RecurrenceBatchExpander.Job>();
+    jobs.add(new RecurrenceBatchExpander.Job(
+        "RRULE:FREQ=DAILY;COUNT=3", new DateValueImpl(2006, 1, 1), PST,
+        null, null, 10));
+    jobs.add(new RecurrenceBatchExpander.Job(
+        "RRULE:FREQ=FORTNIGHTLY", new DateValueImpl(2006, 1, 1), PST,
+        null, null, 10));
+    RecurrenceBatchExpander.Result[] results = new RecurrenceBatchExpander(
+        executor, 2, true, null).expand(jobs);
+    assertEquals(3, results[0].getDates().length);
+    assertNull(results[0].getError());
+    assertNull(results[1].getDates());
+    assertTrue(results[1].getError() instanceof ParseException);
+  }
+
+  public void testBatchFromExecutorThread() throws Exception {
+    final List<RecurrenceBatchExpander.Job> jobs =
+        new ArrayList<RecurrenceBatchExpander.Job>();
+    for (int i = 0; i < 20; ++i) {
+      jobs.add(new RecurrenceBatchExpander.Job(
+          "RRULE:FREQ=DAILY;COUNT=3", new DateValueImpl(2006, 1, 1), PST,
+          null, null, 10));
+    }
+    // The worker is queued behind the only thread, which is the caller's.
+    ExecutorService oneThread = Executors.newFixedThreadPool(1);
+    try {
+      final RecurrenceBatchExpander expander =
+          new RecurrenceBatchExpander(oneThread, 2, true, null);
+      Future<RecurrenceBatchExpander.Result[]> future = oneThread.submit(
+          new Callable<RecurrenceBatchExpander.Result[]>() {
+            public RecurrenceBatchExpander.Result[] call() throws Exception {
+              return expander.expand(jobs);
+            }
+          });
+      RecurrenceBatchExpander.Result[] results =
+          future.get(10, TimeUnit.SECONDS);
+      assertEquals(20, results.length);
+      for (RecurrenceBatchExpander.Result result : results) {
+        assertEquals(3, result.getDates().length);
+      }
+    } finally {
+      oneThread.shutdownNow();
+    }
+  }
+
+  public void testEmptyBatch() throws Exception {
+    assertEquals(
+        0,
+        new RecurrenceBatchExpander(executor, 2, true, null)
+        .expand(Collections.<RecurrenceBatchExpander.Job>emptyList()).length);
+  }
+
+}
@@ -0,0 +1,110 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.iter;
+
+import com.google.ical.values.DateTimeValueImpl;
+import com.google.ical.values.DateValueImpl;
+import java.text.ParseException;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+/**
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+public class RecurrenceCacheTest extends TestCase {
+
+  static final TimeZone PST = TimeZone.getTimeZone("America/Los_Angeles");
+  static final TimeZone UTC = TimeZone.getTimeZone("Etc/GMT");
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+  }
+
+  public void testHitsShareCompiledRecurrence() throws Exception {
+    RecurrenceCache cache = new RecurrenceCache(100);
+    CompiledRecurrence a = cache.compileRecurrence(
+        "RRULE:FREQ=MONTHLY;BYDAY=-1FR\nEXDATE:20060127",
+        new DateValueImpl(2006, 1, 1), PST, true);
+    // Differs only in folding and whitespace.
+    CompiledRecurrence b = cache.compileRecurrence(
+        "  RRULE:FREQ=MONTHLY;\r\n BYDAY=-1FR\r\n\r\nEXDATE:20060127\n",
+        new DateValueImpl(2006, 1, 1), PST, true);
+    assertSame(a, b);
+    assertEquals(1, cache.missCount());
+    assertEquals(1, cache.hitCount());
+
+    // The start, timezone, and strictness are all part of the key.
+    assertNotSame(a, cache.compileRecurrence(
+        "RRULE:FREQ=MONTHLY;BYDAY=-1FR\nEXDATE:20060127",
+        new DateValueImpl(2006, 1, 2), PST, true));
+    assertNotSame(a, cache.compileRecurrence(
+        "RRULE:FREQ=MONTHLY;BYDAY=-1FR\nEXDATE:20060127",
+        new DateTimeValueImpl(2006, 1, 1, 0, 0, 0), PST, true));
+    assertNotSame(a, cache.compileRecurrence(
+        "RRULE:FREQ=MONTHLY;BYDAY=-1FR\nEXDATE:20060127",
+        new DateValueImpl(2006, 1, 1), UTC, true));
+    assertNotSame(a, cache.compileRecurrence(
+        "RRULE:FREQ=MONTHLY;BYDAY=-1FR\nEXDATE:20060127",
+        new DateValueImpl(2006, 1, 1), PST, false));
+    assertEquals(5, cache.missCount());
+    assertEquals(1, cache.hitCount());
+    assertEquals(5, cache.size());
+    assertEquals(0, cache.evictionCount());
+
+    assertEquals(new DateValueImpl(2006, 1, 1), a.iterator().next());
+  }
+
+  public void testLeastRecentlyUsedEvicted() throws Exception {
+    // A single segment so that the eviction order is predictable.
+    RecurrenceCache cache = new RecurrenceCache(1);
+    DateValueImpl dtStart = new DateValueImpl(2006, 1, 1);
+    CompiledRecurrence daily = cache.compileRecurrence(
+        "RRULE:FREQ=DAILY", dtStart, PST, true);
+    assertSame(daily, cache.compileRecurrence(
+        "RRULE:FREQ=DAILY", dtStart, PST, true));
+    cache.compileRecurrence("RRULE:FREQ=WEEKLY", dtStart, PST, true);
+    assertEquals(1, cache.evictionCount());
+    assertEquals(1, cache.size());
+    assertNotSame(daily, cache.compileRecurrence(
+        "RRULE:FREQ=DAILY", dtStart, PST, true));
+    assertEquals(2, cache.evictionCount());
+    assertEquals(3, cache.missCount());
+    assertEquals(1, cache.hitCount());
+  }
+
+  public void testParseErrorsNotCached() throws Exception {
+    RecurrenceCache cache = new RecurrenceCache(10);
+    for (int i = 0; i < 2; ++i) {
+      try {
+        cache.compileRecurrence(
+            "RRULE:FREQ=DAILY;BOGUS", new DateValueImpl(2006, 1, 1), PST,
+            true);
+        fail();
+      } catch (ParseException ex) {
+        // pass
+      }
+    }
+    assertEquals(0, cache.size());
+    assertEquals(2, cache.missCount());
+  }
+
+}
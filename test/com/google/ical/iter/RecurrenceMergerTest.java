@@ -0,0 +1,192 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.iter;
+
+import com.google.ical.util.PackedDates;
+import com.google.ical.util.TimeUtils;
+import com.google.ical.values.DateValue;
+import com.google.ical.values.DateValueImpl;
+import com.google.ical.values.IcalParseUtil;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+/**
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+public class RecurrenceMergerTest extends TestCase {
+
+  static final TimeZone UTC = TimeUtils.utcTimezone();
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+  }
+
+  public void testMerge() throws Exception {
+    RecurrenceMerger<String> merger = new RecurrenceMerger<String>();
+    merger.add(series("RRULE:FREQ=DAILY;COUNT=4", "20060101"), "a");
+    merger.add(series("RRULE:FREQ=WEEKLY;COUNT=2", "20060102"), "b");
+    merger.add(series("RDATE:20060103,20060103,20060110", "20060101"), "c");
+    StringBuilder sb = new StringBuilder();
+    while (merger.hasNext()) {
+      if (sb.length() != 0) { sb.append(','); }
+      sb.append(merger.next()).append(' ').append(merger.payload());
+    }
+    // Dates from different series on the same day are all returned in the
+    // order the series were added, but each series' own dupes are not.
+    assertEquals(
+        "20060101 a,20060101 c,20060102 a,20060102 b,20060103 a,20060103 c,"
+        + "20060104 a,20060109 b,20060110 c",
+        sb.toString());
+    try {
+      merger.next();
+      fail();
+    } catch (NoSuchElementException ex) {
+      // pass
+    }
+  }
+
+  public void testFillStopsAtWindowEnd() throws Exception {
+    CountingIterable daily = new CountingIterable(
+        series("RRULE:FREQ=DAILY", "20060101"));
+    CountingIterable yearly = new CountingIterable(
+        series("RRULE:FREQ=YEARLY", "20070101"));
+    RecurrenceMerger<String> merger = new RecurrenceMerger<String>();
+    merger.add(daily, "daily");
+    merger.add(yearly, "yearly");
+
+    long[] dates = new long[10];
+    List<String> payloads = new ArrayList<String>();
+    long end = PackedDates.packDate(2006, 1, 4);
+    assertEquals(3, merger.fill(dates, payloads, 0, 10, end));
+    assertEquals("20060101,20060102,20060103", format(dates, 0, 3));
+    assertEquals("[daily, daily, daily]", payloads.toString());
+    // The yearly series starts after the window, so only its first
+    // occurrence has been looked at.
+    assertEquals(1, yearly.nDates);
+    assertEquals(4, daily.nDates);
+
+    // Top N from a later start.
+    payloads.clear();
+    merger.advanceTo(new DateValueImpl(2007, 1, 1));
+    assertEquals(2, merger.fill(dates, payloads, 1, 2, Long.MAX_VALUE));
+    assertEquals("20070101,20070101", format(dates, 1, 2));
+    assertEquals("[daily, yearly]", payloads.toString());
+    assertEquals(2, yearly.nDates);
+  }
+
+  public void testAdvanceToBeforeStarting() throws Exception {
+    CountingIterable daily = new CountingIterable(
+        series("RRULE:FREQ=DAILY", "20060101"));
+    RecurrenceMerger<Integer> merger = new RecurrenceMerger<Integer>();
+    merger.add(daily, 1);
+    merger.add(series("RDATE:20060101,20060301", "20060101"), 2);
+    merger.advanceTo(new DateValueImpl(2006, 3, 1));
+    // Advancing before the first occurrence is taken doesn't iterate through
+    // the skipped days.
+    assertEquals(1, daily.nDates);
+    assertEquals(new DateValueImpl(2006, 3, 1), merger.next());
+    assertEquals(Integer.valueOf(1), merger.payload());
+    assertEquals(new DateValueImpl(2006, 3, 1), merger.next());
+    assertEquals(Integer.valueOf(2), merger.payload());
+    assertEquals(new DateValueImpl(2006, 3, 2), merger.next());
+    // Advancing backwards is a no-op.
+    merger.advanceTo(new DateValueImpl(2006, 1, 1));
+    assertEquals(new DateValueImpl(2006, 3, 3), merger.next());
+  }
+
+  public void testEmpty() throws Exception {
+    RecurrenceMerger<String> merger = new RecurrenceMerger<String>();
+    merger.advanceTo(new DateValueImpl(2006, 1, 1));
+    assertFalse(merger.hasNext());
+    assertEquals(
+        0, merger.fill(new long[1], new ArrayList<String>(), 0, 1,
+                       Long.MAX_VALUE));
+    try {
+      merger.payload();
+      fail();
+    } catch (IllegalStateException ex) {
+      // pass
+    }
+    try {
+      merger.add(series("RDATE:20060101", "20060101"), "late");
+      fail();
+    } catch (IllegalStateException ex) {
+      // pass
+    }
+  }
+
+  private static RecurrenceIterable series(String rdata, String dtStart)
+      throws Exception {
+    return RecurrenceIteratorFactory.createRecurrenceIterable(
+        rdata, IcalParseUtil.parseDateValue(dtStart), UTC, true);
+  }
+
+  private static String format(long[] dates, int off, int len) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = off; i < off + len; ++i) {
+      if (i != off) { sb.append(','); }
+      sb.append(PackedDates.unpack(dates[i]));
+    }
+    return sb.toString();
+  }
+
+  /** counts the dates taken from iterators over a series. */
+  private static final class CountingIterable implements RecurrenceIterable {
+    private final RecurrenceIterable series;
+    int nDates;
+
+    CountingIterable(RecurrenceIterable series) {
+      this.series = series;
+    }
+
+    public RecurrenceIterator iterator() {
+      final RecurrenceIterator it = series.iterator();
+      return new RecurrenceIterator() {
+        public boolean hasNext() { return it.hasNext(); }
+        public DateValue next() {
+          ++nDates;
+          return it.next();
+        }
+        public long nextPacked() {
+          ++nDates;
+          return it.nextPacked();
+        }
+        public int fill(long[] out, int off, int len, long endExclusive) {
+          int n = it.fill(out, off, len, endExclusive);
+          nDates += n;
+          return n;
+        }
+        public void advanceTo(DateValue newStartUtc) {
+          it.advanceTo(newStartUtc);
+        }
+        public void advanceToPacked(long newStartUtc) {
+          it.advanceToPacked(newStartUtc);
+        }
+        public void remove() { throw new UnsupportedOperationException(); }
+      };
+    }
+  }
+
+}
@@ -0,0 +1,85 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.iter;
+
+import com.google.ical.values.DateValue;
+import com.google.ical.values.IcalParseUtil;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+/**
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+public class RecurrenceSearchTest extends TestCase {
+
+  static final TimeZone PST = TimeZone.getTimeZone("America/Los_Angeles");
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+  }
+
+  public void testPreviousBefore() throws Exception {
+    RecurrenceIterable series =
+        RecurrenceIteratorFactory.createRecurrenceIterable(
+            "RRULE:FREQ=YEARLY;BYMONTH=2;BYMONTHDAY=29\n"
+            + "EXDATE:20200229T020000",
+            IcalParseUtil.parseDateValue("19960229T020000"), PST, true);
+    assertPreviousBefore(series, "20200301T000000", "20160229T100000");
+    assertPreviousBefore(series, "20160229T100000", "20120229T100000");
+    assertPreviousBefore(series, "20160229T100001", "20160229T100000");
+    assertPreviousBefore(series, "19960301T000000", "19960229T100000");
+    assertPreviousBefore(series, "19960229T100000", null);
+    assertPreviousBefore(series, "19000101T000000", null);
+  }
+
+  public void testPreviousBeforeFiniteSeries() throws Exception {
+    RecurrenceIterable series =
+        RecurrenceIteratorFactory.createRecurrenceIterable(
+            "RRULE:FREQ=DAILY;COUNT=3;BYMONTH=1",
+            IcalParseUtil.parseDateValue("20060101"), PST, true);
+    assertPreviousBefore(series, "20060103", "20060102");
+    assertPreviousBefore(series, "21000101", "20060103");
+  }
+
+  public void testPreviousBeforeBySetPos() throws Exception {
+    // The candidates for BYSETPOS depend on where iteration started, so the
+    // series can't be probed by advancing.
+    RecurrenceIterable series =
+        RecurrenceIteratorFactory.createRecurrenceIterable(
+            "RRULE:FREQ=YEARLY;UNTIL=20250615T120000Z;BYMONTHDAY=-6;BYHOUR=10"
+            + ";BYSETPOS=3,5;WKST=WE",
+            IcalParseUtil.parseDateValue("20230927T202900"),
+            TimeZone.getTimeZone("America/New_York"), true);
+    assertPreviousBefore(series, "20250601", "20250526T140000");
+    assertPreviousBefore(series, "20250526T140000", "20250326T140000");
+    assertPreviousBefore(series, "20231001", "20230928T002900");
+  }
+
+  private static void assertPreviousBefore(
+      RecurrenceIterable series, String dateUtc, String golden)
+      throws Exception {
+    DateValue actual = RecurrenceSearch.previousBefore(
+        series, IcalParseUtil.parseDateValue(dateUtc));
+    assertEquals(golden, null != actual ? actual.toString() : null);
+  }
+
+}
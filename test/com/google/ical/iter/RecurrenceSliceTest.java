@@ -0,0 +1,158 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.iter;
+
+import com.google.ical.values.DateTimeValueImpl;
+import com.google.ical.values.DateValue;
+import com.google.ical.values.DateValueImpl;
+import com.google.ical.values.IcalParseUtil;
+import java.util.List;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+/**
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+public class RecurrenceSliceTest extends TestCase {
+
+  static final TimeZone PST =
+    TimeZone.getTimeZone("America/Los_Angeles");
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+  }
+
+  public void testSplitAtYearBoundary() throws Exception {
+    RecurrenceSlice slice = new RecurrenceSlice(
+        series("RRULE:FREQ=DAILY", "20000101"),
+        new DateValueImpl(2001, 3, 15), new DateValueImpl(2009, 6, 1));
+    RecurrenceSlice[] halves = slice.split();
+    assertEquals(new DateValueImpl(2001, 3, 15), halves[0].getStart());
+    assertEquals(new DateValueImpl(2005, 1, 1), halves[0].getEnd());
+    assertEquals(new DateValueImpl(2005, 1, 1), halves[1].getStart());
+    assertEquals(new DateValueImpl(2009, 6, 1), halves[1].getEnd());
+  }
+
+  public void testSplitAtFinerBoundaries() throws Exception {
+    RecurrenceIterable daily = series("RRULE:FREQ=DAILY", "20000101");
+    // No year boundary near the middle, so split at a month.
+    RecurrenceSlice[] halves = new RecurrenceSlice(
+        daily, new DateValueImpl(2005, 11, 20), new DateValueImpl(2006, 2, 3))
+        .split();
+    assertEquals(new DateValueImpl(2006, 1, 1), halves[0].getEnd());
+    halves = new RecurrenceSlice(
+        daily, new DateValueImpl(2006, 2, 3), new DateValueImpl(2006, 2, 20))
+        .split();
+    assertEquals(new DateValueImpl(2006, 2, 11), halves[0].getEnd());
+    halves = new RecurrenceSlice(
+        daily, new DateTimeValueImpl(2006, 2, 3, 1, 30, 0),
+        new DateTimeValueImpl(2006, 2, 3, 9, 0, 0))
+        .split();
+    assertEquals(new DateTimeValueImpl(2006, 2, 3, 5, 0, 0),
+                 halves[0].getEnd());
+    // Too short to split.
+    assertNull(new RecurrenceSlice(
+        daily, new DateTimeValueImpl(2006, 2, 3, 1, 30, 0),
+        new DateTimeValueImpl(2006, 2, 3, 1, 45, 0))
+        .split());
+    assertNull(new RecurrenceSlice(
+        daily, new DateValueImpl(2006, 2, 3), new DateValueImpl(2006, 2, 3))
+        .split());
+  }
+
+  public void testPartitionCoversRange() throws Exception {
+    RecurrenceIterable minutely = series(
+        "RRULE:FREQ=MINUTELY;INTERVAL=7;BYHOUR=9,10,11,12,13,14,15,16\n"
+        + "EXDATE;TZID=America/Los_Angeles:20060102T090000",
+        "20060101T090000");
+    DateValue start = new DateTimeValueImpl(2006, 1, 1, 20, 0, 0);
+    DateValue end = new DateValueImpl(2006, 3, 1);
+    RecurrenceSlice whole = new RecurrenceSlice(minutely, start, end);
+    for (int n : new int[] { 1, 2, 3, 7, 16 }) {
+      List<RecurrenceSlice> parts = whole.partition(n);
+      assertTrue(parts.size() <= n);
+      assertTrue(parts.size() > n / 2);
+      assertEquals(start, parts.get(0).getStart());
+      assertEquals(end, parts.get(parts.size() - 1).getEnd());
+
+      RecurrenceIterator expected = minutely.iterator();
+      expected.advanceTo(start);
+      long[] buf = new long[100];
+      for (RecurrenceSlice part : parts) {
+        RecurrenceIterator actual = part.iterator();
+        // Mix fill and next.
+        while (actual.hasNext()) {
+          assertEquals(expected.next(), actual.next());
+          int k = actual.fill(buf, 0, buf.length, Long.MAX_VALUE);
+          for (int i = 0; i < k; ++i) {
+            assertEquals(expected.nextPacked(), buf[i]);
+          }
+        }
+        assertEquals(0, actual.fill(buf, 0, buf.length, Long.MAX_VALUE));
+      }
+      assertTrue(expected.next().compareTo(end) >= 0);
+    }
+  }
+
+  public void testSlicesFarFromStart() throws Exception {
+    // Slices that start more than a century after dtStart are reached by
+    // advancing past the year generator's throttle.
+    RecurrenceIterable yearly = series("RRULE:FREQ=YEARLY", "20060101");
+    RecurrenceSlice whole = new RecurrenceSlice(
+        yearly, new DateValueImpl(2006, 1, 1), new DateValueImpl(2300, 1, 1));
+    List<RecurrenceSlice> parts = whole.partition(4);
+    assertEquals(4, parts.size());
+    RecurrenceIterator expected = yearly.iterator();
+    int n = 0;
+    for (RecurrenceSlice part : parts) {
+      int inPart = 0;
+      for (DateValue date : part) {
+        assertEquals(expected.next(), date);
+        ++inPart;
+      }
+      assertTrue(inPart > 0);
+      n += inPart;
+    }
+    assertEquals(294, n);
+    assertEquals(new DateValueImpl(2300, 1, 1), expected.next());
+  }
+
+  public void testAdvanceWithinSlice() throws Exception {
+    RecurrenceSlice slice = new RecurrenceSlice(
+        series("RRULE:FREQ=DAILY", "20060101"),
+        new DateValueImpl(2006, 2, 1), new DateValueImpl(2006, 3, 1));
+    RecurrenceIterator it = slice.iterator();
+    assertTrue(it.hasNext());
+    it.advanceTo(new DateValueImpl(2006, 1, 1));
+    assertEquals(new DateValueImpl(2006, 2, 1), it.next());
+    it.advanceTo(new DateValueImpl(2006, 2, 28));
+    assertEquals(new DateValueImpl(2006, 2, 28), it.next());
+    assertFalse(it.hasNext());
+  }
+
+  private static RecurrenceIterable series(String rdata, String dtStart)
+      throws Exception {
+    return RecurrenceIteratorFactory.createRecurrenceIterable(
+        rdata, IcalParseUtil.parseDateValue(dtStart), PST, true);
+  }
+
+}
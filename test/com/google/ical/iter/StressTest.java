@@ -15,9 +15,12 @@
 package com.google.ical.iter;
 
 import com.google.ical.values.RRule;
+import com.google.ical.values.DateTimeValueImpl;
 import com.google.ical.values.DateValue;
 import com.google.ical.values.DateValueImpl;
 import com.google.ical.util.TimeUtils;
+import java.util.SimpleTimeZone;
+import java.util.TimeZone;
 import junit.framework.TestCase;
 
 /**
@@ -51,6 +54,34 @@ public class StressTest extends TestCase {
     System.out.println(getName() + " took " + (dt / 1e6) + " ms");
   }
 
+  public void testFixedOffsetSpeed() throws Exception {
+    // Compare zones that iterators can convert by shifting with one that they
+    // have to look up offsets for.
+    TimeZone[] zones = {
+      TimeUtils.utcTimezone(),
+      new SimpleTimeZone(-5 * 60 * 60 * 1000, "EST"),
+      TimeZone.getTimeZone("America/New_York"),
+    };
+    for (TimeZone zone : zones) {
+      RecurrenceIterable[] series =
+          new RecurrenceIterable[TIMED_RECURRENCE_RULES.length];
+      for (int i = 0; i < series.length; ++i) {
+        series[i] = RecurrenceIteratorFactory.createRecurrenceIterable(
+            TIMED_RECURRENCE_RULES[i], TIMED_DT_START, zone, true);
+      }
+      for (int runs = 100; --runs >= 0;) {
+        expand(series);
+      }
+      long t0 = System.nanoTime();
+      for (int runs = 500; --runs >= 0;) {
+        expand(series);
+      }
+      long dt = System.nanoTime() - t0;
+      System.out.println(
+          getName() + " in " + zone.getID() + " took " + (dt / 1e6) + " ms");
+    }
+  }
+
   static String[] RECURRENCE_RULES = {
     "RRULE:FREQ=DAILY",
     "RRULE:FREQ=WEEKLY;BYDAY=TU,TH",
@@ -61,8 +92,16 @@ public class StressTest extends TestCase {
     "RRULE:FREQ=YEARLY;BYMONTH=6;BYMONTHDAY=15;UNTIL=20200615",
   };
 
+  static String[] TIMED_RECURRENCE_RULES = {
+    "RRULE:FREQ=HOURLY;BYDAY=MO,TU,WE,TH,FR",
+    "RRULE:FREQ=DAILY;BYHOUR=9,13,17",
+    "RRULE:FREQ=WEEKLY;BYDAY=MO,WE,FR",
+  };
+
   private static final DateValue DT_START = new DateValueImpl(2006, 4, 3);
   private static final DateValue T0 = new DateValueImpl(2006, 8, 3);
+  private static final DateValue TIMED_DT_START =
+      new DateTimeValueImpl(2006, 4, 3, 9, 0, 0);
 
   void runOne() throws Exception {
     for (String rdata : RECURRENCE_RULES) {
@@ -77,4 +116,14 @@ public class StressTest extends TestCase {
     }
   }
 
+  /** pulls a couple of thousand instances off each series. */
+  private static void expand(RecurrenceIterable[] series) {
+    for (RecurrenceIterable recurrence : series) {
+      RecurrenceIterator iter = recurrence.iterator();
+      for (int k = 2000; iter.hasNext() && --k >= 0;) {
+        iter.nextPacked();
+      }
+    }
+  }
+
 }
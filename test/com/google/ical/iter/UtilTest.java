@@ -140,6 +140,13 @@ public class UtilTest extends TestCase {
     assertEquals("0,1,2,3,4,7,8", arrToString(ints));
   }
 
+  public void testUniquifyLongs() throws Exception {
+    long[] longs = new long[] { 9, 1L << 40, 4, 4, -2, 1L << 40, 9 };
+    assertEquals("-2,4,9," + (1L << 40),
+                 arrToString(Util.uniquify(longs, 1, 7)));
+    assertEquals(0, Util.uniquify(longs, 3, 3).length);
+  }
+
   public void testRollToNextWeekStart() throws Exception {
     DTBuilder builder;
 
@@ -295,6 +302,15 @@ public class UtilTest extends TestCase {
     }
     return sb.toString();
   }
+
+  private static String arrToString(long[] arr) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < arr.length; ++i) {
+      if (0 != i) { sb.append(','); }
+      sb.append(arr[i]);
+    }
+    return sb.toString();
+  }
 }
 
             // For dow0 == MO
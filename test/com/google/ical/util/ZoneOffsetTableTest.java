@@ -0,0 +1,137 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.util;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.SimpleTimeZone;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+/**
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+public class ZoneOffsetTableTest extends TestCase {
+
+  private static final String[] ZONE_IDS = {
+    "America/Los_Angeles", "America/Sao_Paulo", "Europe/London",
+    "Australia/Lord_Howe", "Asia/Kolkata", "Pacific/Apia",
+  };
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+  }
+
+  public void testEquivalentZonesShareTables() throws Exception {
+    assertSame(
+        ZoneOffsetTable.forZone(TimeZone.getTimeZone("America/New_York")),
+        ZoneOffsetTable.forZone(TimeZone.getTimeZone("America/New_York")));
+    assertNotSame(
+        ZoneOffsetTable.forZone(TimeZone.getTimeZone("America/New_York")),
+        ZoneOffsetTable.forZone(TimeZone.getTimeZone("America/Chicago")));
+    assertTrue(ZoneOffsetTable.forZone(TimeUtils.utcTimezone()).isUtc());
+    assertTrue(ZoneOffsetTable.forZone(new SimpleTimeZone(0, "Z")).isUtc());
+    assertFalse(
+        ZoneOffsetTable.forZone(TimeZone.getTimeZone("Europe/London"))
+        .isUtc());
+  }
+
+  public void testConversionsMatchCalendar() throws Exception {
+    for (String id : ZONE_IDS) {
+      TimeZone zone = TimeZone.getTimeZone(id);
+      // Step through several years a few minutes short of an hour at a time,
+      // which lands in and around every daylight savings transition.
+      for (int year : new int[] { 1920, 1975, 2006, 2011, 2150 }) {
+        DTBuilder time = new DTBuilder(year, 1, 1, 0, 0, 0);
+        while (time.year == year) {
+          assertConversions(time, zone);
+          time.minute += 53;
+          time.normalize();
+        }
+      }
+    }
+  }
+
+  public void testPackedConversionsMatchSingleConversions() throws Exception {
+    for (String id : ZONE_IDS) {
+      TimeZone zone = TimeZone.getTimeZone(id);
+      long[] packed = new long[1 + 365 * 24 * 60 / 53];
+      DTBuilder time = new DTBuilder(2006, 1, 1, 0, 0, 0);
+      for (int i = 0; i < packed.length; ++i) {
+        // Mix in some dates, which are not converted.
+        packed[i] = PackedDates.pack(time, i % 7 != 0);
+        time.minute += 53;
+        time.normalize();
+      }
+      long[] converted = packed.clone();
+      TimeUtils.toUtc(converted, 1, converted.length - 1, zone);
+      assertEquals(packed[0], converted[0]);
+      for (int i = 1; i < packed.length; ++i) {
+        assertEquals(
+            id,
+            TimeUtils.toUtc(PackedDates.unpack(packed[i]), zone),
+            PackedDates.unpack(converted[i]));
+      }
+    }
+  }
+
+  public void testOutOfRangeYears() throws Exception {
+    TimeZone zone = TimeZone.getTimeZone("America/Los_Angeles");
+    assertConversions(new DTBuilder(1850, 7, 4, 12, 0, 0), zone);
+    assertConversions(new DTBuilder(2500, 7, 4, 12, 0, 0), zone);
+  }
+
+  /** checks both conversions of time against a calendar's. */
+  private static void assertConversions(DTBuilder time, TimeZone zone) {
+    DTBuilder expected = copy(time);
+    expected.second +=
+        offsetSeconds(zone, millis(time, TimeUtils.utcTimezone()));
+    expected.normalize();
+    DTBuilder actual = copy(time);
+    TimeUtils.fromUtc(actual, zone);
+    assertEquals(zone.getID() + " " + time, expected, actual);
+
+    expected = copy(time);
+    expected.second -= offsetSeconds(zone, millis(time, zone));
+    expected.normalize();
+    actual = copy(time);
+    TimeUtils.toUtc(actual, zone);
+    assertEquals(zone.getID() + " " + time, expected, actual);
+  }
+
+  private static DTBuilder copy(DTBuilder b) {
+    return new DTBuilder(b.year, b.month, b.day, b.hour, b.minute, b.second);
+  }
+
+  private static int offsetSeconds(TimeZone zone, long millis) {
+    int offset = zone.getOffset(millis);
+    return (offset + (offset < 0 ? -500 : 500)) / 1000;
+  }
+
+  private static long millis(DTBuilder time, TimeZone zone) {
+    Calendar cal = new GregorianCalendar(zone);
+    cal.clear();
+    cal.set(time.year, time.month - 1, time.day,
+            time.hour, time.minute, time.second);
+    return cal.getTimeInMillis();
+  }
+}
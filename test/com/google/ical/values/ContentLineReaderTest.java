@@ -0,0 +1,171 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.values;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.text.ParseException;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+/**
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+public class ContentLineReaderTest extends TestCase {
+
+  private static final TimeZone PST =
+    TimeZone.getTimeZone("America/Los_Angeles");
+
+  private static final String ICS =
+      "BEGIN:VCALENDAR\r\n"
+      + "BEGIN:VTIMEZONE\r\n"
+      + "TZID:America/New_York\r\n"
+      + "BEGIN:DAYLIGHT\r\n"
+      + "RRULE:FREQ=YEARLY;BYMONTH=3;BYDAY=2SU\r\n"
+      + "END:DAYLIGHT\r\n"
+      + "END:VTIMEZONE\r\n"
+      + "BEGIN:VEVENT\r\n"
+      + "DTSTART;TZID=America/Los_Angeles:20060101T090000\r\n"
+      + "DESCRIPTION:RRULE:FREQ=DAILY is not a rule\r\n"
+      + " RRULE:FREQ=DAILY neither\r\n"
+      + "RRULE:FREQ=WEEKLY;BY\r\n"
+      + " DAY=MO,W\r\n"
+      + "\tE\r\n"
+      + "exdate:20060102T090000,\r\n"
+      + " 20060104T090000\n"
+      + "\n"
+      + "  EXRULE:FREQ=MONTHLY;COUNT=2  \r"
+      + "RDATE;TZID=America/New_York;VALUE=DATE-TIME:20060105T120000\r\n"
+      + "BEGIN:VALARM\r\n"
+      + "TRIGGER:-PT15M\r\n"
+      + "RRULE:FREQ=DAILY\r\n"
+      + "END:VALARM\r\n"
+      + "END:VEVENT\r\n"
+      + "begin:vevent\r\n"
+      + "rrule:FREQ=YEARLY\r\n"
+      + "end:vevent\r\n"
+      + "END:VCALENDAR\r\n";
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+  }
+
+  public void testReadsRecurrenceLines() throws Exception {
+    assertLines(new ContentLineReader(new StringReader(ICS), PST));
+  }
+
+  public void testReadsAcrossBufferBoundaries() throws Exception {
+    // One char at a time, and with a long property that spans many buffers.
+    StringBuilder sb = new StringBuilder("ATTACH:");
+    for (int i = 0; i < 5000; ++i) { sb.append("abcdefghijklmnop\r\n "); }
+    sb.append("\r\n").append(ICS);
+    final Reader in = new StringReader(sb.toString());
+    Reader slow = new Reader() {
+      @Override
+      public int read(char[] cbuf, int off, int len) throws IOException {
+        return in.read(cbuf, off, Math.min(len, 1));
+      }
+      @Override
+      public void close() throws IOException {
+        in.close();
+      }
+    };
+    ContentLineReader reader = new ContentLineReader(slow, PST);
+    assertLines(reader, 5001);
+    reader.close();
+  }
+
+  public void testReadsStreamsAndChannels() throws Exception {
+    byte[] bytes = ICS.getBytes("UTF-8");
+    assertLines(new ContentLineReader(new ByteArrayInputStream(bytes), PST));
+    assertLines(new ContentLineReader(
+        Channels.newChannel(new ByteArrayInputStream(bytes)), PST));
+  }
+
+  public void testBadLineDoesNotStopReader() throws Exception {
+    ContentLineReader reader = new ContentLineReader(
+        new StringReader(
+            "RRULE:FREQ=FORTNIGHTLY\nX-FOO\nRDATE:bogus\nRRULE:FREQ=DAILY"),
+        PST);
+    try {
+      reader.next();
+      fail("bad frequency");
+    } catch (ParseException ex) {
+      assertEquals(1, reader.getLineNumber());
+    }
+    try {
+      reader.next();
+      fail("bad date");
+    } catch (ParseException ex) {
+      assertEquals(3, reader.getLineNumber());
+    }
+    assertEquals("RRULE:FREQ=DAILY", ((RRule) reader.next()).toIcal());
+    // Lines outside any component are not in an event.
+    assertEquals(0, reader.getEventNumber());
+    assertNull(reader.next());
+  }
+
+  private static void assertLines(ContentLineReader reader) throws Exception {
+    assertLines(reader, 0);
+  }
+
+  /**
+   * @param skipped the number of lines before ICS.
+   */
+  private static void assertLines(ContentLineReader reader, int skipped)
+      throws Exception {
+    RRule rrule = (RRule) reader.next();
+    assertEquals("RRULE:FREQ=WEEKLY;BYDAY=MO,WE", rrule.toIcal());
+    assertEquals(skipped + 12, reader.getLineNumber());
+    assertEquals(1, reader.getEventNumber());
+
+    RDateList exdate = (RDateList) reader.next();
+    assertEquals("EXDATE", exdate.getName());
+    assertEquals(skipped + 15, reader.getLineNumber());
+    assertEquals(2, exdate.getDatesUtc().length);
+    assertEquals(new DateTimeValueImpl(2006, 1, 4, 17, 0, 0),
+                 exdate.getDatesUtc()[1]);
+
+    RRule exrule = (RRule) reader.next();
+    assertEquals("EXRULE:FREQ=MONTHLY;COUNT=2", exrule.toIcal());
+    assertEquals(skipped + 18, reader.getLineNumber());
+
+    RDateList rdate = (RDateList) reader.next();
+    assertEquals(new DateTimeValueImpl(2006, 1, 5, 17, 0, 0),
+                 rdate.getDatesUtc()[0]);
+    assertEquals(skipped + 19, reader.getLineNumber());
+    assertEquals(1, reader.getEventNumber());
+
+    // The VALARM's rule is skipped, and the next rule is in another event.
+    RRule yearly = (RRule) reader.next();
+    assertEquals("RRULE:FREQ=YEARLY", yearly.toIcal());
+    assertEquals(skipped + 26, reader.getLineNumber());
+    assertEquals(2, reader.getEventNumber());
+
+    assertNull(reader.next());
+    assertNull(reader.next());
+  }
+
+}
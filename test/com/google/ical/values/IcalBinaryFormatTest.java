@@ -0,0 +1,251 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.values;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+/**
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+public class IcalBinaryFormatTest extends TestCase {
+
+  private static final TimeZone PST =
+    TimeZone.getTimeZone("America/Los_Angeles");
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+  }
+
+  public void testRRuleRoundTrips() throws Exception {
+    String[] rules = {
+      "RRULE:FREQ=DAILY",
+      "RRULE:FREQ=WEEKLY;INTERVAL=2;BYDAY=MO,WE,FR;UNTIL=20071231T235959Z",
+      "EXRULE:FREQ=MONTHLY;BYDAY=-1FR,2SA,-53SU,53MO;BYHOUR=9,17;COUNT=6",
+      "RRULE:FREQ=YEARLY;BYMONTH=2;BYMONTHDAY=-1;WKST=SU",
+      "RRULE:FREQ=MONTHLY;BYDAY=MO,TU,WE,TH,FR;BYSETPOS=-1,1",
+      "RRULE:FREQ=YEARLY;BYWEEKNO=20,-1;BYYEARDAY=1,-366;UNTIL=20100101",
+      "RRULE:FREQ=HOURLY;BYMINUTE=0,30;BYSECOND=0,59",
+      "RRULE;X-FOO=BAR;X-BAZ=\"a:b\":FREQ=DAILY;UNTIL=99991231T235959Z",
+      "RRULE:W1 MO TH 20060101T000000",
+    };
+    for (String text : rules) {
+      RRule rule = new RRule(text);
+      RRule copy = roundTrip(rule);
+      assertEquals(text, rule.toIcal(), copy.toIcal());
+      assertEquals(text, rule.getExtParams(), copy.getExtParams());
+    }
+
+    RRule rule = new RRule();
+    rule.setName("X-RULE");
+    rule.setFreq(null);
+    rule.setCount(-1);
+    rule.setByHour(new int[] { Integer.MIN_VALUE, Integer.MAX_VALUE });
+    RRule copy = roundTrip(rule);
+    assertEquals("X-RULE", copy.getName());
+    assertNull(copy.getFreq());
+    assertEquals(-1, copy.getCount());
+    assertEquals(Integer.MIN_VALUE, copy.getByHour()[0]);
+    assertEquals(Integer.MAX_VALUE, copy.getByHour()[1]);
+  }
+
+  public void testRRuleIsCompact() throws Exception {
+    ByteBuffer buf = ByteBuffer.allocate(64);
+    IcalBinaryFormat.write(
+        new RRule("RRULE:FREQ=WEEKLY;BYDAY=MO,WE,FR;COUNT=10"), buf);
+    // Header, name, freq, flags, count, then a length and a byte per day.
+    assertEquals(2 + 1 + 1 + 1 + 1 + 1 + 3, buf.position());
+  }
+
+  public void testRDateListRoundTrips() throws Exception {
+    String[] lists = {
+      "RDATE:20060412",
+      "RDATE:20060412T120000,20060413T153000Z,20060101T000000Z",
+      "EXDATE;TZID=America/New_York:20060412T120000,20060412T120000",
+      "RDATE;VALUE=DATE:19700101,20380119,00010101,99991231",
+      "RDATE;VALUE=PERIOD:20060412T120000Z/PT1H",
+    };
+    for (String text : lists) {
+      RDateList dates;
+      try {
+        dates = new RDateList(text, PST);
+      } catch (ParseException ex) {
+        // PERIOD values are not supported by RDateList.
+        continue;
+      }
+      RDateList copy = roundTrip(dates);
+      assertEquals(text, dates.toIcal(), copy.toIcal());
+      assertEquals(text, dates.getName(), copy.getName());
+      assertEquals(text, dates.getTzid(), copy.getTzid());
+    }
+
+    RDateList empty = new RDateList(TimeZone.getTimeZone("UTC"));
+    empty.setValueType(IcalValueType.DATE_TIME);
+    empty.getExtParams().put("X-FOO", "BAR");
+    RDateList copy = roundTrip(empty);
+    assertEquals(empty.toIcal(), copy.toIcal());
+    assertEquals(0, copy.getPackedDatesUtc().length);
+  }
+
+  public void testRDateListWithoutDatesOrTimezone() throws Exception {
+    // Subclasses can return null for either.
+    RDateList dates = new RDateList(PST) {
+      @Override
+      public TimeZone getTzid() { return null; }
+      @Override
+      public long[] getPackedDatesUtc() { return null; }
+    };
+    dates.setName("EXDATE");
+    dates.setValueType(IcalValueType.DATE);
+    RDateList copy = roundTrip(dates);
+    assertEquals("EXDATE", copy.getName());
+    assertEquals(IcalValueType.DATE, copy.getValueType());
+    assertNull(copy.getTzid());
+    assertEquals(0, copy.getPackedDatesUtc().length);
+
+    // Each can be missing alone.
+    RDateList noDates = new RDateList(PST) {
+      @Override
+      public long[] getPackedDatesUtc() { return null; }
+    };
+    noDates.setValueType(IcalValueType.DATE_TIME);
+    copy = roundTrip(noDates);
+    assertEquals(PST, copy.getTzid());
+    assertEquals(0, copy.getPackedDatesUtc().length);
+
+    RDateList noZone = new RDateList("RDATE:20060412,20060413", PST) {
+      @Override
+      public TimeZone getTzid() { return null; }
+    };
+    copy = roundTrip(noZone);
+    assertNull(copy.getTzid());
+    assertEquals("20060412,20060413", join(copy.getDatesUtc()));
+  }
+
+  public void testValuesCanBeConcatenated() throws Exception {
+    ByteBuffer buf = ByteBuffer.allocate(256);
+    RRule rule = new RRule("RRULE:FREQ=DAILY;COUNT=3");
+    RDateList dates = new RDateList("EXDATE:20060102", PST);
+    IcalBinaryFormat.write(rule, buf);
+    IcalBinaryFormat.write(dates, buf);
+    IcalBinaryFormat.write(rule, buf);
+    buf.flip();
+    assertEquals(rule.toIcal(), IcalBinaryFormat.readRRule(buf).toIcal());
+    assertEquals(
+        dates.toIcal(), IcalBinaryFormat.readRDateList(buf).toIcal());
+    assertEquals(rule.toIcal(), IcalBinaryFormat.readRRule(buf).toIcal());
+    assertFalse(buf.hasRemaining());
+  }
+
+  public void testMalformedInput() throws Exception {
+    ByteBuffer buf = ByteBuffer.allocate(256);
+    IcalBinaryFormat.write(new RRule(
+        "RRULE;X-A=B:FREQ=WEEKLY;BYDAY=-1MO,TU;UNTIL=20071231T235959Z"), buf);
+    byte[] bytes = new byte[buf.position()];
+    buf.flip();
+    buf.get(bytes);
+
+    // Every truncation fails cleanly.
+    for (int n = 0; n < bytes.length; ++n) {
+      try {
+        IcalBinaryFormat.readRRule(ByteBuffer.wrap(bytes, 0, n));
+        fail("" + n);
+      } catch (ParseException ex) {
+        // pass
+      }
+    }
+
+    // An RRule is not an RDateList.
+    assertMalformed(bytes, true);
+    // Unknown versions are rejected.
+    bytes[1] = (byte) (IcalBinaryFormat.VERSION + 1);
+    assertMalformed(bytes, false);
+
+    // So are bad ordinals.
+    RRule rule = new RRule("RRULE:FREQ=DAILY");
+    buf.clear();
+    IcalBinaryFormat.write(rule, buf);
+    bytes = new byte[buf.position()];
+    buf.flip();
+    buf.get(bytes);
+    bytes[3] = 100;  // freq
+    assertMalformed(bytes, false);
+
+    buf.clear();
+    IcalBinaryFormat.write(new RRule("RRULE:FREQ=DAILY;BYDAY=MO"), buf);
+    bytes = new byte[buf.position()];
+    buf.flip();
+    buf.get(bytes);
+    bytes[bytes.length - 1] = 7 << 1;  // a zig-zag encoded 8th weekday
+    assertMalformed(bytes, false);
+
+    // A ten byte varint that sets the sign bit is not a valid length.
+    bytes = new byte[] {
+      2, IcalBinaryFormat.VERSION, 0,  // an RDateList with a spelled out name
+      -1, -1, -1, -1, -1, -1, -1, -1, -1, 1,  // whose length is negative
+      'R', 'D', 'A', 'T', 'E',
+    };
+    assertMalformed(bytes, true);
+    bytes[bytes.length - 6] = 2;  // or too large for an int
+    assertMalformed(bytes, true);
+  }
+
+  private static void assertMalformed(byte[] bytes, boolean asDates) {
+    try {
+      if (asDates) {
+        IcalBinaryFormat.readRDateList(ByteBuffer.wrap(bytes));
+      } else {
+        IcalBinaryFormat.readRRule(ByteBuffer.wrap(bytes));
+      }
+      fail();
+    } catch (ParseException ex) {
+      // pass
+    }
+  }
+
+  private static String join(DateValue[] dates) {
+    StringBuilder sb = new StringBuilder();
+    for (DateValue date : dates) { sb.append(',').append(date); }
+    return sb.substring(1);
+  }
+
+  private static RRule roundTrip(RRule rule) throws ParseException {
+    ByteBuffer buf = ByteBuffer.allocate(1024);
+    IcalBinaryFormat.write(rule, buf);
+    buf.flip();
+    RRule copy = IcalBinaryFormat.readRRule(buf);
+    assertFalse(buf.hasRemaining());
+    return copy;
+  }
+
+  private static RDateList roundTrip(RDateList dates) throws ParseException {
+    ByteBuffer buf = ByteBuffer.allocate(1024);
+    IcalBinaryFormat.write(dates, buf);
+    buf.flip();
+    RDateList copy = IcalBinaryFormat.readRDateList(buf);
+    assertFalse(buf.hasRemaining());
+    return copy;
+  }
+
+}
@@ -14,6 +14,7 @@
 
 package com.google.ical.values;
 
+import com.google.ical.util.PackedDates;
 import java.text.ParseException;
 import java.util.TimeZone;
 import junit.framework.TestCase;
@@ -92,6 +93,53 @@ public class IcalParseUtilTest extends TestCase {
                  IcalParseUtil.parseDateValue("20060229T120000Z", null));
   }
 
+  public void testDateForms() throws Exception {
+    assertEquals(new DateValueImpl(12006, 2, 25),
+                 IcalParseUtil.parseDateValue("120060225", null));
+    assertEquals(new DateTimeValueImpl(2006, 2, 25, 23, 59, 59),
+                 IcalParseUtil.parseDateValue("20060225T235959", null));
+    assertEquals(new DateValueImpl(2006, 1, 1),
+                 IcalParseUtil.parseDateValue("20051232", null));
+    String[] bad = {
+      "", "2006022", "2006022a", "20060225T", "20060225T1200",
+      "20060225T240000", "20060225T126000", "20060225T120060",
+      "20060225t120000", "20060225Z", "20060225T120000z",
+      "20060225T120000ZZ", "20060225T1200000", " 20060225",
+    };
+    for (String s : bad) {
+      try {
+        IcalParseUtil.parseDateValue(s, null);
+        fail(s);
+      } catch (ParseException ex) {
+        assertEquals(s, ex.getMessage());
+      }
+    }
+  }
+
+  public void testParsePackedDateValues() throws Exception {
+    long[] packed = IcalParseUtil.parsePackedDateValues(
+        "20060225T120000,20060101,20060225T120000Z,20060101,", PDT);
+    assertEquals(4, packed.length);
+    assertEquals(PackedDates.packDateTime(2006, 2, 25, 20, 0, 0), packed[0]);
+    assertEquals(PackedDates.packDate(2006, 1, 1), packed[1]);
+    assertEquals(PackedDates.packDateTime(2006, 2, 25, 12, 0, 0), packed[2]);
+    assertEquals(PackedDates.packDate(2006, 1, 1), packed[3]);
+
+    assertEquals(0, IcalParseUtil.parsePackedDateValues(",,", PDT).length);
+    try {
+      IcalParseUtil.parsePackedDateValues("20060101,,20060102", PDT);
+      fail("empty value");
+    } catch (ParseException ex) {
+      assertEquals("", ex.getMessage());
+    }
+    try {
+      IcalParseUtil.parsePackedDateValues("20060101,2006010", PDT);
+      fail("short value");
+    } catch (ParseException ex) {
+      assertEquals("2006010", ex.getMessage());
+    }
+  }
+
   public void testUnfold() throws Exception {
     assertEquals("", IcalParseUtil.unfoldIcal(""));
     assertEquals("foo", IcalParseUtil.unfoldIcal("foo"));
@@ -14,10 +14,12 @@
 
 package com.google.ical.values;
 
+import com.google.ical.util.PackedDates;
 import com.google.ical.values.DateTimeValueImpl;
 import com.google.ical.values.DateValueImpl;
 
 import junit.framework.TestCase;
+import java.util.Arrays;
 import java.util.TimeZone;
 
 /**
@@ -90,4 +92,20 @@ public class RDateListTest extends TestCase {
         "RDATE;TZID=\"America/Los_Angeles\";VALUE=DATE;X-FOO=BAR:20060412",
         rd.toIcal());
   }
+
+  public void testPackedDates() throws Exception {
+    RDateList rd = new RDateList(
+        "EXDATE:20060412T120000,20060413T153000Z,20060412T120000", PST);
+    long[] packed = rd.getPackedDatesUtc();
+    assertEquals(3, packed.length);
+    DateValue[] dates = rd.getDatesUtc();
+    for (int i = 0; i < packed.length; ++i) {
+      assertEquals(dates[i], PackedDates.unpack(packed[i]));
+    }
+    assertEquals(IcalValueType.DATE_TIME, rd.getValueType());
+
+    RDateList copy = new RDateList(PST);
+    copy.setDatesUtc(dates);
+    assertTrue(Arrays.equals(packed, copy.getPackedDatesUtc()));
+  }
 }
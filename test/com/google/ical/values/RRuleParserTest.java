@@ -0,0 +1,144 @@
+// Copyright (C) 2006 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.ical.values;
+
+import java.text.ParseException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * @author mikesamuel+svn@gmail.com (Mike Samuel)
+ */
+public class RRuleParserTest extends TestCase {
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+  }
+
+  public void testCommonRulesTakeFastPath() throws Exception {
+    String[] rules = {
+      "RRULE:FREQ=DAILY",
+      "RRULE:FREQ=WEEKLY;INTERVAL=2;BYDAY=MO,WE,FR;UNTIL=20071231T235959Z",
+      "EXRULE:FREQ=MONTHLY;BYDAY=-1FR;BYHOUR=9,17;COUNT=6",
+      "rrule:freq=YEARLY;bymonth=2;bymonthday=-1;wkst=su",
+      "RRULE:FREQ=MONTHLY;BYDAY=MO,TU,WE,TH,FR;BYSETPOS=-1,1",
+      "RRULE:FREQ=YEARLY;BYWEEKNO=20,-1;BYYEARDAY=1,-366;UNTIL=20100101",
+      "RRULE:FREQ=HOURLY;BYMINUTE=0,30;BYSECOND=0,59",
+    };
+    for (String rule : rules) {
+      assertTrue(rule, RRuleParser.parse(rule, new RRule()));
+      assertEquals(rule, slowParse(rule), parse(rule));
+    }
+  }
+
+  public void testUnusualRulesTakeSlowPath() throws Exception {
+    String[] rules = {
+      "RRULE:D2 #5",
+      "RRULE:W1 MO TH 20060101T000000",
+      "RRULE;X-FOO=BAR:FREQ=DAILY",
+      "RRULE:FREQ=DAILY;X-FOO=BAR",
+      "RRULE:FREQ=DAILY;BYDAY=MO,\r\n TU",
+      "RRULE:FREQ=DAILY;",
+      "RRULE:FREQ=daily",
+      "RRULE:FREQ=DAILY;COUNT=+3",
+      "RRULE:FREQ=DAILY;COUNT=3;UNTIL=20060101",
+      "RRULE:FREQ=DAILY;BYDAY=+1MO",
+      "RRULE:FREQ=DAILY;BYDAY=54MO",
+      "RRULE:FREQ=DAILY;BYMONTH=1,,2",
+      "RRULE:FREQ=DAILY;BYHOUR=24",
+      "RRULE:FREQ=DAILY;FREQ=DAILY",
+      "RRULE:COUNT=3",
+      "XRULE:FREQ=DAILY",
+    };
+    for (String rule : rules) {
+      assertFalse(rule, RRuleParser.parse(rule, new RRule()));
+      assertEquals(rule, slowParse(rule), parse(rule));
+    }
+  }
+
+  public void testMatchesSchema() throws Exception {
+    String[] names = {
+      "RRULE", "rrule", "ExRule", "RRULE;X-A=1", " RRULE", "XRULE", "",
+    };
+    String[] keys = {
+      "FREQ", "freq", "UNTIL", "COUNT", "INTERVAL", "BYSECOND", "BYMINUTE",
+      "ByHour", "BYDAY", "BYMONTHDAY", "BYYEARDAY", "BYWEEKNO", "BYMONTH",
+      "BYSETPOS", "WKST", "BYWEEKDAY", "X-FOO", "BOGUS", "",
+    };
+    String[] values = {
+      "DAILY", "WEEKLY", "MONTHLY", "YEARLY", "HOURLY", "daily", "", "0",
+      "1", "007", "23", "24", "31", "-31", "53", "-54", "59", "60", "366",
+      "-367", "+2", "1,2,3", "1,", ",1", "1,,2", "-1,-2", "2147483648",
+      "99999999999", "MO", "su", "-1FR", "+2TU", "53MO", "54MO", "0MO",
+      "-0MO", "100MO", "MO,TU", "MO,", "1MO,-2sa", "M", "MON",
+      "20060101", "20060101T120000Z", "20060101t120000z", "20061301",
+      "2006010", "20060101T250000Z", "DAILY;",
+    };
+    Random rnd = new Random(2006);
+    for (int run = 0; run < 20000; ++run) {
+      StringBuilder sb = new StringBuilder();
+      sb.append(names[rnd.nextInt(names.length)]).append(':');
+      int nParts = rnd.nextInt(5);
+      for (int i = 0; i < nParts; ++i) {
+        if (i != 0 || rnd.nextInt(10) == 0) { sb.append(';'); }
+        if (i == 0 && rnd.nextBoolean()) {
+          sb.append("FREQ=").append(values[rnd.nextInt(5)]);
+          continue;
+        }
+        sb.append(keys[rnd.nextInt(keys.length)]);
+        if (rnd.nextInt(20) != 0) { sb.append('='); }
+        sb.append(values[rnd.nextInt(values.length)]);
+      }
+      String rule = sb.toString();
+      assertEquals(rule, slowParse(rule), parse(rule));
+    }
+  }
+
+  /** the rule or error produced by the RRule constructor. */
+  private static String parse(String rule) {
+    try {
+      return describe(new RRule(rule));
+    } catch (ParseException ex) {
+      return "ParseException: " + ex.getMessage();
+    } catch (RuntimeException ex) {
+      return ex.getClass().getName();
+    }
+  }
+
+  /** the rule or error produced by the schema alone. */
+  private static String slowParse(String rule) {
+    RRule out = new RRule();
+    try {
+      out.parse(VcalRewriter.rewriteRule(rule), RRuleSchema.instance());
+      return describe(out);
+    } catch (ParseException ex) {
+      return "ParseException: " + ex.getMessage();
+    } catch (RuntimeException ex) {
+      return ex.getClass().getName();
+    }
+  }
+
+  private static String describe(RRule rule) {
+    return rule.toIcal() + " / " + rule.getExtParams();
+  }
+
+}